@@ -41,7 +41,15 @@
      *            in the format {@code <ontology prefix>:<term id>}, for example {@code HP:0002066}
      * @param nonstandardPhenotypes a list of non-standard phenotype terms observed in the patient
      * @param limit the maximum number of diagnoses to return; must be a positive number
-     * @return a list of suggested diagnoses
+     * @return a list of suggested diagnoses, empty if the service is still {@link #isReady() warming up}
      */
     List<VocabularyTerm> getDiagnosis(List<String> phenotypes, List<String> nonstandardPhenotypes, int limit);
+
+    /**
+     * Checks if the service finished loading its data. While warming up, no diagnoses are suggested.
+     *
+     * @return {@code true} if the service is ready to suggest diagnoses, {@code false} while it is still warming up
+     * @since 1.4
+     */
+    boolean isReady();
 }
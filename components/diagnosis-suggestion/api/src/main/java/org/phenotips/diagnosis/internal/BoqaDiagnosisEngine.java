@@ -0,0 +1,205 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.internal;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import ontologizer.go.Term;
+import sonumina.boqa.calculation.BOQA;
+import sonumina.boqa.calculation.Observations;
+
+/**
+ * Computes BOQA marginals on a bounded pool of worker threads, and caches the results for recently queried phenotype
+ * sets. Queries are identified by the sorted BOQA indexes of their terms, so the same set of phenotypes in a different
+ * order or with duplicates reuses the cached result. Concurrent requests for the same query wait for the same
+ * computation instead of starting a new one.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class BoqaDiagnosisEngine
+{
+    /** Size of a precalculated table entry or of a marginal, in bytes. */
+    public static final int ENTRY_SIZE = 8;
+
+    private final BOQA boqa;
+
+    private final ExecutorService workers;
+
+    private final Map<String, CompletableFuture<double[]>> cache;
+
+    private final Logger logger;
+
+    /**
+     * Simple constructor.
+     *
+     * @param boqa the BOQA instance, already {@link BOQA#setup set up}
+     * @param threads the maximum number of marginals computed at the same time
+     * @param cacheSize the maximum number of cached results, {@code 0} disables caching
+     * @param logger the logger used for reporting failures
+     */
+    public BoqaDiagnosisEngine(BOQA boqa, int threads, final int cacheSize, Logger logger)
+    {
+        this.boqa = boqa;
+        this.logger = logger;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), new WorkerFactory());
+        this.cache = new LinkedHashMap<String, CompletableFuture<double[]>>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<double[]>> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Enables the BOQA precalculations which fit in a memory budget, cheapest first, and returns the remaining budget.
+     * Must be called before {@link BOQA#setup}. The sizes are rough estimates based on the number of terms and items.
+     *
+     * @param boqa the BOQA instance to configure
+     * @param budget the available memory, in bytes
+     * @param terms the number of terms in the ontology
+     * @param items the number of annotated items (diseases)
+     * @return the part of the budget not used by precalculations, in bytes
+     */
+    public static long applyMemoryBudget(BOQA boqa, long budget, int terms, int items)
+    {
+        // Upper bounds: one entry per item and term, and one entry per pair of terms
+        long itemTable = (long) items * terms * ENTRY_SIZE;
+        long termPairsTable = (long) terms * terms * ENTRY_SIZE / 2;
+        long remaining = budget;
+
+        boolean itemMaxs = itemTable <= remaining;
+        boqa.setPrecalculateItemMaxs(itemMaxs);
+        remaining -= itemMaxs ? itemTable : 0;
+
+        boolean maxICs = termPairsTable <= remaining;
+        boqa.setPrecalculateMaxICs(maxICs);
+        remaining -= maxICs ? termPairsTable : 0;
+
+        boolean jaccard = termPairsTable <= remaining;
+        boqa.setPrecalculateJaccard(jaccard);
+        remaining -= jaccard ? termPairsTable : 0;
+
+        // Score distributions are only needed for p-values, which aren't used, and are by far the largest tables
+        boqa.setPrecalculateScoreDistribution(false);
+        boqa.setCacheScoreDistribution(false);
+        return remaining;
+    }
+
+    /**
+     * Finds the internal BOQA index of an HPO term.
+     *
+     * @param termId the identifier of the term, for example {@code HP:0002066}
+     * @return the index of the term, or {@code -1} if the term is not known by BOQA
+     */
+    public int getTermIndex(String termId)
+    {
+        try {
+            Term t = this.boqa.getOntology().getTerm(termId);
+            return t == null ? -1 : this.boqa.getTermIndex(t);
+        } catch (Exception ex) {
+            this.logger.warn("Unable to find the boqa index of [{}].", termId);
+            return -1;
+        }
+    }
+
+    /**
+     * Computes the marginal probability of each item (disease) given a set of observed terms, or reuses the result of
+     * a previous identical query.
+     *
+     * @param termIndexes the BOQA indexes of the observed terms, as returned by {@link #getTermIndex}
+     * @return the marginals, indexed by the BOQA item index, or {@code null} if the computation failed
+     */
+    public double[] getMarginals(int[] termIndexes)
+    {
+        final int[] query = Arrays.stream(termIndexes).filter(i -> i >= 0).sorted().distinct().toArray();
+        String key = Arrays.toString(query);
+        CompletableFuture<double[]> result;
+        synchronized (this.cache) {
+            result = this.cache.get(key);
+            if (result == null) {
+                result = CompletableFuture.supplyAsync(() -> computeMarginals(query), this.workers);
+                this.cache.put(key, result);
+            }
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            this.logger.warn("Failed to compute diagnosis marginals: {}", ex.getMessage());
+            synchronized (this.cache) {
+                this.cache.remove(key, result);
+            }
+        }
+        return null;
+    }
+
+    /** Stops the worker threads. */
+    public void dispose()
+    {
+        this.workers.shutdownNow();
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
+    private double[] computeMarginals(int[] query)
+    {
+        Observations o = new Observations();
+        o.observations = new boolean[this.boqa.getOntology().getNumberOfTerms()];
+        for (int id : query) {
+            o.observations[id] = true;
+            this.boqa.activateAncestors(id, o.observations);
+        }
+        BOQA.Result res = this.boqa.assignMarginals(o, false, 1);
+        double[] marginals = new double[res.size()];
+        for (int i = 0; i < marginals.length; ++i) {
+            marginals[i] = res.getMarginal(i);
+        }
+        return marginals;
+    }
+
+    /** Creates named daemon threads, so that pending computations don't prevent shutdown. */
+    private static final class WorkerFactory implements ThreadFactory
+    {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread result = new Thread(r, "boqa-diagnosis-" + this.counter.incrementAndGet());
+            result.setDaemon(true);
+            return result;
+        }
+    }
+}
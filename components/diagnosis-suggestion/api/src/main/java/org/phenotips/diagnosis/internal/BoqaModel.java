@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.internal;
+
+import java.io.Serializable;
+
+import ontologizer.association.AssociationContainer;
+import ontologizer.go.Ontology;
+
+/**
+ * The parsed data needed by BOQA, which can be persisted to skip parsing the ontology and the annotations on the next
+ * start, see {@link BoqaModelStore}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class BoqaModel implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String fingerprint;
+
+    private final Ontology graph;
+
+    private final AssociationContainer associations;
+
+    /**
+     * Simple constructor.
+     *
+     * @param fingerprint identifies the source data and the format used, see {@link BoqaModelStore#fingerprint}
+     * @param graph the parsed HPO ontology
+     * @param associations the parsed disease annotations
+     */
+    public BoqaModel(String fingerprint, Ontology graph, AssociationContainer associations)
+    {
+        this.fingerprint = fingerprint;
+        this.graph = graph;
+        this.associations = associations;
+    }
+
+    /**
+     * Identifies the data this model was built from.
+     *
+     * @return a fingerprint of the source data
+     */
+    public String getFingerprint()
+    {
+        return this.fingerprint;
+    }
+
+    /**
+     * The parsed HPO ontology.
+     *
+     * @return the ontology graph
+     */
+    public Ontology getGraph()
+    {
+        return this.graph;
+    }
+
+    /**
+     * The parsed disease annotations.
+     *
+     * @return the association container
+     */
+    public AssociationContainer getAssociations()
+    {
+        return this.associations;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+
+/**
+ * Persists the {@link BoqaModel parsed BOQA data} in a binary file, so that it can be read back quickly instead of
+ * parsing the source files again. The file is memory-mapped when reading. A stored model is only used if its
+ * fingerprint matches the current source data and storage format; otherwise it is ignored and replaced.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class BoqaModelStore
+{
+    /** Must be changed whenever the content of the stored model changes. */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String FILE_NAME = "boqa-model.bin";
+
+    private final File file;
+
+    private final Logger logger;
+
+    /**
+     * Simple constructor.
+     *
+     * @param directory the directory where the model is stored, may be {@code null} to disable storage
+     * @param logger the logger used for reporting problems
+     */
+    public BoqaModelStore(File directory, Logger logger)
+    {
+        this.file = directory == null ? null : new File(new File(directory, "diagnosis"), FILE_NAME);
+        this.logger = logger;
+    }
+
+    /**
+     * Computes the fingerprint of the source data, combined with the storage format version.
+     *
+     * @param sources the content of the source files
+     * @return a fingerprint which changes whenever any of the sources or the storage format changes
+     */
+    public static String fingerprint(byte[]... sources)
+    {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        for (byte[] source : sources) {
+            crc.update(source);
+            size += source.length;
+        }
+        return FORMAT_VERSION + "-" + size + "-" + Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Reads the stored model, if it exists and matches the expected fingerprint.
+     *
+     * @param fingerprint the fingerprint of the current source data
+     * @return the stored model, or {@code null} if there isn't a valid stored model
+     */
+    public BoqaModel load(String fingerprint)
+    {
+        if (this.file == null || !this.file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try (ObjectInputStream in =
+                new ObjectInputStream(new BufferedInputStream(new ByteBufferInputStream(buffer)))) {
+                BoqaModel result = (BoqaModel) in.readObject();
+                if (fingerprint.equals(result.getFingerprint())) {
+                    return result;
+                }
+                this.logger.info("The stored diagnosis model is outdated, it will be rebuilt");
+            }
+        } catch (IOException | ClassNotFoundException | ClassCastException ex) {
+            this.logger.warn("Failed to read the stored diagnosis model, it will be rebuilt: {}", ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Stores a model, replacing any previously stored model. The model is written to a temporary file first, so that
+     * an interrupted write doesn't leave behind a corrupted model.
+     *
+     * @param model the model to store
+     */
+    public void save(BoqaModel model)
+    {
+        if (this.file == null) {
+            return;
+        }
+        Path temporary = null;
+        try {
+            Files.createDirectories(this.file.getParentFile().toPath());
+            temporary = Files.createTempFile(this.file.getParentFile().toPath(), FILE_NAME, ".tmp");
+            try (ObjectOutputStream out =
+                new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeObject(model);
+            }
+            Files.move(temporary, this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            this.logger.warn("Failed to store the diagnosis model: {}", ex.getMessage());
+            deleteQuietly(temporary);
+        }
+    }
+
+    private void deleteQuietly(Path path)
+    {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            // Not important
+        }
+    }
+
+    /** Exposes a (memory-mapped) buffer as a stream. */
+    private static final class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length)
+        {
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, this.buffer.remaining());
+            this.buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return this.buffer.remaining();
+        }
+    }
+}
@@ -22,8 +22,10 @@
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.environment.Environment;
 
 import java.io.File;
@@ -31,44 +33,72 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
-import ontologizer.go.Term;
 import ontologizer.types.ByteString;
 import sonumina.boqa.calculation.BOQA;
-import sonumina.boqa.calculation.Observations;
 
 /**
  * An implementation of {@link DiagnosisService} using BOQA, see
- * <a href="http://bioinformatics.oxfordjournals.org/content/28/19/2502.abstract">this article</a>.
+ * <a href="http://bioinformatics.oxfordjournals.org/content/28/19/2502.abstract">this article</a>. The memory used
+ * for precalculated BOQA tables and cached results is bounded by {@code phenotips.diagnosis.memoryBudget} (in MB), and
+ * the number of diagnoses computed at the same time by {@code phenotips.diagnosis.threads}, both configurable in
+ * {@code xwiki.properties}. The data is loaded in background when the component is initialized, reusing the parsed
+ * data stored in the permanent directory on previous starts; until loading is done, no diagnoses are suggested.
  *
  * @since 1.1M1
  * @version $Id$
  */
 @Singleton
 @Component
-public class DefaultDiagnosisService implements DiagnosisService, Initializable
+public class DefaultDiagnosisService implements DiagnosisService, Initializable, Disposable
 {
+    /** Diseases whose name starts with *, +, and ^ are not suggested. */
+    private static final Pattern EXCLUDED_NAME_PREFIX = Pattern.compile("[*+^]");
+
+    /** The default memory budget, in MB. */
+    private static final int DEFAULT_MEMORY_BUDGET = 64;
+
+    /** The maximum number of cached diagnosis results, regardless of the memory budget. */
+    private static final int MAX_CACHED_RESULTS = 1000;
+
+    /** How many more candidates than requested are looked at first, since some will be skipped. */
+    private static final int CANDIDATES_FACTOR = 4;
+
     @Inject
     private Logger logger;
 
-    private BOQA boqa;
+    private volatile Map<Integer, ByteString> omimMap;
+
+    /** The actual diagnosis engine, {@code null} while the data is being loaded. */
+    private volatile BoqaDiagnosisEngine engine;
+
+    /** Guards publishing the engine against disposing the component while the data is being loaded. */
+    private final Object lifecycleLock = new Object();
 
-    private Map<Integer, ByteString> omimMap;
+    /** Whether the component was disposed, in which case a freshly loaded engine must be discarded. */
+    private boolean disposed;
+
+    /** Loads the data in background. */
+    private Thread loader;
+
+    /** Released once loading is finished, successfully or not. */
+    private final CountDownLatch loaded = new CountDownLatch(1);
 
     @Inject
     private VocabularyManager vocabulary;
@@ -79,48 +109,135 @@ public class DefaultDiagnosisService implements DiagnosisService, Initializable
     @Inject
     private Utils utils;
 
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
     @Override
     public void initialize() throws InitializationException
     {
-        // Initialize boqa
-        this.boqa = new BOQA();
-        this.boqa.setConsiderFrequenciesOnly(false);
-        this.boqa.setPrecalculateScoreDistribution(false);
-        this.boqa.setCacheScoreDistribution(false);
-        this.boqa.setPrecalculateItemMaxs(false);
-        this.boqa.setPrecalculateMaxICs(false);
-        this.boqa.setMaxFrequencyTerms(2);
-        this.boqa.setPrecalculateJaccard(false);
-
-        String annotationPath = null;
-        String vocabularyPath = null;
-        try {
-            annotationPath =
-                stream2file(BOQA.class.getClassLoader().getResourceAsStream("new_phenotype.gz"), "annotation")
-                    .getPath();
-            vocabularyPath =
-                stream2file(BOQA.class.getClassLoader().getResourceAsStream("hp.obo.gz"), "ontology").getPath();
-        } catch (IOException e) {
-            throw new InitializationException(e.getMessage());
-        }
+        // Loading the data takes a while, so it is done in background; until then, no diagnosis is suggested
+        this.loader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    load();
+                } finally {
+                    DefaultDiagnosisService.this.loaded.countDown();
+                }
+            }
+        }, "boqa-initializer");
+        this.loader.setDaemon(true);
+        this.loader.start();
+    }
 
-        // Load datafiles
+    /**
+     * Waits until the data is loaded in background.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return {@code true} if loading finished, successfully or not, {@code false} if the timeout elapsed
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    boolean awaitLoading(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return this.loaded.await(timeout, unit);
+    }
+
+    @Override
+    public boolean isReady()
+    {
+        return this.engine != null;
+    }
+
+    private void load()
+    {
+        long start = System.currentTimeMillis();
         try {
-            this.utils.loadDataFiles(vocabularyPath, annotationPath);
-        } catch (InterruptedException e) {
-            throw new InitializationException(e.getMessage());
-        } catch (IOException e) {
-            throw new InitializationException(e.getMessage());
+            BoqaModel model = loadModel();
+
+            // Initialize boqa
+            BOQA boqa = new BOQA();
+            boqa.setConsiderFrequenciesOnly(false);
+            boqa.setMaxFrequencyTerms(2);
+
+            // Enable the precalculations that fit in the memory budget, the rest of the budget is used for caching
+            int items = model.getAssociations().getAllAnnotatedGenes().size();
+            long budget = getSetting("phenotips.diagnosis.memoryBudget", DEFAULT_MEMORY_BUDGET) * 1024L * 1024L;
+            long remaining = BoqaDiagnosisEngine.applyMemoryBudget(boqa, budget,
+                model.getGraph().getNumberOfTerms(), items);
+            int cacheSize = (int) Math.min(MAX_CACHED_RESULTS,
+                remaining / ((long) Math.max(1, items) * BoqaDiagnosisEngine.ENTRY_SIZE));
+
+            boqa.setup(model.getGraph(), model.getAssociations());
+
+            // Set up our index -> OMIM mapping by flipping the OMIM -> Index mapping in boqa
+            Set<Map.Entry<ByteString, Integer>> omimtonum = boqa.item2Index.entrySet();
+            Map<Integer, ByteString> indexToOmim = new HashMap<>(omimtonum.size());
+            for (Map.Entry<ByteString, Integer> item : omimtonum) {
+                indexToOmim.put(item.getValue(), item.getKey());
+            }
+            this.omimMap = indexToOmim;
+
+            int threads = getSetting("phenotips.diagnosis.threads",
+                Math.min(4, Runtime.getRuntime().availableProcessors()));
+            BoqaDiagnosisEngine loadedEngine = new BoqaDiagnosisEngine(boqa, threads, cacheSize, this.logger);
+            synchronized (this.lifecycleLock) {
+                if (this.disposed) {
+                    // Disposed while loading, the engine would never be stopped otherwise
+                    loadedEngine.dispose();
+                    return;
+                }
+                this.engine = loadedEngine;
+            }
+            this.logger.info("Diagnosis suggestions ready after {}ms", System.currentTimeMillis() - start);
+        } catch (InterruptedException ex) {
+            this.logger.debug("Loading the diagnosis data was interrupted");
+        } catch (Exception ex) {
+            this.logger.error("Failed to initialize the diagnosis service: {}", ex.getMessage(), ex);
         }
+    }
 
-        this.boqa.setup(this.utils.getGraph(), this.utils.getDataAssociation());
-
-        // Set up our index -> OMIM mapping by flipping the OMIM -> Index mapping in boqa
-        Set<Map.Entry<ByteString, Integer>> omimtonum = this.boqa.item2Index.entrySet();
-        this.omimMap = new HashMap<>(omimtonum.size());
+    /**
+     * Reads the parsed ontology and annotations from the stored model, if it is still valid, or parses the bundled
+     * data files and stores the result for the next start.
+     *
+     * @return the BOQA data
+     * @throws IOException if the bundled data files cannot be read
+     * @throws InterruptedException if parsing is interrupted
+     */
+    private BoqaModel loadModel() throws IOException, InterruptedException
+    {
+        byte[] annotations = readResource("new_phenotype.gz");
+        byte[] ontology = readResource("hp.obo.gz");
+        String fingerprint = BoqaModelStore.fingerprint(ontology, annotations);
+
+        BoqaModelStore store = new BoqaModelStore(this.env.getPermanentDirectory(), this.logger);
+        BoqaModel result = store.load(fingerprint);
+        if (result == null) {
+            this.utils.loadDataFiles(bytes2file(ontology, "ontology").getPath(),
+                bytes2file(annotations, "annotation").getPath());
+            result = new BoqaModel(fingerprint, this.utils.getGraph(), this.utils.getDataAssociation());
+            store.save(result);
+        }
+        return result;
+    }
 
-        for (Map.Entry<ByteString, Integer> item : omimtonum) {
-            this.omimMap.put(item.getValue(), item.getKey());
+    @Override
+    public void dispose()
+    {
+        synchronized (this.lifecycleLock) {
+            this.disposed = true;
+            if (this.engine != null) {
+                this.engine.dispose();
+                this.engine = null;
+            }
+        }
+        if (this.loader != null) {
+            // Stops parsing the data, if still in progress
+            this.loader.interrupt();
         }
     }
 
@@ -129,14 +246,18 @@ public List<VocabularyTerm> getDiagnosis(List<String> phenotypes, List<String> n
     {
         // TODO: use the `nonstandardPhenotypes` argument
 
-        Observations o = new Observations();
-        o.observations = new boolean[this.boqa.getOntology().getNumberOfTerms()];
-        boolean searchIsEmpty = true;
+        // The engine is read once, since it is reset when the component is disposed
+        BoqaDiagnosisEngine currentEngine = this.engine;
+        if (currentEngine == null) {
+            this.logger.debug("Diagnosis suggestions requested while still warming up");
+            return Collections.emptyList();
+        }
 
-        // Add all hpo terms with ancestors to array of booleans
-        for (String hpo : phenotypes) {
-            Term t = this.boqa.getOntology().getTerm(hpo);
-            searchIsEmpty = !addTermAndAncestors(t, o) && searchIsEmpty;
+        int[] query = new int[phenotypes.size()];
+        boolean searchIsEmpty = true;
+        for (int i = 0; i < query.length; ++i) {
+            query[i] = currentEngine.getTermIndex(phenotypes.get(i));
+            searchIsEmpty = query[i] < 0 && searchIsEmpty;
         }
 
         if (searchIsEmpty) {
@@ -144,48 +265,56 @@ public List<VocabularyTerm> getDiagnosis(List<String> phenotypes, List<String> n
         }
 
         // Get marginals
-        final BOQA.Result res = this.boqa.assignMarginals(o, false, 1);
-
-        // All of this is sorting diseases by marginals
-        Integer[] order = new Integer[res.size()];
-        for (int i = 0; i < order.length; i++) {
-            order[i] = i;
+        double[] marginals = currentEngine.getMarginals(query);
+        if (marginals == null) {
+            return Collections.emptyList();
         }
 
-        Arrays.sort(order, new Comparator<Integer>()
-        {
-            @Override
-            public int compare(Integer o1, Integer o2)
-            {
-                if (res.getMarginal(o1) < res.getMarginal(o2)) {
-                    return 1;
-                }
-                if (res.getMarginal(o1) > res.getMarginal(o2)) {
-                    return -1;
+        // Get top limit results, looking at more candidates if too many of the best ones are skipped
+        List<VocabularyTerm> results = new ArrayList<>();
+        int processed = 0;
+        int k = Math.max(limit, 1) * CANDIDATES_FACTOR;
+        while (results.size() < limit && processed < marginals.length) {
+            int[] order = TopScoreSelector.select(marginals, k);
+            List<String> candidates = new ArrayList<>(order.length - processed);
+            for (int i = processed; i < order.length; ++i) {
+                String termId = String.valueOf(this.omimMap.get(order[i]));
+                String vocabularyId = StringUtils.substringBefore(termId, ":");
+
+                // ignore non-OMIM diseases (BOQA has ORPHANET and DECIPHER as well)
+                if ("OMIM".equals(vocabularyId)) {
+                    // Strip 'O' in "OMIM"
+                    candidates.add(termId.substring(1));
                 }
-                return 0;
             }
-        });
+            addSuggestions(candidates, results, limit);
+            processed = order.length;
+            k *= 2;
+        }
 
-        // Get top limit results
-        List<VocabularyTerm> results = new ArrayList<>();
-        for (int id : order) {
-            if (results.size() >= limit) {
-                break;
-            }
+        this.logger.debug(String.valueOf(results));
 
-            String termId = String.valueOf(this.omimMap.get(id));
-            String vocabularyId = StringUtils.substringBefore(termId, ":");
+        return results;
+    }
 
-            // ignore non-OMIM diseases (BOQA has ORPHANET and DECIPHER as well)
-            if (!"OMIM".equals(vocabularyId)) {
-                continue;
+    /**
+     * Resolves a batch of candidate diseases and adds the valid ones to the suggestions, until the limit is reached.
+     *
+     * @param candidates the identifiers of the candidate diseases, in decreasing order of their score
+     * @param results the list of suggestions to fill
+     * @param limit the maximum number of suggestions
+     */
+    private void addSuggestions(List<String> candidates, List<VocabularyTerm> results, int limit)
+    {
+        if (candidates.isEmpty()) {
+            return;
+        }
+        Map<String, VocabularyTerm> terms = this.vocabulary.resolveTerms(candidates);
+        for (String termId : candidates) {
+            if (results.size() >= limit) {
+                break;
             }
-
-            // Strip 'O' in "OMIM"
-            termId = termId.substring(1);
-
-            VocabularyTerm term = this.vocabulary.resolveTerm(termId);
+            VocabularyTerm term = terms.get(termId);
 
             if (term == null) {
                 this.logger.warn(String.format(
@@ -194,41 +323,39 @@ public int compare(Integer o1, Integer o2)
             }
 
             // Do not suggest diseases that start with *, +, and ^
-            Pattern pattern = Pattern.compile("[*+^]");
-            if (pattern.matcher(term.getName().substring(0, 1)).matches()) {
+            if (EXCLUDED_NAME_PREFIX.matcher(term.getName().substring(0, 1)).matches()) {
                 continue;
             }
 
             results.add(term);
-
         }
+    }
 
-        this.logger.debug(String.valueOf(results));
-
-        return results;
+    private int getSetting(String name, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(name, Integer.class);
+        return value == null ? defaultValue : value;
     }
 
-    private boolean addTermAndAncestors(Term t, Observations o)
+    private byte[] readResource(String name) throws IOException
     {
-        try {
-            int id = this.boqa.getTermIndex(t);
-            o.observations[id] = true;
-            this.boqa.activateAncestors(id, o.observations);
-        } catch (Exception e) {
-            this.logger.warn("Unable to find the boqa index of [{}].", t);
-            return false;
+        try (InputStream in = BOQA.class.getClassLoader().getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException("Missing resource: " + name);
+            }
+            return IOUtils.toByteArray(in);
         }
-        return true;
     }
 
     /**
-     * Convert a stream into a file.
+     * Write data into a temporary file.
      *
-     * @param in an inputstream
+     * @param data the data to write
+     * @param nameRoot a name for the file
      * @return a File
-     * @throws IOException when we can't open file
+     * @throws IOException when we can't write the file
      */
-    private File stream2file(InputStream in, String nameRoot) throws IOException
+    private File bytes2file(byte[] data, String nameRoot) throws IOException
     {
         File tempDir = this.env.getTemporaryDirectory();
         final File tempFile;
@@ -239,8 +366,9 @@ private File stream2file(InputStream in, String nameRoot) throws IOException
         }
         tempFile.deleteOnExit();
 
-        FileOutputStream out = new FileOutputStream(tempFile);
-        IOUtils.copy(in, out);
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(data);
+        }
 
         return tempFile;
     }
@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.internal;
+
+/**
+ * Selects the positions of the highest scores in an array, without sorting the whole array and without boxing. A
+ * bounded min-heap holding the best {@code k} positions seen so far is used, so this runs in {@code O(n log k)} time.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class TopScoreSelector
+{
+    private TopScoreSelector()
+    {
+        // Utility class, no instances
+    }
+
+    /**
+     * Returns the positions of the {@code k} highest scores. Equal scores are ordered by their position, like a stable
+     * sort would.
+     *
+     * @param scores the scores to process
+     * @param k how many positions to return
+     * @return the positions of the highest scores, in decreasing order of their score; the result has
+     *         {@code min(k, scores.length)} elements
+     */
+    public static int[] select(double[] scores, int k)
+    {
+        int size = Math.max(0, Math.min(k, scores.length));
+        int[] heap = new int[size];
+        if (size == 0) {
+            return heap;
+        }
+        for (int i = 0; i < size; ++i) {
+            heap[i] = i;
+            siftUp(heap, i, scores);
+        }
+        for (int i = size; i < scores.length; ++i) {
+            // The root of the heap is the worst of the best positions found so far
+            if (isWorse(heap[0], i, scores)) {
+                heap[0] = i;
+                siftDown(heap, 0, size, scores);
+            }
+        }
+        // Extract from the heap, worst first, filling the result from the end
+        int[] result = new int[size];
+        for (int end = size - 1; end >= 0; --end) {
+            result[end] = heap[0];
+            heap[0] = heap[end];
+            siftDown(heap, 0, end, scores);
+        }
+        return result;
+    }
+
+    /** Whether position {@code a} ranks after position {@code b}: lower score, or same score and later position. */
+    private static boolean isWorse(int a, int b, double[] scores)
+    {
+        return scores[a] < scores[b] || (scores[a] == scores[b] && a > b);
+    }
+
+    private static void siftUp(int[] heap, int position, double[] scores)
+    {
+        int child = position;
+        while (child > 0) {
+            int parent = (child - 1) / 2;
+            if (!isWorse(heap[child], heap[parent], scores)) {
+                return;
+            }
+            swap(heap, child, parent);
+            child = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int position, int size, double[] scores)
+    {
+        int parent = position;
+        while (2 * parent + 1 < size) {
+            int child = 2 * parent + 1;
+            if (child + 1 < size && isWorse(heap[child + 1], heap[child], scores)) {
+                ++child;
+            }
+            if (!isWorse(heap[child], heap[parent], scores)) {
+                return;
+            }
+            swap(heap, child, parent);
+            parent = child;
+        }
+    }
+
+    private static void swap(int[] heap, int a, int b)
+    {
+        int temp = heap[a];
+        heap[a] = heap[b];
+        heap[b] = temp;
+    }
+}
@@ -57,4 +57,15 @@ public List<VocabularyTerm> get(List<String> phenotypes, List<String> nonstandar
     {
         return this.service.getDiagnosis(phenotypes, nonstandardPhenotypes, limit);
     }
+
+    /**
+     * Checks if the diagnosis service finished loading its data. While warming up, no diagnoses are suggested.
+     *
+     * @return {@code true} if diagnoses can be suggested, {@code false} while the service is still warming up
+     * @since 1.4
+     */
+    public boolean isReady()
+    {
+        return this.service.isReady();
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.internal;
+
+import org.xwiki.environment.Environment;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+
+import ontologizer.association.AssociationContainer;
+import ontologizer.go.Ontology;
+import sonumina.boqa.calculation.BOQA;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link BoqaModelStore}.
+ *
+ * @version $Id$
+ */
+public class BoqaModelStoreTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public final MockitoComponentMockingRule<Utils> utils = new MockitoComponentMockingRule<Utils>(BoqaUtils.class);
+
+    private BoqaModelStore store;
+
+    @Before
+    public void setUp()
+    {
+        this.store = new BoqaModelStore(this.folder.getRoot(), mock(Logger.class));
+    }
+
+    @Test
+    public void storedModelIsReadBack()
+    {
+        String fingerprint = BoqaModelStore.fingerprint(new byte[] { 1, 2 }, new byte[] { 3 });
+        this.store.save(new BoqaModel(fingerprint, null, null));
+        BoqaModel result = this.store.load(fingerprint);
+        Assert.assertNotNull(result);
+        Assert.assertEquals(fingerprint, result.getFingerprint());
+    }
+
+    @Test
+    public void parsedDataIsSerializable()
+    {
+        // The stored model is written with Java serialization, the whole object graph must support it
+        Assert.assertTrue(Serializable.class.isAssignableFrom(Ontology.class));
+        Assert.assertTrue(Serializable.class.isAssignableFrom(AssociationContainer.class));
+    }
+
+    @Test
+    public void realModelIsReadBack() throws Exception
+    {
+        when(this.utils.getInstance(Environment.class).getTemporaryDirectory()).thenReturn(this.folder.newFolder());
+        Utils parser = this.utils.getComponentUnderTest();
+        parser.loadDataFiles(copyResource("hp.obo.gz").getPath(), copyResource("new_phenotype.gz").getPath());
+        String fingerprint = BoqaModelStore.fingerprint(new byte[] { 1 });
+
+        this.store.save(new BoqaModel(fingerprint, parser.getGraph(), parser.getDataAssociation()));
+        BoqaModel result = this.store.load(fingerprint);
+
+        Assert.assertNotNull(result);
+        Assert.assertEquals(parser.getGraph().getNumberOfTerms(), result.getGraph().getNumberOfTerms());
+        Assert.assertNotNull(result.getGraph().getTerm("HP:0000118"));
+        Assert.assertEquals(parser.getDataAssociation().getAllAnnotatedGenes().size(),
+            result.getAssociations().getAllAnnotatedGenes().size());
+    }
+
+    @Test
+    public void outdatedModelIsIgnored()
+    {
+        this.store.save(new BoqaModel(BoqaModelStore.fingerprint(new byte[] { 1 }), null, null));
+        Assert.assertNull(this.store.load(BoqaModelStore.fingerprint(new byte[] { 2 })));
+    }
+
+    @Test
+    public void missingOrCorruptedModelIsIgnored() throws IOException
+    {
+        String fingerprint = BoqaModelStore.fingerprint(new byte[] { 1 });
+        Assert.assertNull(this.store.load(fingerprint));
+
+        File directory = this.folder.newFolder("diagnosis");
+        Files.write(new File(directory, "boqa-model.bin").toPath(), new byte[] { 1, 2, 3 });
+        Assert.assertNull(this.store.load(fingerprint));
+    }
+
+    @Test
+    public void storageIsDisabledWithoutDirectory()
+    {
+        BoqaModelStore disabled = new BoqaModelStore(null, mock(Logger.class));
+        disabled.save(new BoqaModel("1", null, null));
+        Assert.assertNull(disabled.load("1"));
+    }
+
+    @Test
+    public void fingerprintDependsOnContent()
+    {
+        Assert.assertEquals(BoqaModelStore.fingerprint(new byte[] { 1, 2 }),
+            BoqaModelStore.fingerprint(new byte[] { 1, 2 }));
+        Assert.assertNotEquals(BoqaModelStore.fingerprint(new byte[] { 1, 2 }),
+            BoqaModelStore.fingerprint(new byte[] { 2, 1 }));
+    }
+
+    private File copyResource(String name) throws IOException
+    {
+        File result = this.folder.newFile(name);
+        try (InputStream in = BOQA.class.getClassLoader().getResourceAsStream(name)) {
+            Files.copy(in, result.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return result;
+    }
+}
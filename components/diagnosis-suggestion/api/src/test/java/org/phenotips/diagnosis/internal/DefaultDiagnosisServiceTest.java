@@ -30,18 +30,26 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import sonumina.boqa.calculation.BOQA;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
@@ -63,6 +71,29 @@
     public final MockitoComponentMockingRule<Utils> workingUtils =
         new MockitoComponentMockingRule<Utils>(BoqaUtils.class);
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void disposingWhileLoadingStopsTheLoader() throws Exception
+    {
+        doReturn(this.folder.getRoot()).when(this.mocker.getInstance(Environment.class)).getTemporaryDirectory();
+        final CountDownLatch parsing = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            parsing.countDown();
+            // Blocks until interrupted
+            new CountDownLatch(1).await();
+            return null;
+        }).when(this.mocker.getInstance(Utils.class)).loadDataFiles(anyString(), anyString());
+
+        DefaultDiagnosisService service = (DefaultDiagnosisService) this.mocker.getComponentUnderTest();
+        assertTrue(parsing.await(60, TimeUnit.SECONDS));
+        service.dispose();
+
+        assertTrue(service.awaitLoading(60, TimeUnit.SECONDS));
+        assertFalse(service.isReady());
+    }
+
     @Test
     public void returnsCorrectDiagnosis() throws ComponentLookupException, IOException, InterruptedException
     {
@@ -114,23 +145,29 @@ public void returnsCorrectDiagnosis() throws ComponentLookupException, IOExcepti
         doReturn(tempSpy).when(utilsEnv).getTemporaryDirectory();
         workingUtilsComponent.loadDataFiles(vocabularyPath, annotationPath);
 
-        doAnswer(new Answer<VocabularyTerm>()
+        doAnswer(new Answer<Map<String, VocabularyTerm>>()
         {
             @Override
-            public VocabularyTerm answer(InvocationOnMock invocationOnMock) throws Throwable
+            public Map<String, VocabularyTerm> answer(InvocationOnMock invocationOnMock) throws Throwable
             {
-                String id = (String) invocationOnMock.getArguments()[0];
-                VocabularyTerm term = mock(VocabularyTerm.class);
-                doReturn(id).when(term).getId();
-                doReturn("test").when(term).getName();
-                return term;
+                Map<String, VocabularyTerm> result = new LinkedHashMap<>();
+                for (Object id : (Collection<?>) invocationOnMock.getArguments()[0]) {
+                    VocabularyTerm term = mock(VocabularyTerm.class);
+                    doReturn(id).when(term).getId();
+                    doReturn("test").when(term).getName();
+                    result.put((String) id, term);
+                }
+                return result;
             }
-        }).when(vocabulary).resolveTerm(anyString());
+        }).when(vocabulary).resolveTerms(anyCollectionOf(String.class));
 
         doReturn(tempSpy).when(env).getTemporaryDirectory();
         doReturn(workingUtilsComponent.getGraph()).when(utils).getGraph();
         doReturn(workingUtilsComponent.getDataAssociation()).when(utils).getDataAssociation();
         DiagnosisService diagnosisService = this.mocker.getComponentUnderTest();
+        // The data is loaded in background
+        assertTrue(((DefaultDiagnosisService) diagnosisService).awaitLoading(60, TimeUnit.SECONDS));
+        assertTrue(diagnosisService.isReady());
 
         int limit = 3;
         int i = 0;
@@ -145,7 +182,8 @@ public VocabularyTerm answer(InvocationOnMock invocationOnMock) throws Throwable
             assertTrue(diagnosisIds.containsAll(disorderIds.get(i)));
             i++;
         }
-        verify(vocabulary, times(limit * (i - invalidPhenotypes))).resolveTerm(anyString());
+        // The top candidates are all valid, so they are resolved in one batch for each valid phenotype set
+        verify(vocabulary, times(i - invalidPhenotypes)).resolveTerms(anyCollectionOf(String.class));
     }
 
     private File stream2file(InputStream in) throws IOException
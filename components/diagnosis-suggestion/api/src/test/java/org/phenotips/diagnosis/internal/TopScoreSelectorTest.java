@@ -0,0 +1,52 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TopScoreSelector}.
+ *
+ * @version $Id$
+ */
+public class TopScoreSelectorTest
+{
+    @Test
+    public void selectReturnsBestPositionsInDecreasingOrder()
+    {
+        double[] scores = new double[] { 0.1, 0.7, 0.3, 0.9, 0.5 };
+        Assert.assertArrayEquals(new int[] { 3, 1, 4 }, TopScoreSelector.select(scores, 3));
+    }
+
+    @Test
+    public void equalScoresKeepTheirOriginalOrder()
+    {
+        double[] scores = new double[] { 0.5, 0.2, 0.5, 0.5, 0.8 };
+        Assert.assertArrayEquals(new int[] { 4, 0, 2, 3 }, TopScoreSelector.select(scores, 4));
+    }
+
+    @Test
+    public void selectIsLimitedByTheNumberOfScores()
+    {
+        double[] scores = new double[] { 0.2, 0.4 };
+        Assert.assertArrayEquals(new int[] { 1, 0 }, TopScoreSelector.select(scores, 10));
+        Assert.assertEquals(0, TopScoreSelector.select(scores, 0).length);
+        Assert.assertEquals(0, TopScoreSelector.select(new double[0], 3).length);
+    }
+}
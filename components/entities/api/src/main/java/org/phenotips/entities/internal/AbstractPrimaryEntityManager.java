@@ -40,6 +40,7 @@
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Predicate;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -68,7 +69,7 @@
  * {@code PhenoTips.DiseaseStudyClass} the prefix will be {@code DS}; override {@link #getIdPrefix()} to change this
  * behavior</li>
  * <li>the number is a 0-padded 7 digit number, starting at {@code 0000001} and automatically incremented for each new
- * entity created</li>
+ * entity created; numbers are reserved in blocks, so some of them may be skipped after a restart</li>
  * </ul>
  * </li>
  * </ul>
@@ -111,6 +112,10 @@
     @Named("local")
     protected EntityReferenceSerializer<String> localSerializer;
 
+    /** Hands out the sequence numbers used for new documents. */
+    @Inject
+    protected EntityIdentifierAllocator identifierAllocator;
+
     /** The concrete {@link PrimaryEntity} instance class being managed. */
     private Class<? extends E> eclass;
 
@@ -124,7 +129,22 @@ public E create()
     }
 
     @Override
-    public synchronized E create(DocumentReference creator)
+    public E create(DocumentReference creator)
+    {
+        return create(creator, null);
+    }
+
+    /**
+     * Creates a new entity like {@link #create(DocumentReference)} does, and lets the caller fill in the new entity
+     * before its document is saved for the first time, so that the new document is written only once.
+     *
+     * @param creator a reference to the document representing the user creating the entity, may be {@code null}
+     * @param initializer fills in the new entity, and returns {@code false} if the entity must not be saved after all;
+     *            {@code null} if there's nothing to fill in
+     * @return the created entity, or {@code null} if creating the entity failed or was canceled by the initializer
+     * @since 1.4
+     */
+    protected E create(DocumentReference creator, Predicate<E> initializer)
     {
         try {
             XWikiContext context = this.xcontextProvider.get();
@@ -145,9 +165,14 @@ public synchronized E create(DocumentReference creator)
                 doc.setAuthorReference(creator);
                 doc.setContentAuthorReference(creator);
             }
+            initializeDocument(doc);
+            E entity = load(doc);
+            if (initializer != null && (entity == null || !initializer.test(entity))) {
+                return null;
+            }
             context.getWiki().saveDocument(doc, context);
 
-            return load(doc);
+            return entity;
         } catch (Exception ex) {
             this.logger.warn("Failed to create entity: {}", ex.getMessage(), ex);
             return null;
@@ -246,21 +271,37 @@ public E load(DocumentModelBridge document) throws IllegalArgumentException
         return null;
     }
 
+    /**
+     * Fills in a newly created document before it is saved for the first time. The base implementation does nothing,
+     * override to set additional values, so that the new document is written only once.
+     *
+     * @param doc the new document, already filled in from the template
+     */
+    protected void initializeDocument(XWikiDocument doc)
+    {
+        // Nothing to do by default
+    }
+
     /**
      * Gets a reference to the next document that can be used for a newly created entity. It uses {@link #getIdPrefix()
-     * a short prefix} and {@link #getLastUsedId() a sequence number} for the document name, and {@link #getDataSpace()
-     * a space that can be configured by subclases}.
+     * a short prefix} and a sequence number for the document name, and {@link #getDataSpace() a space that can be
+     * configured by subclases}. Sequence numbers are {@link EntityIdentifierAllocator allocated in blocks}, and
+     * {@link #getLastUsedId() the last used number} is only looked up when a sequence is first used.
      *
      * @return a reference for a new document
      */
     protected DocumentReference getNextDocument()
     {
         String prefix = getIdPrefix();
-        long id = getLastUsedId();
-        DocumentReference newDoc;
+        EntityReference space = getDataSpace();
+        DocumentReference newDoc = this.referenceResolver.resolve(new EntityReference(prefix, EntityType.DOCUMENT,
+            space));
+        String sequence = String.format("%s-%s-%s", newDoc.getWikiReference().getName(),
+            this.localSerializer.serialize(newDoc.getParent()), prefix);
         do {
+            long id = this.identifierAllocator.next(sequence, this::getLastUsedId);
             newDoc = this.referenceResolver.resolve(new EntityReference(
-                prefix + String.format("%07d", ++id), EntityType.DOCUMENT, getDataSpace()));
+                prefix + String.format("%07d", id), EntityType.DOCUMENT, space));
         } while (this.bridge.exists(newDoc));
         return newDoc;
     }
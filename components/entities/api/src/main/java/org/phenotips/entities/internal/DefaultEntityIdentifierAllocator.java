@@ -0,0 +1,71 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.entities.internal;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.environment.Environment;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Default implementation for {@link EntityIdentifierAllocator}, storing the counters in the {@code identifiers}
+ * subdirectory of the permanent directory.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Singleton
+public class DefaultEntityIdentifierAllocator implements EntityIdentifierAllocator
+{
+    /** How many identifiers are reserved at once. */
+    static final int BLOCK_SIZE = 100;
+
+    private static final String COUNTERS_DIRECTORY = "identifiers";
+
+    @Inject
+    private Logger logger;
+
+    /** Provides access to the permanent directory, where the counters are stored. */
+    @Inject
+    private Environment environment;
+
+    private final ConcurrentMap<String, IdentifierBlock> blocks = new ConcurrentHashMap<>();
+
+    @Override
+    public long next(String sequence, LongSupplier lastUsed)
+    {
+        return this.blocks.computeIfAbsent(sequence,
+            name -> new IdentifierBlock(getCounterFile(name), BLOCK_SIZE, this.logger)).next(lastUsed);
+    }
+
+    private File getCounterFile(String sequence)
+    {
+        File permanentDirectory = this.environment.getPermanentDirectory();
+        return permanentDirectory == null ? null
+            : new File(new File(permanentDirectory, COUNTERS_DIRECTORY), sequence + ".properties");
+    }
+}
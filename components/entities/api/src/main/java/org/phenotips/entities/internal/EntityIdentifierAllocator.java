@@ -0,0 +1,47 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.entities.internal;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Hands out the sequential numbers used in the names of new entity documents. Numbers are reserved in blocks from a
+ * persisted counter, so that creating entities doesn't require searching for the last used number, and concurrent
+ * creations don't have to wait for each other.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable("New API introduced in 1.4")
+@Role
+public interface EntityIdentifierAllocator
+{
+    /**
+     * Returns a number from the given sequence which was never returned before. Numbers are increasing, but not
+     * necessarily consecutive: the unused part of a reserved block is skipped after a restart.
+     *
+     * @param sequence the name of the sequence, usable as a file name
+     * @param lastUsed computes the highest number already used by the stored entities; only called the first time the
+     *            sequence is used, to make sure that the counter is not behind the actual data
+     * @return a positive number
+     */
+    long next(String sequence, LongSupplier lastUsed);
+}
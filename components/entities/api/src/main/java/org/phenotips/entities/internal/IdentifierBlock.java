@@ -0,0 +1,125 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.entities.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+
+/**
+ * A hi/lo style allocator for one sequence of identifiers. The highest reserved number is persisted, and numbers are
+ * then handed out from memory until the block is exhausted, so the counter is only written once per block.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class IdentifierBlock
+{
+    private static final String LAST_RESERVED_KEY = "lastReserved";
+
+    /** The file where the highest reserved number is stored, {@code null} if the counter is not persisted. */
+    private final File file;
+
+    private final int size;
+
+    private final Logger logger;
+
+    /** The next number to hand out. */
+    private long next;
+
+    /** The first number after the current block, {@code 0} before the first block is reserved. */
+    private long limit;
+
+    /**
+     * Simple constructor.
+     *
+     * @param file the file where the counter is stored, may be {@code null} if the counter shouldn't be persisted
+     * @param size how many numbers to reserve at once
+     * @param logger logging helper
+     */
+    IdentifierBlock(File file, int size, Logger logger)
+    {
+        this.file = file;
+        this.size = size;
+        this.logger = logger;
+    }
+
+    /**
+     * Returns the next number, reserving a new block first if needed.
+     *
+     * @param lastUsed computes the highest number used by the stored entities, called only for the first block
+     * @return a number never returned before
+     */
+    synchronized long next(LongSupplier lastUsed)
+    {
+        if (this.next >= this.limit) {
+            long start = this.limit;
+            if (start == 0) {
+                start = Math.max(readLastReserved(), lastUsed.getAsLong()) + 1;
+            }
+            this.next = start;
+            this.limit = start + this.size;
+            writeLastReserved(this.limit - 1);
+        }
+        return this.next++;
+    }
+
+    private long readLastReserved()
+    {
+        if (this.file == null || !this.file.isFile()) {
+            return 0;
+        }
+        Properties stored = new Properties();
+        try (InputStream in = Files.newInputStream(this.file.toPath())) {
+            stored.load(in);
+            return Long.parseLong(stored.getProperty(LAST_RESERVED_KEY, "0"));
+        } catch (IOException | NumberFormatException ex) {
+            this.logger.warn("Failed to read the identifier counter [{}]: {}", this.file, ex.getMessage());
+            return 0;
+        }
+    }
+
+    private void writeLastReserved(long lastReserved)
+    {
+        if (this.file == null) {
+            return;
+        }
+        Properties stored = new Properties();
+        stored.setProperty(LAST_RESERVED_KEY, String.valueOf(lastReserved));
+        // Write to a temporary file first, so that a crash during the write doesn't leave a corrupted counter behind
+        Path temp = this.file.toPath().resolveSibling(this.file.getName() + ".tmp");
+        try {
+            Files.createDirectories(temp.getParent());
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                stored.store(out, "Entity identifier counter");
+            }
+            Files.move(temp, this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // Not fatal: after a restart, the counter also takes into account the identifiers found in the database
+            this.logger.warn("Failed to store the identifier counter [{}]: {}", this.file, ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.entities.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for {@link IdentifierBlock}.
+ *
+ * @version $Id$
+ */
+public class IdentifierBlockTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Logger logger = mock(Logger.class);
+
+    @Test
+    public void startsAfterLastUsedIdentifier()
+    {
+        IdentifierBlock block = new IdentifierBlock(null, 10, this.logger);
+        Assert.assertEquals(43, block.next(() -> 42));
+        Assert.assertEquals(44, block.next(() -> 42));
+    }
+
+    @Test
+    public void lastUsedIdentifierIsOnlyComputedOnce()
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        LongSupplier lastUsed = () -> {
+            calls.incrementAndGet();
+            return 0;
+        };
+        IdentifierBlock block = new IdentifierBlock(null, 3, this.logger);
+        for (int i = 1; i <= 10; ++i) {
+            Assert.assertEquals(i, block.next(lastUsed));
+        }
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void reservedBlocksAreSkippedAfterRestart() throws Exception
+    {
+        File file = new File(this.folder.getRoot(), "identifiers/P.properties");
+        IdentifierBlock block = new IdentifierBlock(file, 10, this.logger);
+        Assert.assertEquals(1, block.next(() -> 0));
+        Assert.assertEquals(2, block.next(() -> 0));
+        Assert.assertTrue(file.isFile());
+
+        IdentifierBlock restarted = new IdentifierBlock(file, 10, this.logger);
+        Assert.assertEquals(11, restarted.next(() -> 2));
+    }
+
+    @Test
+    public void counterBehindDataIsIgnored() throws Exception
+    {
+        File file = new File(this.folder.getRoot(), "P.properties");
+        new IdentifierBlock(file, 10, this.logger).next(() -> 0);
+
+        IdentifierBlock restarted = new IdentifierBlock(file, 10, this.logger);
+        Assert.assertEquals(501, restarted.next(() -> 500));
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentAllocationsAreUnique() throws Exception
+    {
+        final IdentifierBlock block = new IdentifierBlock(new File(this.folder.getRoot(), "P.properties"), 7,
+            this.logger);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<Long>>> results = new ArrayList<>();
+            for (int t = 0; t < 8; ++t) {
+                results.add(executor.submit(new Callable<List<Long>>()
+                {
+                    @Override
+                    public List<Long> call()
+                    {
+                        List<Long> ids = new ArrayList<>();
+                        for (int i = 0; i < 500; ++i) {
+                            ids.add(block.next(() -> 0));
+                        }
+                        return ids;
+                    }
+                }));
+            }
+            Set<Long> all = new HashSet<>();
+            for (Future<List<Long>> result : results) {
+                all.addAll(result.get());
+            }
+            Assert.assertEquals(4000, all.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
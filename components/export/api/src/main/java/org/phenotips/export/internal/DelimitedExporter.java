@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Exports patients as delimiter separated values, UTF-8 encoded, with a header line holding the column labels:
+ * <ul>
+ * <li>{@link #CSV comma separated values} follow RFC 4180: values containing commas, quotes or line breaks are quoted,
+ * and quotes are doubled</li>
+ * <li>{@link #TSV tab separated values} follow the IANA definition, which forbids tabs and line breaks in values, so
+ * tabs, line breaks and backslashes are escaped as {@code \t}, {@code \n}, {@code \r} and {@code \\}</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class DelimitedExporter extends TableExporter
+{
+    /** The separator used for comma separated values. */
+    public static final char CSV = ',';
+
+    /** The separator used for tab separated values. */
+    public static final char TSV = '\t';
+
+    private static final String LINE_END = "\r\n";
+
+    private static final String QUOTE = "\"";
+
+    private static final String[] TSV_SPECIAL = new String[] { "\\", "\t", "\n", "\r" };
+
+    private static final String[] TSV_ESCAPED = new String[] { "\\\\", "\\t", "\\n", "\\r" };
+
+    private final char separator;
+
+    private Writer writer;
+
+    /**
+     * Simple constructor.
+     *
+     * @param separator the separator to use, either {@link #CSV} or {@link #TSV}
+     */
+    public DelimitedExporter(char separator)
+    {
+        this.separator = separator;
+    }
+
+    @Override
+    protected void start(String[] labels, OutputStream outputStream) throws IOException
+    {
+        this.writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        writeRow(labels);
+    }
+
+    @Override
+    protected void writeRow(String[] values) throws IOException
+    {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                this.writer.write(this.separator);
+            }
+            this.writer.write(escape(values[i]));
+        }
+        this.writer.write(this.separator == TSV ? "\n" : LINE_END);
+    }
+
+    @Override
+    protected void finish() throws IOException
+    {
+        this.writer.flush();
+    }
+
+    private String escape(String value)
+    {
+        if (this.separator == TSV) {
+            return StringUtils.replaceEach(value, TSV_SPECIAL, TSV_ESCAPED);
+        }
+        if (StringUtils.containsAny(value, this.separator, '"', '\n', '\r')) {
+            return QUOTE + StringUtils.replace(value, QUOTE, QUOTE + QUOTE) + QUOTE;
+        }
+        return value;
+    }
+}
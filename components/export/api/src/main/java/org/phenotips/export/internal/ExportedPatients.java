@@ -0,0 +1,136 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.security.authorization.AuthorizationService;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.users.UserManager;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Provides the patients to export, loaded one at a time while the export is written, so that they can be garbage
+ * collected as soon as they are exported. Access rights are checked for all the requested patients at once, before any
+ * of them is loaded.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { ExportedPatients.class })
+@Singleton
+public class ExportedPatients
+{
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    @Inject
+    private PatientRepository patientRepository;
+
+    /** Used for obtaining the current user. */
+    @Inject
+    private UserManager userManager;
+
+    /** Used for checking access rights. */
+    @Inject
+    private AuthorizationService access;
+
+    /**
+     * Lists the requested patients that the current user can view.
+     *
+     * @param patientIds the identifiers of the patients to export
+     * @return the accessible patients, loaded lazily in the requested order; missing patients are skipped
+     */
+    public Iterable<Patient> get(List<String> patientIds)
+    {
+        List<DocumentReference> references = new ArrayList<>(patientIds.size());
+        for (String patientId : patientIds) {
+            references.add(this.referenceResolver.resolve(patientId, Patient.DEFAULT_DATA_SPACE));
+        }
+        final List<DocumentReference> accessible =
+            this.access.filterAccessible(this.userManager.getCurrentUser(), Right.VIEW, references);
+        return new Iterable<Patient>()
+        {
+            @Override
+            public Iterator<Patient> iterator()
+            {
+                return new PatientsIterator(accessible.iterator());
+            }
+        };
+    }
+
+    /**
+     * Loads the patients to export as they are needed, skipping those that don't exist.
+     */
+    private final class PatientsIterator implements Iterator<Patient>
+    {
+        private final Iterator<DocumentReference> references;
+
+        private Patient next;
+
+        PatientsIterator(Iterator<DocumentReference> references)
+        {
+            this.references = references;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            // since scripts do not have access to a non-secure versionof the patient, need to
+            // get the actual Patient objects here, after checking access rights
+            //
+            // FIXME: once new version of entities is in, need to refactor PrimaryEntityManager and incorporate
+            //        security features into the entities framework to avoid doing permission checks in client code
+            //        that requires non-secure versions of the Patient object
+            while (this.next == null && this.references.hasNext()) {
+                this.next = ExportedPatients.this.patientRepository.get(this.references.next());
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public Patient next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Patient result = this.next;
+            this.next = null;
+            return result;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.data.Patient;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Exports patients in the <a href="http://jsonlines.org/">JSON Lines</a> format: each line holds the JSON
+ * representation of one patient, as returned by {@link Patient#toJSON(Collection)}, limited to the selected fields.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class JsonLinesExporter implements PatientDataExporter
+{
+    /** Properties which are selected in the export form through one of their {@link #CODE_SUFFIXES variants}. */
+    private static final List<String> CODE_PROPERTIES =
+        Arrays.asList("phenotype", "negative_phenotype", "prenatal_phenotype", "clinical_diagnosis", "omim_id");
+
+    private static final List<String> CODE_SUFFIXES = Arrays.asList("_code", "_combined", "_code_meta", "_meta");
+
+    @Override
+    public void export(String[] enabledFields, Iterable<Patient> patients, OutputStream outputStream) throws Exception
+    {
+        if (enabledFields == null || outputStream == null) {
+            return;
+        }
+        try {
+            Collection<String> selectedFields = getSelectedFields(enabledFields);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            if (patients != null) {
+                for (Patient patient : patients) {
+                    if (patient != null) {
+                        writer.write(patient.toJSON(selectedFields).toString());
+                        writer.write('\n');
+                    }
+                }
+            }
+            writer.flush();
+        } finally {
+            try {
+                outputStream.close();
+            } catch (IOException ex) {
+                // Nothing else to do
+            }
+        }
+    }
+
+    /**
+     * Maps the fields selected in the export form to the fields known by the patient data controllers, the same way
+     * as the JSON export page does.
+     *
+     * @param enabledFields the fields selected in the export form
+     * @return the fields to include in the JSON of each patient
+     */
+    private Collection<String> getSelectedFields(String[] enabledFields)
+    {
+        Set<String> result = new HashSet<>(Arrays.asList(enabledFields));
+        for (String property : CODE_PROPERTIES) {
+            for (String suffix : CODE_SUFFIXES) {
+                if (result.contains(property + suffix)) {
+                    result.add(property);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.components.ComponentManagerRegistry;
+import org.phenotips.components.WorkerExecutionContext;
+import org.phenotips.data.Patient;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Converts patients into spreadsheet sections on a fixed pool of threads. Each thread runs in its own copy of the
+ * execution context of the thread that created the pool, set up once when the thread starts, since the conversion
+ * needs the current user, wiki and language.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class PatientConversionPool implements AutoCloseable
+{
+    /** How many patients may wait to be committed for each conversion thread. */
+    private static final int PENDING_PER_THREAD = 4;
+
+    private final int threads;
+
+    private final Execution execution;
+
+    private final ExecutionContextManager contextManager;
+
+    /** The context of the thread creating the pool, copied for each worker thread; may be {@code null}. */
+    private final ExecutionContext parentContext;
+
+    /** The first failure to set up the context of a worker thread, reported by the following conversions. */
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    private final ExecutorService pool;
+
+    /**
+     * Creates a pool running in copies of the current execution context.
+     *
+     * @param threads how many patients may be converted in parallel
+     * @throws ComponentLookupException if the execution context components are not available
+     */
+    public PatientConversionPool(int threads) throws ComponentLookupException
+    {
+        this(threads, ComponentManagerRegistry.getContextComponentManager());
+    }
+
+    PatientConversionPool(int threads, ComponentManager componentManager) throws ComponentLookupException
+    {
+        this.threads = Math.max(1, threads);
+        this.execution = componentManager.getInstance(Execution.class);
+        this.contextManager = componentManager.getInstance(ExecutionContextManager.class);
+        this.parentContext = this.execution.getContext();
+        final AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(this.threads, task -> {
+            Thread thread = new Thread(inWorkerContext(task), "Spreadsheet export " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Converts patients in parallel, and hands them over in their original order as soon as they are converted. At
+     * most a few patients per thread are converted ahead of the ones handed over, so that memory use stays bounded.
+     *
+     * @param assembler converts each patient
+     * @param patients the patients to convert
+     * @param converted receives the converted sections, in the original order, in the calling thread
+     * @throws Exception if converting a patient fails
+     */
+    public void convert(SheetAssembler assembler, Iterable<Patient> patients, Consumer<DataSection> converted)
+        throws Exception
+    {
+        Deque<Future<DataSection>> converting = new ArrayDeque<>();
+        for (final Patient patient : patients) {
+            if (converting.size() >= this.threads * PENDING_PER_THREAD) {
+                converted.accept(getConverted(converting.poll()));
+            }
+            converting.add(this.pool.submit(() -> {
+                Exception contextFailure = this.failure.get();
+                if (contextFailure != null) {
+                    throw contextFailure;
+                }
+                return assembler.assemblePatient(patient);
+            }));
+        }
+        while (!converting.isEmpty()) {
+            converted.accept(getConverted(converting.poll()));
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        this.pool.shutdownNow();
+    }
+
+    /**
+     * Wraps the main task of a worker thread so that it runs in its own execution context.
+     *
+     * @param task the worker task
+     * @return a task setting up the execution context before running the worker task
+     */
+    private Runnable inWorkerContext(Runnable task)
+    {
+        return () -> {
+            try {
+                this.execution.setContext(WorkerExecutionContext.create(this.parentContext, this.contextManager));
+            } catch (ExecutionContextException | RuntimeException ex) {
+                // The conversion can't work properly without a context, abort the export
+                this.failure.compareAndSet(null, ex);
+                this.execution.setContext(new ExecutionContext());
+            }
+            try {
+                task.run();
+            } finally {
+                this.execution.removeContext();
+            }
+        };
+    }
+
+    private DataSection getConverted(Future<DataSection> future) throws Exception
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.data.Patient;
+
+import java.io.OutputStream;
+
+/**
+ * Writes the data of several patients into an output stream, in a specific format. The patients are written as they
+ * are iterated, so that exporting large cohorts doesn't require holding all the patients, or all the exported data,
+ * in memory.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public interface PatientDataExporter
+{
+    /**
+     * For the list of patients, completes an export limited by the list of fields that are requested, and writes the
+     * result to the output stream.
+     *
+     * @param enabledFields array of field ids that should be present in the export
+     * @param patients the patients whose information should be present in the export; they are only iterated once, so
+     *            they can be loaded lazily
+     * @param outputStream stream to which the export will be written to; it will be closed once the export is done
+     * @throws Exception if the export fails; an attempt to close the output stream will still be made
+     */
+    void export(String[] enabledFields, Iterable<Patient> patients, OutputStream outputStream) throws Exception;
+}
@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Creates the {@link PatientDataExporter exporter} for each of the supported export formats.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { PatientDataExporters.class })
+@Singleton
+public class PatientDataExporters
+{
+    private static final String THREADS_KEY = "phenotips.export.spreadsheet.threads";
+
+    private static final int DEFAULT_MAX_THREADS = 4;
+
+    /** Provides the number of threads used for converting patients. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /**
+     * Creates a new exporter for the requested format.
+     *
+     * @param format the export format, one of {@code xlsx} (default), {@code csv}, {@code tsv}, {@code jsonl} or
+     *            {@code columnar}
+     * @return a new exporter, or {@code null} if the format isn't supported
+     */
+    public PatientDataExporter getExporter(String format)
+    {
+        switch (StringUtils.defaultIfBlank(format, "xlsx")) {
+            case "xlsx":
+                return new SpreadsheetExporter(getThreads());
+            case "csv":
+                return new DelimitedExporter(DelimitedExporter.CSV);
+            case "tsv":
+                return new DelimitedExporter(DelimitedExporter.TSV);
+            case "jsonl":
+                return new JsonLinesExporter();
+            case "columnar":
+                return new ColumnarExporter();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The number of patients to convert in parallel, configured with the {@code phenotips.export.spreadsheet.threads}
+     * property in {@code xwiki.properties}; by default, up to {@link #DEFAULT_MAX_THREADS} depending on the available
+     * processors. Setting it to {@code 1} converts patients sequentially.
+     */
+    private int getThreads()
+    {
+        Integer threads = this.configuration.getProperty(THREADS_KEY, Integer.class);
+        if (threads == null) {
+            threads = Math.min(DEFAULT_MAX_THREADS, Runtime.getRuntime().availableProcessors());
+        }
+        return threads;
+    }
+}
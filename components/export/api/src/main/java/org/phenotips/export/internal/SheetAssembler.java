@@ -20,80 +20,197 @@
 import org.phenotips.data.Patient;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
- * Assembles the various DataSections.
+ * Assembles the various DataSections. The header is assembled once, when the assembler is created, while the body is
+ * assembled one patient at a time, so that the patients don't have to be all held in memory at the same time.
  *
  * @version $Id$
  * @since 1.0RC1
  */
 public class SheetAssembler
 {
-    /** The global section meant to eventually contain all {@link org.phenotips.export.internal.DataCell}s. */
-    private DataSection oneSection = new DataSection();
+    /** The styles that must be extended from the header all the way to the bottom of the sheet. */
+    private static final List<StyleOption> VERTICAL_STYLES =
+        Arrays.asList(StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+
+    /** Whether the cells should be styled, or only hold the data, for formats that can't display styles. */
+    private final boolean styled;
+
+    /** The fields for which data should be exported, as requested, since the converter setup consumes them. */
+    private final Set<String> enabledFields;
+
+    /**
+     * The converters which generate the {@link org.phenotips.export.internal.DataCell}s. Converters keep some state
+     * while converting a patient, so each thread converting patients uses its own converter.
+     */
+    private final ThreadLocal<DataToCellConverter> converters = new ThreadLocal<>();
+
+    /** The section containing all the header {@link org.phenotips.export.internal.DataCell}s. */
+    private DataSection header;
 
     /** The number of rows the header occupies. */
     private Integer headerHeight = 0;
 
+    /** The {@link #VERTICAL_STYLES} found in each column of the header, which must also be applied to the body. */
+    private final Map<Integer, Set<StyleOption>> columnStyles = new HashMap<>();
+
     /**
-     * Generates {@link org.phenotips.export.internal.DataCell} containing the data to export, combines them together
-     * into one big matrix ({@link #oneSection}), and styles them.
+     * Generates the {@link org.phenotips.export.internal.DataCell}s of the header, combines them together into one
+     * section ({@link #header}), and styles them.
      *
      * @param enabledFields set of fields for which data should be exported
-     * @param patients list of patients from whom data should exported
      * @throws java.lang.Exception half of the functions used throw exceptions
      */
-    public SheetAssembler(Set<String> enabledFields, List<Patient> patients) throws Exception
+    public SheetAssembler(Set<String> enabledFields) throws Exception
     {
-        DataToCellConverter converter = new DataToCellConverter();
+        this(enabledFields, true);
+    }
 
-        /* Some sections require setup, which need to be run here. */
-        converter.phenotypeSetup(enabledFields);
-        converter.prenatalPhenotypeSetup(enabledFields);
-        converter.genesSetup(enabledFields);
-        converter.variantsSetup(enabledFields);
+    /**
+     * Generates the {@link org.phenotips.export.internal.DataCell}s of the header, and combines them together into one
+     * section ({@link #header}), optionally styling them.
+     *
+     * @param enabledFields set of fields for which data should be exported
+     * @param styled whether to style the cells; header cells are still merged, so that each header cell spans all the
+     *            columns it applies to
+     * @throws java.lang.Exception half of the functions used throw exceptions
+     */
+    public SheetAssembler(Set<String> enabledFields, boolean styled) throws Exception
+    {
+        this.styled = styled;
+        this.enabledFields = Collections.unmodifiableSet(new HashSet<>(enabledFields));
+        DataToCellConverter converter = new DataToCellConverter();
+        List<DataSection> headers = setUp(converter);
+        this.converters.set(converter);
 
-        /* Headers MUST be generated first. Some of them contain setup code for the body */
-        List<DataSection> headers = generateHeader(converter, enabledFields);
-        List<List<DataSection>> bodySections = generateBody(converter, patients);
-
-        List<DataSection> patientsCombined = new LinkedList<>();
-        for (List<DataSection> patientSections : bodySections) {
-            for (DataSection section : patientSections) {
-                section.finalizeToMatrix();
-                Styler.disallowBodyStyles(section);
-                Styler.extendStyleHorizontally(section, StyleOption.FEATURE_SEPARATOR, StyleOption.YES_NO_SEPARATOR);
+        /* Inserting styling calls here is fairly unavoidable. Also don't forget to merge BEFORE styling. */
+        for (DataSection section : headers) {
+            section.finalizeToMatrix();
+            section.mergeX();
+            if (styled) {
                 Styler.styleSectionBorder(section, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
             }
+        }
 
-            DataSection assembled = assembleSectionsX(patientSections, true);
-            Styler.styleSectionBottom(assembled, StyleOption.PATIENT_BORDER);
-            patientsCombined.add(assembled);
+        this.header = assembleSectionsX(headers, true);
+        this.headerHeight = this.header.getMaxY() + 1;
+        if (styled) {
+            styleHeader();
         }
+    }
 
-        /* Inserting styling calls here is fairly unavoidable. Also don't forget to merge BEFORE styling. */
-        for (DataSection header : headers) {
-            header.finalizeToMatrix();
-            header.mergeX();
-            Styler.styleSectionBorder(header, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+    /** Styles the header, and remembers which styles must be extended all the way to the bottom of the sheet. */
+    private void styleHeader() throws Exception
+    {
+        /* Add style through functions. Use only with finalized sections. */
+        Styler.styleSectionBottom(this.header, StyleOption.HEADER_BOTTOM);
+        Styler.extendStyleVertically(this.header, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+
+        /* Remember which section borders must be extended all the way to the bottom of the sheet */
+        DataCell[][] cells = this.header.getMatrix();
+        for (int x = 0; x <= this.header.getMaxX(); x++) {
+            DataCell cell = cells[x][this.header.getMaxY()];
+            if (cell == null || cell.isChild() || cell.getStyles() == null) {
+                continue;
+            }
+            Set<StyleOption> styles = new HashSet<>(cell.getStyles());
+            styles.retainAll(VERTICAL_STYLES);
+            if (!styles.isEmpty()) {
+                this.columnStyles.put(x, styles);
+            }
         }
+    }
 
-        DataSection bodyCombined = assembleSectionsY(patientsCombined, false);
-        DataSection headerCombined = assembleSectionsX(headers, true);
+    /**
+     * Generates the {@link org.phenotips.export.internal.DataCell}s containing the data of one patient, combines them
+     * into a section positioned relative to the top of the patient's rows, and styles them, unless the assembler was
+     * created without styling. Different patients can be assembled in parallel, from different threads.
+     *
+     * @param patient the patient whose data should be exported
+     * @return the finalized section containing the patient's data, or {@code null} if the patient is {@code null}
+     * @throws java.lang.Exception half of the functions used throw exceptions
+     */
+    public DataSection assemblePatient(Patient patient) throws Exception
+    {
+        if (patient == null) {
+            return null;
+        }
+        List<DataSection> patientSections = generateBody(getConverter(), patient);
+        if (!this.styled) {
+            return assembleSectionsX(patientSections, true);
+        }
+        for (DataSection section : patientSections) {
+            section.finalizeToMatrix();
+            Styler.disallowBodyStyles(section);
+            Styler.extendStyleHorizontally(section, StyleOption.FEATURE_SEPARATOR, StyleOption.YES_NO_SEPARATOR);
+            Styler.styleSectionBorder(section, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+        }
 
-        /* Add style through functions. Use only with finalized sections. */
-        Styler.styleSectionBottom(headerCombined, StyleOption.HEADER_BOTTOM);
+        DataSection assembled = assembleSectionsX(patientSections, true);
+        Styler.styleSectionBottom(assembled, StyleOption.PATIENT_BORDER);
 
-        this.headerHeight = headerCombined.getMaxY() + 1;
-        this.oneSection = assembleSectionsY(Arrays.asList(headerCombined, bodyCombined), true);
+        /* Extend the section borders of the header through the patient's rows */
+        DataCell[][] cells = assembled.getMatrix();
+        int maxX = assembled.getMaxX();
+        for (Map.Entry<Integer, Set<StyleOption>> column : this.columnStyles.entrySet()) {
+            int x = column.getKey();
+            for (int y = 0; y <= assembled.getMaxY(); y++) {
+                DataCell cell = x <= maxX ? cells[x][y] : null;
+                if (cell == null) {
+                    cell = new DataCell("", x, y);
+                    assembled.addCell(cell);
+                }
+                cell.addStyles(column.getValue());
+            }
+        }
+        if (assembled.getMaxX() > maxX) {
+            /* The header is wider than the patient's data, so the borders added cells outside of the matrix */
+            assembled.finalizeToMatrix();
+        }
+        return assembled;
+    }
+
+    /**
+     * Runs the setup of a new converter. The header is generated as part of the setup, since some of the header
+     * functions contain setup code for the body.
+     *
+     * @param converter the converter to set up
+     * @return list of generated, not null header {@link org.phenotips.export.internal.DataSection}s
+     */
+    private List<DataSection> setUp(DataToCellConverter converter) throws Exception
+    {
+        /* The header functions remove the fields they handle, so each converter needs its own copy. */
+        Set<String> fields = new HashSet<>(this.enabledFields);
+
+        /* Some sections require setup, which need to be run here. */
+        converter.phenotypeSetup(fields);
+        converter.prenatalPhenotypeSetup(fields);
+        converter.genesSetup(fields);
+        converter.variantsSetup(fields);
+
+        /* Headers MUST be generated first. Some of them contain setup code for the body */
+        return generateHeader(converter, fields);
+    }
 
-        /* Extend the section borders all the way to the bottom of the sheet */
-        Styler
-            .extendStyleVertically(this.oneSection, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+    /** The converter to be used by the current thread, set up on first use. */
+    private DataToCellConverter getConverter() throws Exception
+    {
+        DataToCellConverter converter = this.converters.get();
+        if (converter == null) {
+            converter = new DataToCellConverter();
+            setUp(converter);
+            this.converters.set(converter);
+        }
+        return converter;
     }
 
     /**
@@ -102,46 +219,38 @@ public SheetAssembler(Set<String> enabledFields, List<Patient> patients) throws
      *
      * @return list of generated, not null {@link org.phenotips.export.internal.DataSection}s
      */
-    private List<List<DataSection>> generateBody(DataToCellConverter converter, List<Patient> patients)
-        throws Exception
+    private List<DataSection> generateBody(DataToCellConverter converter, Patient patient) throws Exception
     {
-        List<List<DataSection>> allSections = new LinkedList<>();
-        for (Patient patient : patients) {
-            if (patient == null) {
-                continue;
-            }
-            List<DataSection> patientSections = new LinkedList<>();
-            patientSections.add(converter.idBody(patient));
-            patientSections.add(converter.documentInfoBody(patient));
-            patientSections.add(converter.patientInfoBody(patient));
-            patientSections.add(converter.familyHistoryBody(patient));
-            patientSections.add(converter.prenatalPerinatalHistoryBody(patient));
-            patientSections.add(converter.prenatalPhenotypeBody(patient));
-            patientSections.add(converter.medicalHistoryBody(patient));
-            patientSections.add(converter.isNormalBody(patient));
-            patientSections.add(converter.phenotypeBody(patient));
-            patientSections.add(converter.genesBody(patient));
-            patientSections.add(converter.geneticNotesBody(patient));
-            patientSections.add(converter.variantsBody(patient));
-            patientSections.add(converter.clinicalDiagnosisBody(patient));
-            patientSections.add(converter.disordersBody(patient));
-            patientSections.add(converter.isSolvedBody(patient));
-
-            /* Null section filter */
-            Iterator<DataSection> it = patientSections.iterator();
-            while (it.hasNext()) {
-                DataSection i = it.next();
-                if (i == null) {
-                    it.remove();
-                }
+        List<DataSection> patientSections = new LinkedList<>();
+        patientSections.add(converter.idBody(patient));
+        patientSections.add(converter.documentInfoBody(patient));
+        patientSections.add(converter.patientInfoBody(patient));
+        patientSections.add(converter.familyHistoryBody(patient));
+        patientSections.add(converter.prenatalPerinatalHistoryBody(patient));
+        patientSections.add(converter.prenatalPhenotypeBody(patient));
+        patientSections.add(converter.medicalHistoryBody(patient));
+        patientSections.add(converter.isNormalBody(patient));
+        patientSections.add(converter.phenotypeBody(patient));
+        patientSections.add(converter.genesBody(patient));
+        patientSections.add(converter.geneticNotesBody(patient));
+        patientSections.add(converter.variantsBody(patient));
+        patientSections.add(converter.clinicalDiagnosisBody(patient));
+        patientSections.add(converter.disordersBody(patient));
+        patientSections.add(converter.isSolvedBody(patient));
+
+        /* Null section filter */
+        Iterator<DataSection> it = patientSections.iterator();
+        while (it.hasNext()) {
+            DataSection i = it.next();
+            if (i == null) {
+                it.remove();
             }
-            allSections.add(patientSections);
         }
-        return allSections;
+        return patientSections;
     }
 
     /**
-     * Same as {@link #generateBody(DataToCellConverter, java.util.List)} but for header sections. Most of header
+     * Same as {@link #generateBody(DataToCellConverter, Patient)} but for header sections. Most of header
      * functions from {@link org.phenotips.export.internal.DataToCellConverter} contain some set up code.
      */
     private List<DataSection> generateHeader(DataToCellConverter converter, Set<String> enabledFields) throws Exception
@@ -196,35 +305,13 @@ private DataSection assembleSectionsX(List<DataSection> sections, Boolean finali
         return combinedSection;
     }
 
-    /** Combines the passed in sections into one large section, keeping track of positioning along the y axis. */
-    private DataSection assembleSectionsY(List<DataSection> sections, Boolean finalize) throws Exception
-    {
-        DataSection combinedSection = new DataSection();
-
-        Integer offset = 0;
-        for (DataSection section : sections) {
-            Set<DataCell> cells = section.getCellList();
-
-            for (DataCell cell : cells) {
-                cell.setY(cell.getY() + offset);
-                combinedSection.addCell(cell);
-            }
-            offset += section.getMaxY() + 1;
-        }
-        if (finalize) {
-            combinedSection.finalizeToMatrix();
-        }
-
-        return combinedSection;
-    }
-
     /**
-     * @return a {@link org.phenotips.export.internal.DataSection} that contains all
+     * @return a {@link org.phenotips.export.internal.DataSection} that contains all the header
      *         {@link org.phenotips.export.internal.DataCell}s
      */
-    public DataSection getAssembled()
+    public DataSection getHeader()
     {
-        return this.oneSection;
+        return this.header;
     }
 
     /**
@@ -19,31 +19,46 @@
 
 import org.phenotips.data.Patient;
 
+import org.xwiki.component.manager.ComponentLookupException;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 
 /**
- * Abstracts all export functionality by exposing a single function {@link #export(String[], java.util.List,
- * java.io.OutputStream)}.
+ * Abstracts all export functionality by exposing a single function {@link #export(String[], Iterable, OutputStream)}.
+ * The spreadsheet is written as a stream: patients are converted one at a time, and only a window of the most recent
+ * {@link #ROW_WINDOW rows} is kept in memory, the older ones being flushed to a temporary file.
  *
  * @version $Id$
  * @since 1.0RC1
  */
-public class SpreadsheetExporter
+public class SpreadsheetExporter implements PatientDataExporter
 {
+    /** How many rows are kept in memory while writing the spreadsheet. */
+    protected static final int ROW_WINDOW = 100;
+
+    /** How many rows are inspected for estimating the width of the columns. */
+    protected static final int WIDTH_SAMPLE_ROWS = 500;
+
+    /** The approximate width of a character with the default font, in units of 1/256th of a character width. */
+    private static final int CHARACTER_WIDTH = 210;
+
+    /** Extra characters added to the estimated width of a column, so that the content doesn't touch the borders. */
+    private static final int WIDTH_PADDING = 2;
+
     protected Workbook wBook;
 
     /**
@@ -52,16 +67,48 @@
      */
     protected Map<String, Sheet> sheets = new HashMap<String, Sheet>();
 
+    /** The maximum number of characters found on one line in each column, in the {@link #WIDTH_SAMPLE_ROWS}. */
+    protected Map<Integer, Integer> sampledWidths = new HashMap<>();
+
+    /** How many rows were inspected for estimating the column widths. */
+    private int sampledRows;
+
+    /** The index of the row where the next patient will be committed. */
+    private int nextRow;
+
+    /** How many threads convert patients in parallel; {@code 1} converts them sequentially, in the calling thread. */
+    private final int threads;
+
+    /** Converts patients sequentially. */
+    public SpreadsheetExporter()
+    {
+        this(1);
+    }
+
+    /**
+     * Converts patients on a {@link PatientConversionPool pool of threads}, each running in a copy of the execution
+     * context of the thread calling {@link #export}. The patients are still committed to the spreadsheet in their
+     * original order.
+     *
+     * @param threads how many patients may be converted in parallel; {@code 1} or less converts them sequentially
+     */
+    public SpreadsheetExporter(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
     /**
      * For the list of patients, completes an export limited by the list of fields that are requested, and writes the
      * result to the output stream.
      *
      * @param enabledFieldsArray array of field ids that should be present in the export
-     * @param patients list of patients whose information should be present in the export
+     * @param patients the patients whose information should be present in the export; they are only iterated once, so
+     *            they can be loaded lazily
      * @param outputStream stream to which the export will be written to
      * @throws Exception an attempt to close outputStream will be made, but the exception will not be handled
      */
-    public void export(String[] enabledFieldsArray, List<Patient> patients, OutputStream outputStream)
+    @Override
+    public void export(String[] enabledFieldsArray, Iterable<Patient> patients, OutputStream outputStream)
         throws Exception
     {
         if (enabledFieldsArray == null || outputStream == null) {
@@ -74,6 +121,10 @@ public void export(String[] enabledFieldsArray, List<Patient> patients, OutputSt
             this.wBook.write(outputStream);
             outputStream.flush();
         } finally {
+            if (this.wBook instanceof SXSSFWorkbook) {
+                // Removes the temporary files backing the flushed rows
+                ((SXSSFWorkbook) this.wBook).dispose();
+            }
             try {
                 outputStream.close();
             } catch (IOException ex) {
@@ -84,62 +135,96 @@ public void export(String[] enabledFieldsArray, List<Patient> patients, OutputSt
 
     protected Workbook createNewWorkbook()
     {
-        return new XSSFWorkbook();
+        SXSSFWorkbook workbook = new SXSSFWorkbook(ROW_WINDOW);
+        workbook.setCompressTempFiles(true);
+        return workbook;
     }
 
     /**
-     * Creates the main sheet in the workbook, calculates the positioning of the cells, and commits them into the
-     * workbook.
+     * Creates the main sheet in the workbook, and commits the header and then each patient's cells into the workbook.
      */
-    protected void processMainSheet(Set<String> enabledFields, List<Patient> patients) throws Exception
+    protected void processMainSheet(Set<String> enabledFields, Iterable<Patient> patients) throws Exception
     {
         String sheetName = "main";
         Sheet sheet = this.wBook.createSheet("Patient Sheet");
         this.sheets.put(sheetName, sheet);
 
-        SheetAssembler assembler = runAssembler(enabledFields, patients);
-        commit(assembler.getAssembled(), sheet);
+        SheetAssembler assembler = runAssembler(enabledFields);
+        Styler styler = new Styler();
+        DataSection header = assembler.getHeader();
+        commit(header, sheet, 0, styler);
+        this.nextRow = header.getMaxY() + 1;
+        if (patients != null) {
+            if (this.threads > 1) {
+                try (PatientConversionPool pool = createConversionPool(this.threads)) {
+                    pool.convert(assembler, patients, section -> commitPatient(section, sheet, styler));
+                }
+            } else {
+                for (Patient patient : patients) {
+                    commitPatient(assembler.assemblePatient(patient), sheet, styler);
+                }
+            }
+        }
+        setColumnWidths(sheet);
         freezeHeader(assembler.getHeaderHeight().shortValue(), sheet);
     }
 
+    protected PatientConversionPool createConversionPool(int poolSize) throws ComponentLookupException
+    {
+        return new PatientConversionPool(poolSize);
+    }
+
+    /**
+     * Commits the section of one patient after the previously committed rows.
+     */
+    private void commitPatient(DataSection section, Sheet sheet, Styler styler)
+    {
+        if (section == null) {
+            return;
+        }
+        commit(section, sheet, this.nextRow, styler);
+        this.nextRow += section.getMaxY() + 1;
+    }
+
     protected void freezeHeader(Short height, Sheet sheet)
     {
         sheet.createFreezePane(0, height);
     }
 
-    protected SheetAssembler runAssembler(Set<String> enabledFields, List<Patient> patients)
-        throws Exception
+    protected SheetAssembler runAssembler(Set<String> enabledFields) throws Exception
     {
-        return new SheetAssembler(enabledFields, patients);
+        return new SheetAssembler(enabledFields);
     }
 
     /**
-     * Commits cells row by row, sets row height and column width, and merges cells.
+     * Commits cells row by row, sets row height, merges cells, and samples the content for estimating column widths.
      *
-     * @param section usually is a single section encompassing all the data on a given sheet
+     * @param section a finalized section, usually the header or the data of one patient
      * @param sheet a workbook sheet to which the cells from the section will be written
+     * @param rowOffset the index of the sheet row where the first row of the section will be written
+     * @param styler the styler used for all the cells of the sheet
      */
-    protected void commit(DataSection section, Sheet sheet)
+    protected void commit(DataSection section, Sheet sheet, int rowOffset, Styler styler)
     {
         DataCell[][] cells = section.getMatrix();
-        Styler styler = new Styler();
 
-        commitRows(section, sheet, styler);
+        commitRows(section, sheet, rowOffset, styler);
 
-        for (int col = 0; section.getMaxX() >= col; col++) {
-            sheet.autoSizeColumn(col);
-            int correctWidth = DataToCellConverter.MAX_CHARACTERS_PER_LINE * 210;
-            if (sheet.getColumnWidth(col) > correctWidth) {
-                sheet.setColumnWidth(col, correctWidth);
-            }
-        }
-
-        /* Merging has to be done after autosizing because otherwise autosizing breaks */
         for (Integer y = 0; y <= section.getMaxY(); y++) {
+            boolean sample = this.sampledRows < WIDTH_SAMPLE_ROWS;
+            if (sample) {
+                ++this.sampledRows;
+            }
             for (Integer x = 0; x <= section.getMaxX(); x++) {
                 DataCell dataCell = cells[x][y];
-                if (dataCell != null && dataCell.getMergeX() != null) {
-                    sheet.addMergedRegion(new CellRangeAddress(y, y, x, x + dataCell.getMergeX()));
+                if (dataCell == null) {
+                    continue;
+                }
+                if (dataCell.getMergeX() != null) {
+                    sheet.addMergedRegion(
+                        new CellRangeAddress(rowOffset + y, rowOffset + y, x, x + dataCell.getMergeX()));
+                } else if (sample) {
+                    sampleWidth(x, dataCell.getValue());
                 }
                 /*
                  * No longer will be merging cells on the Y axis, but keep this code for future reference.
@@ -150,12 +235,12 @@ protected void commit(DataSection section, Sheet sheet)
         }
     }
 
-    protected void commitRows(DataSection section, Sheet sheet, Styler styler)
+    protected void commitRows(DataSection section, Sheet sheet, int rowOffset, Styler styler)
     {
         DataCell[][] cells = section.getMatrix();
         Row row;
         for (Integer y = 0; y <= section.getMaxY(); y++) {
-            row = sheet.createRow(y);
+            row = sheet.createRow(rowOffset + y);
             Integer maxLines = 0;
 
             for (Integer x = 0; x <= section.getMaxX(); x++) {
@@ -177,4 +262,34 @@ protected void commitRows(DataSection section, Sheet sheet, Styler styler)
             }
         }
     }
+
+    /**
+     * Sets the width of each column according to the longest line of text sampled in that column, without exceeding
+     * {@link DataToCellConverter#MAX_CHARACTERS_PER_LINE}. This replaces {@link Sheet#autoSizeColumn(int)}, which
+     * needs all the rows in memory.
+     *
+     * @param sheet the sheet whose columns to resize
+     */
+    protected void setColumnWidths(Sheet sheet)
+    {
+        for (Map.Entry<Integer, Integer> column : this.sampledWidths.entrySet()) {
+            int characters = Math.min(column.getValue() + WIDTH_PADDING, DataToCellConverter.MAX_CHARACTERS_PER_LINE);
+            sheet.setColumnWidth(column.getKey(), characters * CHARACTER_WIDTH);
+        }
+    }
+
+    private void sampleWidth(int column, String value)
+    {
+        if (StringUtils.isEmpty(value)) {
+            return;
+        }
+        int longest = 0;
+        for (String line : StringUtils.split(value, '\n')) {
+            longest = Math.max(longest, line.length());
+        }
+        Integer previous = this.sampledWidths.get(column);
+        if (previous == null || previous < longest) {
+            this.sampledWidths.put(column, longest);
+        }
+    }
 }
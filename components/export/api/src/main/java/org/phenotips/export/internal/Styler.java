@@ -82,8 +82,8 @@ public static void disallowBodyStyles(DataSection section) throws Exception
     /**
      * Styles the bottom cells of the section. Creates new {@link org.phenotips.export.internal.DataCell}s, if missing.
      * This is a static function that is used outside of this class in the final stages of committing cells to a
-     * spreadsheet. For example, {@link org.phenotips.export.internal.SheetAssembler#SheetAssembler(java.util.Set,
-     * java.util.List)}.
+     * spreadsheet. For example, {@link org.phenotips.export.internal.SheetAssembler#assemblePatient(
+     * org.phenotips.data.Patient)}.
      *
      * @param section cannot be null
      * @param style the style to apply
@@ -259,6 +259,13 @@ public static void extendStyleVertically(DataSection section, StyleOption... sty
     public void style(DataCell dataCell, Cell cell, Workbook wBook)
     {
         Set<StyleOption> styles = dataCell.getStyles();
+        /* Workbooks can hold a limited number of styles, so new ones must only be created for unseen combinations */
+        CellStyle cachedStyle =
+            this.styleCache.get(styles == null ? Collections.<StyleOption>emptySet() : styles);
+        if (cachedStyle != null) {
+            cell.setCellStyle(cachedStyle);
+            return;
+        }
         CellStyle cellStyle = wBook.createCellStyle();
         /* For \n to work properly set to true */
         cellStyle.setWrapText(true);
@@ -272,17 +279,12 @@ public void style(DataCell dataCell, Cell cell, Workbook wBook)
         if (this.setDefaultStyle(styles, cell, cellStyle)) {
             return;
         }
-        if (this.styleCache.containsKey(styles)) {
-            cell.setCellStyle(this.styleCache.get(styles));
-            return;
-        }
-
         /* Priority of styles can be coded in by placing the if statement lower within the corresponding function. */
         this.setFontStyles(styles, cell, cellStyle, wBook);
         this.setBorderStyles(styles, cell, cellStyle, wBook);
 
-        /* Keep this as the last statement. */
-        this.styleCache.put(styles, cellStyle);
+        /* Keep this as the last statement. The cell's styles are copied, since they could still be changed. */
+        this.styleCache.put(new HashSet<StyleOption>(styles), cellStyle);
     }
 
     /**
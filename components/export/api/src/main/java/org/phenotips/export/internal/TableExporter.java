@@ -0,0 +1,160 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.data.Patient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Base class for exporting patients as a flat table, with one column for each column of the spreadsheet export, and
+ * one row for each patient. The cells are generated by the same {@link DataToCellConverter} as the spreadsheet, but
+ * without any styling:
+ * <ul>
+ * <li>the label of a column joins the labels of all the header cells above it, for example
+ * {@code Identifiers / Internal}</li>
+ * <li>the value of a column joins the non-empty values found in that column on all the rows of the patient, with
+ * {@link #VALUE_SEPARATOR}</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public abstract class TableExporter implements PatientDataExporter
+{
+    /** Joins the labels of the header cells above a column. */
+    protected static final String LABEL_SEPARATOR = " / ";
+
+    /** Joins the values of a column spanning several rows of a patient. */
+    protected static final String VALUE_SEPARATOR = "; ";
+
+    @Override
+    public void export(String[] enabledFields, Iterable<Patient> patients, OutputStream outputStream) throws Exception
+    {
+        if (enabledFields == null || outputStream == null) {
+            return;
+        }
+        try {
+            SheetAssembler assembler = new SheetAssembler(new HashSet<>(Arrays.asList(enabledFields)), false);
+            String[] labels = getLabels(assembler.getHeader());
+            start(labels, outputStream);
+            if (patients != null) {
+                for (Patient patient : patients) {
+                    DataSection section = assembler.assemblePatient(patient);
+                    if (section != null) {
+                        writeRow(getValues(section, labels.length));
+                    }
+                }
+            }
+            finish();
+            outputStream.flush();
+        } finally {
+            try {
+                outputStream.close();
+            } catch (IOException ex) {
+                // Nothing else to do
+            }
+        }
+    }
+
+    /**
+     * Starts the export, writing the header, if the format has one.
+     *
+     * @param labels the labels of the columns
+     * @param outputStream the stream where the export must be written
+     * @throws IOException if writing fails
+     */
+    protected abstract void start(String[] labels, OutputStream outputStream) throws IOException;
+
+    /**
+     * Writes the values of a patient.
+     *
+     * @param values the values of each column, as many as the labels passed to {@link #start}; never {@code null}
+     * @throws IOException if writing fails
+     */
+    protected abstract void writeRow(String[] values) throws IOException;
+
+    /**
+     * Ends the export, writing everything that is still buffered. The output stream will be flushed and closed
+     * afterwards.
+     *
+     * @throws IOException if writing fails
+     */
+    protected abstract void finish() throws IOException;
+
+    /**
+     * Computes the label of each column from the header cells, which may span several columns and rows.
+     *
+     * @param header the finalized, merged header section
+     * @return the label of each column
+     */
+    protected String[] getLabels(DataSection header)
+    {
+        String[] labels = new String[header.getMaxX() + 1];
+        Arrays.fill(labels, "");
+        DataCell[][] cells = header.getMatrix();
+        for (int y = 0; y <= header.getMaxY(); y++) {
+            for (int x = 0; x <= header.getMaxX(); x++) {
+                DataCell cell = cells[x][y];
+                if (cell == null || cell.isChild() || StringUtils.isBlank(cell.getValue())) {
+                    continue;
+                }
+                int span = cell.getMergeX() == null ? 0 : cell.getMergeX();
+                for (int column = x; column <= x + span && column < labels.length; column++) {
+                    labels[column] = labels[column].isEmpty() ? cell.getValue()
+                        : labels[column] + LABEL_SEPARATOR + cell.getValue();
+                }
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Flattens the cells of a patient into one value per column.
+     *
+     * @param section the finalized section holding the data of one patient
+     * @param columns the number of columns of the table
+     * @return the value of each column, empty if the patient has no data in that column
+     */
+    protected String[] getValues(DataSection section, int columns)
+    {
+        String[] values = new String[columns];
+        Arrays.fill(values, "");
+        DataCell[][] cells = section.getMatrix();
+        for (int x = 0; x <= section.getMaxX() && x < columns; x++) {
+            StringBuilder value = new StringBuilder();
+            for (int y = 0; y <= section.getMaxY(); y++) {
+                DataCell cell = cells[x][y];
+                if (cell == null || StringUtils.isEmpty(cell.getValue())) {
+                    continue;
+                }
+                if (value.length() > 0) {
+                    value.append(VALUE_SEPARATOR);
+                }
+                value.append(cell.getValue());
+            }
+            values[x] = value.toString();
+        }
+        return values;
+    }
+}
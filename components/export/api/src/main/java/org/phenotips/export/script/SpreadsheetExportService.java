@@ -17,21 +17,18 @@
  */
 package org.phenotips.export.script;
 
-import org.phenotips.data.Patient;
-import org.phenotips.data.PatientRepository;
-import org.phenotips.export.internal.SpreadsheetExporter;
-import org.phenotips.security.authorization.AuthorizationService;
+import org.phenotips.export.internal.ColumnarExporter;
+import org.phenotips.export.internal.ExportedPatients;
+import org.phenotips.export.internal.PatientDataExporter;
+import org.phenotips.export.internal.PatientDataExporters;
 
 import org.xwiki.component.annotation.Component;
-import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.script.service.ScriptService;
-import org.xwiki.security.authorization.Right;
 import org.xwiki.stability.Unstable;
-import org.xwiki.users.UserManager;
 
 import java.io.OutputStream;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -40,7 +37,9 @@
 import org.slf4j.Logger;
 
 /**
- * Service for exporting a list of patients into an {@code .xlsx} Excel file.
+ * Service for exporting a list of patients into an {@code .xlsx} Excel file, or into one of the flat formats meant for
+ * analysis pipelines: {@code csv}, {@code tsv}, {@code jsonl} (JSON Lines) or {@code columnar} (see
+ * {@link ColumnarExporter}).
  *
  * @version $Id$
  * @since 1.0RC1
@@ -51,23 +50,18 @@
 @Singleton
 public class SpreadsheetExportService implements ScriptService
 {
-    @Inject
-    private Logger logger;
+    private static final int GZIP_BUFFER = 65536;
 
     @Inject
-    @Named("current")
-    private DocumentReferenceResolver<String> referenceResolver;
-
-    @Inject
-    private PatientRepository patientRepository;
+    private Logger logger;
 
-    /** Used for obtaining the current user. */
+    /** Loads the accessible patients. */
     @Inject
-    private UserManager userManager;
+    private ExportedPatients patients;
 
-    /** Used for checking access rights. */
+    /** Creates the exporter for the requested format. */
     @Inject
-    private AuthorizationService access;
+    private PatientDataExporters exporters;
 
     /**
      * Export the provided list of patients into an Excel file, containing the specified columns. The resulting binary
@@ -80,27 +74,38 @@ public class SpreadsheetExportService implements ScriptService
      */
     public void export(List<String> patientIds, String[] enabledFields, OutputStream outputStream)
     {
-        SpreadsheetExporter exporter = new SpreadsheetExporter();
         try {
-            // since scripts do not have access to a non-secure versionof the patient, need to
-            // get the actual Patient objects here, and check access rights here
-            //
-            // FIXME: once new version of entities is in, need to refactor PrimaryEntityManager and incorporate
-            //        security features into the entities framework to avoid doing permission checks in client code
-            //        that requires non-secure versions of the Patient object
-            List<Patient> patients = new LinkedList<>();
-            for (String patientId : patientIds) {
-                Patient patient = this.patientRepository.get(patientId);
-                if (patient == null || !this.access.hasAccess(
-                        this.userManager.getCurrentUser(), Right.VIEW, patient.getDocumentReference())) {
-                    continue;
-                }
-                patients.add(patient);
-            }
-
-            exporter.export(enabledFields, patients, outputStream);
+            this.exporters.getExporter("xlsx").export(enabledFields, this.patients.get(patientIds), outputStream);
         } catch (Exception ex) {
             this.logger.error("Error caught while generating an export spreadsheet", ex);
         }
     }
+
+    /**
+     * Export the provided list of patients in one of the supported formats, containing the specified fields. The
+     * result is written to the provided output stream as it is produced, usually the {@code $response}'s output stream.
+     *
+     * @param patientIds list of patient IDs of the the patients to export
+     * @param enabledFields a list of field names to export, as for {@link #export(List, String[], OutputStream)}
+     * @param format the export format, one of {@code xlsx}, {@code csv}, {@code tsv}, {@code jsonl} or
+     *            {@code columnar}
+     * @param compress whether to compress the result with gzip
+     * @param outputStream the output stream where the result will be sent
+     * @since 1.4
+     */
+    public void export(List<String> patientIds, String[] enabledFields, String format, boolean compress,
+        OutputStream outputStream)
+    {
+        PatientDataExporter exporter = this.exporters.getExporter(format);
+        if (exporter == null) {
+            this.logger.warn("Unknown export format requested: [{}]", format);
+            return;
+        }
+        try {
+            exporter.export(enabledFields, this.patients.get(patientIds),
+                compress && outputStream != null ? new GZIPOutputStream(outputStream, GZIP_BUFFER) : outputStream);
+        } catch (Exception ex) {
+            this.logger.error("Error caught while generating a [{}] export", format, ex);
+        }
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ColumnarExporterTest
+{
+    @Test
+    public void columnsAreWrittenInDictionaryEncodedRowGroups() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ColumnarExporter exporter = new ColumnarExporter();
+        exporter.start(new String[] { "ID", "Sex" }, out);
+        int total = ColumnarExporter.ROW_GROUP_SIZE + 3;
+        for (int i = 0; i < total; i++) {
+            exporter.writeRow(new String[] { "P" + i, i % 2 == 0 ? "F" : "M" });
+        }
+        exporter.finish();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        byte[] magic = new byte[ColumnarExporter.MAGIC.length];
+        in.readFully(magic);
+        Assert.assertArrayEquals(ColumnarExporter.MAGIC, magic);
+        Assert.assertEquals(ColumnarExporter.VERSION, in.readByte());
+        Assert.assertEquals(2, readInt(in));
+        Assert.assertEquals("ID", readString(in));
+        Assert.assertEquals("Sex", readString(in));
+
+        List<String> ids = new ArrayList<>();
+        List<String> sexes = new ArrayList<>();
+        List<Integer> groups = new ArrayList<>();
+        int rows;
+        while ((rows = readInt(in)) > 0) {
+            groups.add(rows);
+            ids.addAll(readColumn(in, rows));
+            sexes.addAll(readColumn(in, rows));
+        }
+        Assert.assertEquals(-1, in.read());
+
+        Assert.assertEquals(2, groups.size());
+        Assert.assertEquals(ColumnarExporter.ROW_GROUP_SIZE, groups.get(0).intValue());
+        Assert.assertEquals(total, ids.size());
+        Assert.assertEquals("P1026", ids.get(total - 1));
+        Assert.assertEquals("F", sexes.get(total - 1));
+        Assert.assertEquals("M", sexes.get(total - 2));
+    }
+
+    @Test
+    public void emptyExportOnlyHoldsTheColumns() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ColumnarExporter exporter = new ColumnarExporter();
+        exporter.start(new String[] { "ID" }, out);
+        exporter.finish();
+
+        byte[] expected = new byte[] { 'P', 'T', 'C', 'O', 'L', 1, 1, 2, 'I', 'D', 0 };
+        Assert.assertArrayEquals(expected, out.toByteArray());
+    }
+
+    private List<String> readColumn(DataInputStream in, int rows) throws IOException
+    {
+        int dictionarySize = readInt(in);
+        List<String> dictionary = new ArrayList<>(dictionarySize);
+        for (int i = 0; i < dictionarySize; i++) {
+            dictionary.add(readString(in));
+        }
+        List<String> values = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            values.add(dictionary.get(readInt(in)));
+        }
+        return values;
+    }
+
+    private String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[readInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readInt(DataInputStream in) throws IOException
+    {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+}
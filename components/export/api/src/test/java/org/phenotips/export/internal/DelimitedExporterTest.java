@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DelimitedExporterTest
+{
+    @Test
+    public void csvValuesAreQuotedWhenNeeded() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DelimitedExporter exporter = new DelimitedExporter(DelimitedExporter.CSV);
+        exporter.start(new String[] { "Identifiers / Internal", "Notes" }, out);
+        exporter.writeRow(new String[] { "P0000001", "a, b" });
+        exporter.writeRow(new String[] { "P0000002", "said \"hi\"\nthen left" });
+        exporter.writeRow(new String[] { "P0000003", "" });
+        exporter.finish();
+
+        Assert.assertEquals("Identifiers / Internal,Notes\r\n"
+            + "P0000001,\"a, b\"\r\n"
+            + "P0000002,\"said \"\"hi\"\"\nthen left\"\r\n"
+            + "P0000003,\r\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void tsvValuesAreEscaped() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DelimitedExporter exporter = new DelimitedExporter(DelimitedExporter.TSV);
+        exporter.start(new String[] { "ID", "Notes" }, out);
+        exporter.writeRow(new String[] { "P0000001", "a\tb\nc\\d, \"e\"" });
+        exporter.finish();
+
+        Assert.assertEquals("ID\tNotes\nP0000001\ta\\tb\\nc\\\\d, \"e\"\n",
+            new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void labelsJoinTheMergedHeaderCells() throws Exception
+    {
+        DataSection header = new DataSection();
+        header.addCell(new DataCell("Identifiers", 0, 0));
+        header.addCell(new DataCell("Internal", 0, 1));
+        header.addCell(new DataCell("External", 1, 1));
+        header.addCell(new DataCell("Sex", 2, 0));
+        header.addCell(new DataCell("", 2, 1));
+        header.finalizeToMatrix();
+        header.mergeX();
+        header.finalizeToMatrix();
+
+        Assert.assertArrayEquals(new String[] { "Identifiers / Internal", "Identifiers / External", "Sex" },
+            new DelimitedExporter(DelimitedExporter.CSV).getLabels(header));
+    }
+
+    @Test
+    public void valuesJoinAllThePatientRows() throws Exception
+    {
+        DataSection patient = new DataSection();
+        patient.addCell(new DataCell("P0000001", 0, 0));
+        patient.addCell(new DataCell("Seizures", 1, 0));
+        patient.addCell(new DataCell("Ataxia", 1, 1));
+        patient.addCell(new DataCell("", 1, 2));
+        patient.finalizeToMatrix();
+
+        Assert.assertArrayEquals(new String[] { "P0000001", "Seizures; Ataxia", "" },
+            new DelimitedExporter(DelimitedExporter.CSV).getValues(patient, 3));
+    }
+}
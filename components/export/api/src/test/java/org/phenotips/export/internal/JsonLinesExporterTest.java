@@ -0,0 +1,74 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.data.Patient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class JsonLinesExporterTest
+{
+    @Test
+    public void eachPatientIsWrittenOnItsOwnLine() throws Exception
+    {
+        Patient first = mock(Patient.class);
+        Patient second = mock(Patient.class);
+        doReturn(new JSONObject("{\"id\":\"P0000001\",\"notes\":\"a\\nb\"}")).when(first)
+            .toJSON(anyCollectionOf(String.class));
+        doReturn(new JSONObject("{\"id\":\"P0000002\"}")).when(second).toJSON(anyCollectionOf(String.class));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new JsonLinesExporter().export(new String[] { "external_id", "phenotype_code" },
+            Arrays.asList(first, null, second), out);
+
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        Assert.assertEquals(2, lines.length);
+        Assert.assertEquals("P0000001", new JSONObject(lines[0]).getString("id"));
+        Assert.assertEquals("a\nb", new JSONObject(lines[0]).getString("notes"));
+        Assert.assertEquals("P0000002", new JSONObject(lines[1]).getString("id"));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Collection<String>> fields = (ArgumentCaptor) ArgumentCaptor.forClass(Collection.class);
+        verify(first).toJSON(fields.capture());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("external_id", "phenotype_code", "phenotype")),
+            new HashSet<>(fields.getValue()));
+    }
+
+    @Test
+    public void streamIsClosed() throws Exception
+    {
+        OutputStream out = mock(OutputStream.class);
+        new JsonLinesExporter().export(new String[0], Arrays.<Patient>asList(), out);
+        verify(out).close();
+    }
+}
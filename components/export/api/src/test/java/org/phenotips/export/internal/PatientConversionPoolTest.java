@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.data.Patient;
+
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class PatientConversionPoolTest
+{
+    private static final int THREADS = 2;
+
+    private ComponentManager componentManager;
+
+    private Execution execution;
+
+    private ExecutionContextManager contextManager;
+
+    private ExecutionContext parentContext;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.componentManager = mock(ComponentManager.class);
+        this.execution = mock(Execution.class);
+        this.contextManager = mock(ExecutionContextManager.class);
+        this.parentContext = mock(ExecutionContext.class);
+        doReturn(this.execution).when(this.componentManager).getInstance(Execution.class);
+        doReturn(this.contextManager).when(this.componentManager).getInstance(ExecutionContextManager.class);
+        doReturn(this.parentContext).when(this.execution).getContext();
+    }
+
+    @Test
+    public void contextIsSetUpOncePerThread() throws Exception
+    {
+        doAnswer(invocation -> mock(ExecutionContext.class)).when(this.contextManager).clone(this.parentContext);
+        final Set<Thread> workers = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        SheetAssembler assembler = mock(SheetAssembler.class);
+        doAnswer(invocation -> {
+            workers.add(Thread.currentThread());
+            return mock(DataSection.class);
+        }).when(assembler).assemblePatient(any(Patient.class));
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            patients.add(mock(Patient.class));
+        }
+        final List<DataSection> converted = new ArrayList<>();
+
+        try (PatientConversionPool pool = new PatientConversionPool(THREADS, this.componentManager)) {
+            pool.convert(assembler, patients, converted::add);
+        }
+
+        Assert.assertEquals(40, converted.size());
+        Assert.assertFalse(workers.contains(Thread.currentThread()));
+        // The parent context is copied when each worker thread starts, not for every patient
+        verify(this.contextManager, atMost(THREADS)).clone(this.parentContext);
+        verify(this.execution, atMost(THREADS)).setContext(any(ExecutionContext.class));
+    }
+
+    @Test(expected = ExecutionContextException.class)
+    public void contextFailuresAbortTheConversion() throws Exception
+    {
+        doThrow(new ExecutionContextException("Failed")).when(this.contextManager).clone(this.parentContext);
+        SheetAssembler assembler = mock(SheetAssembler.class);
+
+        try (PatientConversionPool pool = new PatientConversionPool(THREADS, this.componentManager)) {
+            pool.convert(assembler, Collections.singletonList(mock(Patient.class)),
+                section -> Assert.fail("No patient should be converted"));
+        }
+    }
+}
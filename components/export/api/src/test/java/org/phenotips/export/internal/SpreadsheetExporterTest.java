@@ -17,21 +17,19 @@
  */
 package org.phenotips.export.internal;
 
-import org.phenotips.components.ComponentManagerRegistry;
 import org.phenotips.data.Patient;
-import org.phenotips.translation.TranslationManager;
 
-import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
-import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
 
 import java.io.OutputStream;
-import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
-import javax.inject.Provider;
-
+import org.apache.commons.lang3.StringUtils;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
@@ -39,22 +37,26 @@
 import org.apache.poi.ss.util.CellRangeAddress;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
-import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anySetOf;
 import static org.mockito.Matchers.anyShort;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -72,9 +74,9 @@ public void badParameters() throws Exception
         OutputStream stream = mock(OutputStream.class);
 
         spy.export(null, null, stream);
-        verify(spy, times(0)).processMainSheet(anySetOf(String.class), anyListOf(Patient.class));
+        verify(spy, times(0)).processMainSheet(anySetOf(String.class), any(Iterable.class));
         spy.export(new String[1], null, null);
-        verify(spy, times(0)).processMainSheet(anySetOf(String.class), anyListOf(Patient.class));
+        verify(spy, times(0)).processMainSheet(anySetOf(String.class), any(Iterable.class));
     }
 
     @Test(expected = Exception.class)
@@ -87,7 +89,7 @@ public void failTest() throws Exception
 
         doThrow(Exception.class).when(workbook).write(stream);
         when(spy.createNewWorkbook()).thenReturn(workbook);
-        doNothing().when(spy).processMainSheet(anySetOf(String.class), anyListOf(Patient.class));
+        doNothing().when(spy).processMainSheet(anySetOf(String.class), any(Iterable.class));
 
         List<Patient> list = new LinkedList<>();
         spy.export(new String[0], list, stream);
@@ -103,7 +105,7 @@ public void exportTest() throws Exception
         Workbook workbook = mock(Workbook.class);
 
         when(spy.createNewWorkbook()).thenReturn(workbook);
-        doNothing().when(spy).processMainSheet(anySetOf(String.class), anyListOf(Patient.class));
+        doNothing().when(spy).processMainSheet(anySetOf(String.class), any(Iterable.class));
 
         List<Patient> list = new LinkedList<>();
         spy.export(new String[0], list, stream);
@@ -119,18 +121,102 @@ public void processMainSheet() throws Exception
         Workbook workbook = mock(Workbook.class);
         SheetAssembler assembler = mock(SheetAssembler.class);
         Sheet sheet = mock(Sheet.class);
+        DataSection header = mock(DataSection.class);
+        DataSection body = mock(DataSection.class);
+        Patient patient = mock(Patient.class);
 
         spy.wBook = workbook;
         doReturn(sheet).when(workbook).createSheet(anyString());
-        doReturn(assembler).when(spy).runAssembler(anySetOf(String.class), anyListOf(Patient.class));
-        doNothing().when(spy).commit(any(DataSection.class), any(Sheet.class));
+        doReturn(assembler).when(spy).runAssembler(anySetOf(String.class));
+        doReturn(header).when(assembler).getHeader();
+        doReturn(1).when(header).getMaxY();
+        doReturn(2).when(assembler).getHeaderHeight();
+        doReturn(body).when(assembler).assemblePatient(patient);
+        doReturn(3).when(body).getMaxY();
+        doNothing().when(spy).commit(any(DataSection.class), any(Sheet.class), anyInt(), any(Styler.class));
         doNothing().when(spy).freezeHeader(anyShort(), any(Sheet.class));
 
-        spy.processMainSheet(anySetOf(String.class), anyListOf(Patient.class));
+        spy.processMainSheet(Collections.<String>emptySet(), Arrays.asList(patient, null, patient));
 
         Assert.assertTrue(exporter.sheets.containsValue(sheet));
-        verify(spy, atLeastOnce()).commit(any(DataSection.class), any(Sheet.class));
-        verify(spy, atLeastOnce()).freezeHeader(anyShort(), any(Sheet.class));
+        InOrder order = inOrder(spy);
+        order.verify(spy).commit(eq(header), eq(sheet), eq(0), any(Styler.class));
+        order.verify(spy).commit(eq(body), eq(sheet), eq(2), any(Styler.class));
+        order.verify(spy).commit(eq(body), eq(sheet), eq(6), any(Styler.class));
+        verify(spy, atLeastOnce()).freezeHeader(eq((short) 2), any(Sheet.class));
+    }
+
+    @Test
+    public void parallelConversionKeepsTheOriginalOrder() throws Exception
+    {
+        List<Patient> cohort = new LinkedList<>();
+        SheetAssembler assembler = mock(SheetAssembler.class);
+        final List<DataSection> expected = new LinkedList<>();
+        for (int i = 0; i < 50; i++) {
+            Patient patient = mock(Patient.class);
+            final DataSection section = mock(DataSection.class);
+            final long delay = i % 7;
+            cohort.add(patient);
+            expected.add(section);
+            doAnswer(new Answer<DataSection>()
+            {
+                @Override
+                public DataSection answer(InvocationOnMock invocation) throws InterruptedException
+                {
+                    // Later patients finish first
+                    Thread.sleep(delay);
+                    return section;
+                }
+            }).when(assembler).assemblePatient(patient);
+        }
+
+        Assert.assertEquals(expected, commitCohort(new SpreadsheetExporter(), assembler, cohort));
+        Assert.assertEquals(expected, commitCohort(new SpreadsheetExporter(4), assembler, cohort));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void parallelConversionFailuresArePropagated() throws Exception
+    {
+        SheetAssembler assembler = mock(SheetAssembler.class);
+        Patient patient = mock(Patient.class);
+        doThrow(new IllegalStateException()).when(assembler).assemblePatient(patient);
+
+        commitCohort(new SpreadsheetExporter(2), assembler, Arrays.asList(patient));
+    }
+
+    private List<DataSection> commitCohort(SpreadsheetExporter exporter, SheetAssembler assembler,
+        List<Patient> cohort) throws Exception
+    {
+        SpreadsheetExporter spy = spy(exporter);
+        Workbook workbook = mock(Workbook.class);
+        Sheet sheet = mock(Sheet.class);
+        DataSection header = mock(DataSection.class);
+        final List<DataSection> committed = new LinkedList<>();
+
+        spy.wBook = workbook;
+        doReturn(sheet).when(workbook).createSheet(anyString());
+        doReturn(assembler).when(spy).runAssembler(anySetOf(String.class));
+        doReturn(header).when(assembler).getHeader();
+        doReturn(1).when(assembler).getHeaderHeight();
+        // The tests don't have an execution context to copy
+        ComponentManager componentManager = mock(ComponentManager.class);
+        doReturn(mock(Execution.class)).when(componentManager).getInstance(Execution.class);
+        doReturn(mock(ExecutionContextManager.class)).when(componentManager).getInstance(ExecutionContextManager.class);
+        doAnswer(invocation -> new PatientConversionPool((Integer) invocation.getArguments()[0], componentManager))
+            .when(spy).createConversionPool(anyInt());
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                committed.add((DataSection) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(spy).commit(any(DataSection.class), any(Sheet.class), anyInt(), any(Styler.class));
+
+        spy.processMainSheet(Collections.<String>emptySet(), cohort);
+        committed.remove(header);
+        return committed;
     }
 
     @Test
@@ -140,54 +226,97 @@ public void emptyCommit()
         SpreadsheetExporter spy = spy(exporter);
         Sheet sheet = mock(Sheet.class);
         DataSection section = mock(DataSection.class);
+        Styler styler = mock(Styler.class);
 
-        doNothing().when(spy).commitRows(eq(section), eq(sheet), any(Styler.class));
+        doNothing().when(spy).commitRows(eq(section), eq(sheet), anyInt(), eq(styler));
         doReturn(-1).when(section).getMaxX();
         doReturn(-1).when(section).getMaxY();
 
-        spy.commit(section, sheet);
+        spy.commit(section, sheet, 0, styler);
+        spy.setColumnWidths(sheet);
         verifyNoMoreInteractions(sheet);
     }
 
     @Test
-    public void commitTest() throws NoSuchFieldException, IllegalArgumentException, IllegalAccessException,
-        ComponentLookupException
+    public void commitTest()
     {
         SpreadsheetExporter exporter = new SpreadsheetExporter();
         SpreadsheetExporter spy = spy(exporter);
         Sheet sheet = mock(Sheet.class);
         DataSection section = mock(DataSection.class);
         DataCell cell = mock(DataCell.class);
+        Styler styler = mock(Styler.class);
         DataCell[][] matrix = new DataCell[1][1];
         matrix[0][0] = cell;
-        InOrder order = inOrder(sheet, sheet);
 
-        doNothing().when(spy).commitRows(eq(section), eq(sheet), any(Styler.class));
+        doNothing().when(spy).commitRows(eq(section), eq(sheet), anyInt(), eq(styler));
         doReturn(0).when(section).getMaxX();
         doReturn(0).when(section).getMaxY();
         doReturn(matrix).when(section).getMatrix();
         doReturn(1).when(cell).getMergeX();
 
-        Field field = ReflectionUtils.getField(ComponentManagerRegistry.class, "cmProvider");
-        boolean isAccessible = field.isAccessible();
-        try {
-            field.setAccessible(true);
-            @SuppressWarnings("unchecked")
-            Provider<ComponentManager> cmp = mock(Provider.class);
-            field.set(null, cmp);
-            ComponentManager cm = mock(ComponentManager.class);
-            when(cmp.get()).thenReturn(cm);
-            TranslationManager tm = mock(TranslationManager.class);
-            when(cm.getInstance(TranslationManager.class)).thenReturn(tm);
-        } finally {
-            field.setAccessible(isAccessible);
-        }
-        doReturn(DataToCellConverter.MAX_CHARACTERS_PER_LINE * 210 + 1).when(sheet).getColumnWidth(anyInt());
+        spy.commit(section, sheet, 5, styler);
+        ArgumentCaptor<CellRangeAddress> region = ArgumentCaptor.forClass(CellRangeAddress.class);
+        verify(sheet).addMergedRegion(region.capture());
+        Assert.assertEquals("A6:B6", region.getValue().formatAsString());
+        // Merged cells don't count towards the width of a single column
+        Assert.assertTrue(exporter.sampledWidths.isEmpty());
+    }
 
-        spy.commit(section, sheet);
-        order.verify(sheet, atLeastOnce()).autoSizeColumn(anyInt());
-        verify(sheet, atLeastOnce()).setColumnWidth(anyInt(), anyInt());
-        order.verify(sheet).addMergedRegion(any(CellRangeAddress.class));
+    @Test
+    public void columnWidthsAreEstimatedFromTheContent()
+    {
+        SpreadsheetExporter exporter = new SpreadsheetExporter();
+        SpreadsheetExporter spy = spy(exporter);
+        Sheet sheet = mock(Sheet.class);
+        DataSection section = mock(DataSection.class);
+        Styler styler = mock(Styler.class);
+        DataCell[][] matrix = new DataCell[3][2];
+        matrix[0][0] = new DataCell("abc", 0, 0);
+        matrix[0][1] = new DataCell("a\nabcdefgh\nab", 0, 1);
+        matrix[1][1] = new DataCell(StringUtils.repeat('x', 300), 1, 1);
+
+        doNothing().when(spy).commitRows(eq(section), eq(sheet), anyInt(), eq(styler));
+        doReturn(2).when(section).getMaxX();
+        doReturn(1).when(section).getMaxY();
+        doReturn(matrix).when(section).getMatrix();
+
+        spy.commit(section, sheet, 0, styler);
+        spy.setColumnWidths(sheet);
+        verify(sheet).setColumnWidth(0, (8 + 2) * 210);
+        verify(sheet).setColumnWidth(1, DataToCellConverter.MAX_CHARACTERS_PER_LINE * 210);
+        verify(sheet, never()).setColumnWidth(eq(2), anyInt());
+        verify(sheet, never()).autoSizeColumn(anyInt());
+    }
+
+    @Test
+    public void columnWidthsOnlySampleTheFirstRows()
+    {
+        SpreadsheetExporter exporter = new SpreadsheetExporter();
+        SpreadsheetExporter spy = spy(exporter);
+        Sheet sheet = mock(Sheet.class);
+        DataSection section = mock(DataSection.class);
+        Styler styler = mock(Styler.class);
+        DataCell[][] matrix = new DataCell[1][1];
+        matrix[0][0] = new DataCell("abc", 0, 0);
+        DataSection late = mock(DataSection.class);
+        DataCell[][] lateMatrix = new DataCell[1][1];
+        lateMatrix[0][0] = new DataCell("abcdefghijklmnop", 0, 0);
+
+        doNothing().when(spy).commitRows(any(DataSection.class), eq(sheet), anyInt(), eq(styler));
+        doReturn(0).when(section).getMaxX();
+        doReturn(0).when(section).getMaxY();
+        doReturn(matrix).when(section).getMatrix();
+        doReturn(0).when(late).getMaxX();
+        doReturn(0).when(late).getMaxY();
+        doReturn(lateMatrix).when(late).getMatrix();
+
+        for (int i = 0; i < SpreadsheetExporter.WIDTH_SAMPLE_ROWS; i++) {
+            spy.commit(section, sheet, i, styler);
+        }
+        spy.commit(late, sheet, SpreadsheetExporter.WIDTH_SAMPLE_ROWS, styler);
+        spy.setColumnWidths(sheet);
+        verify(sheet).setColumnWidth(0, (3 + 2) * 210);
     }
 
     @Test
@@ -213,9 +342,9 @@ public void commitRowTest()
         doNothing().when(styler).style(any(DataCell.class), any(Cell.class), any(Workbook.class));
         doReturn(0).when(dataCell).getNumberOfLines();
 
-        spy.commitRows(section, sheet, styler);
+        spy.commitRows(section, sheet, 7, styler);
 
-        verify(sheet, times(1)).createRow(anyInt());
+        verify(sheet, times(1)).createRow(7);
         verify(row, times(1)).createCell(anyInt());
         verify(cell, times(1)).setCellValue(anyString());
         verify(styler, times(1)).style(any(DataCell.class), any(Cell.class), any(Workbook.class));
@@ -238,7 +367,7 @@ public void commitEmptyTest()
         doReturn(0).when(section).getMaxX();
         doReturn(0).when(section).getMaxY();
 
-        spy.commitRows(section, sheet, styler);
+        spy.commitRows(section, sheet, 0, styler);
 
         verifyZeroInteractions(row);
         verifyZeroInteractions(styler);
@@ -267,7 +396,7 @@ public void commitRowAdjustHeightTest()
         doNothing().when(styler).style(any(DataCell.class), any(Cell.class), any(Workbook.class));
         doReturn(2).when(dataCell).getNumberOfLines();
 
-        spy.commitRows(section, sheet, styler);
+        spy.commitRows(section, sheet, 0, styler);
 
         verify(row, times(1)).setHeight(anyShort());
     }
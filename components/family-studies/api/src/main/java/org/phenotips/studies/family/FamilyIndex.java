@@ -0,0 +1,73 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.stability.Unstable;
+import org.xwiki.users.User;
+
+import java.util.Map;
+
+/**
+ * Search index for finding families, either directly by their identifiers, or through their members. The index is kept
+ * up to date as families and patients are modified.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+@Role
+public interface FamilyIndex
+{
+    /**
+     * Add (or update) a family, along with its current members, to the index.
+     *
+     * @param family the family to index
+     */
+    void index(Family family);
+
+    /**
+     * Remove from the index a family, along with its members.
+     *
+     * @param family reference to the document where the family is stored
+     */
+    void delete(DocumentReference family);
+
+    /**
+     * Rebuild the whole index.
+     */
+    void reindex();
+
+    /**
+     * Finds the families, or patients members of a family, with an identifier, external identifier or name matching
+     * each of the words in the input. Only records on which the user has the requested right are returned, and
+     * inaccessible matches don't count towards the limit.
+     *
+     * @param input the text typed by the user; each word may match any part of an identifier, or the start of a name
+     * @param includeNames whether patient names should be searched as well
+     * @param user the user performing the search
+     * @param right the right the user must have on the returned records
+     * @param limit the maximum number of records to return
+     * @return the matched records, families first, each one mapped to the family it belongs to (families being mapped
+     *         to themselves); {@code null} if the index cannot answer the search, for example while it is being built
+     */
+    Map<DocumentReference, DocumentReference> search(String input, boolean includeNames, User user, Right right,
+        int limit);
+}
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientData;
+import org.phenotips.studies.family.Family;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Converts families into the Solr documents stored in the families index: one document for the family, and one for
+ * each of its members, pointing to the family.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { FamilyIndexDocumentBuilder.class })
+@Singleton
+public class FamilyIndexDocumentBuilder
+{
+    @Inject
+    private EntityReferenceSerializer<String> referenceSerializer;
+
+    /**
+     * Converts a family and its members into Solr documents.
+     *
+     * @param family the family to convert
+     * @return the family document, followed by the documents of its members
+     */
+    public List<SolrInputDocument> build(Family family)
+    {
+        List<SolrInputDocument> result = new ArrayList<>();
+        String familyReference = getFamilyReference(family.getDocumentReference());
+
+        SolrInputDocument familyDocument =
+            createDocument(familyReference, FamilyIndexQueries.FAMILY_TYPE, familyReference);
+        familyDocument.setField(FamilyIndexQueries.IDENTIFIER_FIELD, family.getId());
+        addIfNotBlank(familyDocument, FamilyIndexQueries.EXTERNAL_ID_FIELD, family.getExternalId());
+        addIfNotBlank(familyDocument, "proband", family.getProbandId());
+        result.add(familyDocument);
+
+        for (Patient patient : family.getMembers()) {
+            if (patient == null) {
+                continue;
+            }
+            String patientReference = this.referenceSerializer.serialize(patient.getDocumentReference());
+            familyDocument.addField("members", patient.getId());
+            SolrInputDocument memberDocument =
+                createDocument(patientReference, FamilyIndexQueries.MEMBER_TYPE, familyReference);
+            memberDocument.setField(FamilyIndexQueries.IDENTIFIER_FIELD, patient.getId());
+            addIfNotBlank(memberDocument, FamilyIndexQueries.EXTERNAL_ID_FIELD, patient.getExternalId());
+            PatientData<String> names = patient.getData("patientName");
+            if (names != null) {
+                addIfNotBlank(memberDocument, FamilyIndexQueries.NAME_FIELD, names.get("first_name"));
+                addIfNotBlank(memberDocument, FamilyIndexQueries.NAME_FIELD, names.get("last_name"));
+            }
+            result.add(memberDocument);
+        }
+        return result;
+    }
+
+    /**
+     * Creates the marker document, written last when the whole index is built, so that a partially built index is
+     * never mistaken for a complete one.
+     *
+     * @return a new marker document
+     */
+    public SolrInputDocument buildMarker()
+    {
+        return createDocument(FamilyIndexQueries.MARKER_DOCUMENT, FamilyIndexQueries.MARKER_TYPE,
+            FamilyIndexQueries.MARKER_DOCUMENT);
+    }
+
+    /**
+     * Serializes the reference to a family document the same way it is stored in the index.
+     *
+     * @param family reference to the family document
+     * @return the value of the {@link FamilyIndexQueries#FAMILY_FIELD family field} for the family and its members
+     */
+    public String getFamilyReference(DocumentReference family)
+    {
+        return this.referenceSerializer.serialize(family);
+    }
+
+    private SolrInputDocument createDocument(String reference, String type, String familyReference)
+    {
+        SolrInputDocument result = new SolrInputDocument();
+        result.setField(FamilyIndexQueries.DOCUMENT_FIELD, reference);
+        result.setField(FamilyIndexQueries.TYPE_FIELD, type);
+        result.setField(FamilyIndexQueries.FAMILY_FIELD, familyReference);
+        return result;
+    }
+
+    private void addIfNotBlank(SolrInputDocument document, String field, String value)
+    {
+        if (StringUtils.isNotBlank(value)) {
+            document.addField(field, value);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.util.ClientUtils;
+
+/**
+ * Field names and queries of the families index. Each family is indexed as one document, each of its members as
+ * another document pointing to the family, and one more document marks that the index has been completely built.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class FamilyIndexQueries
+{
+    /** The field holding the reference to the indexed document, which identifies indexed records. */
+    static final String DOCUMENT_FIELD = "document";
+
+    /** The field holding the type of the indexed record. */
+    static final String TYPE_FIELD = "type";
+
+    /** The field holding the reference to the family a record belongs to. */
+    static final String FAMILY_FIELD = "family";
+
+    static final String IDENTIFIER_FIELD = "identifier";
+
+    static final String EXTERNAL_ID_FIELD = "external_id";
+
+    static final String NAME_FIELD = "name";
+
+    static final String FAMILY_TYPE = "family";
+
+    static final String MEMBER_TYPE = "member";
+
+    /** The type of the marker document, written last when the index is built. */
+    static final String MARKER_TYPE = "marker";
+
+    /** The identifier of the marker document. */
+    static final String MARKER_DOCUMENT = "index-complete";
+
+    /** Must be kept in sync with the maximum gram size configured in the schema. */
+    static final int MAX_GRAM_SIZE = 25;
+
+    /** Matches all the documents in the index. */
+    static final String ALL_DOCUMENTS_QUERY = "*:*";
+
+    /** Matches the marker document, present only if the index has been completely built. */
+    static final String MARKER_QUERY = TYPE_FIELD + ':' + MARKER_TYPE;
+
+    /** Restricts searches to families and their members, excluding the marker document. */
+    static final String RECORDS_FILTER = TYPE_FIELD + ":(" + FAMILY_TYPE + " OR " + MEMBER_TYPE + ')';
+
+    private static final String OR = " OR ";
+
+    private FamilyIndexQueries()
+    {
+        // Constants and static methods only
+    }
+
+    /**
+     * Builds the query matching records where each of the words in the input matches the identifier, the external
+     * identifier, or optionally one of the names.
+     *
+     * @param input the text typed by the user, may be empty
+     * @param includeNames whether patient names should be searched as well
+     * @return a query string, matching all the documents if the input is empty
+     */
+    static String getTextQuery(String input, boolean includeNames)
+    {
+        String[] words = StringUtils.split(StringUtils.defaultString(input));
+        if (words.length == 0) {
+            return ALL_DOCUMENTS_QUERY;
+        }
+        StringBuilder result = new StringBuilder();
+        for (String word : words) {
+            // Longer words can't match the indexed grams, only their start is used
+            String term = ClientUtils.escapeQueryChars(StringUtils.left(word, MAX_GRAM_SIZE));
+            if (result.length() > 0) {
+                result.append(" AND ");
+            }
+            result.append('(').append(IDENTIFIER_FIELD).append(':').append(term);
+            result.append(OR).append(EXTERNAL_ID_FIELD).append(':').append(term);
+            if (includeNames) {
+                result.append(OR).append(NAME_FIELD).append(':').append(term);
+            }
+            result.append(')');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Builds the query matching a family and all its members.
+     *
+     * @param family the serialized reference to the family document
+     * @return a query string
+     */
+    static String getFamilyQuery(String family)
+    {
+        return FAMILY_FIELD + ':' + ClientUtils.escapeQueryChars(family);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.components.WorkerExecutionContext;
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.FamilyRepository;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+
+/**
+ * Rebuilds the whole families index. The old content is deleted and all the families are added without intermediate
+ * commits, followed by the {@link FamilyIndexDocumentBuilder#buildMarker() marker document}, and everything is
+ * committed at once; if anything fails, the changes are rolled back, leaving the previous index in place.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { FamilyReindexer.class })
+@Singleton
+public class FamilyReindexer implements Disposable
+{
+    /** How many families are sent to Solr at once during a reindex. */
+    private static final int BATCH_SIZE = 250;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private QueryManager qm;
+
+    @Inject
+    private FamilyRepository familyRepository;
+
+    @Inject
+    private FamilyIndexDocumentBuilder documentBuilder;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    /** Runs the reindexes requested in the background, so that they don't block searches. */
+    private final ExecutorService background = Executors.newSingleThreadExecutor();
+
+    /** Prevents concurrent reindexes. */
+    private final AtomicBoolean reindexing = new AtomicBoolean();
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.background.shutdownNow();
+    }
+
+    /**
+     * Checks if a reindex is running. While it runs, the index may have been partially emptied by an intermediate
+     * commit, and shouldn't be searched.
+     *
+     * @return {@code true} if a reindex is running
+     */
+    public boolean isReindexing()
+    {
+        return this.reindexing.get();
+    }
+
+    /**
+     * Starts rebuilding the index in the background, unless a reindex is already running.
+     *
+     * @param server the families core
+     */
+    public void reindexInBackground(final SolrClient server)
+    {
+        if (!this.reindexing.get()) {
+            final ExecutionContext parentContext = this.execution.getContext();
+            this.background.submit(() -> reindexInContext(server, parentContext));
+        }
+    }
+
+    /**
+     * Rebuilds the index, unless a reindex is already running.
+     *
+     * @param server the families core
+     * @return {@code true} if all the families were indexed and committed, {@code false} if the reindex failed and was
+     *         rolled back, or if another reindex was already running
+     */
+    public boolean reindex(SolrClient server)
+    {
+        if (!this.reindexing.compareAndSet(false, true)) {
+            this.logger.warn("A family reindex is already running, ignoring the new request");
+            return false;
+        }
+        boolean started = false;
+        boolean complete = false;
+        try {
+            List<String> familyDocs =
+                this.qm.createQuery("from doc.object(PhenoTips.FamilyClass) as family", Query.XWQL).execute();
+            started = true;
+            server.deleteByQuery(FamilyIndexQueries.ALL_DOCUMENTS_QUERY);
+            addFamilies(server, familyDocs);
+            server.add(this.documentBuilder.buildMarker());
+            server.commit();
+            complete = true;
+            this.logger.info("Finished reindexing [{}] families", familyDocs.size());
+        } catch (SolrServerException | SolrException ex) {
+            this.logger.warn("Failed to reindex families: {}", ex.getMessage());
+        } catch (IOException ex) {
+            this.logger.warn("Error occurred while reindexing families: {}", ex.getMessage());
+        } catch (QueryException ex) {
+            this.logger.warn("Failed to search families for reindexing: {}", ex.getMessage());
+        } finally {
+            if (started && !complete) {
+                rollback(server);
+            }
+            this.reindexing.set(false);
+        }
+        return complete;
+    }
+
+    private void addFamilies(SolrClient server, List<String> familyDocs) throws SolrServerException, IOException
+    {
+        List<SolrInputDocument> batch = new ArrayList<>(BATCH_SIZE);
+        for (String familyDoc : familyDocs) {
+            Family family = this.familyRepository.getFamilyById(
+                this.referenceResolver.resolve(familyDoc, Family.DATA_SPACE).getName());
+            if (family == null) {
+                continue;
+            }
+            batch.addAll(this.documentBuilder.build(family));
+            if (batch.size() >= BATCH_SIZE) {
+                server.add(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            server.add(batch);
+        }
+    }
+
+    private void rollback(SolrClient server)
+    {
+        try {
+            server.rollback();
+        } catch (SolrServerException | SolrException | IOException ex) {
+            this.logger.error("Failed to roll back the family reindex, the index may be incomplete: {}",
+                ex.getMessage());
+        }
+    }
+
+    private void reindexInContext(SolrClient server, ExecutionContext parentContext)
+    {
+        try {
+            this.execution.setContext(WorkerExecutionContext.create(parentContext, this.contextManager));
+            reindex(server);
+        } catch (ExecutionContextException ex) {
+            this.logger.warn("Failed to start indexing families: {}", ex.getMessage());
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.internal.PhenoTipsPatient;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Collects all the changes made to patient records while saving a pedigree, so that each patient document is written
+ * at most once, and patients whose data is not actually changed by the pedigree are not written at all.
+ * <p>
+ * Patients are loaded only once per batch, so that all the changes, both to the patient data and to the link to the
+ * family, are applied on the same document instance. The new data is stored in the document right away, but nothing is
+ * written until {@link #flush(XWikiContext)} is called, and then each document is saved directly, so that any failure
+ * is reported to the caller. Not thread safe, a batch is meant to be used by a single operation, while holding the
+ * locks for all the involved records.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class PatientUpdateBatch
+{
+    private static final String DATA_COMMENT = "Updated from pedigree";
+
+    private final PatientRepository repository;
+
+    private final Map<String, Patient> patients = new LinkedHashMap<>();
+
+    /** Changes to be saved, and their history comments. */
+    private final Map<String, String> pendingChanges = new LinkedHashMap<>();
+
+    /** Updates for patients that can't store data without saving it, see {@link #updateData}. */
+    private final Map<String, JSONObject> pendingData = new LinkedHashMap<>();
+
+    private int unchanged;
+
+    /**
+     * Simple constructor.
+     *
+     * @param repository the repository used for loading patients
+     */
+    PatientUpdateBatch(PatientRepository repository)
+    {
+        this.repository = repository;
+    }
+
+    /**
+     * Returns the patient with the given identifier, loading it only the first time it is requested in this batch.
+     *
+     * @param id the identifier of a patient
+     * @return the shared patient instance, or {@code null} if no such patient exists
+     */
+    Patient get(String id)
+    {
+        Patient result = this.patients.get(id);
+        if (result == null) {
+            result = this.repository.get(id);
+            if (result != null) {
+                this.patients.put(id, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores new data in the patient document, and schedules it for saving, unless the serialized patient data is
+     * exactly the same after the update.
+     *
+     * @param patient the patient to update
+     * @param json the new patient data, in the format accepted by {@link Patient#updateFromJSON(JSONObject)}
+     * @return {@code true} if an update was scheduled, {@code false} if the patient data is unchanged
+     * @throws XWikiException if some of the data couldn't be stored in the patient document
+     */
+    boolean updateData(Patient patient, JSONObject json) throws XWikiException
+    {
+        if (!(patient instanceof PhenoTipsPatient)) {
+            // Other implementations can only update and save at once, when the batch is flushed
+            this.patients.put(patient.getId(), patient);
+            this.pendingData.put(patient.getId(), json);
+            return true;
+        }
+        PhenoTipsPatient document = (PhenoTipsPatient) patient;
+        // The output of the data controllers is compared, since the pedigree may use a different representation
+        JSONObject before = document.toJSON();
+        Collection<String> failed = document.readFromJSON(json);
+        if (!failed.isEmpty()) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_DOC, XWikiException.ERROR_XWIKI_UNKNOWN,
+                "Failed to update patient [" + patient.getId() + "] from the pedigree using " + failed);
+        }
+        if (before.similar(document.toJSON())) {
+            ++this.unchanged;
+            return false;
+        }
+        markModified(patient, DATA_COMMENT);
+        return true;
+    }
+
+    /**
+     * Marks the patient document as modified in memory, so that it will be saved when the batch is flushed.
+     *
+     * @param patient the modified patient
+     * @param comment the history comment to use if this is the only change to the patient
+     */
+    void markModified(Patient patient, String comment)
+    {
+        this.patients.put(patient.getId(), patient);
+        if (!this.pendingChanges.containsKey(patient.getId())) {
+            this.pendingChanges.put(patient.getId(), comment);
+        }
+    }
+
+    /**
+     * Writes all the modified patients, each one exactly once, stopping at the first failure.
+     *
+     * @param context the current request context
+     * @return the number of patient documents written
+     * @throws XWikiException if saving one of the patient documents fails
+     */
+    int flush(XWikiContext context) throws XWikiException
+    {
+        Set<String> modified = new LinkedHashSet<>(this.pendingData.keySet());
+        modified.addAll(this.pendingChanges.keySet());
+        for (String id : modified) {
+            Patient patient = this.patients.get(id);
+            JSONObject data = this.pendingData.get(id);
+            if (data != null) {
+                // Also saves the other changes made on the same document, such as the link to the family
+                patient.updateFromJSON(data);
+            } else {
+                context.getWiki().saveDocument(patient.getXDocument(), this.pendingChanges.get(id), context);
+            }
+        }
+        this.pendingData.clear();
+        this.pendingChanges.clear();
+        return modified.size();
+    }
+
+    /**
+     * Returns the number of patient updates skipped so far because they would not change anything.
+     *
+     * @return a positive number, or {@code 0}
+     */
+    int getUnchangedCount()
+    {
+        return this.unchanged;
+    }
+}
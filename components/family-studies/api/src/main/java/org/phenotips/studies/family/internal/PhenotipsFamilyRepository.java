@@ -47,8 +47,13 @@
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.User;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -113,6 +118,9 @@ public class PhenotipsFamilyRepository implements FamilyRepository
     @Named("current")
     private DocumentReferenceResolver<EntityReference> entityReferenceResolver;
 
+    /** Serializes changes to the same families and patients, while letting unrelated changes run in parallel. */
+    private final StripedLocks locks = new StripedLocks(StripedLocks.DEFAULT_STRIPES);
+
     @Override
     public Family createFamily(User creator)
     {
@@ -130,11 +138,18 @@ public Family createFamily(User creator)
     }
 
     @Override
-    public synchronized boolean deleteFamily(Family family, User updatingUser, boolean deleteAllMembers)
+    public boolean deleteFamily(Family family, User updatingUser, boolean deleteAllMembers)
     {
         if (!canDeleteFamily(family, updatingUser, deleteAllMembers, false)) {
             return false;
         }
+        try (StripedLocks.Handle lock = lockWithMembers(family, Collections.<String>emptyList())) {
+            return deleteFamilyDocument(family, updatingUser, deleteAllMembers);
+        }
+    }
+
+    private boolean deleteFamilyDocument(Family family, User updatingUser, boolean deleteAllMembers)
+    {
         if (deleteAllMembers) {
             for (Patient patient : family.getMembers()) {
                 if (!this.patientRepository.delete(patient)) {
@@ -164,14 +179,16 @@ public boolean forceRemoveAllMembers(Family family, User updatingUser)
         if (!this.authorizationService.hasAccess(updatingUser, Right.EDIT, family.getDocumentReference())) {
             return false;
         }
-        try {
+        try (StripedLocks.Handle lock = lockWithMembers(family, Collections.<String>emptyList())) {
+            PatientUpdateBatch batch = new PatientUpdateBatch(this.patientRepository);
             for (Patient patient : family.getMembers()) {
                 // remove the member without updating family document (use "batch mode")
                 // since we don't care about it as it will be removed anyway
-                this.removeMember(family, patient, updatingUser, true);
+                this.removeMember(family, patient, updatingUser, batch);
             }
+            batch.flush(this.provider.get());
             return true;
-        } catch (PTException ex) {
+        } catch (PTException | XWikiException ex) {
             this.logger.error("Failed to unlink all patients for the family [{}]: {}", family.getId(), ex.getMessage());
             return false;
         }
@@ -231,16 +248,20 @@ public Family getFamilyForPatient(Patient patient)
     }
 
     @Override
-    public synchronized void addMember(Family family, Patient patient, User updatingUser) throws PTException
+    public void addMember(Family family, Patient patient, User updatingUser) throws PTException
     {
-        this.addMember(family, patient, updatingUser, false);
+        try (StripedLocks.Handle lock = lock(family, patient)) {
+            this.addMember(family, patient, updatingUser, null);
+        }
     }
 
     /**
      * This method may be called either as a standalone invocation, or internally as part of family pedigree update. The
-     * latter invocation may add multiple patients (a "batch update")
+     * latter invocation may add multiple patients (a "batch update"), in which case the patient document is not saved
+     * right away, but registered in the batch, and the family document is not saved at all
      */
-    private void addMember(Family family, Patient patient, User updatingUser, boolean batchUpdate) throws PTException
+    private void addMember(Family family, Patient patient, User updatingUser, PatientUpdateBatch batch)
+        throws PTException
     {
         if (family == null) {
             throw new PTInvalidFamilyIdException(null);
@@ -248,7 +269,7 @@ private void addMember(Family family, Patient patient, User updatingUser, boolea
         if (patient == null) {
             throw new PTInvalidPatientIdException(null);
         }
-        if (!batchUpdate) {
+        if (batch == null) {
             // when called as part of a batch update all permissions have already been checked;
             // otherwise perform the check, which may throw some exceptiuon in case of problems
             this.checkIfPatientCanBeAddedToFamily(family, patient, updatingUser);
@@ -271,9 +292,7 @@ private void addMember(Family family, Patient patient, User updatingUser, boolea
         if (!this.setFamilyReference(patientDocument, family.getXDocument(), context)) {
             throw new PTInternalErrorException();
         }
-        if (!savePatientDocument(patientDocument, "added to family " + family.getId(), context)) {
-            throw new PTInternalErrorException();
-        }
+        savePatientDocument(patient, "added to family " + family.getId(), batch, context);
 
         // Add member to the list of family members
         members.add(patientLinkString(patient));
@@ -281,7 +300,7 @@ private void addMember(Family family, Patient patient, User updatingUser, boolea
         familyObject.set(PhenotipsFamily.FAMILY_MEMBERS_FIELD, members, context);
 
         // only save family document if this add() is not performed as a part of a batch update
-        if (!batchUpdate) {
+        if (batch == null) {
             // updating permisisons is an expensive operation which takes all patients into account,
             // so don't do it when doing a bulk add or remove, instead the calling code will do one
             // update at the end
@@ -294,12 +313,14 @@ private void addMember(Family family, Patient patient, User updatingUser, boolea
     }
 
     @Override
-    public synchronized void removeMember(Family family, Patient patient, User updatingUser) throws PTException
+    public void removeMember(Family family, Patient patient, User updatingUser) throws PTException
     {
-        this.removeMember(family, patient, updatingUser, false);
+        try (StripedLocks.Handle lock = lock(family, patient)) {
+            this.removeMember(family, patient, updatingUser, null);
+        }
     }
 
-    private void removeMember(Family family, Patient patient, User updatingUser, boolean batchUpdate)
+    private void removeMember(Family family, Patient patient, User updatingUser, PatientUpdateBatch batch)
         throws PTException
     {
         if (family == null) {
@@ -308,7 +329,7 @@ private void removeMember(Family family, Patient patient, User updatingUser, boo
         if (patient == null) {
             throw new PTInvalidPatientIdException(null);
         }
-        if (!batchUpdate) {
+        if (batch == null) {
             // when called as part of a batch update all permissions have already been checked;
             // otherwise perform the check, which may throw some exceptiuon in case of problems
             this.checkIfPatientCanBeRemovedFromFamily(family, patient, updatingUser);
@@ -332,9 +353,7 @@ private void removeMember(Family family, Patient patient, User updatingUser, boo
         if (!this.removeFamilyReference(patientDocument)) {
             throw new PTInternalErrorException();
         }
-        if (!savePatientDocument(patientDocument, "removed from family", context)) {
-            throw new PTInternalErrorException();
-        }
+        savePatientDocument(patient, "removed from family", batch, context);
 
         // Remove patient from the pedigree
         Pedigree pedigree = family.getPedigree();
@@ -352,7 +371,7 @@ private void removeMember(Family family, Patient patient, User updatingUser, boo
         BaseObject familyObject = family.getXDocument().getXObject(Family.CLASS_REFERENCE);
         familyObject.set(PhenotipsFamily.FAMILY_MEMBERS_FIELD, members, context);
 
-        if (!batchUpdate) {
+        if (batch == null) {
             this.updateFamilyPermissions(family, context, false);
 
             if (!saveFamilyDocument(family, "removed " + patientId + " from the family", context)) {
@@ -370,10 +389,12 @@ private String patientLinkString(Patient patient)
     }
 
     @Override
-    public synchronized void updateFamilyPermissions(Family family)
+    public void updateFamilyPermissions(Family family)
     {
-        XWikiContext context = this.provider.get();
-        this.updateFamilyPermissions(family, context, true);
+        try (StripedLocks.Handle lock = lock(family, Collections.<String>emptyList())) {
+            XWikiContext context = this.provider.get();
+            this.updateFamilyPermissions(family, context, true);
+        }
     }
 
     private void updateFamilyPermissions(Family family, XWikiContext context, boolean saveXwikiDocument)
@@ -472,24 +493,33 @@ private void checkIfPatientCanBeRemovedFromFamily(Family family, Patient patient
     }
 
     @Override
-    public synchronized void setPedigree(Family family, Pedigree pedigree, User updatingUser) throws PTException
+    public void setPedigree(Family family, Pedigree pedigree, User updatingUser) throws PTException
     {
-        // note: whenever available, internal versions of helper methods are used which modify the
-        // family document but do not save it to disk
-        List<String> oldMembers = family.getMembersIds();
-
         List<String> currentMembers = pedigree.extractIds();
+        try (StripedLocks.Handle lock = lockWithMembers(family, currentMembers)) {
+            // The old members are only read once all of them are locked, so that no concurrent change is overwritten
+            updatePedigree(family, pedigree, getMembersIds(family), currentMembers, updatingUser);
+        }
+    }
 
+    private void updatePedigree(Family family, Pedigree pedigree, List<String> oldMembers,
+        List<String> currentMembers, User updatingUser) throws PTException
+    {
+        // note: whenever available, internal versions of helper methods are used which modify the
+        // family document but do not save it to disk
         // Add new members to family
         List<String> patientsToAdd = new LinkedList<>();
         patientsToAdd.addAll(currentMembers);
         patientsToAdd.removeAll(oldMembers);
 
-        this.checkValidity(family, patientsToAdd, updatingUser);
+        // all the patient changes are collected and written only at the end, once per changed patient
+        PatientUpdateBatch batch = new PatientUpdateBatch(this.patientRepository);
+
+        this.checkValidity(family, patientsToAdd, updatingUser, batch);
 
         // update patient data from pedigree's JSON
-        // (no links to families are set at this point, only patient dat ais updated)
-        this.updatePatientsFromJson(pedigree, updatingUser);
+        // (no links to families are set at this point, only patient data is updated)
+        this.updatePatientsFromJson(pedigree, updatingUser, batch);
 
         boolean firstPedigree = (family.getPedigree() == null);
 
@@ -502,15 +532,15 @@ public synchronized void setPedigree(Family family, Pedigree pedigree, User upda
         patientsToRemove.addAll(oldMembers);
         patientsToRemove.removeAll(currentMembers);
         for (String patientId : patientsToRemove) {
-            Patient patient = this.patientRepository.get(patientId);
+            Patient patient = batch.get(patientId);
             // remove the memebr and update patient document, but don't write family document to disk yet
             // and don't update permisisons (that will be done once afdter all patients are added/removed)
-            this.removeMember(family, patient, updatingUser, true);
+            this.removeMember(family, patient, updatingUser, batch);
         }
 
         for (String patientId : patientsToAdd) {
-            Patient patient = this.patientRepository.get(patientId);
-            this.addMember(family, patient, updatingUser, true);
+            Patient patient = batch.get(patientId);
+            this.addMember(family, patient, updatingUser, batch);
         }
 
         if (firstPedigree && StringUtils.isEmpty(family.getExternalId())) {
@@ -522,6 +552,16 @@ public synchronized void setPedigree(Family family, Pedigree pedigree, User upda
             }
         }
 
+        try {
+            int saved = batch.flush(context);
+            this.logger.debug("Saved [{}] patients for the pedigree of family [{}], [{}] patients unchanged",
+                saved, family.getId(), batch.getUnchangedCount());
+        } catch (XWikiException ex) {
+            this.logger.error("Error saving patients for the pedigree of family [{}]: [{}]",
+                family.getId(), ex.getMessage());
+            throw new PTInternalErrorException();
+        }
+
         this.updateFamilyPermissions(family, context, false);
 
         if (!this.saveFamilyDocument(family, "Updated family from saved pedigree", context)) {
@@ -529,7 +569,8 @@ public synchronized void setPedigree(Family family, Pedigree pedigree, User upda
         }
     }
 
-    private void checkValidity(Family family, List<String> newMembers, User updatingUser) throws PTException
+    private void checkValidity(Family family, List<String> newMembers, User updatingUser, PatientUpdateBatch batch)
+        throws PTException
     {
         // Checks that current user has edit permissions on family
         if (!this.authorizationService.hasAccess(updatingUser, Right.EDIT, family.getDocumentReference())) {
@@ -544,13 +585,13 @@ private void checkValidity(Family family, List<String> newMembers, User updating
         // Check if every new member can be added to the family
         if (newMembers != null) {
             for (String patientId : newMembers) {
-                Patient patient = this.patientRepository.get(patientId);
+                Patient patient = batch.get(patientId);
                 checkIfPatientCanBeAddedToFamily(family, patient, updatingUser);
             }
         }
     }
 
-    private void updatePatientsFromJson(Pedigree pedigree, User updatingUser)
+    private void updatePatientsFromJson(Pedigree pedigree, User updatingUser, PatientUpdateBatch batch)
     {
         String idKey = "id";
         try {
@@ -558,16 +599,18 @@ private void updatePatientsFromJson(Pedigree pedigree, User updatingUser)
 
             for (JSONObject singlePatient : patientsJson) {
                 if (singlePatient.has(idKey)) {
-                    Patient patient = this.patientRepository.get(singlePatient.getString(idKey));
+                    Patient patient = batch.get(singlePatient.getString(idKey));
                     if (!this.authorizationService.hasAccess(
                             updatingUser, Right.EDIT, patient.getDocumentReference())) {
                         // skip patients the current user does not have edit rights for
                         continue;
                     }
-                    patient.updateFromJSON(singlePatient);
+                    // unchanged patients are skipped, the others are written when the batch is flushed
+                    batch.updateData(patient, singlePatient);
                 }
             }
         } catch (Exception ex) {
+            this.logger.error("Failed to update patients from the pedigree: {}", ex.getMessage());
             throw new PTInternalErrorException();
         }
     }
@@ -619,20 +662,23 @@ private void setFamilyExternalId(String externalId, Family family, XWikiContext
         familyObject.set("external_id", externalId, context);
     }
 
-    private boolean savePatientDocument(XWikiDocument patientDocument, String documentHistoryComment,
-        XWikiContext context)
+    private void savePatientDocument(Patient patient, String documentHistoryComment, PatientUpdateBatch batch,
+        XWikiContext context) throws PTInternalErrorException
     {
+        if (batch != null) {
+            batch.markModified(patient, documentHistoryComment);
+            return;
+        }
         try {
-            context.getWiki().saveDocument(patientDocument, documentHistoryComment, context);
+            context.getWiki().saveDocument(patient.getXDocument(), documentHistoryComment, context);
         } catch (XWikiException e) {
             this.logger.error("Error saving patient [{}] document for commit {}: [{}]",
-                patientDocument.getId(), documentHistoryComment, e.getMessage());
-            return false;
+                patient.getId(), documentHistoryComment, e.getMessage());
+            throw new PTInternalErrorException();
         }
-        return true;
     }
 
-    private synchronized boolean saveFamilyDocument(Family family, String documentHistoryComment, XWikiContext context)
+    private boolean saveFamilyDocument(Family family, String documentHistoryComment, XWikiContext context)
     {
         try {
             context.getWiki().saveDocument(family.getXDocument(), documentHistoryComment, context);
@@ -770,6 +816,56 @@ private long getLastUsedId() throws QueryException
         return crtMaxID;
     }
 
+    private StripedLocks.Handle lock(Family family, Patient patient)
+    {
+        return lock(family, Collections.singletonList(patient == null ? null : patient.getId()));
+    }
+
+    /**
+     * Locks a family and some patients, all at once, so that concurrent changes to the same records are serialized.
+     * Waiting for other changes to finish is logged, and {@link StripedLocks} keeps counting the time spent waiting.
+     */
+    private StripedLocks.Handle lock(Family family, Collection<String> patientIds)
+    {
+        List<String> ids = new ArrayList<>(patientIds);
+        if (family != null) {
+            ids.add(family.getId());
+        }
+        StripedLocks.Handle result = this.locks.lock(ids);
+        if (result.getWaitMillis() > 0) {
+            this.logger.debug("Waited {}ms for concurrent changes to [{}] to finish; {} out of {} changes waited, "
+                + "for {}ms in total", result.getWaitMillis(), ids, this.locks.getContendedAcquisitions(),
+                this.locks.getAcquisitions(), this.locks.getTotalWaitMillis());
+        }
+        return result;
+    }
+
+    /**
+     * Locks a family, all its members, and some other patients. The members are only known for sure once the family is
+     * locked, since a concurrent change may add new members while waiting for the locks; in that case, the locks are
+     * released and acquired again, including the new members, until all the current members are covered.
+     */
+    private StripedLocks.Handle lockWithMembers(Family family, Collection<String> otherPatientIds)
+    {
+        Set<String> ids = new HashSet<>(otherPatientIds);
+        ids.addAll(getMembersIds(family));
+        while (true) {
+            StripedLocks.Handle result = lock(family, ids);
+            List<String> members = getMembersIds(family);
+            if (ids.containsAll(members)) {
+                return result;
+            }
+            result.close();
+            ids.addAll(members);
+        }
+    }
+
+    private List<String> getMembersIds(Family family)
+    {
+        List<String> result = family.getMembersIds();
+        return result == null ? Collections.<String>emptyList() : result;
+    }
+
     private XWikiDocument getDocument(EntityReference docRef) throws XWikiException
     {
         XWikiContext context = this.provider.get();
@@ -0,0 +1,234 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.security.authorization.AuthorizationService;
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.FamilyIndex;
+import org.phenotips.vocabulary.SolrCoreContainerHandler;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.users.User;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.slf4j.Logger;
+
+/**
+ * Indexes families and their members in a local Solr core, so that the family picker can find families by a partial
+ * identifier or name without scanning the database. Each family is indexed as one document, and each of its members as
+ * another document pointing to the family. Access rights are not indexed, since they may come from many places; the
+ * matched records are checked in bulk with the {@link AuthorizationService}, one page of results at a time, until
+ * enough accessible records are found.
+ * <p>
+ * Until the index has been completely built, as signaled by a marker document committed along with the last indexed
+ * family, searches are not answered, and a full reindex is started in the background.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Singleton
+public class SolrFamilyIndex implements FamilyIndex, Initializable
+{
+    private static final String CORE_NAME = "families";
+
+    /** How long may changes wait before becoming visible in searches, in milliseconds. */
+    private static final int COMMIT_WITHIN = 1000;
+
+    /** The minimum number of records fetched at once while searching, since some of them may not be accessible. */
+    private static final int MIN_PAGE_SIZE = 50;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private SolrCoreContainerHandler cores;
+
+    @Inject
+    private FamilyIndexDocumentBuilder documentBuilder;
+
+    @Inject
+    private FamilyReindexer reindexer;
+
+    @Inject
+    private AuthorizationService authorizationService;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    /** The Solr server instance used. */
+    private SolrClient server;
+
+    /** Whether the index holds all the families, and can answer searches. */
+    private volatile boolean ready;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.server = new EmbeddedSolrServer(this.cores.getContainer(), CORE_NAME);
+    }
+
+    @Override
+    public void index(Family family)
+    {
+        try {
+            this.server.deleteByQuery(getFamilyQuery(family.getDocumentReference()), COMMIT_WITHIN);
+            this.server.add(this.documentBuilder.build(family), COMMIT_WITHIN);
+        } catch (SolrServerException | SolrException ex) {
+            this.logger.warn("Failed to index family [{}]: {}", family.getId(), ex.getMessage());
+        } catch (IOException ex) {
+            this.logger.warn("Error occurred while indexing family [{}]: {}", family.getId(), ex.getMessage());
+        }
+    }
+
+    @Override
+    public void delete(DocumentReference family)
+    {
+        try {
+            this.server.deleteByQuery(getFamilyQuery(family), COMMIT_WITHIN);
+        } catch (SolrServerException | SolrException ex) {
+            this.logger.warn("Failed to delete family [{}] from the index: {}", family, ex.getMessage());
+        } catch (IOException ex) {
+            this.logger.warn("Error occurred while deleting family [{}] from the index: {}", family, ex.getMessage());
+        }
+    }
+
+    @Override
+    public void reindex()
+    {
+        this.ready = false;
+        this.ready = this.reindexer.reindex(this.server);
+    }
+
+    @Override
+    public Map<DocumentReference, DocumentReference> search(String input, boolean includeNames, User user,
+        Right right, int limit)
+    {
+        if (!isReady()) {
+            return null;
+        }
+        SolrQuery query = new SolrQuery(FamilyIndexQueries.getTextQuery(input, includeNames));
+        query.addFilterQuery(FamilyIndexQueries.RECORDS_FILTER);
+        query.setFields(FamilyIndexQueries.DOCUMENT_FIELD, FamilyIndexQueries.FAMILY_FIELD);
+        query.addSort(FamilyIndexQueries.TYPE_FIELD, SolrQuery.ORDER.asc);
+        query.addSort("score", SolrQuery.ORDER.desc);
+        query.addSort(FamilyIndexQueries.DOCUMENT_FIELD, SolrQuery.ORDER.asc);
+        int pageSize = Math.max(limit, MIN_PAGE_SIZE);
+        query.setRows(pageSize);
+        Map<DocumentReference, DocumentReference> result = new LinkedHashMap<>();
+        try {
+            // Fetch more pages until enough accessible records are found, or all the matches were checked
+            for (int start = 0; result.size() < limit; start += pageSize) {
+                query.setStart(start);
+                SolrDocumentList hits = this.server.query(query).getResults();
+                addAccessible(hits, user, right, limit, result);
+                if (start + pageSize >= hits.getNumFound()) {
+                    break;
+                }
+            }
+            return result;
+        } catch (SolrServerException | SolrException ex) {
+            this.logger.warn("Failed to search families: {}", ex.getMessage());
+        } catch (IOException ex) {
+            this.logger.warn("Error occurred while searching families: {}", ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Checks access on one page of matched records at once, and adds the accessible ones to the result, in order.
+     *
+     * @param hits the page of matched records
+     * @param user the user performing the search
+     * @param right the right to check
+     * @param limit the maximum number of records to return
+     * @param result the accessible records found so far, where the new ones are added
+     */
+    private void addAccessible(SolrDocumentList hits, User user, Right right, int limit,
+        Map<DocumentReference, DocumentReference> result)
+    {
+        Map<DocumentReference, DocumentReference> page = new LinkedHashMap<>();
+        for (SolrDocument hit : hits) {
+            page.put(this.referenceResolver.resolve((String) hit.getFieldValue(FamilyIndexQueries.DOCUMENT_FIELD)),
+                this.referenceResolver.resolve((String) hit.getFieldValue(FamilyIndexQueries.FAMILY_FIELD)));
+        }
+        for (DocumentReference reference : this.authorizationService.filterAccessible(user, right,
+            new ArrayList<>(page.keySet()))) {
+            if (result.size() >= limit) {
+                break;
+            }
+            result.put(reference, page.get(reference));
+        }
+    }
+
+    /**
+     * Checks if the index has been completely built. If not, and no reindex is running, a reindex is started in the
+     * background. While a reindex runs, the index may only be partially built, so it isn't used.
+     *
+     * @return {@code true} if the index can be used for searching
+     */
+    private boolean isReady()
+    {
+        if (this.reindexer.isReindexing()) {
+            return false;
+        }
+        if (this.ready) {
+            return true;
+        }
+        try {
+            SolrQuery query = new SolrQuery(FamilyIndexQueries.MARKER_QUERY);
+            query.setRows(0);
+            if (this.server.query(query).getResults().getNumFound() > 0) {
+                this.ready = true;
+                return true;
+            }
+        } catch (SolrServerException | SolrException | IOException ex) {
+            this.logger.debug("The family index is not available: {}", ex.getMessage());
+            return false;
+        }
+        this.reindexer.reindexInBackground(this.server);
+        return false;
+    }
+
+    private String getFamilyQuery(DocumentReference family)
+    {
+        return FamilyIndexQueries.getFamilyQuery(this.documentBuilder.getFamilyReference(family));
+    }
+}
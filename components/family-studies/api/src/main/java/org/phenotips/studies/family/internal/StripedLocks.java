@@ -0,0 +1,193 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of reentrant locks shared by all the family and patient records, so that operations on unrelated records
+ * can run in parallel, while operations touching the same records are serialized. Each record identifier is mapped to
+ * one of the stripes, and all the stripes needed by an operation are acquired at once, always in ascending order, which
+ * prevents deadlocks between operations touching overlapping sets of records.
+ * <p>
+ * Locks are reentrant, so a thread already holding some records may lock any of them again. Locking other records
+ * while already holding some bypasses the ordering, and must be avoided.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class StripedLocks
+{
+    /** The default number of stripes, large enough to make collisions between concurrent edits unlikely. */
+    static final int DEFAULT_STRIPES = 64;
+
+    private final ReentrantLock[] stripes;
+
+    private final LongAdder acquisitions = new LongAdder();
+
+    private final LongAdder contendedAcquisitions = new LongAdder();
+
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * Simple constructor.
+     *
+     * @param count the number of stripes to use
+     */
+    StripedLocks(int count)
+    {
+        this.stripes = new ReentrantLock[count];
+        for (int i = 0; i < count; ++i) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Locks all the specified records, waiting as long as needed.
+     *
+     * @param ids the identifiers of the records to lock; {@code null} items are ignored
+     * @return a handle which must be {@link Handle#close() closed} to release the locks
+     */
+    Handle lock(Collection<String> ids)
+    {
+        BitSet needed = new BitSet(this.stripes.length);
+        for (String id : ids) {
+            if (id != null) {
+                needed.set(getStripe(id));
+            }
+        }
+        Handle result = new Handle(needed);
+        for (int i = needed.nextSetBit(0); i >= 0; i = needed.nextSetBit(i + 1)) {
+            ReentrantLock lock = this.stripes[i];
+            if (!lock.tryLock()) {
+                result.contended = true;
+                long start = System.nanoTime();
+                lock.lock();
+                result.waitNanos += System.nanoTime() - start;
+            }
+        }
+        this.acquisitions.increment();
+        if (result.contended) {
+            this.contendedAcquisitions.increment();
+            this.waitNanos.add(result.waitNanos);
+        }
+        return result;
+    }
+
+    /**
+     * The stripe used for a record.
+     *
+     * @param id the identifier of the record
+     * @return the index of the stripe
+     */
+    int getStripe(String id)
+    {
+        return (id.hashCode() & Integer.MAX_VALUE) % this.stripes.length;
+    }
+
+    /**
+     * Checks if some threads are waiting to lock the stripe used for a record.
+     *
+     * @param id the identifier of the record
+     * @return {@code true} if at least one thread is waiting, {@code false} otherwise
+     */
+    boolean hasQueuedThreads(String id)
+    {
+        return this.stripes[getStripe(id)].hasQueuedThreads();
+    }
+
+    /**
+     * The number of {@link #lock} calls so far.
+     *
+     * @return a positive number
+     */
+    long getAcquisitions()
+    {
+        return this.acquisitions.sum();
+    }
+
+    /**
+     * The number of {@link #lock} calls which had to wait for other threads to release some of the records.
+     *
+     * @return a positive number, at most {@link #getAcquisitions()}
+     */
+    long getContendedAcquisitions()
+    {
+        return this.contendedAcquisitions.sum();
+    }
+
+    /**
+     * The total time spent waiting for locks.
+     *
+     * @return a number of milliseconds
+     */
+    long getTotalWaitMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.waitNanos.sum());
+    }
+
+    /** Holds the stripes acquired by one {@link StripedLocks#lock} call, until closed. */
+    final class Handle implements AutoCloseable
+    {
+        private final BitSet held;
+
+        private boolean contended;
+
+        private long waitNanos;
+
+        private Handle(BitSet held)
+        {
+            this.held = held;
+        }
+
+        /**
+         * How long the {@link StripedLocks#lock} call had to wait for other threads.
+         *
+         * @return a number of milliseconds
+         */
+        long getWaitMillis()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(this.waitNanos);
+        }
+
+        /**
+         * How long the {@link StripedLocks#lock} call had to wait for other threads.
+         *
+         * @return a number of nanoseconds
+         */
+        long getWaitNanos()
+        {
+            return this.waitNanos;
+        }
+
+        @Override
+        public void close()
+        {
+            // Release in the reverse order
+            for (int i = this.held.previousSetBit(this.held.length() - 1); i >= 0;
+                i = this.held.previousSetBit(i - 1)) {
+                StripedLocks.this.stripes[i].unlock();
+            }
+        }
+    }
+}
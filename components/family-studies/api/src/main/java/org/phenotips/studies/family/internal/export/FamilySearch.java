@@ -0,0 +1,243 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal.export;
+
+import org.phenotips.configuration.RecordConfigurationManager;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.security.authorization.AuthorizationService;
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.FamilyIndex;
+import org.phenotips.studies.family.FamilyRepository;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.users.UserManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Finds the families, and the patients members of a family, matching the text typed in the family picker. The
+ * {@link FamilyIndex family index} is used if available, otherwise the database is queried.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { FamilySearch.class })
+@Singleton
+public class FamilySearch
+{
+    private static final String FIRST_NAME = "first_name";
+
+    private static final String INPUT_PARAMETER = "input";
+
+    private static final String INPUT_FORMAT = "%%%s%%";
+
+    /** Runs queries for finding families. */
+    @Inject
+    private QueryManager qm;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private FamilyRepository familyRepository;
+
+    @Inject
+    private PatientRepository patientRepository;
+
+    @Inject
+    private AuthorizationService authorizationService;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    @Inject
+    private UserManager userManager;
+
+    @Inject
+    private RecordConfigurationManager configuration;
+
+    @Inject
+    private FamilyIndex familyIndex;
+
+    /**
+     * Finds the families, and the patients members of a family, on which the current user has the required right.
+     *
+     * @param input criterion to select families by
+     * @param resultsLimit maximal number of results for each query
+     * @param requiredPermissions permissions a user has to have over each family in the result
+     * @return the matched families and patients, families first
+     */
+    public Set<FamilySearchResult> search(String input, int resultsLimit, String requiredPermissions)
+    {
+        Set<FamilySearchResult> results = new LinkedHashSet<>();
+        if (!searchIndex(input, requiredPermissions, resultsLimit, results)) {
+            // The index is not available yet, fall back to querying the database
+            queryFamilies(input, requiredPermissions, resultsLimit, results);
+            queryPatients(input, requiredPermissions, resultsLimit, results);
+        }
+        return results;
+    }
+
+    private boolean searchIndex(String input, String requiredPermissions, int resultsLimit,
+        Set<FamilySearchResult> results)
+    {
+        boolean usePatientName = isPatientNameUsed();
+        // Access rights were already checked by the index
+        Map<DocumentReference, DocumentReference> hits = this.familyIndex.search(input, usePatientName,
+            this.userManager.getCurrentUser(), Right.toRight(requiredPermissions), resultsLimit);
+        if (hits == null) {
+            return false;
+        }
+
+        for (Map.Entry<DocumentReference, DocumentReference> hit : hits.entrySet()) {
+            Family family = this.familyRepository.getFamilyById(hit.getValue().getName());
+            if (family == null) {
+                continue;
+            }
+            if (hit.getKey().equals(family.getDocumentReference())) {
+                results.add(new FamilySearchResult(family, requiredPermissions));
+            } else {
+                Patient patient = this.patientRepository.get(hit.getKey());
+                if (patient != null) {
+                    results.add(new FamilySearchResult(patient, usePatientName, family, requiredPermissions));
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isPatientNameUsed()
+    {
+        return this.configuration.getActiveConfiguration().getEnabledFieldNames().contains(FIRST_NAME);
+    }
+
+    private void queryFamilies(String input, String requiredPermissions, int resultsLimit,
+        Set<FamilySearchResult> results)
+    {
+        StringBuilder querySb = new StringBuilder();
+        querySb.append("select doc.name ");
+        querySb.append(" from  Document doc, ");
+        querySb.append("       doc.object(PhenoTips.FamilyClass) as family ");
+        querySb.append(" where lower(doc.name) like :").append(FamilySearch.INPUT_PARAMETER);
+        querySb.append(" or lower(family.external_id) like :").append(FamilySearch.INPUT_PARAMETER);
+
+        List<String> queryResults = runQuery(querySb.toString(), input, resultsLimit);
+
+        // Process family query results
+        for (DocumentReference reference : filterAccessible(queryResults, Family.DATA_SPACE, requiredPermissions)) {
+            Family family = this.familyRepository.getFamilyById(reference.getName());
+            if (family == null) {
+                continue;
+            }
+
+            results.add(new FamilySearchResult(family, requiredPermissions));
+        }
+    }
+
+    private void queryPatients(String input, String requiredPermissions, int resultsLimit,
+        Set<FamilySearchResult> results)
+    {
+        StringBuilder querySb = new StringBuilder();
+        querySb.append("from doc.object(PhenoTips.PatientClass) as patient, ");
+        querySb.append(" doc.object(PhenoTips.FamilyReferenceClass) as familyref ");
+        querySb.append("  where lower(doc.name) like :").append(FamilySearch.INPUT_PARAMETER);
+        querySb.append(" or lower(patient.external_id) like :").append(FamilySearch.INPUT_PARAMETER);
+
+        boolean usePatientName = isPatientNameUsed();
+        if (usePatientName) {
+            querySb.append(" or lower(patient.first_name) like :").append(FamilySearch.INPUT_PARAMETER);
+            querySb.append(" or lower(patient.last_name) like :").append(FamilySearch.INPUT_PARAMETER);
+        }
+
+        List<String> queryResults = runQuery(querySb.toString(), input, resultsLimit);
+
+        // Process family query results
+        for (DocumentReference reference : filterAccessible(queryResults, Patient.DEFAULT_DATA_SPACE,
+            requiredPermissions)) {
+            Patient patient = this.patientRepository.get(reference);
+            if (patient == null) {
+                continue;
+            }
+
+            Family family = this.familyRepository.getFamilyForPatient(patient);
+            if (family == null) {
+                continue;
+            }
+
+            results.add(new FamilySearchResult(patient, usePatientName, family, requiredPermissions));
+        }
+    }
+
+    /**
+     * Checks access rights on all the documents found by a query at once, so that inaccessible records aren't loaded.
+     *
+     * @param names the names of the documents found
+     * @param space the space where the documents are expected to be, if not specified in their names
+     * @param requiredPermissions the right to check
+     * @return references to the documents on which the current user has the required right
+     */
+    private List<DocumentReference> filterAccessible(List<String> names, EntityReference space,
+        String requiredPermissions)
+    {
+        List<DocumentReference> references = new ArrayList<>(names.size());
+        for (String name : names) {
+            references.add(this.referenceResolver.resolve(name, space));
+        }
+        return this.authorizationService.filterAccessible(this.userManager.getCurrentUser(),
+            Right.toRight(requiredPermissions), references);
+    }
+
+    private List<String> runQuery(String queryString, String input, int resultsLimit)
+    {
+        String formattedInput = String.format(FamilySearch.INPUT_FORMAT, input);
+
+        // Query patients
+        Query query = null;
+        List<String> queryResults = null;
+        try {
+            query = this.qm.createQuery(queryString, Query.XWQL);
+            query.setLimit(resultsLimit);
+            query.bindValue(FamilySearch.INPUT_PARAMETER, formattedInput);
+            queryResults = query.execute();
+        } catch (QueryException e) {
+            this.logger.error("Error while performing patiets query: [{}] ", e.getMessage());
+            return Collections.emptyList();
+        }
+        return queryResults;
+    }
+}
@@ -17,28 +17,19 @@
  */
 package org.phenotips.studies.family.internal.export;
 
-import org.phenotips.configuration.RecordConfigurationManager;
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientData;
-import org.phenotips.data.PatientRepository;
 import org.phenotips.security.authorization.AuthorizationService;
 import org.phenotips.studies.family.Family;
-import org.phenotips.studies.family.FamilyRepository;
 
 import org.xwiki.component.annotation.Component;
-import org.xwiki.query.Query;
-import org.xwiki.query.QueryException;
-import org.xwiki.query.QueryManager;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.User;
 import org.xwiki.users.UserManager;
 import org.xwiki.xml.XMLUtils;
 
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -49,7 +40,6 @@
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
-import org.slf4j.Logger;
 
 import com.xpn.xwiki.XWikiContext;
 
@@ -78,10 +68,6 @@
 
     private static final String ID = "id";
 
-    private static final String INPUT_PARAMETER = "input";
-
-    private static final String INPUT_FORMAT = "%%%s%%";
-
     private static final String FAMILY_ID = ID;
 
     private static final String FAMILY_EXTERNAL_ID = "externalId";
@@ -90,19 +76,6 @@
 
     private static final String FAMILY_MEMBERS = "familyMembers";
 
-    /** Runs queries for finding families. */
-    @Inject
-    private QueryManager qm;
-
-    @Inject
-    private Logger logger;
-
-    @Inject
-    private FamilyRepository familyRepository;
-
-    @Inject
-    private PatientRepository patientRepository;
-
     @Inject
     private AuthorizationService authorizationService;
 
@@ -110,7 +83,7 @@
     private UserManager userManager;
 
     @Inject
-    private RecordConfigurationManager configuration;
+    private FamilySearch familySearch;
 
     @Inject
     private Provider<XWikiContext> provider;
@@ -127,9 +100,7 @@
      */
     public String searchFamilies(String input, int resultsLimit, String requiredPermissions, boolean returnAsJSON)
     {
-        Set<FamilySearchResult> results = new LinkedHashSet<>();
-        queryFamilies(input, requiredPermissions, resultsLimit, results);
-        queryPatients(input, requiredPermissions, resultsLimit, results);
+        Set<FamilySearchResult> results = this.familySearch.search(input, resultsLimit, requiredPermissions);
         return formatResults(results, resultsLimit, returnAsJSON);
     }
 
@@ -189,94 +160,6 @@ private JSONObject getPatientInformationAsJSON(Patient patient)
         return patientJSON;
     }
 
-    private void queryFamilies(String input, String requiredPermissions, int resultsLimit,
-        Set<FamilySearchResult> results)
-    {
-        StringBuilder querySb = new StringBuilder();
-        querySb.append("select doc.name ");
-        querySb.append(" from  Document doc, ");
-        querySb.append("       doc.object(PhenoTips.FamilyClass) as family ");
-        querySb.append(" where lower(doc.name) like :").append(PhenotipsFamilyExport.INPUT_PARAMETER);
-        querySb.append(" or lower(family.external_id) like :").append(PhenotipsFamilyExport.INPUT_PARAMETER);
-
-        List<String> queryResults = runQuery(querySb.toString(), input, resultsLimit);
-
-        // Process family query results
-        for (String queryResult : queryResults) {
-            Family family = this.familyRepository.getFamilyById(queryResult);
-            if (family == null) {
-                continue;
-            }
-
-            Right right = Right.toRight(requiredPermissions);
-            if (!this.authorizationService.hasAccess(
-                this.userManager.getCurrentUser(), right, family.getDocumentReference())) {
-                continue;
-            }
-
-            results.add(new FamilySearchResult(family, requiredPermissions));
-        }
-    }
-
-    private void queryPatients(String input, String requiredPermissions, int resultsLimit,
-        Set<FamilySearchResult> results)
-    {
-        StringBuilder querySb = new StringBuilder();
-        querySb.append("from doc.object(PhenoTips.PatientClass) as patient, ");
-        querySb.append(" doc.object(PhenoTips.FamilyReferenceClass) as familyref ");
-        querySb.append("  where lower(doc.name) like :").append(PhenotipsFamilyExport.INPUT_PARAMETER);
-        querySb.append(" or lower(patient.external_id) like :").append(PhenotipsFamilyExport.INPUT_PARAMETER);
-
-        boolean usePatientName = this.configuration.getActiveConfiguration().getEnabledFieldNames()
-            .contains(FIRST_NAME);
-        if (usePatientName) {
-            querySb.append(" or lower(patient.first_name) like :").append(PhenotipsFamilyExport.INPUT_PARAMETER);
-            querySb.append(" or lower(patient.last_name) like :").append(PhenotipsFamilyExport.INPUT_PARAMETER);
-        }
-
-        List<String> queryResults = runQuery(querySb.toString(), input, resultsLimit);
-
-        // Process family query results
-        for (String queryResult : queryResults) {
-            Patient patient = this.patientRepository.get(queryResult);
-            if (patient == null) {
-                continue;
-            }
-
-            Right right = Right.toRight(requiredPermissions);
-            if (!this.authorizationService.hasAccess(this.userManager.getCurrentUser(), right,
-                patient.getDocumentReference())) {
-                continue;
-            }
-
-            Family family = this.familyRepository.getFamilyForPatient(patient);
-            if (family == null) {
-                continue;
-            }
-
-            results.add(new FamilySearchResult(patient, usePatientName, family, requiredPermissions));
-        }
-    }
-
-    private List<String> runQuery(String queryString, String input, int resultsLimit)
-    {
-        String formattedInput = String.format(PhenotipsFamilyExport.INPUT_FORMAT, input);
-
-        // Query patients
-        Query query = null;
-        List<String> queryResults = null;
-        try {
-            query = this.qm.createQuery(queryString, Query.XWQL);
-            query.setLimit(resultsLimit);
-            query.bindValue(PhenotipsFamilyExport.INPUT_PARAMETER, formattedInput);
-            queryResults = query.execute();
-        } catch (QueryException e) {
-            this.logger.error("Error while performing patiets query: [{}] ", e.getMessage());
-            return Collections.emptyList();
-        }
-        return queryResults;
-    }
-
     private String formatResults(Set<FamilySearchResult> results, int resultsLimit, boolean returnAsJSON)
     {
         JSONArray familyArray = null;
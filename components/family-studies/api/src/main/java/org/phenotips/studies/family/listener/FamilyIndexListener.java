@@ -0,0 +1,125 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.listener;
+
+import org.phenotips.data.Patient;
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.FamilyIndex;
+import org.phenotips.studies.family.FamilyRepository;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keeps the {@link FamilyIndex family index} up to date: families are reindexed whenever they are saved, and whenever
+ * the searchable data of one of their members changes.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("family-studies-index-listener")
+@Singleton
+public class FamilyIndexListener extends AbstractEventListener
+{
+    private static final String[] INDEXED_PATIENT_FIELDS = { "external_id", "first_name", "last_name" };
+
+    @Inject
+    private FamilyIndex index;
+
+    @Inject
+    private FamilyRepository familyRepository;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public FamilyIndexListener()
+    {
+        super("family-studies-index-listener", new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+            new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument document = (XWikiDocument) source;
+        if (document == null) {
+            return;
+        }
+        XWikiDocument original = document.getOriginalDocument();
+
+        if (event instanceof DocumentDeletedEvent) {
+            if (original != null && original.getXObject(Family.CLASS_REFERENCE) != null) {
+                this.index.delete(document.getDocumentReference());
+            }
+        } else if (document.getXObject(Family.CLASS_REFERENCE) != null) {
+            indexFamily(document.getDocumentReference().getName());
+        } else if (document.getXObject(Patient.CLASS_REFERENCE) != null && isIndexedDataChanged(document, original)) {
+            // Changes to the family membership also update the family document, only the member data matters here
+            String familyReference = getFamilyReference(document);
+            if (StringUtils.isNotBlank(familyReference)) {
+                indexFamily(this.referenceResolver.resolve(familyReference, Family.DATA_SPACE).getName());
+            }
+        }
+    }
+
+    private void indexFamily(String familyId)
+    {
+        Family family = this.familyRepository.getFamilyById(familyId);
+        if (family != null) {
+            this.index.index(family);
+        }
+    }
+
+    private boolean isIndexedDataChanged(XWikiDocument document, XWikiDocument original)
+    {
+        BaseObject current = document.getXObject(Patient.CLASS_REFERENCE);
+        BaseObject previous = original == null ? null : original.getXObject(Patient.CLASS_REFERENCE);
+        if (previous == null) {
+            return true;
+        }
+        for (String field : INDEXED_PATIENT_FIELDS) {
+            if (!StringUtils.equals(current.getStringValue(field), previous.getStringValue(field))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getFamilyReference(XWikiDocument document)
+    {
+        BaseObject familyReference = document.getXObject(Family.REFERENCE_CLASS_REFERENCE);
+        return familyReference == null ? null : familyReference.getStringValue("reference");
+    }
+}
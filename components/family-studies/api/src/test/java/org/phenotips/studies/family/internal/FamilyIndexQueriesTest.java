@@ -0,0 +1,73 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link FamilyIndexQueries} query builders.
+ *
+ * @version $Id$
+ */
+public class FamilyIndexQueriesTest
+{
+    @Test
+    public void emptyInputMatchesAllDocuments()
+    {
+        Assert.assertEquals("*:*", FamilyIndexQueries.getTextQuery(null, true));
+        Assert.assertEquals("*:*", FamilyIndexQueries.getTextQuery(" \t ", false));
+    }
+
+    @Test
+    public void eachWordMustMatchAnIdentifier()
+    {
+        Assert.assertEquals("(identifier:fam OR external_id:fam) AND (identifier:12 OR external_id:12)",
+            FamilyIndexQueries.getTextQuery(" fam  12 ", false));
+    }
+
+    @Test
+    public void namesAreSearchedWhenRequested()
+    {
+        Assert.assertEquals("(identifier:smith OR external_id:smith OR name:smith)",
+            FamilyIndexQueries.getTextQuery("smith", true));
+    }
+
+    @Test
+    public void specialCharactersAreEscaped()
+    {
+        Assert.assertEquals("(identifier:a\\:b\\* OR external_id:a\\:b\\*)",
+            FamilyIndexQueries.getTextQuery("a:b*", false));
+    }
+
+    @Test
+    public void longWordsAreTruncatedToTheMaximumGramSize()
+    {
+        String word = "abcdefghijklmnopqrstuvwxyz0123456789";
+        String term = word.substring(0, FamilyIndexQueries.MAX_GRAM_SIZE);
+        Assert.assertEquals("(identifier:" + term + " OR external_id:" + term + ')',
+            FamilyIndexQueries.getTextQuery(word, false));
+    }
+
+    @Test
+    public void familyQueryMatchesTheEscapedReference()
+    {
+        Assert.assertEquals("family:xwiki\\:Families.FAM0000001",
+            FamilyIndexQueries.getFamilyQuery("xwiki:Families.FAM0000001"));
+    }
+}
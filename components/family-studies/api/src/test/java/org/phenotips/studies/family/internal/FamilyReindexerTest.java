@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.FamilyRepository;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link FamilyReindexer}.
+ *
+ * @version $Id$
+ */
+public class FamilyReindexerTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<FamilyReindexer> mocker =
+        new MockitoComponentMockingRule<>(FamilyReindexer.class);
+
+    private final SolrClient server = mock(SolrClient.class);
+
+    private final SolrInputDocument marker = new SolrInputDocument();
+
+    private FamilyReindexer reindexer;
+
+    private Query query;
+
+    private List<SolrInputDocument> documents;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.reindexer = this.mocker.getComponentUnderTest();
+
+        this.query = mock(Query.class);
+        QueryManager qm = this.mocker.getInstance(QueryManager.class);
+        when(qm.createQuery(anyString(), anyString())).thenReturn(this.query);
+        when(this.query.<String>execute()).thenReturn(Collections.singletonList("Families.FAM0000001"));
+
+        DocumentReferenceResolver<String> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        when(resolver.resolve("Families.FAM0000001", Family.DATA_SPACE))
+            .thenReturn(new DocumentReference("xwiki", "Families", "FAM0000001"));
+        Family family = mock(Family.class);
+        FamilyRepository repository = this.mocker.getInstance(FamilyRepository.class);
+        when(repository.getFamilyById("FAM0000001")).thenReturn(family);
+
+        FamilyIndexDocumentBuilder builder = this.mocker.getInstance(FamilyIndexDocumentBuilder.class);
+        this.documents = Arrays.asList(new SolrInputDocument(), new SolrInputDocument());
+        when(builder.build(family)).thenReturn(this.documents);
+        when(builder.buildMarker()).thenReturn(this.marker);
+    }
+
+    @Test
+    public void reindexReplacesTheContentAndCommitsItWithTheMarker() throws Exception
+    {
+        Assert.assertTrue(this.reindexer.reindex(this.server));
+
+        InOrder order = inOrder(this.server);
+        order.verify(this.server).deleteByQuery("*:*");
+        order.verify(this.server).add(this.documents);
+        order.verify(this.server).add(this.marker);
+        order.verify(this.server).commit();
+        verify(this.server, never()).rollback();
+        Assert.assertFalse(this.reindexer.isReindexing());
+    }
+
+    @Test
+    public void failedReindexIsRolledBack() throws Exception
+    {
+        when(this.server.add(anyCollectionOf(SolrInputDocument.class))).thenThrow(new SolrServerException("full"));
+
+        Assert.assertFalse(this.reindexer.reindex(this.server));
+
+        verify(this.server).deleteByQuery("*:*");
+        verify(this.server, never()).add(this.marker);
+        verify(this.server, never()).commit();
+        verify(this.server).rollback();
+        Assert.assertFalse(this.reindexer.isReindexing());
+    }
+
+    @Test
+    public void failedCommitIsRolledBack() throws Exception
+    {
+        when(this.server.commit()).thenThrow(new SolrServerException("failed"));
+
+        Assert.assertFalse(this.reindexer.reindex(this.server));
+
+        verify(this.server).rollback();
+    }
+
+    @Test
+    public void failedFamiliesQueryLeavesTheIndexUntouched() throws Exception
+    {
+        when(this.query.<String>execute()).thenThrow(new QueryException("failed", this.query, null));
+
+        Assert.assertFalse(this.reindexer.reindex(this.server));
+
+        verify(this.server, never()).deleteByQuery(anyString());
+        verify(this.server, never()).add(any(SolrInputDocument.class));
+        verify(this.server, never()).rollback();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.internal.PhenoTipsPatient;
+
+import java.util.Collections;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link PatientUpdateBatch}.
+ *
+ * @version $Id$
+ */
+public class PatientUpdateBatchTest
+{
+    private static final String ID = "P0000001";
+
+    @Mock
+    private PatientRepository repository;
+
+    @Mock
+    private PhenoTipsPatient patient;
+
+    @Mock
+    private XWikiDocument document;
+
+    @Mock
+    private XWikiContext context;
+
+    @Mock
+    private XWiki xwiki;
+
+    private PatientUpdateBatch batch;
+
+    @Before
+    public void setUp()
+    {
+        MockitoAnnotations.initMocks(this);
+        when(this.repository.get(ID)).thenReturn(this.patient);
+        when(this.patient.getId()).thenReturn(ID);
+        when(this.patient.getXDocument()).thenReturn(this.document);
+        when(this.context.getWiki()).thenReturn(this.xwiki);
+        this.batch = new PatientUpdateBatch(this.repository);
+    }
+
+    @Test
+    public void patientsAreLoadedOnce()
+    {
+        Assert.assertSame(this.patient, this.batch.get(ID));
+        Assert.assertSame(this.patient, this.batch.get(ID));
+        verify(this.repository, times(1)).get(ID);
+    }
+
+    @Test
+    public void missingPatientsAreNotRemembered()
+    {
+        Assert.assertNull(this.batch.get("P0000002"));
+        Assert.assertNull(this.batch.get("P0000002"));
+        verify(this.repository, times(2)).get("P0000002");
+    }
+
+    @Test
+    public void unchangedDataIsSkipped() throws Exception
+    {
+        JSONObject json = new JSONObject().put("id", ID).put("sex", "F");
+        JSONObject current = new JSONObject().put("id", ID).put("sex", "F").put("features", new JSONArray());
+        when(this.patient.toJSON()).thenReturn(current, new JSONObject(current.toString()));
+
+        Assert.assertFalse(this.batch.updateData(this.patient, json));
+        Assert.assertEquals(1, this.batch.getUnchangedCount());
+        Assert.assertEquals(0, this.batch.flush(this.context));
+        verify(this.patient, never()).updateFromJSON(any(JSONObject.class));
+        verify(this.xwiki, never()).saveDocument(any(XWikiDocument.class), anyString(), any(XWikiContext.class));
+    }
+
+    @Test
+    public void differentRepresentationsOfTheSameDataAreUnchanged() throws Exception
+    {
+        // The pedigree uses other keys than the patient fields, only the serialized patient data is compared
+        JSONObject json = new JSONObject().put("id", ID).put("patient_name", new JSONObject().put("first_name", "A"));
+        JSONObject current = new JSONObject().put("id", ID).put("first_name", "A");
+        when(this.patient.toJSON()).thenReturn(current, new JSONObject(current.toString()));
+
+        Assert.assertFalse(this.batch.updateData(this.patient, json));
+        verify(this.patient).readFromJSON(json);
+    }
+
+    @Test
+    public void changedDataIsWrittenOnFlush() throws Exception
+    {
+        JSONObject json = new JSONObject().put("id", ID).put("sex", "M");
+        when(this.patient.toJSON()).thenReturn(new JSONObject().put("id", ID).put("sex", "F"),
+            new JSONObject().put("id", ID).put("sex", "M"));
+
+        Assert.assertTrue(this.batch.updateData(this.patient, json));
+        verify(this.patient).readFromJSON(json);
+        verify(this.xwiki, never()).saveDocument(any(XWikiDocument.class), anyString(), any(XWikiContext.class));
+        Assert.assertEquals(1, this.batch.flush(this.context));
+        verify(this.xwiki).saveDocument(this.document, "Updated from pedigree", this.context);
+        verify(this.patient, never()).updateFromJSON(any(JSONObject.class));
+    }
+
+    @Test
+    public void missingFieldsCountAsChanges() throws Exception
+    {
+        JSONObject json = new JSONObject().put("id", ID).put("sex", "M");
+        when(this.patient.toJSON()).thenReturn(new JSONObject().put("id", ID),
+            new JSONObject().put("id", ID).put("sex", "M"));
+
+        Assert.assertTrue(this.batch.updateData(this.patient, json));
+    }
+
+    @Test(expected = XWikiException.class)
+    public void dataThatCantBeStoredIsReported() throws Exception
+    {
+        JSONObject json = new JSONObject().put("id", ID).put("sex", "M");
+        when(this.patient.readFromJSON(json)).thenReturn(Collections.singleton("sex"));
+
+        this.batch.updateData(this.patient, json);
+    }
+
+    @Test
+    public void saveFailuresAreReported() throws Exception
+    {
+        this.batch.markModified(this.patient, "added to family");
+        XWikiException failure = new XWikiException();
+        doThrow(failure).when(this.xwiki).saveDocument(this.document, "added to family", this.context);
+
+        try {
+            this.batch.flush(this.context);
+            Assert.fail("Save failures must be reported");
+        } catch (XWikiException ex) {
+            Assert.assertSame(failure, ex);
+        }
+    }
+
+    @Test
+    public void linkChangesAreSavedOnce() throws Exception
+    {
+        this.batch.markModified(this.patient, "added to family");
+        this.batch.markModified(this.patient, "added to family");
+
+        Assert.assertEquals(1, this.batch.flush(this.context));
+        verify(this.xwiki, times(1)).saveDocument(this.document, "added to family", this.context);
+        Assert.assertEquals(0, this.batch.flush(this.context));
+    }
+
+    @Test
+    public void dataAndLinkChangesAreWrittenTogether() throws Exception
+    {
+        JSONObject json = new JSONObject().put("id", ID).put("sex", "M");
+        when(this.patient.toJSON()).thenReturn(new JSONObject().put("id", ID).put("sex", "F"),
+            new JSONObject().put("id", ID).put("sex", "M"));
+
+        this.batch.updateData(this.patient, json);
+        this.batch.markModified(this.patient, "added to family");
+
+        Assert.assertEquals(1, this.batch.flush(this.context));
+        verify(this.xwiki, times(1)).saveDocument(any(XWikiDocument.class), anyString(), any(XWikiContext.class));
+        verify(this.patient, never()).updateFromJSON(any(JSONObject.class));
+    }
+
+    @Test
+    public void otherPatientImplementationsAreUpdatedOnFlush() throws Exception
+    {
+        Patient other = mock(Patient.class);
+        when(other.getId()).thenReturn("P0000002");
+        JSONObject json = new JSONObject().put("id", "P0000002").put("sex", "M");
+
+        Assert.assertTrue(this.batch.updateData(other, json));
+        verify(other, never()).updateFromJSON(any(JSONObject.class));
+        Assert.assertEquals(1, this.batch.flush(this.context));
+        verify(other).updateFromJSON(json);
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.security.authorization.AuthorizationService;
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.FamilyRepository;
+import org.phenotips.studies.family.Pedigree;
+import org.phenotips.studies.family.PedigreeProcessor;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Provider;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the concurrency control in {@link PhenotipsFamilyRepository}.
+ *
+ * @version $Id$
+ */
+public class PhenotipsFamilyRepositoryTest
+{
+    private static final int THREADS = 8;
+
+    private static final int ITERATIONS = 200;
+
+    private static final int PATIENTS = 20;
+
+    @Rule
+    public final MockitoComponentMockingRule<FamilyRepository> mocker =
+        new MockitoComponentMockingRule<FamilyRepository>(PhenotipsFamilyRepository.class);
+
+    private final User user = mock(User.class);
+
+    private final XWiki xwiki = mock(XWiki.class);
+
+    private FamilyRepository repository;
+
+    private PedigreeProcessor converter;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.repository = this.mocker.getComponentUnderTest();
+        this.converter = this.mocker.getInstance(PedigreeProcessor.class);
+
+        XWikiContext context = mock(XWikiContext.class);
+        when(context.getWiki()).thenReturn(this.xwiki);
+        Provider<XWikiContext> contextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(contextProvider.get()).thenReturn(context);
+
+        AuthorizationService rights = this.mocker.getInstance(AuthorizationService.class);
+        when(rights.hasAccess(eq(this.user), eq(Right.EDIT), any(EntityReference.class))).thenReturn(true);
+
+        PatientRepository patients = this.mocker.getInstance(PatientRepository.class);
+        for (int i = 0; i < PATIENTS; ++i) {
+            String id = getPatientId(i);
+            Patient patient = mock(Patient.class);
+            XWikiDocument document = mockDocument(new DocumentReference("xwiki", "data", id));
+            when(patient.getId()).thenReturn(id);
+            when(patient.getXDocument()).thenReturn(document);
+            when(patient.getDocumentReference()).thenReturn(document.getDocumentReference());
+            when(patients.get(id)).thenReturn(patient);
+        }
+    }
+
+    /**
+     * Many threads saving pedigrees for distinct families, each one also claiming random patients, which requires
+     * locking overlapping sets of records in random order. All the changes must be applied, without deadlocks.
+     */
+    @Test(timeout = 60000)
+    public void concurrentPedigreeSavesLoseNoUpdatesAndDoNotDeadlock() throws Exception
+    {
+        final int[] familyUpdates = new int[THREADS];
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; ++t) {
+            final int index = t;
+            final Family family = mockFamily(index, Collections.<String>emptyList());
+            final Random random = new Random(index);
+            final Pedigree pedigree = mockPedigree();
+            when(pedigree.extractIds()).thenAnswer(invocation -> {
+                List<String> ids = new ArrayList<>();
+                ids.add(getPatientId(random.nextInt(PATIENTS)));
+                return ids;
+            });
+            doAnswer(invocation -> {
+                // Non-atomic read-modify-write, only correct if the family is really locked
+                int value = familyUpdates[index];
+                Thread.yield();
+                familyUpdates[index] = value + 1;
+                return Collections.emptyList();
+            }).when(this.converter).convert(pedigree);
+            results.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    for (int i = 0; i < ITERATIONS; ++i) {
+                        PhenotipsFamilyRepositoryTest.this.repository.setPedigree(family, pedigree,
+                            PhenotipsFamilyRepositoryTest.this.user);
+                        // A concurrent save of the same family from another request
+                        PhenotipsFamilyRepositoryTest.this.repository.setPedigree(family, pedigree,
+                            PhenotipsFamilyRepositoryTest.this.user);
+                    }
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(50, TimeUnit.SECONDS));
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        for (int t = 0; t < THREADS; ++t) {
+            Assert.assertEquals(2 * ITERATIONS, familyUpdates[t]);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void sameFamilyIsSavedOneRequestAtATime() throws Exception
+    {
+        final Family family = mockFamily(1, Collections.<String>emptyList());
+        final Pedigree pedigree = mockPedigree();
+        final CountDownLatch firstInside = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<Boolean> overlapped = new AtomicReference<>(false);
+        final int[] inside = new int[1];
+        doAnswer(invocation -> {
+            synchronized (inside) {
+                overlapped.compareAndSet(false, inside[0] > 0);
+                ++inside[0];
+            }
+            firstInside.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            synchronized (inside) {
+                --inside[0];
+            }
+            return Collections.emptyList();
+        }).when(this.converter).convert(pedigree);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<?> first = executor.submit(() -> save(family, pedigree));
+        Assert.assertTrue(firstInside.await(5, TimeUnit.SECONDS));
+        Future<?> second = executor.submit(() -> save(family, pedigree));
+        Thread.sleep(100);
+        // The second save waits for the first one to finish
+        Assert.assertFalse(second.isDone());
+        release.countDown();
+        first.get();
+        second.get();
+        executor.shutdown();
+        Assert.assertFalse(overlapped.get());
+    }
+
+    @Test(timeout = 10000)
+    public void membersAddedWhileWaitingForTheLocksAreAlsoLockedAndUpdated() throws Exception
+    {
+        final List<String> members = new ArrayList<>();
+        final Family family = mockFamily(1, members);
+        final Pedigree first = mockPedigree();
+        final Pedigree second = mockPedigree();
+        final CountDownLatch firstInside = new CountDownLatch(1);
+        final CountDownLatch secondStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            firstInside.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return Collections.emptyList();
+        }).when(this.converter).convert(first);
+        when(family.getMembersIds()).thenAnswer(invocation -> {
+            synchronized (members) {
+                if (firstInside.getCount() == 0) {
+                    // Only the second save reads the members while the first one is running
+                    secondStarted.countDown();
+                }
+                return new ArrayList<>(members);
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<?> firstSave = executor.submit(() -> save(family, first));
+        Assert.assertTrue(firstInside.await(5, TimeUnit.SECONDS));
+        // The second save starts while the family has no members, and waits for the first one
+        Future<?> secondSave = executor.submit(() -> save(family, second));
+        Assert.assertTrue(secondStarted.await(5, TimeUnit.SECONDS));
+        // The first save adds a member before finishing
+        synchronized (members) {
+            members.add(getPatientId(2));
+        }
+        release.countDown();
+        firstSave.get();
+        secondSave.get();
+        executor.shutdown();
+
+        StripedLocks locks = (StripedLocks) ReflectionUtils.getFieldValue(this.repository, "locks");
+        // The second save had to lock again, to include the new member
+        Assert.assertEquals(3, locks.getAcquisitions());
+        // The new member isn't in the second pedigree, so it was removed from the family
+        XWikiDocument removed = this.mocker.getInstance(PatientRepository.class).get(getPatientId(2)).getXDocument();
+        verify(this.xwiki).saveDocument(eq(removed), anyString(), any(XWikiContext.class));
+    }
+
+    private Void save(Family family, Pedigree pedigree) throws Exception
+    {
+        this.repository.setPedigree(family, pedigree, this.user);
+        return null;
+    }
+
+    private Family mockFamily(int index, final List<String> members)
+    {
+        String id = String.format("FAM%07d", index);
+        Family family = mock(Family.class);
+        XWikiDocument document = mockDocument(new DocumentReference("xwiki", "families", id));
+        when(family.getId()).thenReturn(id);
+        when(family.getXDocument()).thenReturn(document);
+        when(family.getDocumentReference()).thenReturn(document.getDocumentReference());
+        when(family.getExternalId()).thenReturn("");
+        when(family.getMembersIds()).thenAnswer(invocation -> {
+            synchronized (members) {
+                return new ArrayList<>(members);
+            }
+        });
+        return family;
+    }
+
+    private Pedigree mockPedigree()
+    {
+        Pedigree pedigree = mock(Pedigree.class);
+        when(pedigree.extractIds()).thenReturn(Collections.<String>emptyList());
+        when(pedigree.getData()).thenReturn(new JSONObject());
+        when(pedigree.getImage(null)).thenReturn("");
+        when(this.converter.convert(pedigree)).thenReturn(Collections.<JSONObject>emptyList());
+        return pedigree;
+    }
+
+    private XWikiDocument mockDocument(DocumentReference reference)
+    {
+        XWikiDocument document = mock(XWikiDocument.class);
+        when(document.getDocumentReference()).thenReturn(reference);
+        when(document.getXObject(any(EntityReference.class))).thenReturn(mock(BaseObject.class));
+        when(document.getXObject(any(EntityReference.class), eq(true), any(XWikiContext.class)))
+            .thenReturn(mock(BaseObject.class));
+        when(document.removeXObject(any(BaseObject.class))).thenReturn(true);
+        return document;
+    }
+
+    private static String getPatientId(int index)
+    {
+        return String.format("P%07d", index);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.security.authorization.AuthorizationService;
+import org.phenotips.studies.family.FamilyIndex;
+import org.phenotips.vocabulary.SolrCoreContainerHandler;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.core.CoreContainer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link SolrFamilyIndex} searches.
+ *
+ * @version $Id$
+ */
+public class SolrFamilyIndexTest
+{
+    private static final String FAMILY = "Families.FAM0000001";
+
+    @Rule
+    public final MockitoComponentMockingRule<FamilyIndex> mocker =
+        new MockitoComponentMockingRule<FamilyIndex>(SolrFamilyIndex.class);
+
+    private final User user = mock(User.class);
+
+    private final SolrClient server = mock(SolrClient.class);
+
+    private final Set<String> accessible = new HashSet<>();
+
+    private final List<SolrQuery> queries = new ArrayList<>();
+
+    private FamilyIndex index;
+
+    private FamilyReindexer reindexer;
+
+    private AuthorizationService authorizationService;
+
+    private long markers = 1;
+
+    private int matches;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SolrCoreContainerHandler cores = this.mocker.getInstance(SolrCoreContainerHandler.class);
+        when(cores.getContainer()).thenReturn(mock(CoreContainer.class));
+        this.index = this.mocker.getComponentUnderTest();
+        ReflectionUtils.setFieldValue(this.index, "server", this.server);
+        this.reindexer = this.mocker.getInstance(FamilyReindexer.class);
+
+        DocumentReferenceResolver<String> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        when(resolver.resolve(anyString())).thenAnswer(invocation -> {
+            String[] parts = ((String) invocation.getArguments()[0]).split("\\.");
+            return new DocumentReference("xwiki", parts[0], parts[1]);
+        });
+
+        // Only the documents listed in the accessible set can be accessed, checked in bulk
+        this.authorizationService = this.mocker.getInstance(AuthorizationService.class);
+        when(this.authorizationService.filterAccessible(eq(this.user), eq(Right.VIEW),
+            anyCollectionOf(EntityReference.class))).thenAnswer(invocation -> {
+                List<EntityReference> result = new ArrayList<>();
+                for (Object entity : (Collection<?>) invocation.getArguments()[2]) {
+                    if (this.accessible.contains(((EntityReference) entity).getName())) {
+                        result.add((EntityReference) entity);
+                    }
+                }
+                return result;
+            });
+
+        // Answers the marker query, and returns the requested page of a list of matched patients
+        when(this.server.query(any(SolrParams.class))).thenAnswer(invocation -> {
+            SolrQuery query = (SolrQuery) invocation.getArguments()[0];
+            SolrDocumentList results = new SolrDocumentList();
+            if (FamilyIndexQueries.MARKER_QUERY.equals(query.getQuery())) {
+                results.setNumFound(this.markers);
+            } else {
+                this.queries.add(query.getCopy());
+                results.setNumFound(this.matches);
+                for (int i = query.getStart(); i < Math.min(this.matches, query.getStart() + query.getRows()); ++i) {
+                    SolrDocument hit = new SolrDocument();
+                    hit.setField(FamilyIndexQueries.DOCUMENT_FIELD, "data.P" + i);
+                    hit.setField(FamilyIndexQueries.FAMILY_FIELD, FAMILY);
+                    results.add(hit);
+                }
+            }
+            QueryResponse response = mock(QueryResponse.class);
+            when(response.getResults()).thenReturn(results);
+            return response;
+        });
+    }
+
+    @Test
+    public void searchReturnsOnlyAccessibleRecords()
+    {
+        this.matches = 5;
+        this.accessible.addAll(Arrays.asList("P1", "P3"));
+
+        Map<DocumentReference, DocumentReference> result = this.index.search("p", true, this.user, Right.VIEW, 10);
+
+        Assert.assertEquals(Arrays.asList(patient(1), patient(3)), new ArrayList<>(result.keySet()));
+        Assert.assertEquals(new DocumentReference("xwiki", "Families", "FAM0000001"), result.get(patient(1)));
+        Assert.assertEquals(1, this.queries.size());
+        SolrQuery query = this.queries.get(0);
+        Assert.assertEquals("(identifier:p OR external_id:p OR name:p)", query.getQuery());
+        Assert.assertArrayEquals(new String[] { FamilyIndexQueries.RECORDS_FILTER }, query.getFilterQueries());
+        verify(this.authorizationService, times(1)).filterAccessible(eq(this.user), eq(Right.VIEW),
+            anyCollectionOf(EntityReference.class));
+    }
+
+    @Test
+    public void searchFetchesMorePagesUntilEnoughRecordsAreAccessible()
+    {
+        this.matches = 500;
+        // The first page has no accessible records, the second has more than needed
+        this.accessible.addAll(Arrays.asList("P60", "P70", "P80"));
+
+        Map<DocumentReference, DocumentReference> result = this.index.search("", false, this.user, Right.VIEW, 2);
+
+        Assert.assertEquals(Arrays.asList(patient(60), patient(70)), new ArrayList<>(result.keySet()));
+        Assert.assertEquals(2, this.queries.size());
+        Assert.assertEquals(0, this.queries.get(0).getStart().intValue());
+        Assert.assertEquals(this.queries.get(0).getRows(), this.queries.get(1).getStart());
+    }
+
+    @Test
+    public void searchStopsOnceAllMatchesWereChecked()
+    {
+        this.matches = 120;
+        this.accessible.add("P110");
+
+        Map<DocumentReference, DocumentReference> result = this.index.search("", false, this.user, Right.VIEW, 5);
+
+        Assert.assertEquals(Arrays.asList(patient(110)), new ArrayList<>(result.keySet()));
+        Assert.assertEquals(3, this.queries.size());
+    }
+
+    @Test
+    public void incompleteIndexIsNotSearchedAndIsRebuilt() throws Exception
+    {
+        this.markers = 0;
+
+        Assert.assertNull(this.index.search("p", false, this.user, Right.VIEW, 5));
+
+        verify(this.reindexer).reindexInBackground(this.server);
+        Assert.assertTrue(this.queries.isEmpty());
+    }
+
+    @Test
+    public void indexIsNotSearchedWhileBeingRebuilt() throws Exception
+    {
+        when(this.reindexer.isReindexing()).thenReturn(true);
+
+        Assert.assertNull(this.index.search("p", false, this.user, Right.VIEW, 5));
+
+        verifyZeroInteractions(this.server);
+        verify(this.reindexer, never()).reindexInBackground(any(SolrClient.class));
+    }
+
+    @Test
+    public void failedReindexMakesTheIndexCheckForTheMarkerAgain() throws Exception
+    {
+        this.index.search("p", false, this.user, Right.VIEW, 5);
+        when(this.reindexer.reindex(this.server)).thenReturn(false);
+        this.index.reindex();
+        this.markers = 0;
+
+        Assert.assertNull(this.index.search("p", false, this.user, Right.VIEW, 5));
+        verify(this.reindexer).reindexInBackground(this.server);
+    }
+
+    private DocumentReference patient(int number)
+    {
+        return new DocumentReference("xwiki", "data", "P" + number);
+    }
+}
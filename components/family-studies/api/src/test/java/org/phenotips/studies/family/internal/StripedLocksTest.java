@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests for {@link StripedLocks}.
+ *
+ * @version $Id$
+ */
+public class StripedLocksTest
+{
+    @Test(timeout = 10000)
+    public void distinctFamiliesCanBeLockedConcurrently() throws Exception
+    {
+        final StripedLocks locks = new StripedLocks(StripedLocks.DEFAULT_STRIPES);
+        Assume.assumeTrue(locks.getStripe("FAM0000001") != locks.getStripe("FAM0000002"));
+        final CountDownLatch firstLocked = new CountDownLatch(1);
+        final CountDownLatch secondLocked = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (StripedLocks.Handle lock = locks.lock(Collections.singletonList("FAM0000001"))) {
+            firstLocked.countDown();
+            executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    firstLocked.await();
+                    try (StripedLocks.Handle other = locks.lock(Collections.singletonList("FAM0000002"))) {
+                        secondLocked.countDown();
+                    }
+                    return null;
+                }
+            });
+            // The second family is locked while the first one is still held
+            Assert.assertTrue(secondLocked.await(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(0, locks.getContendedAcquisitions());
+    }
+
+    @Test(timeout = 10000)
+    public void sameFamilyIsSerializedAndWaitsAreCounted() throws Exception
+    {
+        final StripedLocks locks = new StripedLocks(StripedLocks.DEFAULT_STRIPES);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Long> waited;
+        try (StripedLocks.Handle lock = locks.lock(Arrays.asList("FAM0000001", "P0000001"))) {
+            waited = executor.submit(new Callable<Long>()
+            {
+                @Override
+                public Long call() throws Exception
+                {
+                    try (StripedLocks.Handle other = locks.lock(Collections.singletonList("FAM0000001"))) {
+                        return other.getWaitNanos();
+                    }
+                }
+            });
+            // Only release the family once the other thread is blocked on it
+            while (!locks.hasQueuedThreads("FAM0000001")) {
+                Thread.sleep(1);
+            }
+            Assert.assertFalse(waited.isDone());
+        }
+        Assert.assertTrue(waited.get() > 0);
+        executor.shutdown();
+        Assert.assertEquals(2, locks.getAcquisitions());
+        Assert.assertEquals(1, locks.getContendedAcquisitions());
+    }
+
+    @Test
+    public void locksAreReentrant()
+    {
+        StripedLocks locks = new StripedLocks(StripedLocks.DEFAULT_STRIPES);
+        try (StripedLocks.Handle lock = locks.lock(Arrays.asList("FAM0000001", "P0000001", "P0000002"))) {
+            try (StripedLocks.Handle again = locks.lock(Arrays.asList("P0000002", "FAM0000001", null))) {
+                Assert.assertEquals(0, again.getWaitMillis());
+            }
+        }
+        Assert.assertEquals(0, locks.getContendedAcquisitions());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.listener;
+
+import org.phenotips.data.Patient;
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.FamilyIndex;
+import org.phenotips.studies.family.FamilyRepository;
+
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link FamilyIndexListener}.
+ *
+ * @version $Id$
+ */
+public class FamilyIndexListenerTest
+{
+    private static final DocumentReference FAMILY_REFERENCE = new DocumentReference("xwiki", "Families", "FAM0000001");
+
+    private static final DocumentReference PATIENT_REFERENCE = new DocumentReference("xwiki", "data", "P0000001");
+
+    private static final String EXTERNAL_ID = "external_id";
+
+    @Rule
+    public final MockitoComponentMockingRule<EventListener> mocker =
+        new MockitoComponentMockingRule<EventListener>(FamilyIndexListener.class);
+
+    private final XWikiDocument doc = mock(XWikiDocument.class);
+
+    private final XWikiDocument originalDoc = mock(XWikiDocument.class);
+
+    private final Family family = mock(Family.class);
+
+    private FamilyIndex index;
+
+    @Before
+    public void setup() throws Exception
+    {
+        this.index = this.mocker.getInstance(FamilyIndex.class);
+        FamilyRepository repository = this.mocker.getInstance(FamilyRepository.class);
+        when(repository.getFamilyById("FAM0000001")).thenReturn(this.family);
+        DocumentReferenceResolver<String> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        when(resolver.resolve("Families.FAM0000001", Family.DATA_SPACE)).thenReturn(FAMILY_REFERENCE);
+        when(this.doc.getOriginalDocument()).thenReturn(this.originalDoc);
+    }
+
+    @Test
+    public void savedFamiliesAreReindexed() throws Exception
+    {
+        when(this.doc.getDocumentReference()).thenReturn(FAMILY_REFERENCE);
+        when(this.doc.getXObject(Family.CLASS_REFERENCE)).thenReturn(mock(BaseObject.class));
+
+        this.mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(), this.doc, null);
+
+        verify(this.index).index(this.family);
+    }
+
+    @Test
+    public void deletedFamiliesAreRemoved() throws Exception
+    {
+        when(this.doc.getDocumentReference()).thenReturn(FAMILY_REFERENCE);
+        when(this.originalDoc.getXObject(Family.CLASS_REFERENCE)).thenReturn(mock(BaseObject.class));
+
+        this.mocker.getComponentUnderTest().onEvent(new DocumentDeletedEvent(), this.doc, null);
+
+        verify(this.index).delete(FAMILY_REFERENCE);
+        verify(this.index, never()).index(any(Family.class));
+    }
+
+    @Test
+    public void familyIsReindexedWhenMemberIdentifierChanges() throws Exception
+    {
+        mockPatient("NEW", "OLD");
+
+        this.mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(), this.doc, null);
+
+        verify(this.index).index(this.family);
+    }
+
+    @Test
+    public void familyIsNotReindexedWhenOtherMemberDataChanges() throws Exception
+    {
+        mockPatient("SAME", "SAME");
+
+        this.mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(), this.doc, null);
+
+        verify(this.index, never()).index(any(Family.class));
+    }
+
+    @Test
+    public void otherDocumentsAreIgnored() throws Exception
+    {
+        when(this.doc.getDocumentReference()).thenReturn(PATIENT_REFERENCE);
+
+        this.mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(), this.doc, null);
+        this.mocker.getComponentUnderTest().onEvent(new DocumentDeletedEvent(), this.doc, null);
+
+        verify(this.index, never()).index(any(Family.class));
+        verify(this.index, never()).delete(any(DocumentReference.class));
+    }
+
+    private void mockPatient(String externalId, String previousExternalId)
+    {
+        when(this.doc.getDocumentReference()).thenReturn(PATIENT_REFERENCE);
+        BaseObject patient = mock(BaseObject.class);
+        when(patient.getStringValue(EXTERNAL_ID)).thenReturn(externalId);
+        when(this.doc.getXObject(Patient.CLASS_REFERENCE)).thenReturn(patient);
+        BaseObject previous = mock(BaseObject.class);
+        when(previous.getStringValue(EXTERNAL_ID)).thenReturn(previousExternalId);
+        when(this.originalDoc.getXObject(Patient.CLASS_REFERENCE)).thenReturn(previous);
+        BaseObject link = mock(BaseObject.class);
+        when(link.getStringValue("reference")).thenReturn("Families.FAM0000001");
+        when(this.doc.getXObject(Family.REFERENCE_CLASS_REFERENCE)).thenReturn(link);
+    }
+}
@@ -26,6 +26,7 @@
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -197,8 +198,14 @@ private void addFeatures(
         @Nonnull final Set<VocabularyTerm> retrievedAbsentTerms,
         @Nonnull final VocabularyManager vocabularyManager)
     {
+        final List<String> termIds = new ArrayList<>(features.size());
         for (final Feature feature : features) {
-            final VocabularyTerm term = vocabularyManager.resolveTerm(feature.getValue());
+            termIds.add(feature.getValue());
+        }
+        // All the terms are fetched at once, instead of one query per feature
+        final Map<String, VocabularyTerm> terms = vocabularyManager.resolveTerms(termIds);
+        for (final Feature feature : features) {
+            final VocabularyTerm term = terms.get(feature.getValue());
             if (term != null) {
                 if (feature.isPresent()) {
                     retrievedPresentTerms.add(term);
@@ -30,9 +30,12 @@
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.json.JSONArray;
@@ -45,6 +48,7 @@
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -102,6 +106,17 @@ public void setUp() throws ComponentLookupException
         this.vocabularyManager = this.mocker.getInstance(VocabularyManager.class);
         when(vocabularyManager.getVocabulary(HPO_LABEL)).thenReturn(this.hpo);
         when(vocabularyManager.getVocabulary(HGNC_LABEL)).thenReturn(this.hgnc);
+        // Batch lookups are answered from the single term stubs
+        when(this.vocabularyManager.resolveTerms(anyCollectionOf(String.class))).thenAnswer(invocation -> {
+            Map<String, VocabularyTerm> result = new LinkedHashMap<>();
+            for (Object id : (Collection<?>) invocation.getArguments()[0]) {
+                VocabularyTerm term = this.vocabularyManager.resolveTerm((String) id);
+                if (term != null) {
+                    result.put((String) id, term);
+                }
+            }
+            return result;
+        });
     }
 
     // ------------------------Test build(Collection<? extends Feature> features)-----------------------//
@@ -28,9 +28,12 @@
 import org.xwiki.component.manager.ComponentLookupException;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.json.JSONArray;
@@ -43,6 +46,7 @@
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -131,6 +135,17 @@ public void setUp() throws ComponentLookupException
     {
         MockitoAnnotations.initMocks(this);
         when(this.vocabularyManager.getVocabulary(HGNC_LABEL)).thenReturn(this.hgnc);
+        // Batch lookups are answered from the single term stubs
+        when(this.vocabularyManager.resolveTerms(anyCollectionOf(String.class))).thenAnswer(invocation -> {
+            Map<String, VocabularyTerm> result = new LinkedHashMap<>();
+            for (Object id : (Collection<?>) invocation.getArguments()[0]) {
+                VocabularyTerm term = this.vocabularyManager.resolveTerm((String) id);
+                if (term != null) {
+                    result.put((String) id, term);
+                }
+            }
+            return result;
+        });
 
         makeGenePanelMocks();
         makeExpectedTermsForGeneJSON();
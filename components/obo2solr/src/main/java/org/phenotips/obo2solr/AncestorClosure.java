@@ -0,0 +1,320 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the {@link TermData#TERM_CATEGORY_FIELD_NAME term category}, i.e. the term itself and all its ancestors, for
+ * all the terms of an ontology. Terms are identified by integer handles, and are processed in topological order, so
+ * that the closure of a term is the union of the already computed closures of its parents, which is linear in the
+ * size of the result. A term is sent to the consumer, and forgotten, as soon as all its parents were sent, which
+ * usually happens while the ontology is still being read, since parents often come before their children; only the
+ * compact closures are kept, since children may still reference them. The terms
+ * still waiting at the end, because some of their ancestors are defined after them, not defined at all, or part of a
+ * cycle, are sent by {@link #finish()}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class AncestorClosure
+{
+    private static final int[] NONE = new int[0];
+
+    /** Marks terms which must wait for {@link #finish()}, more than any real number of parents. */
+    private static final int BLOCKED = Integer.MAX_VALUE;
+
+    private final Logger logger = LoggerFactory.getLogger(AncestorClosure.class);
+
+    private final Consumer<TermData> consumer;
+
+    /** Interned term identifiers, indexed by their handle. */
+    private final List<String> ids = new ArrayList<>();
+
+    private final Map<String, Integer> handles = new HashMap<>();
+
+    /** The terms not sent yet, indexed by their handle; {@code null} for sent terms and undefined identifiers. */
+    private final List<TermData> terms = new ArrayList<>();
+
+    /** The closures of the sent terms, indexed by their handle; {@code null} for terms not sent yet. */
+    private final List<int[]> closures = new ArrayList<>();
+
+    /** The number of parents not sent yet, for each term waiting to be sent, indexed by the term handle. */
+    private int[] pendingParents = new int[16];
+
+    /** The terms waiting for a parent, by the handle of the parent. */
+    private final Map<Integer, List<Integer>> waitingChildren = new HashMap<>();
+
+    /** Marks the terms already added to the closure being computed, with the handle of the term plus one. */
+    private int[] seen = new int[16];
+
+    private int[] buffer = new int[16];
+
+    /**
+     * Simple constructor.
+     *
+     * @param consumer receives the terms, with their term category field filled in, parents before their children
+     */
+    AncestorClosure(Consumer<TermData> consumer)
+    {
+        this.consumer = consumer;
+    }
+
+    /**
+     * Adds a term, and sends it right away if all its parents were already sent, along with any waiting descendant
+     * which becomes ready. If a term with the same identifier was already added, it is replaced, unless it was already
+     * sent, in which case the new definition is ignored.
+     *
+     * @param term the term to add
+     */
+    void add(TermData term)
+    {
+        int handle = getHandle(term.getId());
+        if (this.closures.get(handle) != null) {
+            this.logger.warn("Duplicate definition of the term [{}] ignored", term.getId());
+            return;
+        }
+        boolean duplicate = this.terms.get(handle) != null;
+        this.terms.set(handle, term);
+        if (duplicate) {
+            // The parents of the previous definition are already registered, let the final pass sort it out
+            this.pendingParents[handle] = BLOCKED;
+            return;
+        }
+        int pending = 0;
+        for (int parent : resolveParents(handle, term)) {
+            if (this.closures.get(parent) == null) {
+                ++pending;
+                List<Integer> waiting = this.waitingChildren.get(parent);
+                if (waiting == null) {
+                    waiting = new ArrayList<>();
+                    this.waitingChildren.put(parent, waiting);
+                }
+                waiting.add(handle);
+            }
+        }
+        this.pendingParents[handle] = pending;
+        if (pending == 0) {
+            sendReady(handle);
+        }
+    }
+
+    /**
+     * Sends all the terms still waiting for their ancestors. Undefined parents are ignored, and cycles are broken.
+     */
+    void finish()
+    {
+        int size = this.ids.size();
+        int[][] parents = new int[size][];
+        int remaining = 0;
+        for (int term = 0; term < size; ++term) {
+            if (this.closures.get(term) != null) {
+                parents[term] = NONE;
+            } else {
+                parents[term] = resolveParents(term, this.terms.get(term));
+                ++remaining;
+            }
+        }
+        int[][] children = invert(parents, size);
+
+        int[] pending = new int[size];
+        boolean[] queued = new boolean[size];
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        for (int term = 0; term < size; ++term) {
+            if (this.closures.get(term) != null) {
+                queued[term] = true;
+                continue;
+            }
+            for (int parent : parents[term]) {
+                if (this.closures.get(parent) == null) {
+                    ++pending[term];
+                }
+            }
+            if (pending[term] == 0) {
+                queue[tail++] = term;
+                queued[term] = true;
+            }
+        }
+
+        int nextUnprocessed = 0;
+        for (int processed = 0; processed < remaining; ++processed) {
+            if (head == tail) {
+                // Only cycles are left, break them at the first unprocessed term
+                while (queued[nextUnprocessed]) {
+                    ++nextUnprocessed;
+                }
+                this.logger.warn("Cycle found in the ontology at [{}], ignoring the unprocessed ancestors",
+                    this.ids.get(nextUnprocessed));
+                queue[tail++] = nextUnprocessed;
+                queued[nextUnprocessed] = true;
+            }
+            int term = queue[head++];
+            send(term, parents[term]);
+            for (int child : children[term]) {
+                if (--pending[child] == 0 && !queued[child]) {
+                    queue[tail++] = child;
+                    queued[child] = true;
+                }
+            }
+        }
+        this.closures.clear();
+        this.waitingChildren.clear();
+    }
+
+    /**
+     * Sends a term whose parents were all sent, then any waiting descendant which becomes ready as a result.
+     *
+     * @param handle the handle of a term ready to be sent
+     */
+    private void sendReady(int handle)
+    {
+        Deque<Integer> ready = new ArrayDeque<>();
+        ready.push(handle);
+        while (!ready.isEmpty()) {
+            int term = ready.pop();
+            send(term, resolveParents(term, this.terms.get(term)));
+            List<Integer> waiting = this.waitingChildren.remove(term);
+            if (waiting != null) {
+                for (int child : waiting) {
+                    if (--this.pendingParents[child] == 0) {
+                        ready.push(child);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the closure of a term from the closures of its parents, and sends the term to the consumer. Parents
+     * not sent yet, which only happens for undefined parents and in cycles, only contribute themselves.
+     *
+     * @param handle the handle of the term to send
+     * @param parents the handles of the parents of the term
+     */
+    private void send(int handle, int[] parents)
+    {
+        int stamp = handle + 1;
+        int length = 0;
+        this.seen[handle] = stamp;
+        this.buffer[length++] = handle;
+        for (int parent : parents) {
+            int[] parentClosure = this.closures.get(parent);
+            int[] ancestors = parentClosure != null ? parentClosure : new int[] { parent };
+            for (int ancestor : ancestors) {
+                if (this.seen[ancestor] != stamp) {
+                    this.seen[ancestor] = stamp;
+                    if (length == this.buffer.length) {
+                        this.buffer = Arrays.copyOf(this.buffer, length * 2);
+                    }
+                    this.buffer[length++] = ancestor;
+                }
+            }
+        }
+        int[] closure = Arrays.copyOf(this.buffer, length);
+        this.closures.set(handle, closure);
+
+        TermData term = this.terms.get(handle);
+        if (term == null) {
+            return;
+        }
+        this.terms.set(handle, null);
+        Set<String> categories = new LinkedHashSet<>(closure.length * 2);
+        for (int ancestor : closure) {
+            categories.add(this.ids.get(ancestor));
+        }
+        term.put(TermData.TERM_CATEGORY_FIELD_NAME, categories);
+        this.consumer.accept(term);
+    }
+
+    /**
+     * Finds the handles of the parents of a term. Parents which are not defined are given a handle as well.
+     *
+     * @param handle the handle of the term
+     * @param term the term, {@code null} for undefined terms
+     * @return the distinct parents of the term
+     */
+    private int[] resolveParents(int handle, TermData term)
+    {
+        Collection<String> parentIds = term == null ? null : term.get(TermData.TERM_CATEGORY_FIELD_NAME);
+        if (parentIds == null || parentIds.isEmpty()) {
+            return NONE;
+        }
+        int[] parents = new int[parentIds.size()];
+        int count = 0;
+        for (String parentId : parentIds) {
+            int parent = getHandle(parentId);
+            if (parent != handle) {
+                parents[count++] = parent;
+            }
+        }
+        return count == parents.length ? parents : Arrays.copyOf(parents, count);
+    }
+
+    private static int[][] invert(int[][] parents, int size)
+    {
+        int[] counts = new int[size];
+        for (int[] termParents : parents) {
+            for (int parent : termParents) {
+                ++counts[parent];
+            }
+        }
+        int[][] children = new int[size][];
+        for (int term = 0; term < size; ++term) {
+            children[term] = counts[term] == 0 ? NONE : new int[counts[term]];
+            counts[term] = 0;
+        }
+        for (int term = 0; term < size; ++term) {
+            for (int parent : parents[term]) {
+                children[parent][counts[parent]++] = term;
+            }
+        }
+        return children;
+    }
+
+    private int getHandle(String id)
+    {
+        Integer handle = this.handles.get(id);
+        if (handle == null) {
+            handle = this.ids.size();
+            this.handles.put(id, handle);
+            this.ids.add(id);
+            this.terms.add(null);
+            this.closures.add(null);
+            if (handle == this.pendingParents.length) {
+                this.pendingParents = Arrays.copyOf(this.pendingParents, handle * 2);
+                this.seen = Arrays.copyOf(this.seen, handle * 2);
+            }
+        }
+        return handle;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the terms of an OBO file one by one, handing each term to a consumer as soon as its stanza ends. Only one term
+ * is held in memory at a time. The header of the file, if it specifies a {@code data-version}, is also sent to the
+ * consumer, as a term with the {@code HEADER_INFO} identifier.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class OboReader
+{
+    private static final String TERM_MARKER = "[Term]";
+
+    private static final String HEADER_ID = "HEADER_INFO";
+
+    /** Quoted values followed by a scope or by a list of references, for example synonyms and definitions. */
+    private static final Pattern QUOTED_VALUE = Pattern.compile("^\"(.+)\"\\s*?(?:[A-Z]+|\\[).*");
+
+    /** Trailing qualifiers. */
+    private static final Pattern QUALIFIERS = Pattern.compile("\\s+\\{.*$");
+
+    /** Trailing comments after HPO identifiers. */
+    private static final Pattern HP_COMMENT = Pattern.compile("^(HP:\\d{7}) ! .*$");
+
+    private static final String ESCAPED_QUOTE = "\\\"";
+
+    private static final String FIRST_GROUP = "$1";
+
+    private final Map<String, Double> fieldSelection;
+
+    private final Consumer<TermData> consumer;
+
+    private TermData crtTerm = new TermData();
+
+    /**
+     * Simple constructor.
+     *
+     * @param fieldSelection the fields to keep, all the fields are kept if the map is empty
+     * @param consumer receives the terms as they are read
+     */
+    OboReader(Map<String, Double> fieldSelection, Consumer<TermData> consumer)
+    {
+        this.fieldSelection = fieldSelection;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Reads all the terms from an OBO file.
+     *
+     * @param in the OBO file
+     * @throws IOException if reading the file fails
+     */
+    void read(BufferedReader in) throws IOException
+    {
+        // When encountering a stanza that is not a term, all data is skipped until the next term stanza
+        boolean skip = false;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (isStanzaHeader(line)) {
+                storeCrtTerm();
+                skip = !TERM_MARKER.equalsIgnoreCase(line.trim());
+            } else if (!skip) {
+                readField(line);
+            }
+        }
+        storeCrtTerm();
+    }
+
+    static boolean isFieldSelected(Map<String, Double> fieldSelection, String name)
+    {
+        return fieldSelection.isEmpty() || fieldSelection.containsKey(name);
+    }
+
+    private void storeCrtTerm()
+    {
+        if (this.crtTerm.getId() != null) {
+            this.consumer.accept(this.crtTerm);
+        }
+        this.crtTerm = new TermData();
+    }
+
+    /**
+     * Checks if a line starts a new stanza, i.e. it is a name made of letters, between square brackets.
+     *
+     * @param line the line to check
+     * @return {@code true} if the line is a stanza header
+     */
+    private boolean isStanzaHeader(String line)
+    {
+        String trimmed = line.trim();
+        int length = trimmed.length();
+        if (length < 3 || trimmed.charAt(0) != '[' || trimmed.charAt(length - 1) != ']') {
+            return false;
+        }
+        for (int i = 1; i < length - 1; ++i) {
+            char c = trimmed.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a {@code name: value} line. The name ends at the first colon followed by whitespace.
+     *
+     * @param line the line to read
+     */
+    private void readField(String line)
+    {
+        int length = line.length();
+        int separator = line.indexOf(':');
+        while (separator >= 0 && (separator + 1 >= length || !isWhitespace(line.charAt(separator + 1)))) {
+            separator = line.indexOf(':', separator + 1);
+        }
+        if (separator < 0) {
+            return;
+        }
+        int nameEnd = separator;
+        while (nameEnd > 0 && isWhitespace(line.charAt(nameEnd - 1))) {
+            --nameEnd;
+        }
+        int valueStart = separator + 1;
+        while (valueStart < length && isWhitespace(line.charAt(valueStart))) {
+            ++valueStart;
+        }
+        String name = line.substring(0, nameEnd);
+        String value = line.substring(valueStart);
+        if ("data-version".equals(name.trim())) {
+            this.crtTerm.addTo("version", value);
+            this.crtTerm.addTo(TermData.ID_FIELD_NAME, HEADER_ID);
+        }
+        if (isFieldSelected(this.fieldSelection, name)) {
+            this.crtTerm.addTo(name, cleanValue(value));
+        }
+    }
+
+    /**
+     * Removes quotes, scopes, references, qualifiers and comments from a value, keeping only the actual value.
+     *
+     * @param value the raw value
+     * @return the cleaned value
+     */
+    private String cleanValue(String value)
+    {
+        String result = value;
+        if (result.startsWith("\"")) {
+            result = QUOTED_VALUE.matcher(result).replaceFirst(FIRST_GROUP);
+        }
+        if (result.indexOf('{') >= 0) {
+            result = QUALIFIERS.matcher(result).replaceFirst("");
+        }
+        if (result.startsWith("HP:")) {
+            result = HP_COMMENT.matcher(result).replaceFirst(FIRST_GROUP);
+        }
+        if (result.contains(ESCAPED_QUOTE)) {
+            result = result.replace(ESCAPED_QUOTE, "\"");
+        }
+        return result;
+    }
+
+    /**
+     * Same as the {@code \s} regular expression class.
+     *
+     * @param c the character to check
+     * @return {@code true} if the character is whitespace
+     */
+    private static boolean isWhitespace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -24,27 +24,13 @@
 import java.net.URL;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class SolrUpdateGenerator
 {
-    private static final String TERM_MARKER = "[Term]";
-
-    /** Not all entities are terms prompted by the presence of a {@link #TERM_MARKER} */
-    private static final String ENTITY_SEPARATION_REGEX = "^\\[[a-zA-Z]+\\]$";
-
-    private static final String FIELD_NAME_VALUE_SEPARATOR = "\\s*:\\s+";
-
-    private int counter;
-
-    private TermData crtTerm = new TermData();
-
-    private Map<String, TermData> data = new LinkedHashMap<>();
-
-    private Map<String, Double> fieldSelection;
-
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
     public Map<String, TermData> transform(String ontologyUrl, Map<String, Double> fieldSelection)
@@ -60,86 +46,40 @@ public Map<String, TermData> transform(String ontologyUrl, Map<String, Double> f
 
     public Map<String, TermData> transform(URL input, Map<String, Double> fieldSelection)
     {
-        this.fieldSelection = fieldSelection;
-        try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(input.openConnection().getInputStream()));
-            String line;
-            this.counter = 0;
-
-            /*
-             * When encountering a separator that is not a term separator, all data should be skipped until a term
-             * separator is encountered again
-             */
-            boolean skip = false;
-            while ((line = in.readLine()) != null) {
-                if (line.trim().matches(ENTITY_SEPARATION_REGEX)) {
-                    if (this.counter > 0) {
-                        storeCrtTerm();
-                    }
-                    // Overridden below
-                    skip = true;
-                }
-                if (line.trim().equalsIgnoreCase(TERM_MARKER)) {
-                    ++this.counter;
-                    skip = false;
-                    continue;
-                }
-                if (!skip) {
-                    String[] pieces = line.split(FIELD_NAME_VALUE_SEPARATOR, 2);
-                    if (pieces.length != 2) {
-                        continue;
-                    }
-                    if (pieces[0].trim().equals("data-version")) {
-                        this.crtTerm.addTo("version", pieces[1]);
-                        this.crtTerm.addTo(TermData.ID_FIELD_NAME, "HEADER_INFO");
-                        this.counter++;
-                    }
-                    loadField(pieces[0], pieces[1]);
-                }
-            }
-            if (this.counter > 0) {
-                storeCrtTerm();
-            }
-            if (isFieldSelected(TermData.TERM_CATEGORY_FIELD_NAME)) {
-                propagateAncestors();
-            }
-        } catch (NullPointerException ex) {
-            this.logger.error("NullPointer: {}", ex.getMessage());
-        } catch (IOException ex) {
-            this.logger.error("IOException: {}", ex.getMessage());
-        } finally {
-            this.fieldSelection = null;
-        }
-        return this.data;
-    }
-
-    private void storeCrtTerm()
-    {
-        if (this.crtTerm.getId() != null) {
-            this.data.put(this.crtTerm.getId(), this.crtTerm);
-        }
-        this.crtTerm = new TermData();
-    }
-
-    private boolean isFieldSelected(String name)
-    {
-        return this.fieldSelection.isEmpty() || this.fieldSelection.containsKey(name);
+        Map<String, TermData> data = new LinkedHashMap<>();
+        transform(input, fieldSelection, term -> data.put(term.getId(), term));
+        return data;
     }
 
-    private void loadField(String name, String value)
+    /**
+     * Reads the terms of an ontology and sends them to a consumer as soon as they are ready, without keeping the whole
+     * ontology in memory when possible. If the {@link TermData#TERM_CATEGORY_FIELD_NAME term category} is selected, a
+     * term is ready once all its ancestors were read, and each term is sent after all its ancestors; terms whose
+     * ancestors are defined after them are sent as soon as those ancestors are read, and terms with undefined ancestors
+     * are sent at the end. Otherwise, terms are sent to the consumer as they are read.
+     *
+     * @param input the location of the ontology, in the OBO format
+     * @param fieldSelection the fields to keep, all the fields are kept if the map is empty
+     * @param consumer receives the terms
+     * @return {@code true} if the whole ontology was read, {@code false} in case of failure, in which case the consumer
+     *         may have received some of the terms
+     * @since 1.4
+     */
+    public boolean transform(URL input, Map<String, Double> fieldSelection, Consumer<TermData> consumer)
     {
-        if (!(isFieldSelected(name))) {
-            return;
+        boolean expandCategories = OboReader.isFieldSelected(fieldSelection, TermData.TERM_CATEGORY_FIELD_NAME);
+        AncestorClosure closure = expandCategories ? new AncestorClosure(consumer) : null;
+        OboReader reader = new OboReader(fieldSelection, expandCategories ? closure::add : consumer);
+        try (BufferedReader in =
+            new BufferedReader(new InputStreamReader(input.openConnection().getInputStream()))) {
+            reader.read(in);
+        } catch (IOException ex) {
+            this.logger.error("IOException: {}", ex.getMessage());
+            return false;
         }
-        this.crtTerm.addTo(name, value.replaceFirst("^\"(.+)\"\\s*?(?:[A-Z]+|\\[).*", "$1")
-            .replaceFirst("\\s+\\{.*$", "").replaceFirst("^(HP:\\d{7}) ! .*$", "$1").replace("\\\"", "\""));
-    }
-
-    private void propagateAncestors()
-    {
-        for (String id : this.data.keySet()) {
-            TermData term = this.data.get(id);
-            term.expandTermCategories(this.data);
+        if (closure != null) {
+            closure.finish();
         }
+        return true;
     }
 }
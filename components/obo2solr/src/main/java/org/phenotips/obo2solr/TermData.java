@@ -20,11 +20,13 @@
 import org.phenotips.obo2solr.maps.SetMap;
 
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 public class TermData extends SetMap<String, String>
 {
@@ -38,6 +40,9 @@ public class TermData extends SetMap<String, String>
 
     public static final String PARENT_ID_REGEX = "^(HP\\:[0-9]{7})\\s*!\\s*.*";
 
+    /** Parent references may be followed by a comment, usually the name of the parent, which isn't part of the id. */
+    private static final Pattern PARENT_COMMENT = Pattern.compile("\\s*!.*$");
+
     private String id;
 
     @Override
@@ -58,7 +63,7 @@ public boolean addTo(String key, String value)
         if (ID_FIELD_NAME.equals(key)) {
             this.id = value;
         } else if (PARENT_FIELD_NAME.equals(key)) {
-            this.addTo(TERM_CATEGORY_FIELD_NAME, value.replaceAll(PARENT_ID_REGEX, "$1"));
+            this.addTo(TERM_CATEGORY_FIELD_NAME, getParentId(value));
         }
         return super.addTo(key, value);
     }
@@ -73,10 +78,19 @@ public boolean addTo(String key, Collection<String> values)
         return result;
     }
 
+    /**
+     * Replaces the term category with the term itself and all its ancestors.
+     *
+     * @param data all the terms of the ontology
+     * @deprecated {@link SolrUpdateGenerator} computes the term categories of all the terms at once, which is much
+     *             faster than expanding each term separately
+     */
+    @Deprecated
     public void expandTermCategories(Map<String, TermData> data)
     {
         Set<String> result = new LinkedHashSet<>();
         Queue<String> front = new LinkedList<>();
+        Set<String> queued = new HashSet<>();
 
         if (this.get(TERM_CATEGORY_FIELD_NAME) == null) {
             this.put(TERM_CATEGORY_FIELD_NAME, super.getEmptyCollection());
@@ -84,19 +98,27 @@ public void expandTermCategories(Map<String, TermData> data)
 
         result.add(this.id);
         front.addAll(this.get(TERM_CATEGORY_FIELD_NAME));
+        queued.addAll(front);
         String nextTermId;
         while ((nextTermId = front.poll()) != null) {
             result.add(nextTermId);
-            if (data.get(nextTermId).get(PARENT_FIELD_NAME) == null) {
+            TermData next = data.get(nextTermId);
+            if (next == null || next.get(PARENT_FIELD_NAME) == null) {
                 continue;
             }
-            for (String parentTermId : data.get(nextTermId).get(PARENT_FIELD_NAME)) {
-                parentTermId = parentTermId.replaceAll(PARENT_ID_REGEX, "$1");
-                if (!result.contains(parentTermId) && !front.contains(parentTermId)) {
+            for (String parentTermId : next.get(PARENT_FIELD_NAME)) {
+                parentTermId = getParentId(parentTermId);
+                if (!result.contains(parentTermId) && queued.add(parentTermId)) {
                     front.add(parentTermId);
                 }
             }
         }
         this.put(TERM_CATEGORY_FIELD_NAME, result);
     }
+
+    private static String getParentId(String parentReference)
+    {
+        return parentReference.indexOf('!') >= 0 ? PARENT_COMMENT.matcher(parentReference).replaceFirst("")
+            : parentReference;
+    }
 }
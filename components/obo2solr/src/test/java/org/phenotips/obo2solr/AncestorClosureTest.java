@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AncestorClosureTest
+{
+    private Map<String, TermData> sent;
+
+    private AncestorClosure closure;
+
+    @Before
+    public void setUp()
+    {
+        this.sent = new LinkedHashMap<>();
+        this.closure = new AncestorClosure(term -> this.sent.put(term.getId(), term));
+    }
+
+    @Test
+    public void termsAreSentAsSoonAsTheirParentsAreSent()
+    {
+        this.closure.add(term("A"));
+        this.closure.add(term("B", "A"));
+        Assert.assertEquals(Arrays.asList("A", "B"), new LinkedList<>(this.sent.keySet()));
+
+        this.closure.finish();
+        assertCategories("B", "A", "B");
+    }
+
+    @Test
+    public void termsWaitForParentsDefinedLater()
+    {
+        this.closure.add(term("C", "B"));
+        this.closure.add(term("A"));
+        Assert.assertFalse(this.sent.containsKey("C"));
+
+        this.closure.add(term("B", "A"));
+        Assert.assertEquals(Arrays.asList("A", "B", "C"), new LinkedList<>(this.sent.keySet()));
+        assertCategories("C", "A", "B", "C");
+    }
+
+    @Test
+    public void missingParentsAreKeptAsCategories()
+    {
+        this.closure.add(term("A"));
+        this.closure.add(term("B", "A", "MISSING"));
+        this.closure.add(term("C", "B"));
+        Assert.assertFalse(this.sent.containsKey("B"));
+
+        this.closure.finish();
+        Assert.assertEquals(3, this.sent.size());
+        assertCategories("B", "A", "B", "MISSING");
+        assertCategories("C", "A", "B", "C", "MISSING");
+        List<String> order = new LinkedList<>(this.sent.keySet());
+        Assert.assertTrue(order.indexOf("B") < order.indexOf("C"));
+    }
+
+    @Test
+    public void cyclesAreBroken()
+    {
+        this.closure.add(term("A", "B"));
+        this.closure.add(term("B", "A"));
+        this.closure.add(term("C", "B"));
+        this.closure.add(term("D", "D"));
+
+        this.closure.finish();
+        Assert.assertEquals(4, this.sent.size());
+        assertCategories("A", "A", "B");
+        assertCategories("B", "A", "B");
+        assertCategories("C", "A", "B", "C");
+        assertCategories("D", "D");
+    }
+
+    @Test
+    public void duplicateDefinitionsReplaceWaitingTerms()
+    {
+        this.closure.add(term("B", "A"));
+        this.closure.add(term("B", "C"));
+        this.closure.add(term("C"));
+        this.closure.add(term("A"));
+
+        this.closure.finish();
+        Assert.assertEquals(3, this.sent.size());
+        assertCategories("B", "B", "C");
+    }
+
+    private void assertCategories(String id, String... categories)
+    {
+        Assert.assertEquals(new HashSet<>(Arrays.asList(categories)),
+            new HashSet<>(this.sent.get(id).get(TermData.TERM_CATEGORY_FIELD_NAME)));
+    }
+
+    private TermData term(String id, String... parents)
+    {
+        TermData result = new TermData();
+        result.addTo(TermData.ID_FIELD_NAME, id);
+        for (String parent : parents) {
+            result.addTo(TermData.PARENT_FIELD_NAME, parent);
+        }
+        return result;
+    }
+}
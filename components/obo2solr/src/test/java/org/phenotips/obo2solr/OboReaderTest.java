@@ -0,0 +1,118 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OboReaderTest
+{
+    @Test
+    public void headerIsReadAsATermWhenItHasADataVersion() throws IOException
+    {
+        List<TermData> terms = read("format-version: 1.2\ndata-version: hp/2017-01-01\n\n[Term]\nid: HP:0000001\n",
+            Collections.<String, Double>emptyMap());
+
+        Assert.assertEquals(2, terms.size());
+        Assert.assertEquals("HEADER_INFO", terms.get(0).getId());
+        Assert.assertEquals(Collections.singleton("hp/2017-01-01"), terms.get(0).get("version"));
+        Assert.assertEquals(Collections.singleton("1.2"), terms.get(0).get("format-version"));
+        Assert.assertEquals("HP:0000001", terms.get(1).getId());
+    }
+
+    @Test
+    public void headerWithoutDataVersionDoesNotLeakIntoTheFirstTerm() throws IOException
+    {
+        List<TermData> terms = read("format-version: 1.2\nontology: hp\n\n[Term]\nid: HP:0000001\nname: All\n",
+            Collections.<String, Double>emptyMap());
+
+        Assert.assertEquals(1, terms.size());
+        Assert.assertEquals("HP:0000001", terms.get(0).getId());
+        Assert.assertFalse(terms.get(0).containsKey("format-version"));
+        Assert.assertFalse(terms.get(0).containsKey("ontology"));
+    }
+
+    @Test
+    public void otherStanzasAreSkipped() throws IOException
+    {
+        List<TermData> terms = read("[Term]\nid: HP:0000001\n\n[Typedef]\nid: part_of\nname: part of\n\n"
+            + "[Term]\nid: HP:0000002\n", Collections.<String, Double>emptyMap());
+
+        Assert.assertEquals(2, terms.size());
+        Assert.assertEquals("HP:0000001", terms.get(0).getId());
+        Assert.assertEquals("HP:0000002", terms.get(1).getId());
+    }
+
+    @Test
+    public void valuesAreCleanedUp() throws IOException
+    {
+        List<TermData> terms = read("[Term]\nid: HP:0000002\nname: Abnormality of the \\\"limbs\\\"\n"
+            + "def: \"An abnormality of the limbs.\" [HPO:curators]\nsynonym: \"Limb anomaly\" EXACT []\n"
+            + "xref: UMLS:C0000001 {source=\"curated\"}\nis_a: HP:0000001 ! All\n"
+            + "comment: Includes: arms, legs\n", Collections.<String, Double>emptyMap());
+
+        TermData term = terms.get(0);
+        Assert.assertEquals(Collections.singleton("Abnormality of the \"limbs\""), term.get("name"));
+        Assert.assertEquals(Collections.singleton("An abnormality of the limbs."), term.get("def"));
+        Assert.assertEquals(Collections.singleton("Limb anomaly"), term.get("synonym"));
+        Assert.assertEquals(Collections.singleton("UMLS:C0000001"), term.get("xref"));
+        Assert.assertEquals(Collections.singleton("HP:0000001"), term.get("is_a"));
+        Assert.assertEquals(Collections.singleton("HP:0000001"), term.get(TermData.TERM_CATEGORY_FIELD_NAME));
+        Assert.assertEquals(Collections.singleton("Includes: arms, legs"), term.get("comment"));
+    }
+
+    @Test
+    public void parentCommentsAreRemovedForAllOntologies() throws IOException
+    {
+        List<TermData> terms = read("[Term]\nid: MONDO:0000002\nis_a: MONDO:0000001 ! disease\n",
+            Collections.<String, Double>emptyMap());
+
+        Assert.assertEquals(Collections.singleton("MONDO:0000001"),
+            terms.get(0).get(TermData.TERM_CATEGORY_FIELD_NAME));
+    }
+
+    @Test
+    public void onlySelectedFieldsAreKept() throws IOException
+    {
+        Map<String, Double> selection = new HashMap<>();
+        selection.put("id", 1.0);
+        selection.put("name", 1.0);
+        List<TermData> terms = read("[Term]\nid: HP:0000002\nname: Limbs\ndef: \"Limbs.\" []\nis_a: HP:0000001\n",
+            selection);
+
+        Assert.assertEquals(new LinkedHashSet<>(Arrays.asList("id", "name")), terms.get(0).keySet());
+    }
+
+    private List<TermData> read(String input, Map<String, Double> fieldSelection) throws IOException
+    {
+        final List<TermData> terms = new LinkedList<>();
+        new OboReader(fieldSelection, terms::add).read(new BufferedReader(new StringReader(input)));
+        return terms;
+    }
+}
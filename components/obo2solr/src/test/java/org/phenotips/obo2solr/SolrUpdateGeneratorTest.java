@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SolrUpdateGeneratorTest
+{
+    private static final Map<String, Double> ALL_FIELDS = Collections.emptyMap();
+
+    private final URL ontology = getClass().getResource("/ontology.obo");
+
+    /** The expected values were produced by the implementation which read the whole ontology before expanding it. */
+    @Test
+    public void transformGivesTheSameResultsAsThePreviousImplementation()
+    {
+        Map<String, TermData> data = new SolrUpdateGenerator().transform(this.ontology, ALL_FIELDS);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("HEADER_INFO", "HP:0000001", "HP:0000002", "HP:0000003",
+            "HP:0000004")), data.keySet());
+
+        TermData header = data.get("HEADER_INFO");
+        assertValues(header, "version", "releases/2017-01-01");
+        assertValues(header, "data-version", "releases/2017-01-01");
+        assertValues(header, "format-version", "1.2");
+        assertValues(header, "saved-by", "tester");
+        assertValues(header, "default-namespace", "test_ontology");
+        assertValues(header, TermData.TERM_CATEGORY_FIELD_NAME, "HEADER_INFO");
+
+        TermData root = data.get("HP:0000001");
+        Assert.assertEquals(4, root.size());
+        assertValues(root, "name", "All");
+        assertValues(root, "comment", "The root of the ontology");
+        assertValues(root, TermData.TERM_CATEGORY_FIELD_NAME, "HP:0000001");
+
+        TermData limbs = data.get("HP:0000002");
+        Assert.assertEquals(6, limbs.size());
+        assertValues(limbs, "name", "Abnormality of the \"limbs\"");
+        assertValues(limbs, "def", "An abnormality of the limbs.");
+        assertValues(limbs, "synonym", "Limb anomaly", "Limb defect");
+        assertValues(limbs, "is_a", "HP:0000001");
+        assertValues(limbs, TermData.TERM_CATEGORY_FIELD_NAME, "HP:0000001", "HP:0000002");
+
+        assertValues(data.get("HP:0000003"), TermData.TERM_CATEGORY_FIELD_NAME, "HP:0000001", "HP:0000002",
+            "HP:0000003");
+
+        TermData finger = data.get("HP:0000004");
+        Assert.assertEquals(5, finger.size());
+        assertValues(finger, "name", "Short finger");
+        assertValues(finger, "xref", "UMLS:C0000001");
+        assertValues(finger, "is_a", "HP:0000003", "HP:0000002");
+        assertValues(finger, TermData.TERM_CATEGORY_FIELD_NAME, "HP:0000001", "HP:0000002", "HP:0000003",
+            "HP:0000004");
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void categoriesMatchTheExpansionOfEachTerm() throws IOException
+    {
+        Map<String, TermData> expected = new LinkedHashMap<>();
+        try (BufferedReader in =
+            new BufferedReader(new InputStreamReader(this.ontology.openStream(), StandardCharsets.UTF_8))) {
+            new OboReader(ALL_FIELDS, term -> expected.put(term.getId(), term)).read(in);
+        }
+        for (TermData term : expected.values()) {
+            term.expandTermCategories(expected);
+        }
+
+        Map<String, TermData> data = new SolrUpdateGenerator().transform(this.ontology, ALL_FIELDS);
+
+        Assert.assertEquals(expected.keySet(), data.keySet());
+        for (Map.Entry<String, TermData> term : expected.entrySet()) {
+            Assert.assertEquals(term.getValue(), data.get(term.getKey()));
+        }
+    }
+
+    @Test
+    public void parentsAreSentBeforeTheirChildren()
+    {
+        final List<String> order = new LinkedList<>();
+        Assert.assertTrue(new SolrUpdateGenerator().transform(this.ontology, ALL_FIELDS,
+            term -> order.add(term.getId())));
+
+        Assert.assertEquals(5, order.size());
+        Assert.assertTrue(order.indexOf("HP:0000001") < order.indexOf("HP:0000002"));
+        Assert.assertTrue(order.indexOf("HP:0000002") < order.indexOf("HP:0000003"));
+        Assert.assertTrue(order.indexOf("HP:0000003") < order.indexOf("HP:0000004"));
+    }
+
+    @Test
+    public void termsAreSentAsTheyAreReadWhenCategoriesAreNotSelected()
+    {
+        Map<String, Double> selection = new HashMap<>();
+        selection.put("id", 1.0);
+        selection.put("is_a", 1.0);
+        final List<String> order = new LinkedList<>();
+        Assert.assertTrue(new SolrUpdateGenerator().transform(this.ontology, selection,
+            term -> order.add(term.getId())));
+
+        Assert.assertEquals(Arrays.asList("HEADER_INFO", "HP:0000001", "HP:0000002", "HP:0000004", "HP:0000003"),
+            order);
+    }
+
+    @Test
+    public void missingFilesAreReported() throws IOException
+    {
+        URL missing = new File("missing.obo").getAbsoluteFile().toURI().toURL();
+        Assert.assertFalse(new SolrUpdateGenerator().transform(missing, ALL_FIELDS, term -> Assert.fail()));
+    }
+
+    private void assertValues(TermData term, String field, String... values)
+    {
+        Collection<String> actual = term.get(field);
+        Assert.assertNotNull(field + " is missing", actual);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(values)), new HashSet<>(actual));
+    }
+}
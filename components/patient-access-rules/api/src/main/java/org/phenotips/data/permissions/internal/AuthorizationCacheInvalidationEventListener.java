@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.permissions.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.permissions.events.PatientRightsUpdatedEvent;
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Drops the cached authorization decisions taken on a patient record whenever its access rights are updated.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("phenotips-patient-rights-authorization-cache")
+@Singleton
+public class AuthorizationCacheInvalidationEventListener extends AbstractEventListener
+{
+    @Inject
+    private AuthorizationDecisionCache cache;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<EntityReference> resolver;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public AuthorizationCacheInvalidationEventListener()
+    {
+        super("phenotips-patient-rights-authorization-cache", new PatientRightsUpdatedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        String patientId = ((PatientRightsUpdatedEvent) event).getPatientId();
+        if (patientId == null) {
+            this.cache.invalidateAll();
+        } else {
+            this.cache.invalidate(this.resolver.resolve(
+                new EntityReference(patientId, EntityType.DOCUMENT, Patient.DEFAULT_DATA_SPACE)));
+        }
+    }
+}
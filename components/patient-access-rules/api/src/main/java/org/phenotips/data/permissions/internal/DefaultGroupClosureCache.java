@@ -0,0 +1,123 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.permissions.internal;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.model.reference.DocumentReference;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.user.api.XWikiGroupService;
+
+/**
+ * Default {@link GroupClosureCache} implementation, which computes closures by walking the group hierarchy through the
+ * XWiki group service, and keeps them in memory until the groups they include change. There is one entry for each
+ * user or group that was checked, so the size is bounded by the number of users and groups in the instance.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Singleton
+public class DefaultGroupClosureCache implements GroupClosureCache
+{
+    private final Map<DocumentReference, Set<DocumentReference>> closures = new ConcurrentHashMap<>();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    @Inject
+    private Execution execution;
+
+    @Override
+    public Set<DocumentReference> resolve(DocumentReference userOrGroup) throws XWikiException
+    {
+        if (userOrGroup == null) {
+            return Collections.emptySet();
+        }
+        Set<DocumentReference> result = get(userOrGroup);
+        if (result != null) {
+            return result;
+        }
+        long currentGeneration = getGeneration();
+        result = new HashSet<>();
+        Queue<DocumentReference> entitiesToCheck = new LinkedList<>();
+        entitiesToCheck.add(userOrGroup);
+        XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
+        XWikiGroupService groupService = context.getWiki().getGroupService(context);
+        while (!entitiesToCheck.isEmpty()) {
+            DocumentReference currentItem = entitiesToCheck.poll();
+            if (result.add(currentItem)) {
+                entitiesToCheck.addAll(groupService.getAllGroupsReferencesForMember(currentItem, 0, 0, context));
+            }
+        }
+        put(userOrGroup, result, currentGeneration);
+        return Collections.unmodifiableSet(result);
+    }
+
+    @Override
+    public Set<DocumentReference> get(DocumentReference userOrGroup)
+    {
+        return userOrGroup == null ? null : this.closures.get(userOrGroup);
+    }
+
+    @Override
+    public long getGeneration()
+    {
+        return this.generation.get();
+    }
+
+    @Override
+    public void put(DocumentReference userOrGroup, Set<DocumentReference> closure, long generation)
+    {
+        if (userOrGroup == null || closure == null || generation != this.generation.get()) {
+            return;
+        }
+        this.closures.put(userOrGroup, Collections.unmodifiableSet(new HashSet<>(closure)));
+        // An invalidation may have happened while the closure was being stored
+        if (generation != this.generation.get()) {
+            this.closures.remove(userOrGroup);
+        }
+    }
+
+    @Override
+    public void invalidate(Collection<DocumentReference> changedEntities)
+    {
+        this.generation.incrementAndGet();
+        Iterator<Set<DocumentReference>> it = this.closures.values().iterator();
+        while (it.hasNext()) {
+            if (!Collections.disjoint(it.next(), changedEntities)) {
+                it.remove();
+            }
+        }
+    }
+}
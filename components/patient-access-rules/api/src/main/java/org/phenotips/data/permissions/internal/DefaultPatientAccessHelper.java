@@ -36,10 +36,8 @@
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
 
@@ -55,7 +53,6 @@
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
-import com.xpn.xwiki.user.api.XWikiGroupService;
 
 /**
  * @version $Id$
@@ -96,6 +93,9 @@ public class DefaultPatientAccessHelper implements PatientAccessHelper
     @Inject
     private AuthorizationManager rights;
 
+    @Inject
+    private GroupClosureCache groupClosures;
+
     @Override
     public DocumentReference getCurrentUser()
     {
@@ -199,26 +199,12 @@ public AccessLevel getAccessLevel(Patient patient, EntityReference user)
             return result;
         }
         try {
-            EntityReference owner = getOwner(patient).getUser();
-            Collection<Collaborator> collaborators = getCollaborators(patient);
-            Set<DocumentReference> processedEntities = new HashSet<DocumentReference>();
-            Queue<DocumentReference> entitiesToCheck = new LinkedList<DocumentReference>();
-            entitiesToCheck.add((DocumentReference) user);
-            AccessLevel currentItemAccess = null;
-            DocumentReference currentItem;
-            XWikiContext context = getXWikiContext();
-            XWikiGroupService groupService = context.getWiki().getGroupService(context);
-            while (!entitiesToCheck.isEmpty()) {
-                currentItem = entitiesToCheck.poll();
-                currentItemAccess = getAccessLevel(currentItem, owner, collaborators);
-                if (currentItemAccess.compareTo(result) > 0) {
-                    result = currentItemAccess;
+            Map<EntityReference, AccessLevel> accessMap = getAccessMap(patient);
+            Set<DocumentReference> userAndGroups = this.groupClosures.resolve((DocumentReference) user);
+            for (Map.Entry<EntityReference, AccessLevel> entry : accessMap.entrySet()) {
+                if (userAndGroups.contains(entry.getKey()) && entry.getValue().compareTo(result) > 0) {
+                    result = entry.getValue();
                 }
-                processedEntities.add(currentItem);
-                Collection<DocumentReference> groups =
-                    groupService.getAllGroupsReferencesForMember(currentItem, 0, 0, context);
-                groups.removeAll(processedEntities);
-                entitiesToCheck.addAll(groups);
             }
         } catch (XWikiException ex) {
             this.logger.warn("Failed to compute access level for [{}] on [{}]: {}", user, patient.getId(),
@@ -365,18 +351,21 @@ public String getType(EntityReference userOrGroup)
         return "unknown";
     }
 
-    private AccessLevel getAccessLevel(EntityReference userOrGroup, EntityReference owner,
-        Collection<Collaborator> collaborators)
+    /**
+     * Lists the access level granted on a patient record to each user or group explicitly mentioned in it, i.e. its
+     * owner and its collaborators.
+     */
+    private Map<EntityReference, AccessLevel> getAccessMap(Patient patient)
     {
-        if (userOrGroup.equals(owner)) {
-            return this.manager.resolveAccessLevel("owner");
+        Map<EntityReference, AccessLevel> result = new HashMap<>();
+        for (Collaborator collaborator : getCollaborators(patient)) {
+            result.put(collaborator.getUser(), collaborator.getAccessLevel());
         }
-        for (Collaborator collaborator : collaborators) {
-            if (collaborator.getUser().equals(userOrGroup)) {
-                return collaborator.getAccessLevel();
-            }
+        EntityReference owner = getOwner(patient).getUser();
+        if (owner != null) {
+            result.put(owner, this.manager.resolveAccessLevel("owner"));
         }
-        return this.manager.resolveAccessLevel("none");
+        return result;
     }
 
     private XWikiContext getXWikiContext()
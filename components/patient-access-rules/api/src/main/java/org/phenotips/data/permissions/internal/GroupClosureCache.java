@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.permissions.internal;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+import java.util.Collection;
+import java.util.Set;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Shared cache of the transitive group closure of users and groups, i.e. the entity itself together with all the
+ * groups it belongs to, directly or through other groups.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Role
+public interface GroupClosureCache
+{
+    /**
+     * Returns the closure of a user or group, computing and storing it if it isn't already known.
+     *
+     * @param userOrGroup the user or group whose closure is requested
+     * @return an unmodifiable set containing {@code userOrGroup} and all its groups, empty if {@code userOrGroup} is
+     *         {@code null}
+     * @throws XWikiException if the groups can't be retrieved
+     */
+    Set<DocumentReference> resolve(DocumentReference userOrGroup) throws XWikiException;
+
+    /**
+     * Looks up a previously computed closure.
+     *
+     * @param userOrGroup the user or group whose closure is requested
+     * @return an unmodifiable set containing {@code userOrGroup} and all its groups, or {@code null} if not known
+     */
+    Set<DocumentReference> get(DocumentReference userOrGroup);
+
+    /**
+     * Returns the current generation of the cache, which changes every time closures are invalidated. Must be read
+     * before computing a closure, and passed back to {@link #put}.
+     *
+     * @return the current generation
+     */
+    long getGeneration();
+
+    /**
+     * Stores a closure, unless the cache was invalidated since {@code generation} was obtained.
+     *
+     * @param userOrGroup the user or group whose closure was computed
+     * @param closure the computed closure, including {@code userOrGroup} itself
+     * @param generation the {@link #getGeneration() generation} read before the closure was computed
+     */
+    void put(DocumentReference userOrGroup, Set<DocumentReference> closure, long generation);
+
+    /**
+     * Drops all the closures which include any of the changed entities.
+     *
+     * @param changedEntities groups whose members changed, and users or groups added to or removed from groups
+     */
+    void invalidate(Collection<DocumentReference> changedEntities);
+}
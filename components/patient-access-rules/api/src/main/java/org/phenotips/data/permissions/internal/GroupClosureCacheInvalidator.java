@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.permissions.internal;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Drops the cached group closures affected by a change in a group document: the closures of the group itself, and of
+ * all the users and groups that were or are now members of it.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("phenotips-group-closure-cache-invalidator")
+@Singleton
+public class GroupClosureCacheInvalidator extends AbstractEventListener
+{
+    private static final EntityReference GROUP_CLASS = new EntityReference("XWikiGroups", EntityType.DOCUMENT,
+        new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE));
+
+    @Inject
+    private GroupClosureCache cache;
+
+    @Inject
+    @Named("currentmixed")
+    private DocumentReferenceResolver<String> stringEntityResolver;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public GroupClosureCacheInvalidator()
+    {
+        super("phenotips-group-closure-cache-invalidator", new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+            new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument doc = (XWikiDocument) source;
+        Collection<DocumentReference> changed = new HashSet<>();
+        addMembers(doc, changed);
+        addMembers(doc.getOriginalDocument(), changed);
+        if (!changed.isEmpty()) {
+            this.cache.invalidate(changed);
+        }
+    }
+
+    private void addMembers(XWikiDocument doc, Collection<DocumentReference> members)
+    {
+        if (doc == null) {
+            return;
+        }
+        List<BaseObject> memberObjects = doc.getXObjects(GROUP_CLASS);
+        if (memberObjects == null || memberObjects.isEmpty()) {
+            return;
+        }
+        // Even a group without members must invalidate its own closure
+        members.add(doc.getDocumentReference());
+        for (BaseObject o : memberObjects) {
+            if (o == null) {
+                continue;
+            }
+            String member = o.getStringValue("member");
+            if (StringUtils.isNotBlank(member)) {
+                members.add(this.stringEntityResolver.resolve(member, doc.getDocumentReference()));
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.permissions.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.permissions.AccessLevel;
+import org.phenotips.data.permissions.PermissionsManager;
+import org.phenotips.data.permissions.Visibility;
+import org.phenotips.security.authorization.AuthorizationModule;
+import org.phenotips.security.authorization.BatchAuthorizationModule;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.users.User;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Grants access to patient records based on their owner, collaborators and visibility, checking whole batches of
+ * records at once. The XWiki rights objects of a record are kept in sync with this data by the
+ * {@link RightsUpdateEventListener}, so this module grants what the XWiki ACLs would grant through those objects,
+ * without checking each record separately: the groups of the user are resolved once for the whole batch, and the owner,
+ * collaborators and visibility of all the records are loaded with a single query. Since the ACLs may also grant access
+ * through the space or wiki rights, this module never denies access, it leaves the remaining records to the lower
+ * priority {@code xwiki-acl} module. Explicit denials, which the ACLs honour over any grant, aren't evaluated here
+ * either: records which carry a rights object denying some right, or which are in a space or wiki carrying one, are
+ * also left to the {@code xwiki-acl} module. It only applies to documents in the patient data space, and only to the
+ * rights stored in the rights objects of a record.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { AuthorizationModule.class })
+@Named("patient-access")
+@Singleton
+public class PatientAccessAuthorizationModule implements BatchAuthorizationModule
+{
+    private static final String OWNER_CLASS = "PhenoTips.OwnerClass";
+
+    private static final String COLLABORATOR_CLASS = "PhenoTips.CollaboratorClass";
+
+    private static final String VISIBILITY_CLASS = "PhenoTips.VisibilityClass";
+
+    private static final String ACCESS = "access";
+
+    private static final String SPACE_PREFERENCES = "WebPreferences";
+
+    private static final String WIKI_PREFERENCES = "XWiki.XWikiPreferences";
+
+    private static final String STATEMENT = "select o.name, o.id, o.className, p.id.name, p.value"
+        + " from BaseObject o, StringProperty p where o.name in (:names) and o.className in (:classes)"
+        + " and p.id.id = o.id and p.id.name in ('owner', 'collaborator', 'access', 'visibility')";
+
+    /** Finds which of the documents hold rights objects explicitly denying some right. */
+    private static final String DENY_STATEMENT = "select distinct o.name from BaseObject o, IntegerProperty p"
+        + " where o.name in (:names) and o.className in ('XWiki.XWikiRights', 'XWiki.XWikiGlobalRights')"
+        + " and p.id.id = o.id and p.id.name = 'allow' and p.value = 0";
+
+    /** The access level needed for each of the rights granted through the rights objects of a record. */
+    private static final Map<Right, String> REQUIRED_LEVELS = new HashMap<>();
+
+    static {
+        REQUIRED_LEVELS.put(Right.VIEW, "view");
+        REQUIRED_LEVELS.put(Right.EDIT, "edit");
+        REQUIRED_LEVELS.put(Right.DELETE, "manage");
+    }
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private QueryManager queries;
+
+    @Inject
+    private PermissionsManager manager;
+
+    @Inject
+    private GroupClosureCache groupClosures;
+
+    @Inject
+    @Named("currentmixed")
+    private DocumentReferenceResolver<String> stringEntityResolver;
+
+    @Override
+    public int getPriority()
+    {
+        // Above the XWiki ACLs, but below record locking, which may still deny write access
+        return 105;
+    }
+
+    @Override
+    public boolean appliesTo(EntityReference entity)
+    {
+        if (!(entity instanceof DocumentReference)) {
+            return false;
+        }
+        EntityReference space = entity.extractReference(EntityType.SPACE);
+        return space != null && Patient.DEFAULT_DATA_SPACE.getName().equals(space.getName());
+    }
+
+    @Override
+    public Boolean hasAccess(User user, Right access, EntityReference entity)
+    {
+        if (entity == null || !appliesTo(entity)) {
+            return null;
+        }
+        return hasAccess(user, access, Collections.singletonList(entity)).get(entity);
+    }
+
+    @Override
+    public Map<EntityReference, Boolean> hasAccess(User user, Right access,
+        Collection<? extends EntityReference> entities)
+    {
+        AccessLevel required = access == null ? null : this.manager.resolveAccessLevel(REQUIRED_LEVELS.get(access));
+        if (required == null || user == null || user.getProfileDocument() == null || entities.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<EntityReference, Boolean> result = new HashMap<>();
+        try {
+            Set<DocumentReference> userAndGroups = this.groupClosures.resolve(user.getProfileDocument());
+            for (Map.Entry<String, Map<String, DocumentReference>> wiki : groupByWiki(entities).entrySet()) {
+                Map<DocumentReference, AccessLevel> levels = getAccessLevels(wiki.getKey(), wiki.getValue(),
+                    userAndGroups);
+                List<DocumentReference> granted = new ArrayList<>();
+                for (DocumentReference document : wiki.getValue().values()) {
+                    AccessLevel level = levels.get(document);
+                    if (level != null && level.compareTo(required) >= 0) {
+                        granted.add(document);
+                    }
+                }
+                if (!granted.isEmpty()) {
+                    Set<String> denying = getDenyingDocuments(wiki.getKey(), granted);
+                    for (DocumentReference document : granted) {
+                        if (!isDenied(document, denying)) {
+                            result.put(document, Boolean.TRUE);
+                        }
+                    }
+                }
+            }
+        } catch (XWikiException | QueryException ex) {
+            this.logger.warn("Failed to check access rights on patient records: {}", ex.getMessage());
+        }
+        return result;
+    }
+
+    private Map<String, Map<String, DocumentReference>> groupByWiki(Collection<? extends EntityReference> entities)
+    {
+        Map<String, Map<String, DocumentReference>> result = new LinkedHashMap<>();
+        for (EntityReference entity : entities) {
+            DocumentReference document = (DocumentReference) entity;
+            Map<String, DocumentReference> documents = result.get(document.getWikiReference().getName());
+            if (documents == null) {
+                documents = new LinkedHashMap<>();
+                result.put(document.getWikiReference().getName(), documents);
+            }
+            documents.put(getLocalName(document), document);
+        }
+        return result;
+    }
+
+    /**
+     * Computes the highest access level that the user has on each document, as the owner, as a collaborator, or
+     * through the record visibility, from the objects of all the documents loaded with one query.
+     */
+    private Map<DocumentReference, AccessLevel> getAccessLevels(String wiki, Map<String, DocumentReference> documents,
+        Set<DocumentReference> userAndGroups) throws QueryException
+    {
+        Query query = this.queries.createQuery(STATEMENT, Query.HQL);
+        query.setWiki(wiki);
+        query.bindValue("names", new ArrayList<>(documents.keySet()));
+        query.bindValue("classes", Arrays.asList(OWNER_CLASS, COLLABORATOR_CLASS, VISIBILITY_CLASS));
+        List<Object[]> rows = query.execute();
+
+        // The collaborator objects hold two properties each, the principal and its access level
+        Map<Object, String[]> collaborators = new HashMap<>();
+        Map<DocumentReference, AccessLevel> result = new HashMap<>();
+        for (Object[] row : rows) {
+            DocumentReference document = documents.get(String.valueOf(row[0]));
+            String value = (String) row[4];
+            if (document == null || StringUtils.isBlank(value)) {
+                continue;
+            }
+            if (COLLABORATOR_CLASS.equals(row[2])) {
+                String[] collaborator = collaborators.get(row[1]);
+                if (collaborator == null) {
+                    collaborator = new String[] { String.valueOf(row[0]), null, null };
+                    collaborators.put(row[1], collaborator);
+                }
+                collaborator[ACCESS.equals(row[3]) ? 2 : 1] = value;
+            } else if (OWNER_CLASS.equals(row[2])) {
+                if (userAndGroups.contains(this.stringEntityResolver.resolve(value, document))) {
+                    raise(result, document, this.manager.resolveAccessLevel("owner"));
+                }
+            } else {
+                // All the registered users are members of XWikiAllGroup, which gets the default visibility access
+                Visibility visibility = this.manager.resolveVisibility(value);
+                if (visibility != null) {
+                    raise(result, document, visibility.getDefaultAccessLevel());
+                }
+            }
+        }
+        for (String[] collaborator : collaborators.values()) {
+            DocumentReference document = documents.get(collaborator[0]);
+            if (collaborator[1] != null && collaborator[2] != null
+                && userAndGroups.contains(this.stringEntityResolver.resolve(collaborator[1], document))) {
+                raise(result, document, this.manager.resolveAccessLevel(collaborator[2]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds which of the granted documents, their spaces, and the wiki preferences, hold rights objects explicitly
+     * denying some right, to some user.
+     */
+    private Set<String> getDenyingDocuments(String wiki, Collection<DocumentReference> documents) throws QueryException
+    {
+        Set<String> names = new LinkedHashSet<>();
+        for (DocumentReference document : documents) {
+            names.add(getLocalName(document));
+            names.add(document.getLastSpaceReference().getName() + '.' + SPACE_PREFERENCES);
+        }
+        names.add(WIKI_PREFERENCES);
+        Query query = this.queries.createQuery(DENY_STATEMENT, Query.HQL);
+        query.setWiki(wiki);
+        query.bindValue("names", new ArrayList<>(names));
+        List<Object> rows = query.execute();
+        Set<String> result = new HashSet<>();
+        for (Object row : rows) {
+            result.add(String.valueOf(row));
+        }
+        return result;
+    }
+
+    private boolean isDenied(DocumentReference document, Set<String> denying)
+    {
+        return !denying.isEmpty() && (denying.contains(WIKI_PREFERENCES) || denying.contains(getLocalName(document))
+            || denying.contains(document.getLastSpaceReference().getName() + '.' + SPACE_PREFERENCES));
+    }
+
+    private String getLocalName(DocumentReference document)
+    {
+        return document.getLastSpaceReference().getName() + '.' + document.getName();
+    }
+
+    private void raise(Map<DocumentReference, AccessLevel> levels, DocumentReference document, AccessLevel level)
+    {
+        AccessLevel current = levels.get(document);
+        if (level != null && (current == null || level.compareTo(current) > 0)) {
+            levels.put(document, level);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.permissions.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.permissions.events.PatientRightsUpdatedEvent;
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
+
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link AuthorizationCacheInvalidationEventListener}.
+ *
+ * @version $Id$
+ */
+public class AuthorizationCacheInvalidationEventListenerTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<EventListener> mocker =
+        new MockitoComponentMockingRule<EventListener>(AuthorizationCacheInvalidationEventListener.class);
+
+    @Test
+    public void decisionsOnTheUpdatedPatientAreInvalidated() throws Exception
+    {
+        DocumentReference patientReference = new DocumentReference("xwiki", "data", "P0000001");
+        DocumentReferenceResolver<EntityReference> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_REFERENCE, "current");
+        when(resolver.resolve(new EntityReference("P0000001", EntityType.DOCUMENT, Patient.DEFAULT_DATA_SPACE)))
+            .thenReturn(patientReference);
+
+        this.mocker.getComponentUnderTest().onEvent(new PatientRightsUpdatedEvent("P0000001"), null, null);
+
+        verify(this.mocker.<AuthorizationDecisionCache>getInstance(AuthorizationDecisionCache.class))
+            .invalidate(patientReference);
+    }
+
+    @Test
+    public void allDecisionsAreInvalidatedWhenThePatientIsUnknown() throws Exception
+    {
+        this.mocker.getComponentUnderTest().onEvent(new PatientRightsUpdatedEvent(), null, null);
+
+        verify(this.mocker.<AuthorizationDecisionCache>getInstance(AuthorizationDecisionCache.class))
+            .invalidateAll();
+    }
+}
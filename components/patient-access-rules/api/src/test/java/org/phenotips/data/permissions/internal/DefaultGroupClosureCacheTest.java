@@ -0,0 +1,140 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.permissions.internal;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.user.api.XWikiGroupService;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultGroupClosureCache} component.
+ *
+ * @version $Id$
+ */
+public class DefaultGroupClosureCacheTest
+{
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "padams");
+
+    private static final DocumentReference OTHER_USER = new DocumentReference("xwiki", "XWiki", "hmccoy");
+
+    private static final DocumentReference GROUP = new DocumentReference("xwiki", "Groups", "Consortium");
+
+    private static final DocumentReference PARENT_GROUP = new DocumentReference("xwiki", "Groups", "Everyone");
+
+    @Rule
+    public final MockitoComponentMockingRule<GroupClosureCache> mocker =
+        new MockitoComponentMockingRule<GroupClosureCache>(DefaultGroupClosureCache.class);
+
+    @Test
+    public void storedClosuresAreReturned() throws Exception
+    {
+        GroupClosureCache cache = this.mocker.getComponentUnderTest();
+        Assert.assertNull(cache.get(USER));
+
+        Set<DocumentReference> closure = new HashSet<>(Arrays.asList(USER, GROUP, PARENT_GROUP));
+        cache.put(USER, closure, cache.getGeneration());
+
+        Assert.assertEquals(closure, cache.get(USER));
+        Assert.assertNull(cache.get(OTHER_USER));
+        Assert.assertNull(cache.get(null));
+    }
+
+    @Test
+    public void closuresComputedBeforeAnInvalidationAreNotStored() throws Exception
+    {
+        GroupClosureCache cache = this.mocker.getComponentUnderTest();
+        long generation = cache.getGeneration();
+        cache.invalidate(Collections.singleton(GROUP));
+        cache.put(USER, Collections.singleton(USER), generation);
+
+        Assert.assertNull(cache.get(USER));
+    }
+
+    @Test
+    public void invalidateOnlyDropsTheClosuresIncludingChangedEntities() throws Exception
+    {
+        GroupClosureCache cache = this.mocker.getComponentUnderTest();
+        cache.put(USER, new HashSet<>(Arrays.asList(USER, GROUP, PARENT_GROUP)), cache.getGeneration());
+        cache.put(OTHER_USER, new HashSet<>(Arrays.asList(OTHER_USER, PARENT_GROUP)), cache.getGeneration());
+        cache.put(GROUP, new HashSet<>(Arrays.asList(GROUP, PARENT_GROUP)), cache.getGeneration());
+
+        cache.invalidate(Collections.singleton(GROUP));
+
+        Assert.assertNull(cache.get(USER));
+        Assert.assertNull(cache.get(GROUP));
+        Assert.assertNotNull(cache.get(OTHER_USER));
+    }
+
+    @Test
+    public void resolveWalksNestedGroupsAndStoresTheClosure() throws Exception
+    {
+        XWikiGroupService groupService = mockGroupService();
+        when(groupService.getAllGroupsReferencesForMember(Mockito.eq(USER), Mockito.eq(0), Mockito.eq(0),
+            Mockito.any(XWikiContext.class))).thenReturn(Arrays.asList(GROUP));
+        when(groupService.getAllGroupsReferencesForMember(Mockito.eq(GROUP), Mockito.eq(0), Mockito.eq(0),
+            Mockito.any(XWikiContext.class))).thenReturn(Arrays.asList(PARENT_GROUP, USER));
+        GroupClosureCache cache = this.mocker.getComponentUnderTest();
+
+        Set<DocumentReference> expected = new HashSet<>(Arrays.asList(USER, GROUP, PARENT_GROUP));
+        Assert.assertEquals(expected, cache.resolve(USER));
+        Assert.assertEquals(expected, cache.get(USER));
+
+        // Taken from the cache afterwards
+        Assert.assertEquals(expected, cache.resolve(USER));
+        Mockito.verify(groupService).getAllGroupsReferencesForMember(Mockito.eq(USER), Mockito.eq(0),
+            Mockito.eq(0), Mockito.any(XWikiContext.class));
+    }
+
+    @Test
+    public void resolveReturnsAnEmptyClosureForGuests() throws Exception
+    {
+        Assert.assertTrue(this.mocker.getComponentUnderTest().resolve(null).isEmpty());
+    }
+
+    private XWikiGroupService mockGroupService() throws Exception
+    {
+        Execution execution = this.mocker.getInstance(Execution.class);
+        ExecutionContext econtext = mock(ExecutionContext.class);
+        when(execution.getContext()).thenReturn(econtext);
+        XWikiContext context = mock(XWikiContext.class);
+        when(econtext.getProperty("xwikicontext")).thenReturn(context);
+        XWiki xwiki = mock(XWiki.class);
+        when(context.getWiki()).thenReturn(xwiki);
+        XWikiGroupService groupService = mock(XWikiGroupService.class);
+        when(xwiki.getGroupService(context)).thenReturn(groupService);
+        return groupService;
+    }
+}
@@ -61,7 +61,6 @@
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
-import com.xpn.xwiki.user.api.XWikiGroupService;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
@@ -584,10 +583,8 @@ public void getAccessLevelWithOwner() throws Exception
         when(manager.resolveAccessLevel("none")).thenReturn(none);
         when(manager.resolveAccessLevel("owner")).thenReturn(owner);
 
-        XWikiGroupService groupService = mock(XWikiGroupService.class);
-        when(this.xwiki.getGroupService(this.context)).thenReturn(groupService);
-        when(groupService.getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context))
-            .thenReturn(Collections.<DocumentReference>emptyList());
+        GroupClosureCache cache = this.mocker.getInstance(GroupClosureCache.class);
+        when(cache.resolve(OWNER)).thenReturn(Collections.singleton(OWNER));
 
         Assert.assertSame(owner, this.mocker.getComponentUnderTest().getAccessLevel(this.patient, OWNER));
     }
@@ -649,10 +646,8 @@ public void getAccessLevelWithSpecifiedCollaborator() throws Exception
         when(manager.resolveAccessLevel("view")).thenReturn(view);
         AccessLevel none = new NoAccessLevel();
         when(manager.resolveAccessLevel("none")).thenReturn(none);
-        XWikiGroupService groupService = mock(XWikiGroupService.class);
-        when(this.xwiki.getGroupService(this.context)).thenReturn(groupService);
-        when(groupService.getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context))
-            .thenReturn(Collections.<DocumentReference>emptyList());
+        GroupClosureCache cache = this.mocker.getInstance(GroupClosureCache.class);
+        when(cache.resolve(COLLABORATOR)).thenReturn(Collections.singleton(COLLABORATOR));
 
         Assert.assertSame(edit, this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR));
     }
@@ -681,10 +676,8 @@ public void getAccessLevelWithGroupMemberCollaborator() throws Exception
         when(manager.resolveAccessLevel("view")).thenReturn(view);
         AccessLevel none = new NoAccessLevel();
         when(manager.resolveAccessLevel("none")).thenReturn(none);
-        XWikiGroupService groupService = mock(XWikiGroupService.class);
-        when(this.xwiki.getGroupService(this.context)).thenReturn(groupService);
-        when(groupService.getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context))
-            .thenReturn(Arrays.asList(GROUP));
+        GroupClosureCache cache = this.mocker.getInstance(GroupClosureCache.class);
+        when(cache.resolve(COLLABORATOR)).thenReturn(new HashSet<>(Arrays.asList(COLLABORATOR, GROUP)));
 
         Assert.assertSame(edit, this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR));
     }
@@ -699,7 +692,8 @@ public void getAccessLevelWithExceptions() throws ComponentLookupException, XWik
         AccessLevel none = new NoAccessLevel();
         PermissionsManager manager = this.mocker.getInstance(PermissionsManager.class);
         when(manager.resolveAccessLevel("none")).thenReturn(none);
-        when(this.xwiki.getGroupService(this.context)).thenThrow(new XWikiException());
+        GroupClosureCache cache = this.mocker.getInstance(GroupClosureCache.class);
+        when(cache.resolve(OTHER_USER)).thenThrow(new XWikiException());
         Assert.assertSame(none, this.mocker.getComponentUnderTest().getAccessLevel(this.patient, OTHER_USER));
     }
 
@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.permissions.internal;
+
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link GroupClosureCacheInvalidator}.
+ *
+ * @version $Id$
+ */
+public class GroupClosureCacheInvalidatorTest
+{
+    private static final EntityReference GROUP_CLASS = new EntityReference("XWikiGroups", EntityType.DOCUMENT,
+        new EntityReference("XWiki", EntityType.SPACE));
+
+    private static final DocumentReference GROUP = new DocumentReference("xwiki", "Groups", "Consortium");
+
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "padams");
+
+    private static final DocumentReference REMOVED_USER = new DocumentReference("xwiki", "XWiki", "hmccoy");
+
+    @Rule
+    public final MockitoComponentMockingRule<EventListener> mocker =
+        new MockitoComponentMockingRule<EventListener>(GroupClosureCacheInvalidator.class);
+
+    private final XWikiDocument doc = mock(XWikiDocument.class);
+
+    private final XWikiDocument originalDoc = mock(XWikiDocument.class);
+
+    private GroupClosureCache cache;
+
+    @Before
+    public void setup() throws Exception
+    {
+        this.cache = this.mocker.getInstance(GroupClosureCache.class);
+        DocumentReferenceResolver<String> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "currentmixed");
+        when(resolver.resolve("XWiki.padams", GROUP)).thenReturn(USER);
+        when(resolver.resolve("XWiki.hmccoy", GROUP)).thenReturn(REMOVED_USER);
+        when(this.doc.getDocumentReference()).thenReturn(GROUP);
+        when(this.originalDoc.getDocumentReference()).thenReturn(GROUP);
+        when(this.doc.getOriginalDocument()).thenReturn(this.originalDoc);
+    }
+
+    @Test
+    public void groupChangesInvalidateTheGroupAndOldAndNewMembers() throws Exception
+    {
+        BaseObject member = mock(BaseObject.class);
+        when(member.getStringValue("member")).thenReturn("XWiki.padams");
+        when(this.doc.getXObjects(GROUP_CLASS)).thenReturn(Arrays.asList(member, null));
+        BaseObject oldMember = mock(BaseObject.class);
+        when(oldMember.getStringValue("member")).thenReturn("XWiki.hmccoy");
+        when(this.originalDoc.getXObjects(GROUP_CLASS)).thenReturn(Collections.singletonList(oldMember));
+
+        this.mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(GROUP), this.doc, null);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Collection<DocumentReference>> changed =
+            (ArgumentCaptor<Collection<DocumentReference>>) (Object) ArgumentCaptor.forClass(Collection.class);
+        verify(this.cache).invalidate(changed.capture());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(GROUP, USER, REMOVED_USER)),
+            new HashSet<>(changed.getValue()));
+    }
+
+    @Test
+    public void otherDocumentsAreIgnored() throws Exception
+    {
+        this.mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(GROUP), this.doc, null);
+
+        verify(this.cache, never()).invalidate(any(Collection.class));
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.permissions.internal;
+
+import org.phenotips.data.permissions.PermissionsManager;
+import org.phenotips.data.permissions.internal.access.EditAccessLevel;
+import org.phenotips.data.permissions.internal.access.ManageAccessLevel;
+import org.phenotips.data.permissions.internal.access.NoAccessLevel;
+import org.phenotips.data.permissions.internal.access.OwnerAccessLevel;
+import org.phenotips.data.permissions.internal.access.ViewAccessLevel;
+import org.phenotips.data.permissions.internal.visibility.MockVisibility;
+import org.phenotips.security.authorization.AuthorizationModule;
+import org.phenotips.security.authorization.BatchAuthorizationModule;
+
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.xpn.xwiki.XWikiException;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link PatientAccessAuthorizationModule} authorization module.
+ *
+ * @version $Id$
+ */
+public class PatientAccessAuthorizationModuleTest
+{
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "padams");
+
+    private static final DocumentReference GROUP = new DocumentReference("xwiki", "XWiki", "collaborators");
+
+    private static final DocumentReference OTHER_USER = new DocumentReference("xwiki", "XWiki", "cxavier");
+
+    private static final DocumentReference P1 = new DocumentReference("xwiki", "data", "P0000001");
+
+    private static final DocumentReference P2 = new DocumentReference("xwiki", "data", "P0000002");
+
+    private static final DocumentReference P3 = new DocumentReference("xwiki", "data", "P0000003");
+
+    private static final DocumentReference P4 = new DocumentReference("xwiki", "data", "P0000004");
+
+    private static final String OWNER = "PhenoTips.OwnerClass";
+
+    private static final String COLLABORATOR = "PhenoTips.CollaboratorClass";
+
+    private static final String VISIBILITY = "PhenoTips.VisibilityClass";
+
+    @Rule
+    public final MockitoComponentMockingRule<AuthorizationModule> mocker =
+        new MockitoComponentMockingRule<AuthorizationModule>(PatientAccessAuthorizationModule.class);
+
+    private BatchAuthorizationModule module;
+
+    private User user = mock(User.class);
+
+    private Query query = mock(Query.class);
+
+    private List<Object[]> rows = new ArrayList<>();
+
+    private Query denyQuery = mock(Query.class);
+
+    private List<Object> denyingDocuments = new ArrayList<>();
+
+    @Before
+    public void setup() throws Exception
+    {
+        this.module = (BatchAuthorizationModule) this.mocker.getComponentUnderTest();
+        when(this.user.getProfileDocument()).thenReturn(USER);
+
+        GroupClosureCache closures = this.mocker.getInstance(GroupClosureCache.class);
+        when(closures.resolve(USER)).thenReturn(new HashSet<>(Arrays.asList(USER, GROUP)));
+
+        QueryManager queries = this.mocker.getInstance(QueryManager.class);
+        when(queries.createQuery(anyString(), eq(Query.HQL))).thenReturn(this.query);
+        when(this.query.execute()).thenReturn(this.rows);
+        when(queries.createQuery(contains("XWikiRights"), eq(Query.HQL))).thenReturn(this.denyQuery);
+        when(this.denyQuery.execute()).thenReturn(this.denyingDocuments);
+
+        DocumentReferenceResolver<String> resolver = this.mocker.getInstance(
+            new DefaultParameterizedType(null, DocumentReferenceResolver.class, String.class), "currentmixed");
+        when(resolver.resolve("xwiki:XWiki.padams", P1)).thenReturn(USER);
+        when(resolver.resolve("xwiki:XWiki.cxavier", P2)).thenReturn(OTHER_USER);
+        when(resolver.resolve("xwiki:XWiki.collaborators", P2)).thenReturn(GROUP);
+        when(resolver.resolve("xwiki:XWiki.cxavier", P3)).thenReturn(OTHER_USER);
+
+        PermissionsManager manager = this.mocker.getInstance(PermissionsManager.class);
+        when(manager.resolveAccessLevel("view")).thenReturn(new ViewAccessLevel());
+        when(manager.resolveAccessLevel("edit")).thenReturn(new EditAccessLevel());
+        when(manager.resolveAccessLevel("manage")).thenReturn(new ManageAccessLevel());
+        when(manager.resolveAccessLevel("owner")).thenReturn(new OwnerAccessLevel());
+        when(manager.resolveVisibility("public")).thenReturn(new MockVisibility("public", 50, new ViewAccessLevel()));
+        when(manager.resolveVisibility("private"))
+            .thenReturn(new MockVisibility("private", 0, new NoAccessLevel()));
+
+        // P1 is owned by the user, P2 is shared with the group of the user, P3 is public, P4 is private
+        this.rows.add(new Object[] { "data.P0000001", 1L, OWNER, "owner", "xwiki:XWiki.padams" });
+        this.rows.add(new Object[] { "data.P0000002", 2L, OWNER, "owner", "xwiki:XWiki.cxavier" });
+        this.rows.add(new Object[] { "data.P0000002", 3L, COLLABORATOR, "collaborator", "xwiki:XWiki.collaborators" });
+        this.rows.add(new Object[] { "data.P0000002", 3L, COLLABORATOR, "access", "edit" });
+        this.rows.add(new Object[] { "data.P0000003", 4L, OWNER, "owner", "xwiki:XWiki.cxavier" });
+        this.rows.add(new Object[] { "data.P0000003", 5L, VISIBILITY, "visibility", "public" });
+        this.rows.add(new Object[] { "data.P0000004", 6L, VISIBILITY, "visibility", "private" });
+    }
+
+    @Test
+    public void onlyAppliesToPatientDocuments()
+    {
+        Assert.assertTrue(this.module.appliesTo(P1));
+        Assert.assertFalse(this.module.appliesTo(USER));
+        Assert.assertFalse(this.module.appliesTo(new WikiReference("xwiki")));
+        Assert.assertFalse(this.module.appliesTo(P1.getLastSpaceReference()));
+    }
+
+    @Test
+    public void grantsFromOwnerCollaboratorsAndVisibilityWithOneQuery() throws Exception
+    {
+        List<DocumentReference> all = Arrays.asList(P1, P2, P3, P4);
+        Map<EntityReference, Boolean> view = this.module.hasAccess(this.user, Right.VIEW, all);
+        Assert.assertEquals(Boolean.TRUE, view.get(P1));
+        Assert.assertEquals(Boolean.TRUE, view.get(P2));
+        Assert.assertEquals(Boolean.TRUE, view.get(P3));
+        // Never denies, the XWiki ACLs may still grant access through the space rights
+        Assert.assertNull(view.get(P4));
+
+        Map<EntityReference, Boolean> edit = this.module.hasAccess(this.user, Right.EDIT, all);
+        Assert.assertEquals(Boolean.TRUE, edit.get(P1));
+        Assert.assertEquals(Boolean.TRUE, edit.get(P2));
+        Assert.assertNull(edit.get(P3));
+
+        Map<EntityReference, Boolean> delete = this.module.hasAccess(this.user, Right.DELETE, all);
+        Assert.assertEquals(Boolean.TRUE, delete.get(P1));
+        Assert.assertNull(delete.get(P2));
+
+        // One query and one group lookup for each batch
+        verify(this.query, times(3)).execute();
+        verify(this.mocker.getInstance(GroupClosureCache.class), times(3)).resolve(USER);
+        verify(this.query, times(3)).bindValue("names",
+            Arrays.asList("data.P0000001", "data.P0000002", "data.P0000003", "data.P0000004"));
+    }
+
+    @Test
+    public void recordsDenyingSomeRightsAreLeftToTheXWikiAcls() throws Exception
+    {
+        this.denyingDocuments.add("data.P0000001");
+
+        Map<EntityReference, Boolean> view = this.module.hasAccess(this.user, Right.VIEW, Arrays.asList(P1, P2, P3));
+        Assert.assertNull(view.get(P1));
+        Assert.assertEquals(Boolean.TRUE, view.get(P2));
+        Assert.assertEquals(Boolean.TRUE, view.get(P3));
+        verify(this.denyQuery).bindValue("names", Arrays.asList("data.P0000001", "data.WebPreferences",
+            "data.P0000002", "data.P0000003", "XWiki.XWikiPreferences"));
+    }
+
+    @Test
+    public void spaceOrWikiDenialsLeaveAllRecordsToTheXWikiAcls() throws Exception
+    {
+        List<DocumentReference> all = Arrays.asList(P1, P2, P3);
+        this.denyingDocuments.add("data.WebPreferences");
+        Assert.assertTrue(this.module.hasAccess(this.user, Right.VIEW, all).isEmpty());
+
+        this.denyingDocuments.set(0, "XWiki.XWikiPreferences");
+        Assert.assertTrue(this.module.hasAccess(this.user, Right.VIEW, all).isEmpty());
+    }
+
+    @Test
+    public void denialsAreNotSearchedWhenNothingIsGranted() throws Exception
+    {
+        Assert.assertTrue(this.module.hasAccess(this.user, Right.VIEW, Arrays.asList(P4)).isEmpty());
+        verifyZeroInteractions(this.denyQuery);
+    }
+
+    @Test
+    public void singleChecksUseTheSameRules() throws Exception
+    {
+        Assert.assertEquals(Boolean.TRUE, this.module.hasAccess(this.user, Right.VIEW, P1));
+        Assert.assertNull(this.module.hasAccess(this.user, Right.VIEW, USER));
+    }
+
+    @Test
+    public void otherRightsAndGuestsAreLeftUndecided() throws Exception
+    {
+        Assert.assertTrue(this.module.hasAccess(this.user, Right.ADMIN, Arrays.asList(P1)).isEmpty());
+        Assert.assertTrue(this.module.hasAccess(null, Right.VIEW, Arrays.asList(P1)).isEmpty());
+        verifyZeroInteractions(this.query);
+    }
+
+    @Test
+    public void failuresLeaveEverythingUndecided() throws Exception
+    {
+        when(this.query.execute()).thenThrow(new QueryException("failed", this.query, null));
+        Assert.assertTrue(this.module.hasAccess(this.user, Right.VIEW, Arrays.asList(P1, P2)).isEmpty());
+
+        GroupClosureCache closures = this.mocker.getInstance(GroupClosureCache.class);
+        when(closures.resolve(USER)).thenThrow(new XWikiException());
+        Assert.assertTrue(this.module.hasAccess(this.user, Right.VIEW, Arrays.asList(P1, P2)).isEmpty());
+    }
+}
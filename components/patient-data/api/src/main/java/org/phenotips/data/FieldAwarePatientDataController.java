@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data;
+
+import org.xwiki.stability.Unstable;
+
+import java.util.Collection;
+
+/**
+ * Optional interface for {@link PatientDataController patient data controllers} which know exactly which patient
+ * record fields they are responsible for. When only a subset of the patient data is
+ * {@link Patient#toJSON(Collection) exported}, controllers implementing this interface are skipped if none of their
+ * fields is requested, so that their data isn't needlessly loaded. Controllers not implementing this interface are
+ * always invoked.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+public interface FieldAwarePatientDataController
+{
+    /**
+     * The names of the fields handled by this controller, as they may appear in the list of selected fields passed to
+     * {@link PatientDataController#writeJSON(Patient, org.json.JSONObject, Collection)}. If none of these fields is
+     * selected, then the controller must not write anything.
+     *
+     * @return a collection of field names, must not be {@code null}
+     */
+    Collection<String> getControlledFields();
+}
@@ -24,6 +24,8 @@
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.stability.Unstable;
 
+import org.json.JSONObject;
+
 /**
  * API that provides access to patient data. No access rights are checked here.
  *
@@ -88,6 +90,22 @@ public interface PatientRepository extends PrimaryEntityManager<Patient>
     @Deprecated
     Patient createNewPatient(DocumentReference creator);
 
+    /**
+     * Create and return a new patient record (owned by the given entity), holding the data from a JSON object in the
+     * format accepted by {@link Patient#updateFromJSON(JSONObject)}. Unlike creating an empty record and then updating
+     * it, the new record is stored only once, already holding all the data, and nothing is stored if some of the data
+     * cannot be.
+     *
+     * @param json the data of the new patient record
+     * @param creator a reference to the document representing an entity (a user or a group) which will be set as the
+     *            owner for the created {@link Patient patient}
+     * @return the created patient record, or {@code null} if creating the record failed
+     * @throws IllegalArgumentException if some of the data cannot be stored, in which case no record is created; the
+     *             message lists the data controllers which failed
+     * @since 1.4
+     */
+    Patient create(JSONObject json, DocumentReference creator);
+
     /**
      * Delete a patient record, identified by its internal PhenoTips identifier. If the indicated patient record doesn't
      * exist, or if the user sending the request doesn't have the right to delete the target patient record, no change
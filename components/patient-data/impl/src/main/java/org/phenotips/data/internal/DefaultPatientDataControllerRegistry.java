@@ -0,0 +1,211 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.FieldAwarePatientDataController;
+import org.phenotips.data.PatientDataController;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Default implementation for the {@link PatientDataControllerRegistry} role. The controllers are looked up once, along
+ * with an index of the fields declared by {@link FieldAwarePatientDataController field aware controllers}, and the
+ * lookup is redone after any patient data controller is registered or unregistered.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Singleton
+public class DefaultPatientDataControllerRegistry implements PatientDataControllerRegistry, EventListener,
+    Initializable
+{
+    @Inject
+    private Logger logger;
+
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManager;
+
+    @Inject
+    private ObservationManager observationManager;
+
+    /** The currently known controllers, {@code null} if they must be looked up again. */
+    private volatile Controllers controllers;
+
+    /** Incremented every time the controllers change, so that a lookup running concurrently isn't kept. */
+    private final AtomicLong generation = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.observationManager.addListener(this);
+    }
+
+    @Override
+    public Collection<PatientDataController<?>> getControllers()
+    {
+        return getCurrentControllers().all;
+    }
+
+    @Override
+    public Collection<PatientDataController<?>> getControllers(Collection<String> selectedFields)
+    {
+        Controllers current = getCurrentControllers();
+        if (selectedFields == null) {
+            return current.all;
+        }
+        Set<PatientDataController<?>> selected = Collections.newSetFromMap(new IdentityHashMap<>());
+        selected.addAll(current.alwaysUsed);
+        for (String field : selectedFields) {
+            List<PatientDataController<?>> owners = current.fieldOwners.get(field);
+            if (owners != null) {
+                selected.addAll(owners);
+            }
+        }
+        List<PatientDataController<?>> result = new ArrayList<>(selected.size());
+        for (PatientDataController<?> controller : current.all) {
+            if (selected.contains(controller)) {
+                result.add(controller);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public PatientDataController<?> getController(String name)
+    {
+        return getCurrentControllers().byName.get(name);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "patient-data-controller-registry";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new ComponentDescriptorAddedEvent(PatientDataController.class),
+            new ComponentDescriptorRemovedEvent(PatientDataController.class));
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        this.generation.incrementAndGet();
+        this.controllers = null;
+    }
+
+    private Controllers getCurrentControllers()
+    {
+        Controllers result = this.controllers;
+        if (result == null) {
+            synchronized (this) {
+                result = this.controllers;
+                if (result == null) {
+                    long lookupGeneration = this.generation.get();
+                    result = new Controllers(lookupControllers());
+                    if (lookupGeneration == this.generation.get()) {
+                        this.controllers = result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private Map<String, PatientDataController<?>> lookupControllers()
+    {
+        Map<String, PatientDataController<?>> result = new TreeMap<>();
+        try {
+            List<PatientDataController<?>> available =
+                this.componentManager.get().getInstanceList(PatientDataController.class);
+            for (PatientDataController<?> controller : available) {
+                if (result.containsKey(controller.getName())) {
+                    this.logger.warn("Overwriting patient data controller with the name [{}]", controller.getName());
+                }
+                result.put(controller.getName(), controller);
+            }
+        } catch (ComponentLookupException ex) {
+            this.logger.error("Failed to lookup serializers", ex);
+        }
+        return result;
+    }
+
+    /** An immutable snapshot of the available controllers. */
+    private static final class Controllers
+    {
+        private final Map<String, PatientDataController<?>> byName;
+
+        private final Collection<PatientDataController<?>> all;
+
+        private final List<PatientDataController<?>> alwaysUsed = new ArrayList<>();
+
+        private final Map<String, List<PatientDataController<?>>> fieldOwners = new HashMap<>();
+
+        Controllers(Map<String, PatientDataController<?>> controllers)
+        {
+            this.byName = Collections.unmodifiableMap(controllers);
+            this.all = Collections.unmodifiableCollection(controllers.values());
+            for (PatientDataController<?> controller : controllers.values()) {
+                if (controller instanceof FieldAwarePatientDataController) {
+                    for (String field : ((FieldAwarePatientDataController) controller).getControlledFields()) {
+                        List<PatientDataController<?>> owners = this.fieldOwners.get(field);
+                        if (owners == null) {
+                            owners = new ArrayList<>();
+                            this.fieldOwners.put(field, owners);
+                        }
+                        owners.add(controller);
+                    }
+                } else {
+                    this.alwaysUsed.add(controller);
+                }
+            }
+        }
+    }
+}
@@ -31,6 +31,7 @@
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.inject.Inject;
@@ -93,8 +94,9 @@ public void onEvent(Event event, Object source, Object data)
                 }
                 List<String> terms = currentTermList.getList();
                 Set<String> correctSet = new LinkedHashSet<>();
+                Map<String, VocabularyTerm> properTerms = this.vocabularyManager.resolveTerms(terms);
                 for (String term : terms) {
-                    VocabularyTerm properTerm = this.vocabularyManager.resolveTerm(term);
+                    VocabularyTerm properTerm = properTerms.get(term);
                     if (properTerm != null) {
                         correctSet.add(properTerm.getId());
                     } else {
@@ -0,0 +1,60 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientDataController;
+
+import org.xwiki.component.annotation.Role;
+
+import java.util.Collection;
+
+/**
+ * Keeps track of the available {@link PatientDataController patient data controllers}, so that patient objects don't
+ * have to look them up every time they are created. The list of controllers is refreshed whenever a controller is
+ * registered or unregistered.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Role
+public interface PatientDataControllerRegistry
+{
+    /**
+     * Get all the available controllers.
+     *
+     * @return an unmodifiable collection of controllers, sorted by their name
+     */
+    Collection<PatientDataController<?>> getControllers();
+
+    /**
+     * Get the controllers that may write some of the selected fields.
+     *
+     * @param selectedFields the names of the requested fields, may be {@code null} to select all fields
+     * @return an unmodifiable collection of controllers, sorted by their name; if {@code selectedFields} is
+     *         {@code null} then all the controllers are returned
+     */
+    Collection<PatientDataController<?>> getControllers(Collection<String> selectedFields);
+
+    /**
+     * Get the controller with the given name.
+     *
+     * @param name the name of the controller, as returned by {@link PatientDataController#getName()}
+     * @return the requested controller, or {@code null} if no controller with this name is available
+     */
+    PatientDataController<?> getController(String name);
+}
@@ -28,6 +28,7 @@
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -85,9 +86,10 @@ private void updateField(String baseFieldName, String extendedFieldName, BaseObj
         List<String> phenotypes = patientRecordObj.getListValue(baseFieldName);
         Set<String> extendedPhenotypes = new TreeSet<>();
         Set<String> sortedPhenotypes = new TreeSet<>();
+        Map<String, VocabularyTerm> terms = this.vocabularyManager.resolveTerms(phenotypes);
         for (String phenotype : phenotypes) {
             sortedPhenotypes.add(phenotype);
-            VocabularyTerm phenotypeTerm = this.vocabularyManager.resolveTerm(phenotype);
+            VocabularyTerm phenotypeTerm = terms.get(phenotype);
             if (phenotypeTerm != null) {
                 for (VocabularyTerm term : phenotypeTerm.getAncestorsAndSelf()) {
                     extendedPhenotypes.add(term.getId());
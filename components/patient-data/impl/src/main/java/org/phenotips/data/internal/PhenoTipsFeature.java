@@ -267,9 +267,8 @@ public JSONObject toJSON()
             try {
                 VocabularyManager vm =
                     ComponentManagerRegistry.getContextComponentManager().getInstance(VocabularyManager.class);
-                for (String category : this.categories) {
-                    VocabularyTerm term = vm.resolveTerm(category);
-                    if (term != null && StringUtils.isNotEmpty(term.getName())) {
+                for (VocabularyTerm term : vm.resolveTerms(this.categories).values()) {
+                    if (StringUtils.isNotEmpty(term.getName())) {
                         JSONObject categoryObject = new JSONObject();
                         categoryObject.put(ID_JSON_KEY_NAME, term.getId());
                         categoryObject.put(NAME_JSON_KEY_NAME, term.getName());
@@ -34,7 +34,6 @@
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -70,8 +69,8 @@ public class PhenoTipsPatient extends AbstractPrimaryEntity implements Patient
     /** Logging helper object. */
     private Logger logger = LoggerFactory.getLogger(PhenoTipsPatient.class);
 
-    /** The list of all the initialized data holders (PatientDataSerializer). */
-    private Map<String, PatientDataController<?>> serializers = new TreeMap<>();
+    /** Provides the data holders (PatientDataSerializer), {@code null} if this isn't an actual patient document. */
+    private PatientDataControllerRegistry serializers;
 
     /** Extra data that can be plugged into the patient record. */
     private Map<String, PatientData<?>> extraData = new TreeMap<>();
@@ -102,26 +101,27 @@ public EntityReference getType()
     private void loadSerializers()
     {
         try {
-            List<PatientDataController<?>> availableSerializers = ComponentManagerRegistry
-                .getContextComponentManager()
-                .getInstanceList(PatientDataController.class);
-            for (PatientDataController<?> serializer : availableSerializers) {
-                if (this.serializers.containsKey(serializer.getName())) {
-                    this.logger.warn("Overwriting patient data controller with the name [{}]", serializer.getName());
-                }
-                this.serializers.put(serializer.getName(), serializer);
-            }
+            this.serializers =
+                ComponentManagerRegistry.getContextComponentManager().getInstance(PatientDataControllerRegistry.class);
         } catch (ComponentLookupException ex) {
             this.logger.error("Failed to lookup serializers", ex);
         }
     }
 
+    private Collection<PatientDataController<?>> getSerializers(Collection<String> selectedFields)
+    {
+        if (this.serializers == null) {
+            return Collections.emptyList();
+        }
+        return this.serializers.getControllers(selectedFields);
+    }
+
     /**
      * Looks up data controller with the appropriate name and places the controller data in the extraData map.
      */
     private void readPatientData(String name)
     {
-        PatientDataController<?> serializer = this.serializers.get(name);
+        PatientDataController<?> serializer = this.serializers == null ? null : this.serializers.getController(name);
         if (serializer != null) {
             PatientData<?> data = serializer.load(this);
             if (data != null) {
@@ -210,7 +210,8 @@ public JSONObject toJSON(Collection<String> selectedFields)
             result.put(JSON_KEY_REPORTER, getReporter().getName());
         }
 
-        for (PatientDataController<?> serializer : this.serializers.values()) {
+        // Only the controllers that may write some of the selected fields are used
+        for (PatientDataController<?> serializer : getSerializers(selectedFields)) {
             serializer.writeJSON(this, result, selectedFields);
         }
 
@@ -234,23 +235,7 @@ public void updateFromJSON(JSONObject json)
                 return;
             }
 
-            for (PatientDataController<?> serializer : this.serializers.values()) {
-                try {
-                    PatientData<?> patientData = serializer.readJSON(json);
-                    if (patientData != null) {
-                        this.extraData.put(patientData.getName(), patientData);
-                        serializer.save(this);
-                        this.logger.info("Successfully updated patient form JSON using serializer [{}]",
-                            serializer.getName());
-                    }
-                } catch (UnsupportedOperationException ex) {
-                    this.logger.debug("Unable to update patient from JSON using serializer [{}]: not supported",
-                        serializer.getName());
-                } catch (Exception ex) {
-                    this.logger.error("Failed to update patient data from JSON using serializer [{}]: {}",
-                        serializer.getName(), ex.getMessage(), ex);
-                }
-            }
+            readFromJSON(json);
 
             context.getWiki().saveDocument(this.document, "Updated from JSON", true, context);
         } catch (Exception ex) {
@@ -258,6 +243,42 @@ public void updateFromJSON(JSONObject json)
         }
     }
 
+    /**
+     * Stores the data from a JSON into the patient document, like {@link #updateFromJSON(JSONObject)} does, but without
+     * saving the document, so that it can be saved later together with other changes. Failures are reported instead of
+     * just being logged.
+     *
+     * @param json the new patient data, in the format accepted by {@link #updateFromJSON(JSONObject)}
+     * @return the names of the data controllers that failed to store their data, empty if all the data was stored
+     * @since 1.4
+     */
+    public Collection<String> readFromJSON(JSONObject json)
+    {
+        Collection<String> failed = new TreeSet<>();
+        if (json.length() == 0 || this.document.getXObject(CLASS_REFERENCE) == null) {
+            return failed;
+        }
+        for (PatientDataController<?> serializer : getSerializers(null)) {
+            try {
+                PatientData<?> patientData = serializer.readJSON(json);
+                if (patientData != null) {
+                    this.extraData.put(patientData.getName(), patientData);
+                    serializer.save(this);
+                    this.logger.info("Successfully updated patient form JSON using serializer [{}]",
+                        serializer.getName());
+                }
+            } catch (UnsupportedOperationException ex) {
+                this.logger.debug("Unable to update patient from JSON using serializer [{}]: not supported",
+                    serializer.getName());
+            } catch (Exception ex) {
+                this.logger.error("Failed to update patient data from JSON using serializer [{}]: {}",
+                    serializer.getName(), ex.getMessage(), ex);
+                failed.add(serializer.getName());
+            }
+        }
+        return failed;
+    }
+
     @Override
     public String toString()
     {
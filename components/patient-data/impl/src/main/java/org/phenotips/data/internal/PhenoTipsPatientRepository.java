@@ -27,13 +27,16 @@
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.TreeSet;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
-import com.xpn.xwiki.XWikiContext;
+import org.json.JSONObject;
+
 import com.xpn.xwiki.doc.XWikiDocument;
 
 /**
@@ -97,41 +100,25 @@ public Patient loadPatientFromDocument(DocumentModelBridge document)
     }
 
     @Override
-    public synchronized Patient createNewPatient()
+    public Patient createNewPatient()
     {
         return create();
     }
 
     @Override
-    public synchronized Patient createNewPatient(DocumentReference creator)
+    public Patient createNewPatient(DocumentReference creator)
     {
         return create(creator);
     }
 
     @Override
-    public synchronized Patient create(DocumentReference creator)
+    public Patient create(DocumentReference creator)
     {
         try {
-            XWikiContext context = this.xcontextProvider.get();
+            // The identifier is set before the document is first saved, see initializeDocument
             Patient patient = super.create(creator);
-            XWikiDocument doc = patient.getXDocument();
-            doc.getXObject(Patient.CLASS_REFERENCE).setLongValue("identifier",
-                Integer.parseInt(patient.getId().replaceAll("\\D++", "")));
-            if (creator != null) {
-                doc.setCreatorReference(creator);
-                doc.setAuthorReference(creator);
-                doc.setContentAuthorReference(creator);
-            }
-            context.getWiki().saveDocument(doc, context);
-            for (PatientRecordInitializer initializer : this.initializers.get()) {
-                try {
-                    initializer.initialize(patient);
-                } catch (Exception ex) {
-                    // Initializers shouldn't block the creation of a new patient, especially since the new patient
-                    // has already been saved...
-                    this.logger.warn("Patient initializer [{}] failed: {}", initializer.getClass().getName(),
-                        ex.getMessage(), ex);
-                }
+            if (patient != null) {
+                runInitializers(patient);
             }
             return patient;
         } catch (Exception ex) {
@@ -140,6 +127,45 @@ public synchronized Patient create(DocumentReference creator)
         }
     }
 
+    @Override
+    public Patient create(JSONObject json, DocumentReference creator)
+    {
+        Collection<String> failed = new TreeSet<>();
+        // The data is stored in the new document before it is first saved, and nothing is saved if some of it fails
+        Patient patient = create(creator, newPatient -> {
+            failed.addAll(((PhenoTipsPatient) newPatient).readFromJSON(json));
+            return failed.isEmpty();
+        });
+        if (!failed.isEmpty()) {
+            throw new IllegalArgumentException("Failed to store the patient data handled by " + failed);
+        }
+        if (patient != null) {
+            runInitializers(patient);
+        }
+        return patient;
+    }
+
+    private void runInitializers(Patient patient)
+    {
+        for (PatientRecordInitializer initializer : this.initializers.get()) {
+            try {
+                initializer.initialize(patient);
+            } catch (Exception ex) {
+                // Initializers shouldn't block the creation of a new patient, especially since the new patient
+                // has already been saved...
+                this.logger.warn("Patient initializer [{}] failed: {}", initializer.getClass().getName(),
+                    ex.getMessage(), ex);
+            }
+        }
+    }
+
+    @Override
+    protected void initializeDocument(XWikiDocument doc)
+    {
+        doc.getXObject(Patient.CLASS_REFERENCE).setLongValue("identifier",
+            Integer.parseInt(doc.getDocumentReference().getName().replaceAll("\\D++", "")));
+    }
+
     @Override
     public boolean deletePatient(String id)
     {
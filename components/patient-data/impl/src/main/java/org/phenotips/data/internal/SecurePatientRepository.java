@@ -38,6 +38,7 @@
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.json.JSONObject;
 import org.slf4j.Logger;
 
 /**
@@ -105,12 +106,26 @@ public Patient create(DocumentReference creator)
 
     private Patient create(User creator)
     {
-        if (this.access.hasAccess(creator, Right.EDIT,
+        checkCreateAccess(creator);
+        Patient patient = this.internalService.create(creator != null ? creator.getProfileDocument() : null);
+        return createSecurePatient(patient);
+    }
+
+    @Override
+    public Patient create(JSONObject json, DocumentReference creator)
+    {
+        User user = this.userManager.getUser(this.serializer.serialize(creator));
+        checkCreateAccess(user);
+        Patient patient = this.internalService.create(json, user != null ? user.getProfileDocument() : null);
+        return createSecurePatient(patient);
+    }
+
+    private void checkCreateAccess(User creator)
+    {
+        if (!this.access.hasAccess(creator, Right.EDIT,
             this.currentResolver.resolve(Patient.DEFAULT_DATA_SPACE, EntityType.SPACE))) {
-            Patient patient = this.internalService.create(creator != null ? creator.getProfileDocument() : null);
-            return createSecurePatient(patient);
+            throw new SecurityException("User not authorized to create new patients");
         }
-        throw new SecurityException("User not authorized to create new patients");
     }
 
     @Override
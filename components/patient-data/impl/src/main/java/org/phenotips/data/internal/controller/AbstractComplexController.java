@@ -33,9 +33,11 @@
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -140,6 +142,18 @@ protected String getControllingFieldName(String field)
         return field;
     }
 
+    /**
+     * @return the names of all the fields controlling the export of the properties managed by this controller
+     */
+    protected Collection<String> getControllingFieldNames()
+    {
+        Set<String> result = new LinkedHashSet<>();
+        for (String property : getProperties()) {
+            result.add(getControllingFieldName(property));
+        }
+        return result;
+    }
+
     /**
      * @return list of fields which should be resolved to booleans
      */
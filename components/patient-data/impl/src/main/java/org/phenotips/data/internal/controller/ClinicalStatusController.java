@@ -17,6 +17,7 @@
  */
 package org.phenotips.data.internal.controller;
 
+import org.phenotips.data.FieldAwarePatientDataController;
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientDataController;
@@ -26,6 +27,7 @@
 import org.xwiki.model.reference.ObjectPropertyReference;
 
 import java.util.Collection;
+import java.util.Collections;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -48,7 +50,7 @@
 @Component(roles = { PatientDataController.class })
 @Named("clinicalStatus")
 @Singleton
-public class ClinicalStatusController implements PatientDataController<String>
+public class ClinicalStatusController implements PatientDataController<String>, FieldAwarePatientDataController
 {
     private static final String CLINICAL_STATUS = "clinicalStatus";
 
@@ -147,4 +149,10 @@ public PatientData<String> readJSON(JSONObject json)
         }
         return null;
     }
+
+    @Override
+    public Collection<String> getControlledFields()
+    {
+        return Collections.singleton(CONTROLLING_FIELDNAME);
+    }
 }
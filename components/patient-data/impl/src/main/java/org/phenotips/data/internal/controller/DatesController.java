@@ -18,6 +18,7 @@
 package org.phenotips.data.internal.controller;
 
 import org.phenotips.data.DictionaryPatientData;
+import org.phenotips.data.FieldAwarePatientDataController;
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientDataController;
@@ -30,6 +31,7 @@
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -54,7 +56,7 @@
 @Component(roles = { PatientDataController.class })
 @Named("dates")
 @Singleton
-public class DatesController implements PatientDataController<PhenoTipsDate>
+public class DatesController implements PatientDataController<PhenoTipsDate>, FieldAwarePatientDataController
 {
     // field names as stored in the patient document
     protected static final String PATIENT_DATEOFDEATH_FIELDNAME = "date_of_death";
@@ -279,4 +281,14 @@ protected String getPhenotipsFieldName(String jsonFieldName)
         }
         throw new NullPointerException("JSON field name has no corresponding Phenotips field name");
     }
+
+    @Override
+    public Collection<String> getControlledFields()
+    {
+        Set<String> result = new LinkedHashSet<>();
+        for (String propertyName : getPatientDocumentProperties()) {
+            result.add(getControllingFieldName(propertyName));
+        }
+        return result;
+    }
 }
@@ -17,11 +17,13 @@
  */
 package org.phenotips.data.internal.controller;
 
+import org.phenotips.data.FieldAwarePatientDataController;
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.component.annotation.Component;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -38,6 +40,7 @@
 @Named("ethnicity")
 @Singleton
 public class EthnicityController extends AbstractComplexController<List<String>>
+    implements FieldAwarePatientDataController
 {
     @Override
     public String getName()
@@ -68,4 +71,10 @@ protected List<String> getCodeFields()
     {
         return Collections.emptyList();
     }
+
+    @Override
+    public Collection<String> getControlledFields()
+    {
+        return getControllingFieldNames();
+    }
 }
@@ -31,10 +31,12 @@
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -90,19 +92,30 @@ public PatientData<List<VocabularyTerm>> load(Patient patient)
             if (data == null) {
                 return null;
             }
-            Map<String, List<VocabularyTerm>> result = new LinkedHashMap<>();
+            Map<String, List<String>> termIds = new LinkedHashMap<>();
             for (String propertyName : getProperties()) {
                 PropertyInterface propertyValue = data.get(propertyName);
-                List<VocabularyTerm> holder = new LinkedList<>();
+                List<String> ids = new LinkedList<>();
                 if (propertyValue instanceof StringProperty) {
-                    String propertyValueString = ((StringProperty) propertyValue).getValue();
-                    addTerms(propertyValueString, holder);
+                    addTermId(((StringProperty) propertyValue).getValue(), ids);
                 } else if (propertyValue instanceof ListProperty) {
                     for (String item : ((ListProperty) propertyValue).getList()) {
-                        addTerms(item, holder);
+                        addTermId(item, ids);
+                    }
+                }
+                termIds.put(propertyName, ids);
+            }
+            Map<String, VocabularyTerm> terms = resolveTerms(termIds);
+            Map<String, List<VocabularyTerm>> result = new LinkedHashMap<>();
+            for (Entry<String, List<String>> property : termIds.entrySet()) {
+                List<VocabularyTerm> holder = new LinkedList<>();
+                for (String id : property.getValue()) {
+                    VocabularyTerm term = terms.get(id);
+                    if (term != null) {
+                        holder.add(term);
                     }
                 }
-                result.put(propertyName, holder);
+                result.put(property.getKey(), holder);
             }
             return new DictionaryPatientData<>(DATA_NAME, result);
         } catch (Exception e) {
@@ -189,25 +202,36 @@ public void writeJSON(Patient patient, JSONObject json, Collection<String> selec
     public PatientData<List<VocabularyTerm>> readJSON(JSONObject json)
     {
         try {
-            Map<String, List<VocabularyTerm>> result = new HashMap<>();
+            Map<String, List<String>> termIds = new HashMap<>();
             for (String property : this.getProperties()) {
                 JSONArray elements = json.optJSONArray(property);
                 if (elements != null) {
-                    List<VocabularyTerm> propertyTerms = new LinkedList<>();
+                    List<String> ids = new LinkedList<>();
                     Iterator<Object> elementsIterator = elements.iterator();
                     while (elementsIterator.hasNext()) {
                         JSONObject element = (JSONObject) elementsIterator.next();
                         String termId = element.optString(ID_NAME);
                         if (termId != null) {
-                            VocabularyTerm term = this.vocabularyManager.resolveTerm(termId);
-                            propertyTerms.add(term);
+                            ids.add(termId);
                         }
                     }
-                    result.put(property, propertyTerms);
+                    termIds.put(property, ids);
                 } else {
-                    result.put(property, null);
+                    termIds.put(property, null);
                 }
             }
+            Map<String, VocabularyTerm> terms = resolveTerms(termIds);
+            Map<String, List<VocabularyTerm>> result = new HashMap<>();
+            for (Entry<String, List<String>> property : termIds.entrySet()) {
+                List<VocabularyTerm> propertyTerms = null;
+                if (property.getValue() != null) {
+                    propertyTerms = new LinkedList<>();
+                    for (String id : property.getValue()) {
+                        propertyTerms.add(terms.get(id));
+                    }
+                }
+                result.put(property.getKey(), propertyTerms);
+            }
             return new DictionaryPatientData<>(DATA_NAME, result);
         } catch (Exception ex) {
             // must be in a wrong format
@@ -226,13 +250,27 @@ protected List<String> getProperties()
         return Arrays.asList("global_age_of_onset", "global_mode_of_inheritance");
     }
 
-    private void addTerms(String item, List<VocabularyTerm> holder)
+    private void addTermId(String item, List<String> holder)
     {
         if (StringUtils.isNotBlank(item)) {
-            VocabularyTerm term = this.vocabularyManager.resolveTerm(item);
-            if (term != null) {
-                holder.add(term);
+            holder.add(item);
+        }
+    }
+
+    /**
+     * Resolves the terms of all the qualifiers at once.
+     *
+     * @param termIds the identifiers of the terms, for each qualifier; {@code null} lists are skipped
+     * @return the found terms, keyed by their requested identifier
+     */
+    private Map<String, VocabularyTerm> resolveTerms(Map<String, List<String>> termIds)
+    {
+        Set<String> ids = new LinkedHashSet<>();
+        for (List<String> propertyIds : termIds.values()) {
+            if (propertyIds != null) {
+                ids.addAll(propertyIds);
             }
         }
+        return this.vocabularyManager.resolveTerms(ids);
     }
 }
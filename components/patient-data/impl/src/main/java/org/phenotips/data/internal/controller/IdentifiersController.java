@@ -18,6 +18,7 @@
 package org.phenotips.data.internal.controller;
 
 import org.phenotips.data.DictionaryPatientData;
+import org.phenotips.data.FieldAwarePatientDataController;
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientDataController;
@@ -25,6 +26,7 @@
 import org.xwiki.component.annotation.Component;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -49,7 +51,7 @@
 @Component(roles = { PatientDataController.class })
 @Named("identifiers")
 @Singleton
-public class IdentifiersController implements PatientDataController<String>
+public class IdentifiersController implements PatientDataController<String>, FieldAwarePatientDataController
 {
     private static final String DATA_NAME = "identifiers";
 
@@ -136,4 +138,10 @@ public String getName()
     {
         return DATA_NAME;
     }
+
+    @Override
+    public Collection<String> getControlledFields()
+    {
+        return Collections.singleton(EXTERNAL_IDENTIFIER_PROPERTY_NAME);
+    }
 }
@@ -17,6 +17,7 @@
  */
 package org.phenotips.data.internal.controller;
 
+import org.phenotips.data.FieldAwarePatientDataController;
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientDataController;
@@ -26,6 +27,7 @@
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -48,7 +50,7 @@
 @Component(roles = { PatientDataController.class })
 @Named("lifeStatus")
 @Singleton
-public class LifeStatusController implements PatientDataController<String>
+public class LifeStatusController implements PatientDataController<String>, FieldAwarePatientDataController
 {
     private static final String DATA_NAME = "life_status";
 
@@ -133,4 +135,10 @@ public String getName()
     {
         return DATA_NAME;
     }
+
+    @Override
+    public Collection<String> getControlledFields()
+    {
+        return Collections.singleton(DATA_NAME);
+    }
 }
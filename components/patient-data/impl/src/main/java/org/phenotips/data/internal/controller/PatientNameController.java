@@ -17,11 +17,13 @@
  */
 package org.phenotips.data.internal.controller;
 
+import org.phenotips.data.FieldAwarePatientDataController;
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.component.annotation.Component;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 import javax.inject.Named;
@@ -36,7 +38,7 @@
 @Component(roles = { PatientDataController.class })
 @Named("patient-name")
 @Singleton
-public class PatientNameController extends AbstractSimpleController
+public class PatientNameController extends AbstractSimpleController implements FieldAwarePatientDataController
 {
     @Override
     protected List<String> getProperties()
@@ -55,4 +57,10 @@ protected String getJsonPropertyName()
     {
         return "patient_name";
     }
+
+    @Override
+    public Collection<String> getControlledFields()
+    {
+        return getProperties();
+    }
 }
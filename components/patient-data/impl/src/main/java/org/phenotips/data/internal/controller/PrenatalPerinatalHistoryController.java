@@ -17,11 +17,13 @@
  */
 package org.phenotips.data.internal.controller;
 
+import org.phenotips.data.FieldAwarePatientDataController;
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.component.annotation.Component;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -38,6 +40,7 @@
 @Named("prenatalPerinatalHistory")
 @Singleton
 public class PrenatalPerinatalHistoryController extends AbstractComplexController<String>
+    implements FieldAwarePatientDataController
 {
     private static final String IVF = "ivf";
 
@@ -101,4 +104,10 @@ protected String getControllingFieldName(String field)
         }
         return field;
     }
+
+    @Override
+    public Collection<String> getControlledFields()
+    {
+        return getControllingFieldNames();
+    }
 }
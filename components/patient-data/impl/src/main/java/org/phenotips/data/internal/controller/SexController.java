@@ -17,6 +17,7 @@
  */
 package org.phenotips.data.internal.controller;
 
+import org.phenotips.data.FieldAwarePatientDataController;
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientDataController;
@@ -25,6 +26,7 @@
 import org.xwiki.component.annotation.Component;
 
 import java.util.Collection;
+import java.util.Collections;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -46,7 +48,7 @@
 @Component(roles = { PatientDataController.class })
 @Named("sex")
 @Singleton
-public class SexController implements PatientDataController<String>
+public class SexController implements PatientDataController<String>, FieldAwarePatientDataController
 {
     private static final String DATA_NAME = "sex";
 
@@ -142,4 +144,10 @@ public String getName()
     {
         return DATA_NAME;
     }
+
+    @Override
+    public Collection<String> getControlledFields()
+    {
+        return Collections.singleton(INTERNAL_PROPERTY_NAME);
+    }
 }
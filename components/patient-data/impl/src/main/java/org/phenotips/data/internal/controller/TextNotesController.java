@@ -17,11 +17,13 @@
  */
 package org.phenotips.data.internal.controller;
 
+import org.phenotips.data.FieldAwarePatientDataController;
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.component.annotation.Component;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 import javax.inject.Named;
@@ -36,7 +38,7 @@
 @Component(roles = { PatientDataController.class })
 @Named("notes")
 @Singleton
-public class TextNotesController extends AbstractSimpleController
+public class TextNotesController extends AbstractSimpleController implements FieldAwarePatientDataController
 {
     @Override
     protected List<String> getProperties()
@@ -56,4 +58,10 @@ protected String getJsonPropertyName()
     {
         return getName();
     }
+
+    @Override
+    public Collection<String> getControlledFields()
+    {
+        return getProperties();
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.FieldAwarePatientDataController;
+import org.phenotips.data.PatientDataController;
+
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+
+import javax.inject.Provider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Tests for the {@link DefaultPatientDataControllerRegistry} component.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class DefaultPatientDataControllerRegistryTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<PatientDataControllerRegistry> mocker =
+        new MockitoComponentMockingRule<PatientDataControllerRegistry>(DefaultPatientDataControllerRegistry.class);
+
+    private ComponentManager componentManager;
+
+    private PatientDataController<?> identifiers;
+
+    private PatientDataController<?> features;
+
+    private PatientDataController<?> sex;
+
+    @Before
+    public void setup() throws Exception
+    {
+        Provider<ComponentManager> cmProvider = this.mocker.getInstance(
+            new DefaultParameterizedType(null, Provider.class, ComponentManager.class), "context");
+        this.componentManager = mock(ComponentManager.class);
+        when(cmProvider.get()).thenReturn(this.componentManager);
+
+        this.identifiers = mockFieldAwareController("identifiers", "external_id");
+        this.sex = mockFieldAwareController("sex", "gender");
+        this.features = mock(PatientDataController.class);
+        when(this.features.getName()).thenReturn("features");
+        when(this.componentManager.getInstanceList(PatientDataController.class))
+            .thenReturn(Arrays.<Object>asList(this.sex, this.identifiers, this.features));
+    }
+
+    @Test
+    public void listenerIsRegistered() throws Exception
+    {
+        ObservationManager observationManager = this.mocker.getInstance(ObservationManager.class);
+        verify(observationManager).addListener((DefaultPatientDataControllerRegistry) this.mocker
+            .getComponentUnderTest());
+    }
+
+    @Test
+    public void getControllersReturnsAllControllersSortedByName() throws Exception
+    {
+        Collection<PatientDataController<?>> result = this.mocker.getComponentUnderTest().getControllers();
+        Assert.assertEquals(3, result.size());
+        Iterator<PatientDataController<?>> it = result.iterator();
+        Assert.assertSame(this.features, it.next());
+        Assert.assertSame(this.identifiers, it.next());
+        Assert.assertSame(this.sex, it.next());
+        Assert.assertEquals(result, this.mocker.getComponentUnderTest().getControllers(null));
+    }
+
+    @Test
+    public void getControllersForSelectedFieldsSkipsUnrelatedFieldAwareControllers() throws Exception
+    {
+        Collection<PatientDataController<?>> result =
+            this.mocker.getComponentUnderTest().getControllers(Arrays.asList("external_id", "first_name"));
+        Assert.assertEquals(2, result.size());
+        Iterator<PatientDataController<?>> it = result.iterator();
+        Assert.assertSame(this.features, it.next());
+        Assert.assertSame(this.identifiers, it.next());
+
+        result = this.mocker.getComponentUnderTest().getControllers(Collections.<String>emptyList());
+        Assert.assertEquals(1, result.size());
+        Assert.assertSame(this.features, result.iterator().next());
+    }
+
+    @Test
+    public void getControllerByName() throws Exception
+    {
+        Assert.assertSame(this.sex, this.mocker.getComponentUnderTest().getController("sex"));
+        Assert.assertNull(this.mocker.getComponentUnderTest().getController("missing"));
+    }
+
+    @Test
+    public void controllersAreLookedUpOnlyOnceUntilChanged() throws Exception
+    {
+        PatientDataControllerRegistry registry = this.mocker.getComponentUnderTest();
+        registry.getControllers();
+        registry.getController("sex");
+        registry.getControllers(Collections.singleton("gender"));
+        verify(this.componentManager, times(1)).getInstanceList(PatientDataController.class);
+
+        PatientDataController<?> added = mockFieldAwareController("sex", "sex");
+        when(this.componentManager.getInstanceList(PatientDataController.class))
+            .thenReturn(Arrays.<Object>asList(this.identifiers, added));
+        ((DefaultPatientDataControllerRegistry) registry).onEvent(
+            new ComponentDescriptorAddedEvent(PatientDataController.class), null, null);
+
+        Assert.assertSame(added, registry.getController("sex"));
+        Assert.assertEquals(2, registry.getControllers().size());
+        verify(this.componentManager, times(2)).getInstanceList(PatientDataController.class);
+    }
+
+    private PatientDataController<?> mockFieldAwareController(String name, String field)
+    {
+        PatientDataController<?> result =
+            mock(PatientDataController.class, withSettings().extraInterfaces(FieldAwarePatientDataController.class));
+        when(result.getName()).thenReturn(name);
+        when(((FieldAwarePatientDataController) result).getControlledFields())
+            .thenReturn(Collections.singleton(field));
+        return result;
+    }
+}
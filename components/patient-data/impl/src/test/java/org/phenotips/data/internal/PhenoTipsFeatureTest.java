@@ -32,7 +32,9 @@
 import org.xwiki.model.reference.EntityReference;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -53,6 +55,7 @@
 import com.xpn.xwiki.objects.StringProperty;
 import com.xpn.xwiki.web.Utils;
 
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -116,6 +119,17 @@ public void setup() throws ComponentLookupException
         when(this.hp0012211.getId()).thenReturn(HP0012211);
         when(this.hp0012211.getName()).thenReturn("Abnormal renal physiology");
         when(this.vm.resolveTerm(HP0012211)).thenReturn(this.hp0012211);
+        // Batch lookups are answered from the single term stubs
+        when(this.vm.resolveTerms(anyCollectionOf(String.class))).thenAnswer(invocation -> {
+            Map<String, VocabularyTerm> result = new LinkedHashMap<>();
+            for (Object id : (Collection<?>) invocation.getArguments()[0]) {
+                VocabularyTerm term = this.vm.resolveTerm((String) id);
+                if (term != null) {
+                    result.put((String) id, term);
+                }
+            }
+            return result;
+        });
     }
 
     @Test
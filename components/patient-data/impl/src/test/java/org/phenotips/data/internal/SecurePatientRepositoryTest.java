@@ -27,6 +27,7 @@
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.users.User;
@@ -37,6 +38,7 @@
 import java.util.LinkedList;
 import java.util.List;
 
+import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -49,7 +51,9 @@
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -165,6 +169,34 @@ public void createDeniesUnauthorizedAccess() throws ComponentLookupException
         this.mocker.getComponentUnderTest().create();
     }
 
+    @Test
+    public void createFromJSONForwardsCallsWhenAuthorized() throws ComponentLookupException
+    {
+        JSONObject json = new JSONObject().put("external_id", "Neuro123");
+        DocumentReference profile = this.currentUser.getProfileDocument();
+        mockUserLookup(profile);
+        when(this.internalRepo.create(json, profile)).thenReturn(this.patient);
+        when(this.access.hasAccess(this.currentUser, Right.EDIT, this.patientReference.getParent()))
+            .thenReturn(true);
+
+        Assert.assertSame(this.securePatient, this.componentUnderTest.create(json, profile));
+    }
+
+    @Test
+    public void createFromJSONDeniesUnauthorizedAccess() throws ComponentLookupException
+    {
+        DocumentReference profile = this.currentUser.getProfileDocument();
+        mockUserLookup(profile);
+        when(this.access.hasAccess(this.currentUser, Right.EDIT, this.patientReference.getParent()))
+            .thenReturn(false);
+        try {
+            this.componentUnderTest.create(new JSONObject(), profile);
+            Assert.fail("Unauthorized users must not create patients");
+        } catch (SecurityException ex) {
+            verify(this.internalRepo, never()).create(any(JSONObject.class), any(DocumentReference.class));
+        }
+    }
+
     @Test
     public void loadForwardsCalls() throws ComponentLookupException
     {
@@ -234,4 +266,12 @@ public void getAllReturnsEmptyIteratorForNullRepositoryResult() throws Component
         Assert.assertNotNull(result);
         Assert.assertFalse(result.hasNext());
     }
+
+    private void mockUserLookup(DocumentReference profile) throws ComponentLookupException
+    {
+        EntityReferenceSerializer<String> serializer = this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
+        when(serializer.serialize(profile)).thenReturn("xwiki:XWiki.jdoe");
+        UserManager userManager = this.mocker.getInstance(UserManager.class);
+        when(userManager.getUser("xwiki:XWiki.jdoe")).thenReturn(this.currentUser);
+    }
 }
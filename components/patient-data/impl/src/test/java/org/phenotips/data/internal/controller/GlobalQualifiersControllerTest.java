@@ -29,8 +29,10 @@
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -56,6 +58,7 @@
 import com.xpn.xwiki.objects.classes.StringClass;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -137,6 +140,17 @@ public void setUp() throws Exception
         when(vocabularyManager.resolveTerm(GONOSOMAL)).thenReturn(this.gonosomalTerm);
         when(this.mitochondrialTerm.getId()).thenReturn(MITOCHONDRIAL);
         when(vocabularyManager.resolveTerm(MITOCHONDRIAL)).thenReturn(this.mitochondrialTerm);
+        // Batch lookups are answered from the single term stubs
+        when(vocabularyManager.resolveTerms(anyCollectionOf(String.class))).thenAnswer(invocation -> {
+            Map<String, VocabularyTerm> result = new LinkedHashMap<>();
+            for (Object id : (Collection<?>) invocation.getArguments()[0]) {
+                VocabularyTerm term = vocabularyManager.resolveTerm((String) id);
+                if (term != null) {
+                    result.put((String) id, term);
+                }
+            }
+            return result;
+        });
 
         when(this.data.getXClass(this.xWikiContext)).thenReturn(this.patientClass);
         StringClass onsetClass = mock(StringClass.class);
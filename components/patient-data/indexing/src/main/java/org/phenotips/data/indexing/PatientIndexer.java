@@ -22,6 +22,8 @@
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
+import java.util.Collection;
+
 /**
  * API for indexing patient data in a search engine.
  *
@@ -39,6 +41,15 @@
      */
     void index(Patient patient);
 
+    /**
+     * Add (or update) several patients to the index at once.
+     *
+     * @param patients the patients to index
+     * @return {@code true} if the patients were indexed, {@code false} if the index rejected them
+     * @since 1.4
+     */
+    boolean index(Collection<Patient> patients);
+
     /**
      * Delete from the index a patient.
      *
@@ -47,7 +58,7 @@
     void delete(Patient patient);
 
     /**
-     * Reindex all the patients.
+     * Reindex all the patients. If a previous reindex was interrupted, it is resumed instead of starting over.
      */
     void reindex();
 }
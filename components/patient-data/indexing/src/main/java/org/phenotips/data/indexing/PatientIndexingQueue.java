@@ -0,0 +1,56 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Queue of patients waiting to be {@link PatientIndexer indexed}. Patients are indexed in the background, in batches,
+ * and repeated changes to the same patient within a short time window result in a single indexing operation. Pending
+ * patients are remembered across restarts.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+@Role
+public interface PatientIndexingQueue
+{
+    /**
+     * Schedule a patient to be (re)indexed. If the patient is already waiting in the queue, nothing changes.
+     *
+     * @param patient reference to the document where the patient is stored
+     */
+    void enqueue(DocumentReference patient);
+
+    /**
+     * Returns the number of patients waiting to be indexed.
+     *
+     * @return a positive number, {@code 0} if the queue is empty
+     */
+    int getQueueDepth();
+
+    /**
+     * Returns how long the oldest patient in the queue has been waiting to be indexed.
+     *
+     * @return a duration in milliseconds, {@code 0} if the queue is empty
+     */
+    long getLag();
+}
@@ -0,0 +1,379 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.indexing.PatientIndexer;
+import org.phenotips.data.indexing.PatientIndexingQueue;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+
+/**
+ * Default implementation of the {@link PatientIndexingQueue}, which keeps the pending patients in memory, and indexes
+ * them from a background thread. A patient is indexed once it has been waiting in the queue for at least
+ * {@link #COALESCING_WINDOW} milliseconds, so that all the changes made during that window are indexed together.
+ * Pending patients are stored in the permanent directory, along with the time when they were enqueued, when the queue
+ * is disposed, and while the queue is not empty, so that they are indexed after a restart. If a batch fails to be
+ * indexed, its patients are indexed one by one, so that a single bad patient doesn't hold back the others. Patients
+ * which still fail are put back in the queue and retried later, waiting longer after each failure, and are dropped
+ * after {@link #MAX_ATTEMPTS} failed attempts.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Singleton
+public class DefaultPatientIndexingQueue implements PatientIndexingQueue, Initializable, Disposable
+{
+    /** How long, in milliseconds, are changes to the same patient coalesced before the patient is indexed. */
+    static final long COALESCING_WINDOW = 2000;
+
+    /** How many times is a patient indexed before giving up and dropping it from the queue. */
+    static final int MAX_ATTEMPTS = 10;
+
+    /** How often, in milliseconds, is the queue checked for patients ready to be indexed. */
+    private static final long POLL_INTERVAL = 500;
+
+    /** The longest time, in milliseconds, to wait before indexing again a patient which failed to be indexed. */
+    private static final long MAX_RETRY_DELAY = 300000;
+
+    /** How many patients are sent to the indexer at once. */
+    private static final int BATCH_SIZE = 100;
+
+    /** The name of the file, in the permanent directory, where pending patients are stored. */
+    private static final String QUEUE_FILE = "patients-index-queue.txt";
+
+    /** Separates the enqueue time from the patient reference in the stored queue. */
+    private static final String SEPARATOR = "\t";
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    /** Does the actual indexing. */
+    @Inject
+    private PatientIndexer indexer;
+
+    /** Provides access to patients. */
+    @Inject
+    private PatientRepository patientRepository;
+
+    @Inject
+    private EntityReferenceSerializer<String> referenceSerializer;
+
+    /** Provides access to the execution context, which must be set up in the background thread. */
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    /** Provides access to the permanent directory, where pending patients are stored. */
+    @Inject
+    private Environment environment;
+
+    /** The pending patients, as serialized document references, and the time when they were first enqueued. */
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+
+    /** The patients which failed to be indexed, and how many times they failed in a row. */
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+
+    /** The patients which failed to be indexed, and the time, in milliseconds, when they can be indexed again. */
+    private final Map<String, Long> retryTimes = new ConcurrentHashMap<>();
+
+    /** Runs the background indexing. */
+    private ScheduledExecutorService scheduler;
+
+    /** Whether the queue changed since it was last stored. */
+    private volatile boolean dirty;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.pending.putAll(loadStoredQueue());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "Patient indexing queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::processQueue, POLL_INTERVAL, POLL_INTERVAL,
+            TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.scheduler.shutdown();
+        try {
+            this.scheduler.awaitTermination(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        storeQueue();
+    }
+
+    @Override
+    public void enqueue(DocumentReference patient)
+    {
+        if (patient != null && this.pending.putIfAbsent(this.referenceSerializer.serialize(patient),
+            System.currentTimeMillis()) == null) {
+            this.dirty = true;
+        }
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        return this.pending.size();
+    }
+
+    @Override
+    public long getLag()
+    {
+        long oldest = Long.MAX_VALUE;
+        for (Long enqueued : this.pending.values()) {
+            oldest = Math.min(oldest, enqueued);
+        }
+        return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    /** Background task, indexes all the patients ready to be indexed. Must never throw exceptions. */
+    private void processQueue()
+    {
+        try {
+            ExecutionContext context = new ExecutionContext();
+            this.contextManager.initialize(context);
+            this.execution.setContext(context);
+            try {
+                int processed;
+                do {
+                    processed = process(System.currentTimeMillis());
+                } while (processed > 0);
+            } finally {
+                this.execution.removeContext();
+            }
+            if (this.dirty) {
+                storeQueue();
+            }
+        } catch (ExecutionContextException | RuntimeException ex) {
+            this.logger.warn("Failed to index queued patients: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Indexes one batch of patients which have been waiting in the queue for at least the coalescing window, and which
+     * are not waiting to be retried after a failure. If the batch fails, each patient is indexed on its own.
+     *
+     * @param now the current time, in milliseconds
+     * @return the number of patients removed from the queue, either indexed or dropped after too many failures,
+     *         {@code 0} if none were ready or if indexing failed, in which case they are put back in the queue
+     */
+    int process(long now)
+    {
+        Map<String, Long> ready = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : this.pending.entrySet()) {
+            // Patients changed again while being indexed are enqueued anew, so they are removed before loading them
+            if (now - entry.getValue() >= COALESCING_WINDOW && isRetryDue(entry.getKey(), now)
+                && this.pending.remove(entry.getKey(), entry.getValue())) {
+                ready.put(entry.getKey(), entry.getValue());
+                if (ready.size() == BATCH_SIZE) {
+                    break;
+                }
+            }
+        }
+        if (ready.isEmpty()) {
+            return 0;
+        }
+
+        int removed = 0;
+        if (index(ready.keySet())) {
+            ready.keySet().forEach(this::clearFailures);
+            removed = ready.size();
+        } else {
+            for (Map.Entry<String, Long> entry : ready.entrySet()) {
+                // A single patient was already tried on its own
+                if (ready.size() > 1 && index(Collections.singleton(entry.getKey()))) {
+                    clearFailures(entry.getKey());
+                    ++removed;
+                } else if (!retryLater(entry.getKey(), entry.getValue(), now)) {
+                    ++removed;
+                }
+            }
+        }
+        this.dirty = true;
+        return removed;
+    }
+
+    private boolean index(Collection<String> ids)
+    {
+        try {
+            return this.indexer.index(load(ids));
+        } catch (RuntimeException ex) {
+            this.logger.debug("Failed to index queued patients {}: {}", ids, ex.getMessage());
+            return false;
+        }
+    }
+
+    private boolean isRetryDue(String id, long now)
+    {
+        Long retryTime = this.retryTimes.get(id);
+        return retryTime == null || now >= retryTime;
+    }
+
+    /**
+     * Puts back in the queue a patient which failed to be indexed, unless it failed too many times.
+     *
+     * @param id the serialized reference of the patient
+     * @param enqueued the time when the patient was first enqueued, kept so that the lag reflects how long it waited
+     * @param now the current time, in milliseconds
+     * @return {@code true} if the patient will be retried, {@code false} if it was dropped
+     */
+    private boolean retryLater(String id, long enqueued, long now)
+    {
+        int attempts = this.failures.merge(id, 1, Integer::sum);
+        if (attempts >= MAX_ATTEMPTS) {
+            this.logger.error("Dropping patient [{}] from the indexing queue after {} failed attempts, it will only be"
+                + " indexed again when it changes or when all the patients are reindexed", id, attempts);
+            clearFailures(id);
+            return false;
+        }
+        long delay = Math.min(MAX_RETRY_DELAY, POLL_INTERVAL << attempts);
+        this.retryTimes.put(id, now > Long.MAX_VALUE - delay ? Long.MAX_VALUE : now + delay);
+        this.pending.merge(id, enqueued, Math::min);
+        return true;
+    }
+
+    private void clearFailures(String id)
+    {
+        this.failures.remove(id);
+        this.retryTimes.remove(id);
+    }
+
+    private List<Patient> load(Collection<String> ids)
+    {
+        List<Patient> patients = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            try {
+                Patient patient = this.patientRepository.get(id);
+                if (patient != null) {
+                    patients.add(patient);
+                }
+            } catch (IllegalArgumentException ex) {
+                // The patient was deleted in the meantime
+                this.logger.debug("Skipping missing queued patient [{}]", id);
+            }
+        }
+        return patients;
+    }
+
+    private Map<String, Long> loadStoredQueue()
+    {
+        File file = getQueueFile();
+        if (file == null || !file.isFile()) {
+            return Collections.emptyMap();
+        }
+        try {
+            Map<String, Long> result = new LinkedHashMap<>();
+            long restored = System.currentTimeMillis();
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                if (StringUtils.isBlank(line)) {
+                    continue;
+                }
+                String patient = StringUtils.substringAfter(line, SEPARATOR).trim();
+                long enqueued = NumberUtils.toLong(StringUtils.substringBefore(line, SEPARATOR), -1);
+                if (enqueued < 0 || StringUtils.isEmpty(patient)) {
+                    // Not written by this version, only holds the reference
+                    result.put(line.trim(), restored);
+                } else {
+                    result.put(patient, Math.min(enqueued, restored));
+                }
+            }
+            return result;
+        } catch (IOException ex) {
+            this.logger.warn("Failed to read the stored patient indexing queue: {}", ex.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    private synchronized void storeQueue()
+    {
+        File file = getQueueFile();
+        if (file == null) {
+            return;
+        }
+        this.dirty = false;
+        try {
+            if (this.pending.isEmpty()) {
+                Files.deleteIfExists(file.toPath());
+                return;
+            }
+            Path temp = file.toPath().resolveSibling(QUEUE_FILE + ".tmp");
+            List<String> lines = new ArrayList<>(this.pending.size());
+            for (Map.Entry<String, Long> entry : this.pending.entrySet()) {
+                lines.add(entry.getValue() + SEPARATOR + entry.getKey());
+            }
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            this.dirty = true;
+            this.logger.warn("Failed to store the patient indexing queue: {}", ex.getMessage());
+        }
+    }
+
+    private File getQueueFile()
+    {
+        File permanentDirectory = this.environment.getPermanentDirectory();
+        return permanentDirectory == null ? null : new File(permanentDirectory, QUEUE_FILE);
+    }
+}
@@ -22,6 +22,7 @@
 import org.phenotips.data.events.PatientDeletedEvent;
 import org.phenotips.data.events.PatientEvent;
 import org.phenotips.data.indexing.PatientIndexer;
+import org.phenotips.data.indexing.PatientIndexingQueue;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.observation.AbstractEventListener;
@@ -32,7 +33,8 @@
 import javax.inject.Singleton;
 
 /**
- * Monitors document changes and submits modified patients to the {@link PatientIndexer indexer}.
+ * Monitors document changes and submits modified patients to the {@link PatientIndexingQueue indexing queue}, so that
+ * they are indexed in the background. Deleted patients are removed from the {@link PatientIndexer index} right away.
  *
  * @version $Id$
  * @since 1.0M8
@@ -46,6 +48,10 @@ public class PatientEventListener extends AbstractEventListener
     @Inject
     private PatientIndexer indexer;
 
+    /** Indexes modified patients in the background. */
+    @Inject
+    private PatientIndexingQueue queue;
+
     /** Default constructor, sets up the listener name and the list of events to subscribe to. */
     public PatientEventListener()
     {
@@ -59,7 +65,7 @@ public void onEvent(final Event event, final Object source, final Object data)
         if (event instanceof PatientDeletedEvent) {
             this.indexer.delete(patient);
         } else if (patient != null) {
-            this.indexer.index(patient);
+            this.queue.enqueue(patient.getDocumentReference());
         }
     }
 }
@@ -0,0 +1,365 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import org.phenotips.vocabulary.SolrCoreContainerHandler;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.slf4j.Logger;
+
+/**
+ * Manages the Solr cores holding the patients index: the live core, which is searched and kept up to date as patients
+ * change, and the shadow core, where a full reindex builds the new index before it replaces the live core.
+ * <p>
+ * While a new index is being built in the shadow core, patients keep changing, and the reindex may already have
+ * processed them with their old data. Such changes are written to the live core as usual, and are also remembered, so
+ * that they can be replayed into the shadow core right before it replaces the live core. Deletions are also recorded
+ * in the reindex checkpoint, since a resumed reindex couldn't detect them otherwise, and patients deleted while an
+ * interrupted reindex wasn't running are removed from the shadow core when the reindex is resumed.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { PatientIndexCores.class })
+@Singleton
+public class PatientIndexCores implements Initializable
+{
+    /** The name of the live Solr core holding the patients index. */
+    private static final String CORE_NAME = "patients";
+
+    /** The name of the Solr core where a new index is built during a reindex. */
+    private static final String SHADOW_CORE_NAME = "patients_reindex";
+
+    private static final String ALL_DOCUMENTS_QUERY = "*:*";
+
+    /** How many document names are read at once when looking for deleted patients in the shadow core. */
+    private static final int PAGE_SIZE = 1000;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private SolrCoreContainerHandler cores;
+
+    /** The clients used for each core, by core name. */
+    private final Map<String, SolrClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Taken for reading while changes are written to the live core, and for writing while the recorded changes are
+     * replayed and the cores are swapped, so that no change is written to the old live core after it was replayed.
+     */
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+
+    /**
+     * The patients changed while a new index is being built in the shadow core, by document name, {@code null} if no
+     * reindex in the shadow core is running. Deleted patients are removed from here, and recorded in the checkpoint.
+     */
+    private volatile Map<String, SolrInputDocument> recorded;
+
+    /** The checkpoint of the running reindex, where deletions are recorded; {@code null} if not recording. */
+    private volatile ReindexCheckpoint recordingCheckpoint;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        getClient(CORE_NAME);
+    }
+
+    /**
+     * Returns the live core, which is searched.
+     *
+     * @return the client of the live core
+     */
+    public SolrClient getLive()
+    {
+        return getClient(CORE_NAME);
+    }
+
+    /**
+     * Adds or updates patients in the live index. If a new index is being built in the shadow core, the changes are
+     * also recorded, to be replayed into the new index before it replaces the live one.
+     *
+     * @param documents the patient documents to write, each with its {@link PatientIndexDocumentBuilder#DOCUMENT_FIELD}
+     * @throws SolrServerException if Solr rejected the documents
+     * @throws IOException if communicating with Solr failed
+     */
+    public void add(Collection<SolrInputDocument> documents) throws SolrServerException, IOException
+    {
+        this.swapLock.readLock().lock();
+        try {
+            getLive().add(documents);
+            Map<String, SolrInputDocument> changes = this.recorded;
+            if (changes != null) {
+                for (SolrInputDocument document : documents) {
+                    changes.put(getDocumentName(document), document);
+                }
+            }
+        } finally {
+            this.swapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a patient from the live index, and commits the change. If a new index is being built in the shadow core,
+     * the deletion is also recorded, to be replayed into the new index before it replaces the live one.
+     *
+     * @param documentName the name of the deleted patient document
+     * @throws SolrServerException if Solr rejected the deletion
+     * @throws IOException if communicating with Solr failed
+     */
+    public void delete(String documentName) throws SolrServerException, IOException
+    {
+        this.swapLock.readLock().lock();
+        try {
+            SolrClient live = getLive();
+            live.deleteByQuery(getDocumentQuery(documentName));
+            live.commit();
+            Map<String, SolrInputDocument> changes = this.recorded;
+            ReindexCheckpoint checkpoint = this.recordingCheckpoint;
+            if (changes != null && checkpoint != null) {
+                changes.remove(documentName);
+                checkpoint.addDeleted(documentName);
+            }
+        } finally {
+            this.swapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Decides where the new index is built: in the shadow core if possible, or in place in the live core otherwise. If
+     * the checkpoint describes an interrupted reindex, the same target is used, and the patients which no longer exist
+     * are removed from it, otherwise the target is emptied. When the shadow core is used, changes made to the live
+     * index from now on are recorded until the reindex {@link #finishReindex finishes} or is
+     * {@link #stopRecording() abandoned}.
+     *
+     * @param checkpoint the reindex checkpoint, updated with the chosen target
+     * @param started when did the new reindex start, in milliseconds since the epoch; ignored when resuming
+     * @param patientDocs the names of all the existing patient documents
+     * @return the Solr core to fill
+     * @throws SolrServerException if the target cannot be emptied
+     * @throws IOException if communicating with Solr failed
+     */
+    public SolrClient prepareReindexTarget(ReindexCheckpoint checkpoint, long started, Collection<String> patientDocs)
+        throws SolrServerException, IOException
+    {
+        String core = checkpoint.getCore();
+        if (checkpoint.isResumed() && (core == null || getContainer().getCoreDescriptor(core) != null)) {
+            this.logger.info("Resuming interrupted patient reindex after {} patients", checkpoint.getProcessed());
+            if (core != null) {
+                // Deletions are only recorded while the reindex runs, patients deleted in between are still here
+                removeDeleted(getClient(core), patientDocs);
+            }
+        } else {
+            checkpoint.clear();
+            core = createShadowCore();
+            checkpoint.setCore(core);
+            checkpoint.setStarted(started);
+            getClient(core).deleteByQuery(ALL_DOCUMENTS_QUERY);
+        }
+        if (core != null) {
+            this.recordingCheckpoint = checkpoint;
+            this.recorded = new ConcurrentHashMap<>();
+        }
+        return getClient(core);
+    }
+
+    /**
+     * Completes a reindex: if the new index was built in the shadow core, replays into it the changes made while the
+     * reindex was running, atomically swaps it with the live core, and empties the old index which is now in the shadow
+     * core.
+     *
+     * @param checkpoint the reindex checkpoint, cleared once the reindex is complete
+     * @throws SolrServerException if Solr rejected the changes
+     * @throws IOException if communicating with Solr failed
+     */
+    public void finishReindex(ReindexCheckpoint checkpoint) throws SolrServerException, IOException
+    {
+        String shadow = checkpoint.getCore();
+        if (shadow != null) {
+            this.swapLock.writeLock().lock();
+            try {
+                SolrClient target = getClient(shadow);
+                replay(checkpoint, target);
+                target.commit();
+                getContainer().swap(CORE_NAME, shadow);
+                stopRecording();
+            } finally {
+                this.swapLock.writeLock().unlock();
+            }
+            SolrClient old = getClient(shadow);
+            old.deleteByQuery(ALL_DOCUMENTS_QUERY);
+            old.commit();
+        }
+        checkpoint.clear();
+    }
+
+    /**
+     * Stops recording the changes made to the live index, when a reindex is abandoned. Deletions stay recorded in the
+     * checkpoint, for when the reindex is resumed.
+     */
+    public void stopRecording()
+    {
+        this.recorded = null;
+        this.recordingCheckpoint = null;
+    }
+
+    private void replay(ReindexCheckpoint checkpoint, SolrClient target) throws SolrServerException, IOException
+    {
+        for (String deleted : checkpoint.getDeleted()) {
+            target.deleteByQuery(getDocumentQuery(deleted));
+        }
+        Map<String, SolrInputDocument> changes = this.recorded;
+        if (changes != null && !changes.isEmpty()) {
+            this.logger.debug("Replaying {} patient changes into the new index", changes.size());
+            target.add(new LinkedHashMap<>(changes).values());
+        }
+    }
+
+    /**
+     * Removes from an index the patients which no longer exist.
+     *
+     * @param target the index to clean up
+     * @param patientDocs the names of all the existing patient documents
+     */
+    private void removeDeleted(SolrClient target, Collection<String> patientDocs)
+        throws SolrServerException, IOException
+    {
+        Set<String> existing = new HashSet<>(patientDocs);
+        List<String> deleted = new ArrayList<>();
+        SolrQuery query = new SolrQuery(ALL_DOCUMENTS_QUERY).setFields(PatientIndexDocumentBuilder.DOCUMENT_FIELD)
+            .setRows(PAGE_SIZE);
+        SolrDocumentList page;
+        int start = 0;
+        do {
+            page = target.query(query.setStart(start)).getResults();
+            for (SolrDocument document : page) {
+                String name = String.valueOf(document.getFieldValue(PatientIndexDocumentBuilder.DOCUMENT_FIELD));
+                if (!existing.contains(name)) {
+                    deleted.add(name);
+                }
+            }
+            start += page.size();
+        } while (page.size() == PAGE_SIZE);
+        if (!deleted.isEmpty()) {
+            this.logger.debug("Removing {} deleted patients from the resumed reindex", deleted.size());
+            for (String name : deleted) {
+                target.deleteByQuery(getDocumentQuery(name));
+            }
+            target.commit();
+        }
+    }
+
+    /**
+     * Makes sure that the shadow core exists, creating it with the same configuration as the live core if needed.
+     *
+     * @return the name of the shadow core, or {@code null} if it cannot be created
+     */
+    private String createShadowCore()
+    {
+        CoreContainer container = getContainer();
+        CoreDescriptor live = container.getCoreDescriptor(CORE_NAME);
+        if (live == null) {
+            return null;
+        }
+        if (container.getCoreDescriptor(SHADOW_CORE_NAME) != null) {
+            // Left over from the previous reindex, which swapped it with the live core
+            return SHADOW_CORE_NAME;
+        }
+        try {
+            Path shadowDir = live.getInstanceDir().resolveSibling(SHADOW_CORE_NAME);
+            copyDirectory(live.getInstanceDir().resolve("conf"), shadowDir.resolve("conf"));
+            container.create(SHADOW_CORE_NAME, shadowDir, Collections.<String, String>emptyMap(), false);
+            return SHADOW_CORE_NAME;
+        } catch (IOException | SolrException ex) {
+            this.logger.warn("Failed to create the reindex core, the live index will be rebuilt in place: {}",
+                ex.getMessage());
+            return null;
+        }
+    }
+
+    private SolrClient getClient(String core)
+    {
+        String name = core == null ? CORE_NAME : core;
+        return this.clients.computeIfAbsent(name, key -> new EmbeddedSolrServer(getContainer(), key));
+    }
+
+    private CoreContainer getContainer()
+    {
+        return this.cores.getContainer();
+    }
+
+    private static String getDocumentName(SolrInputDocument document)
+    {
+        return String.valueOf(document.getFieldValue(PatientIndexDocumentBuilder.DOCUMENT_FIELD));
+    }
+
+    private static String getDocumentQuery(String documentName)
+    {
+        return PatientIndexDocumentBuilder.DOCUMENT_FIELD + ':' + ClientUtils.escapeQueryChars(documentName);
+    }
+
+    private static void copyDirectory(final Path source, final Path target) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(source)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Path destination = target.resolve(source.relativize(file).toString());
+                if (Files.isDirectory(file)) {
+                    Files.createDirectories(destination);
+                } else {
+                    Files.copy(file, destination, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+}
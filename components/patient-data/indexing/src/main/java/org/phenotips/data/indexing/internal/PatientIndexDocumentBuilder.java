@@ -0,0 +1,189 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import org.phenotips.data.Feature;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientData;
+import org.phenotips.data.permissions.PermissionsManager;
+import org.phenotips.data.permissions.Visibility;
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyHierarchy;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+
+/**
+ * Converts patients into the Solr documents stored in the patients index.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { PatientIndexDocumentBuilder.class })
+@Singleton
+public class PatientIndexDocumentBuilder
+{
+    /** The name of the field holding the name of the patient document, which identifies indexed patients. */
+    public static final String DOCUMENT_FIELD = "document";
+
+    private static final String GENES_KEY = "genes";
+
+    private static final String GENE_NAME_FIELD = "gene";
+
+    private static final String GENE_STATUS_FIELD = "status";
+
+    private static final String GENE_STATUS_SOLVED = "solved";
+
+    private static final String GENE_STATUS_CANDIDATE = "candidate";
+
+    private static final String GENE_STATUS_REJECTED = "rejected";
+
+    private static final String GENE_STATUS_CARRIER = "carrier";
+
+    private static final String SOLR_FIELD_SOLVED_GENES = "solved_genes";
+
+    private static final String SOLR_FIELD_CANDIDATE_GENES = "candidate_genes";
+
+    private static final String SOLR_FIELD_REJECTED_GENES = "rejected_genes";
+
+    private static final String SOLR_FIELD_CARRIER_GENES = "carrier_genes";
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private PermissionsManager permissions;
+
+    /** Provides access to the HPO ontology. */
+    @Inject
+    @Named("hpo")
+    private Vocabulary ontologyService;
+
+    @Inject
+    private EntityReferenceSerializer<String> referenceSerializer;
+
+    /**
+     * Converts a patient into a Solr document.
+     *
+     * @param patient the patient to convert
+     * @return a new document, holding the patient's phenotypes with their ancestors, genes, reporter and visibility
+     */
+    public SolrInputDocument build(Patient patient)
+    {
+        SolrInputDocument input = new SolrInputDocument();
+        input.setField(DOCUMENT_FIELD, getDocumentName(patient));
+        String reporter = "";
+        if (patient.getReporter() != null) {
+            reporter = patient.getReporter().toString();
+        }
+        input.setField("reporter", reporter);
+
+        // Index direct phenotypes and extended ancestor sets
+        for (Feature phenotype : patient.getFeatures()) {
+            String presence = (phenotype.isPresent() ? "" : "negative_");
+            String fieldName = presence + phenotype.getType();
+            String ancestorFieldName = "extended_" + presence + "phenotype";
+
+            String termId = phenotype.getId();
+            if (StringUtils.isNotBlank(termId)) {
+                input.addField(fieldName, termId);
+                addAncestors(input, ancestorFieldName, termId);
+            }
+        }
+
+        Visibility visibility = this.permissions.getPatientAccess(patient).getVisibility();
+        input.setField("visibility", visibility.getName());
+        input.setField("accessLevel", visibility.getPermissiveness());
+
+        addGenes(input, patient);
+
+        return input;
+    }
+
+    /**
+     * Returns the name of a patient's document, as stored in the {@link #DOCUMENT_FIELD document field}.
+     *
+     * @param patient the patient whose document name is needed
+     * @return the serialized reference of the patient document
+     */
+    public String getDocumentName(Patient patient)
+    {
+        return this.referenceSerializer.serialize(patient.getDocumentReference());
+    }
+
+    private void addAncestors(SolrInputDocument input, String ancestorFieldName, String termId)
+    {
+        // Prefer the in-memory hierarchy, which doesn't need a query for each ancestor
+        VocabularyHierarchy hierarchy = this.ontologyService.getHierarchy();
+        if (hierarchy != null && hierarchy.contains(termId)) {
+            for (String ancestorId : hierarchy.getAncestorsAndSelf(termId)) {
+                input.addField(ancestorFieldName, ancestorId);
+            }
+            return;
+        }
+        VocabularyTerm term = this.ontologyService.getTerm(termId);
+        if (term != null) {
+            for (VocabularyTerm ancestor : term.getAncestorsAndSelf()) {
+                input.addField(ancestorFieldName, ancestor.getId());
+            }
+        }
+    }
+
+    private void addGenes(SolrInputDocument input, Patient patient)
+    {
+        PatientData<Map<String, String>> allGenes = patient.getData(GENES_KEY);
+        if (allGenes != null && allGenes.isIndexed()) {
+            for (Map<String, String> gene : allGenes) {
+                String name = gene.get(GENE_NAME_FIELD);
+                if (StringUtils.isBlank(name)) {
+                    continue;
+                }
+
+                String status = gene.get(GENE_STATUS_FIELD);
+                String field = null;
+                // Index genes with empty or null status as candidates
+                if (StringUtils.isBlank(status) || GENE_STATUS_CANDIDATE.equals(status)) {
+                    field = SOLR_FIELD_CANDIDATE_GENES;
+                } else if (GENE_STATUS_SOLVED.equals(status)) {
+                    field = SOLR_FIELD_SOLVED_GENES;
+                } else if (GENE_STATUS_REJECTED.equals(status)) {
+                    field = SOLR_FIELD_REJECTED_GENES;
+                } else if (GENE_STATUS_CARRIER.equals(status)) {
+                    field = SOLR_FIELD_CARRIER_GENES;
+                } else {
+                    this.logger.warn("Unexpected gene status: " + status);
+                    continue;
+                }
+
+                input.addField(field, name);
+            }
+        }
+    }
+}
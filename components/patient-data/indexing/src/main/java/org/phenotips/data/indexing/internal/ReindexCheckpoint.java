@@ -0,0 +1,267 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Persistent progress marker for a bulk patient reindex, allowing an interrupted reindex to resume where it stopped
+ * instead of starting over. Patients are reindexed in the lexicographic order of their document names, so remembering
+ * the last document that was committed to the index is enough to know which patients still need to be processed.
+ * Patients changed or deleted while a reindex is running were processed with their old data, or not at all, so the
+ * checkpoint also remembers when the reindex started and which patients were deleted since, allowing a resumed reindex
+ * to catch up with these changes.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+class ReindexCheckpoint
+{
+    private static final String CORE_KEY = "core";
+
+    private static final String LAST_DOCUMENT_KEY = "lastDocument";
+
+    private static final String PROCESSED_KEY = "processed";
+
+    private static final String STARTED_KEY = "started";
+
+    private static final String DELETED_KEY = "deleted";
+
+    /** Separates the names of the deleted documents; document names can't contain line breaks. */
+    private static final String DELETED_SEPARATOR = "\n";
+
+    /** The file where the checkpoint is stored, {@code null} if checkpoints are not persisted. */
+    private final File file;
+
+    /** The name of the Solr core being filled, {@code null} if the live core is reindexed in place. */
+    private String core;
+
+    /** The name of the last patient document which was committed to the index. */
+    private String lastDocument;
+
+    /** How many patients have been processed so far. */
+    private long processed;
+
+    /** When did the reindex start, in milliseconds since the epoch, {@code 0} if no reindex was started. */
+    private long started;
+
+    /** The names of the patient documents deleted since the reindex started. */
+    private final Set<String> deleted = new LinkedHashSet<>();
+
+    /**
+     * Simple constructor.
+     *
+     * @param file the file where the checkpoint is stored, may be {@code null} if the checkpoint shouldn't be persisted
+     */
+    ReindexCheckpoint(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Reads a previously stored checkpoint.
+     *
+     * @param file the file where the checkpoint is stored, may be {@code null}
+     * @return the stored checkpoint, or an empty checkpoint if none was stored or it cannot be read
+     */
+    static ReindexCheckpoint load(File file)
+    {
+        ReindexCheckpoint result = new ReindexCheckpoint(file);
+        if (file == null || !file.isFile()) {
+            return result;
+        }
+        Properties stored = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            stored.load(in);
+            result.core = StringUtils.defaultIfBlank(stored.getProperty(CORE_KEY), null);
+            result.lastDocument = StringUtils.defaultIfBlank(stored.getProperty(LAST_DOCUMENT_KEY), null);
+            result.processed = Long.parseLong(stored.getProperty(PROCESSED_KEY, "0"));
+            result.started = Long.parseLong(stored.getProperty(STARTED_KEY, "0"));
+            for (String document : StringUtils.split(stored.getProperty(DELETED_KEY, ""), DELETED_SEPARATOR)) {
+                result.deleted.add(document);
+            }
+        } catch (IOException | NumberFormatException ex) {
+            return new ReindexCheckpoint(file);
+        }
+        return result;
+    }
+
+    /**
+     * Checks if this checkpoint marks a reindex which was interrupted before it finished.
+     *
+     * @return {@code true} if some patients were already reindexed
+     */
+    synchronized boolean isResumed()
+    {
+        return this.lastDocument != null;
+    }
+
+    /**
+     * Checks if a patient still needs to be indexed.
+     *
+     * @param document the name of a patient document
+     * @return {@code true} if the patient was not yet committed to the index
+     */
+    synchronized boolean isPending(String document)
+    {
+        return this.lastDocument == null || document.compareTo(this.lastDocument) > 0;
+    }
+
+    /**
+     * Returns the Solr core being filled by the checkpointed reindex.
+     *
+     * @return a core name, or {@code null} if the live core is reindexed in place
+     */
+    synchronized String getCore()
+    {
+        return this.core;
+    }
+
+    /**
+     * Sets the Solr core being filled by this reindex.
+     *
+     * @param core a core name, or {@code null} if the live core is reindexed in place
+     */
+    synchronized void setCore(String core)
+    {
+        this.core = core;
+    }
+
+    /**
+     * Returns how many patients were processed before this checkpoint was stored.
+     *
+     * @return a positive number, {@code 0} for a new reindex
+     */
+    synchronized long getProcessed()
+    {
+        return this.processed;
+    }
+
+    /**
+     * Returns when the checkpointed reindex started.
+     *
+     * @return a number of milliseconds since the epoch, {@code 0} for a new reindex
+     */
+    synchronized long getStarted()
+    {
+        return this.started;
+    }
+
+    /**
+     * Sets when this reindex started.
+     *
+     * @param started a number of milliseconds since the epoch
+     */
+    synchronized void setStarted(long started)
+    {
+        this.started = started;
+    }
+
+    /**
+     * Returns the patients deleted since the reindex started.
+     *
+     * @return an unmodifiable snapshot of the names of the deleted patient documents, may be empty
+     */
+    synchronized Set<String> getDeleted()
+    {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(this.deleted));
+    }
+
+    /**
+     * Records that a patient was deleted while the reindex is running, and persists the checkpoint right away, since
+     * the deletion can't be detected later on.
+     *
+     * @param document the name of the deleted patient document
+     * @throws IOException if the checkpoint cannot be written
+     */
+    synchronized void addDeleted(String document) throws IOException
+    {
+        if (this.deleted.add(document)) {
+            store();
+        }
+    }
+
+    /**
+     * Records that all patients up to and including {@code document} have been committed to the index, and persists the
+     * checkpoint.
+     *
+     * @param document the name of the last patient document which was committed
+     * @param processedCount how many patients were processed in total, including previous runs
+     * @throws IOException if the checkpoint cannot be written
+     */
+    synchronized void advance(String document, long processedCount) throws IOException
+    {
+        this.lastDocument = document;
+        this.processed = processedCount;
+        store();
+    }
+
+    /**
+     * Removes the stored checkpoint, once a reindex has successfully completed.
+     *
+     * @throws IOException if the checkpoint file exists but cannot be deleted
+     */
+    synchronized void clear() throws IOException
+    {
+        this.lastDocument = null;
+        this.processed = 0;
+        this.started = 0;
+        this.core = null;
+        this.deleted.clear();
+        if (this.file != null) {
+            Files.deleteIfExists(this.file.toPath());
+        }
+    }
+
+    private void store() throws IOException
+    {
+        if (this.file == null) {
+            return;
+        }
+        Properties stored = new Properties();
+        if (this.core != null) {
+            stored.setProperty(CORE_KEY, this.core);
+        }
+        if (this.lastDocument != null) {
+            stored.setProperty(LAST_DOCUMENT_KEY, this.lastDocument);
+        }
+        stored.setProperty(PROCESSED_KEY, String.valueOf(this.processed));
+        stored.setProperty(STARTED_KEY, String.valueOf(this.started));
+        if (!this.deleted.isEmpty()) {
+            stored.setProperty(DELETED_KEY, StringUtils.join(this.deleted, DELETED_SEPARATOR));
+        }
+        // Write to a temporary file first, so that a crash during the write doesn't leave a corrupted checkpoint behind
+        Path temp = this.file.toPath().resolveSibling(this.file.getName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            stored.store(out, "Patient reindex checkpoint");
+        }
+        Files.move(temp, this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
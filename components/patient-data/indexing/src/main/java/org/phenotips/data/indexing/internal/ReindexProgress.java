@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the progress of a bulk patient reindex, computing the indexing throughput and the estimated time left.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+class ReindexProgress
+{
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /** The total number of patients to index, including the ones indexed by a previous, interrupted run. */
+    private final long total;
+
+    /** The number of patients indexed before this run started. */
+    private final long initial;
+
+    /** When did this run start, in nanoseconds. */
+    private final long start;
+
+    /** The number of patients indexed so far, including the ones indexed by a previous, interrupted run. */
+    private long done;
+
+    /**
+     * Simple constructor.
+     *
+     * @param total the total number of patients to index
+     * @param initial the number of patients already indexed by a previous run
+     */
+    ReindexProgress(long total, long initial)
+    {
+        this.total = total;
+        this.initial = initial;
+        this.done = initial;
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * Marks more patients as processed.
+     *
+     * @param count how many patients were processed since the last call
+     */
+    void advance(int count)
+    {
+        this.done += count;
+    }
+
+    /**
+     * Returns the number of patients processed so far.
+     *
+     * @return a positive number, at most equal to the total number of patients
+     */
+    long getDone()
+    {
+        return this.done;
+    }
+
+    /**
+     * Returns the average number of patients indexed per second during this run.
+     *
+     * @return a positive number, {@code 0} if nothing was indexed yet
+     */
+    double getRate()
+    {
+        long elapsed = System.nanoTime() - this.start;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (this.done - this.initial) * NANOS_PER_SECOND / elapsed;
+    }
+
+    /**
+     * Returns the estimated number of seconds until all the patients are indexed, based on the current throughput.
+     *
+     * @return a positive number of seconds, or {@code -1} if the throughput isn't known yet
+     */
+    long getRemainingSeconds()
+    {
+        double rate = getRate();
+        if (rate <= 0) {
+            return -1;
+        }
+        return Math.round((this.total - this.done) / rate);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d/%d patients indexed, %.1f docs/s, ETA %ds", this.done, this.total, getRate(),
+            getRemainingSeconds());
+    }
+}
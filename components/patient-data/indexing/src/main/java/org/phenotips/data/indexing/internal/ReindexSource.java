@@ -0,0 +1,135 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+
+/**
+ * Provides the patients processed by a full reindex: lists the patient documents, and loads them into Solr documents
+ * on a pool of {@link ReindexWorkers worker threads}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { ReindexSource.class })
+@Singleton
+public class ReindexSource
+{
+    private static final String PATIENTS_QUERY = "from doc.object(PhenoTips.PatientClass) as patient";
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    /** Allows querying for patients. */
+    @Inject
+    private QueryManager qm;
+
+    /** Provides access to patients. */
+    @Inject
+    private PatientRepository patientRepository;
+
+    @Inject
+    private PatientIndexDocumentBuilder documentBuilder;
+
+    /** Provides access to the current execution context, which must be set up in the reindex worker threads. */
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    /**
+     * Lists all the patient documents, in a stable order, needed for resuming a reindex from a checkpoint.
+     *
+     * @return the sorted names of all the patient documents
+     * @throws QueryException if the patients cannot be listed
+     */
+    public List<String> getPatientDocuments() throws QueryException
+    {
+        return sorted(this.qm.createQuery(PATIENTS_QUERY, Query.XWQL).<String>execute());
+    }
+
+    /**
+     * Lists the patient documents saved since a moment in time.
+     *
+     * @param since a number of milliseconds since the epoch
+     * @return the sorted names of the patient documents modified since {@code since}
+     * @throws QueryException if the patients cannot be listed
+     */
+    public List<String> getPatientDocumentsModifiedSince(long since) throws QueryException
+    {
+        Query query = this.qm.createQuery(PATIENTS_QUERY + " where doc.date >= :since", Query.XWQL);
+        query.bindValue("since", new Date(since));
+        return sorted(query.<String>execute());
+    }
+
+    /**
+     * Starts a pool of threads loading patients.
+     *
+     * @return a new pool, which must be closed once the reindex is done
+     */
+    public ReindexWorkers createWorkers()
+    {
+        return new ReindexWorkers(this.execution, this.contextManager, this::load,
+            Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Loads a patient and converts it into a Solr document.
+     *
+     * @param patientDoc the name of the patient document to load
+     * @return the Solr document, or {@code null} if the patient can't be loaded
+     */
+    SolrInputDocument load(String patientDoc)
+    {
+        try {
+            Patient patient = this.patientRepository.get(patientDoc);
+            return patient == null ? null : this.documentBuilder.build(patient);
+        } catch (IllegalArgumentException ex) {
+            this.logger.warn("Skipping invalid patient [{}] during reindex: {}", patientDoc, ex.getMessage());
+            return null;
+        }
+    }
+
+    private static List<String> sorted(List<String> documents)
+    {
+        List<String> result = new ArrayList<>(documents);
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import org.phenotips.components.WorkerExecutionContext;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * A pool of threads loading patients into Solr documents during a reindex. Patients are loaded through the XWiki
+ * model, so each worker thread runs in its own copy of the execution context of the thread which created the pool, set
+ * up once when the thread starts. The XWiki context of each copy is a separate clone, without the database session of
+ * the original, since sessions can't be shared between threads.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+class ReindexWorkers implements AutoCloseable
+{
+    private final Execution execution;
+
+    private final ExecutionContextManager contextManager;
+
+    /** The execution context of the thread which created the pool, copied for each worker; may be {@code null}. */
+    private final ExecutionContext parentContext;
+
+    private final Function<String, SolrInputDocument> loader;
+
+    private final ExecutorService workers;
+
+    /** Set if a worker thread couldn't set up its execution context, loading patients is then impossible. */
+    private final AtomicReference<ExecutionContextException> contextFailure = new AtomicReference<>();
+
+    /**
+     * Simple constructor, starts the worker threads.
+     *
+     * @param execution used for setting up an execution context in each worker thread
+     * @param contextManager used for copying the current execution context
+     * @param loader loads a patient and converts it into a Solr document, returning {@code null} for missing patients;
+     *            will be called concurrently from several threads
+     * @param threads the number of worker threads
+     */
+    ReindexWorkers(Execution execution, ExecutionContextManager contextManager,
+        Function<String, SolrInputDocument> loader, int threads)
+    {
+        this.execution = execution;
+        this.contextManager = contextManager;
+        this.parentContext = execution.getContext();
+        this.loader = loader;
+        this.workers = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(inWorkerContext(task), "Patient reindex worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads a batch of patients in parallel.
+     *
+     * @param batch the names of the patient documents to load
+     * @return the Solr documents of the patients which could be loaded, in the order of the batch
+     * @throws InterruptedException if the thread was interrupted while waiting for the workers
+     * @throws ExecutionException if loading a patient failed
+     */
+    List<SolrInputDocument> load(List<String> batch) throws InterruptedException, ExecutionException
+    {
+        List<Future<SolrInputDocument>> pending = new ArrayList<>(batch.size());
+        for (final String patientDoc : batch) {
+            pending.add(this.workers.submit(() -> {
+                ExecutionContextException failure = this.contextFailure.get();
+                if (failure != null) {
+                    throw failure;
+                }
+                return this.loader.apply(patientDoc);
+            }));
+        }
+        List<SolrInputDocument> documents = new ArrayList<>(batch.size());
+        for (Future<SolrInputDocument> future : pending) {
+            SolrInputDocument document = future.get();
+            if (document != null) {
+                documents.add(document);
+            }
+        }
+        return documents;
+    }
+
+    @Override
+    public void close()
+    {
+        this.workers.shutdownNow();
+    }
+
+    /**
+     * Wraps the main task of a worker thread so that it runs in its own execution context.
+     *
+     * @param task the worker task
+     * @return a task setting up the execution context before running the worker task
+     */
+    private Runnable inWorkerContext(Runnable task)
+    {
+        return () -> {
+            try {
+                this.execution.setContext(WorkerExecutionContext.create(this.parentContext, this.contextManager));
+            } catch (ExecutionContextException ex) {
+                // Patients can't be loaded without a context, make the tasks fail so that load() reports it
+                this.contextFailure.compareAndSet(null, ex);
+                this.execution.setContext(new ExecutionContext());
+            }
+            try {
+                task.run();
+            } finally {
+                this.execution.removeContext();
+            }
+        };
+    }
+}
@@ -17,158 +17,114 @@
  */
 package org.phenotips.data.indexing.internal;
 
-import org.phenotips.data.Feature;
 import org.phenotips.data.Patient;
-import org.phenotips.data.PatientData;
-import org.phenotips.data.PatientRepository;
 import org.phenotips.data.indexing.PatientIndexer;
-import org.phenotips.data.permissions.PermissionsManager;
-import org.phenotips.vocabulary.SolrCoreContainerHandler;
-import org.phenotips.vocabulary.Vocabulary;
-import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.annotation.Component;
-import org.xwiki.component.phase.Initializable;
-import org.xwiki.component.phase.InitializationException;
-import org.xwiki.model.reference.EntityReferenceSerializer;
-import org.xwiki.query.Query;
+import org.xwiki.environment.Environment;
 import org.xwiki.query.QueryException;
-import org.xwiki.query.QueryManager;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
-import javax.inject.Named;
 import javax.inject.Singleton;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
-import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.slf4j.Logger;
 
 /**
- * Indexes patients in a local Solr core.
+ * Indexes patients in a local Solr core. A full {@link #reindex() reindex} loads patients on a pool of worker threads
+ * and sends them to Solr in batches. When possible, the new index is built in a separate shadow core, which replaces
+ * the live core only once the reindex is complete, so that searches keep working while the reindex is running; the
+ * patients changed meanwhile are brought up to date in the new index before it replaces the live one. Progress is
+ * regularly checkpointed, and an interrupted reindex resumes from the last checkpoint.
  *
  * @version $Id$
  * @since 1.0M8
  */
 @Component
 @Singleton
-public class SolrPatientIndexer implements PatientIndexer, Initializable
+public class SolrPatientIndexer implements PatientIndexer
 {
-    private static final String GENES_KEY = "genes";
+    /** The name of the file, in the permanent directory, where the reindex progress is stored. */
+    private static final String CHECKPOINT_FILE = "patients-reindex.properties";
 
-    private static final String GENE_NAME_FIELD = "gene";
+    /** How many patients are sent to Solr at once during a reindex. */
+    private static final int BATCH_SIZE = 250;
 
-    private static final String GENE_STATUS_FIELD = "status";
+    /** After how many batches is the index committed and the progress checkpointed. */
+    private static final int CHECKPOINT_BATCHES = 20;
 
-    private static final String GENE_STATUS_SOLVED = "solved";
-
-    private static final String GENE_STATUS_CANDIDATE = "candidate";
-
-    private static final String GENE_STATUS_REJECTED = "rejected";
-
-    private static final String GENE_STATUS_CARRIER = "carrier";
-
-    private static final String SOLR_FIELD_SOLVED_GENES = "solved_genes";
-
-    private static final String SOLR_FIELD_CANDIDATE_GENES = "candidate_genes";
-
-    private static final String SOLR_FIELD_REJECTED_GENES = "rejected_genes";
-
-    private static final String SOLR_FIELD_CARRIER_GENES = "carrier_genes";
+    /** Document modification dates may be stored with a precision of one second. */
+    private static final long DATE_PRECISION = 1000L;
 
     /** Logging helper object. */
     @Inject
     private Logger logger;
 
     @Inject
-    private SolrCoreContainerHandler cores;
-
-    /** The Solr server instance used. */
-    private SolrClient server;
+    private PatientIndexDocumentBuilder documentBuilder;
 
-    /** Allows querying for patients. */
     @Inject
-    private QueryManager qm;
+    private PatientIndexCores cores;
 
-    /** Provides access to patients. */
     @Inject
-    private PatientRepository patientRepository;
+    private ReindexSource source;
 
+    /** Provides access to the permanent directory, where the reindex checkpoint is stored. */
     @Inject
-    private PermissionsManager permissions;
+    private Environment environment;
 
-    /** Provides access to the HPO ontology. */
-    @Inject
-    @Named("hpo")
-    private Vocabulary ontologyService;
-
-    @Inject
-    private EntityReferenceSerializer<String> referenceSerializer;
+    /** Prevents concurrent reindexes. */
+    private final AtomicBoolean reindexing = new AtomicBoolean();
 
     @Override
-    public void initialize() throws InitializationException
+    public void index(Patient patient)
     {
-        this.server = new EmbeddedSolrServer(this.cores.getContainer(), "patients");
+        List<SolrInputDocument> documents = new ArrayList<>(1);
+        documents.add(this.documentBuilder.build(patient));
+        add(documents);
     }
 
     @Override
-    public void index(Patient patient)
+    public boolean index(Collection<Patient> patients)
     {
-        SolrInputDocument input = new SolrInputDocument();
-        input.setField("document", this.referenceSerializer.serialize(patient.getDocumentReference()));
-        String reporter = "";
-        if (patient.getReporter() != null) {
-            reporter = patient.getReporter().toString();
+        if (patients.isEmpty()) {
+            return true;
         }
-        input.setField("reporter", reporter);
-
-        // Index direct phenotypes and extended ancestor sets
-        for (Feature phenotype : patient.getFeatures()) {
-            String presence = (phenotype.isPresent() ? "" : "negative_");
-            String fieldName = presence + phenotype.getType();
-            String ancestorFieldName = "extended_" + presence + "phenotype";
-
-            String termId = phenotype.getId();
-            if (StringUtils.isNotBlank(termId)) {
-                input.addField(fieldName, termId);
-                // Add ancestors of the term
-                VocabularyTerm term = this.ontologyService.getTerm(termId);
-                if (term != null) {
-                    for (VocabularyTerm ancestor : term.getAncestorsAndSelf()) {
-                        input.addField(ancestorFieldName, ancestor.getId());
-                    }
-                }
-            }
+        List<SolrInputDocument> documents = new ArrayList<>(patients.size());
+        for (Patient patient : patients) {
+            documents.add(this.documentBuilder.build(patient));
         }
+        return add(documents);
+    }
 
-        input.setField("visibility", this.permissions.getPatientAccess(patient).getVisibility().getName());
-        input.setField("accessLevel", this.permissions.getPatientAccess(patient).getVisibility().getPermissiveness());
-
-        addGenes(input, patient);
-
+    private boolean add(List<SolrInputDocument> documents)
+    {
         try {
-            this.server.add(input);
+            this.cores.add(documents);
+            return true;
         } catch (SolrServerException ex) {
             this.logger.warn("Failed to perform Solr search: {}", ex.getMessage());
         } catch (IOException ex) {
             this.logger.warn("Error occurred while performing Solr search: {}", ex.getMessage());
         }
+        return false;
     }
 
     @Override
     public void delete(Patient patient)
     {
         try {
-            this.server.deleteByQuery("document:"
-                + ClientUtils.escapeQueryChars(this.referenceSerializer.serialize(patient.getDocumentReference())));
-            this.server.commit();
+            this.cores.delete(this.documentBuilder.getDocumentName(patient));
         } catch (SolrServerException ex) {
             this.logger.warn("Failed to delete from Solr: {}", ex.getMessage());
         } catch (IOException ex) {
@@ -179,51 +135,118 @@ public void delete(Patient patient)
     @Override
     public void reindex()
     {
-        try {
-            List<String> patientDocs =
-                this.qm.createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL).execute();
-            this.server.deleteByQuery("*:*");
-            for (String patientDoc : patientDocs) {
-                this.index(this.patientRepository.get(patientDoc));
+        if (!this.reindexing.compareAndSet(false, true)) {
+            this.logger.warn("A patient reindex is already running, ignoring the new request");
+            return;
+        }
+        try (ReindexWorkers workers = this.source.createWorkers()) {
+            // Patients saved after this moment may be missing from the list, or indexed with their old data
+            long started = System.currentTimeMillis();
+            List<String> patientDocs = this.source.getPatientDocuments();
+            ReindexCheckpoint checkpoint = ReindexCheckpoint.load(getCheckpointFile());
+            SolrClient target = this.cores.prepareReindexTarget(checkpoint, started, patientDocs);
+            ReindexProgress progress = new ReindexProgress(patientDocs.size(), checkpoint.getProcessed());
+            indexPending(patientDocs, target, workers, checkpoint, progress);
+            if (checkpoint.getCore() != null) {
+                catchUp(target, workers, checkpoint);
             }
-            this.server.commit();
-        } catch (SolrServerException ex) {
+            target.commit();
+            this.cores.finishReindex(checkpoint);
+            this.logger.info("Finished reindexing patients: {}", progress);
+        } catch (SolrServerException | ExecutionException ex) {
             this.logger.warn("Failed to reindex patients: {}", ex.getMessage());
         } catch (IOException ex) {
             this.logger.warn("Error occurred while reindexing patients: {}", ex.getMessage());
         } catch (QueryException ex) {
             this.logger.warn("Failed to search patients for reindexing: {}", ex.getMessage());
+        } catch (InterruptedException ex) {
+            this.logger.warn("Patient reindexing was interrupted, it will resume from the last checkpoint");
+            Thread.currentThread().interrupt();
+        } finally {
+            this.cores.stopRecording();
+            this.reindexing.set(false);
         }
     }
 
-    private void addGenes(SolrInputDocument input, Patient patient)
+    /**
+     * Indexes all the patients not already indexed before the checkpoint, in batches, regularly committing the index
+     * and advancing the checkpoint.
+     *
+     * @param patientDocs the sorted list of all the patient documents
+     * @param target the Solr core where the patients are indexed
+     * @param workers the thread pool used for loading patients
+     * @param checkpoint the reindex checkpoint
+     * @param progress the progress of the reindex
+     */
+    private void indexPending(List<String> patientDocs, SolrClient target, ReindexWorkers workers,
+        ReindexCheckpoint checkpoint, ReindexProgress progress)
+        throws InterruptedException, ExecutionException, SolrServerException, IOException
     {
-        PatientData<Map<String, String>> allGenes = patient.getData(GENES_KEY);
-        if (allGenes != null && allGenes.isIndexed()) {
-            for (Map<String, String> gene : allGenes) {
-                String name = gene.get(GENE_NAME_FIELD);
-                if (StringUtils.isBlank(name)) {
-                    continue;
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        int batchCount = 0;
+        for (String patientDoc : patientDocs) {
+            if (!checkpoint.isPending(patientDoc)) {
+                continue;
+            }
+            batch.add(patientDoc);
+            if (batch.size() == BATCH_SIZE) {
+                indexBatch(batch, target, workers);
+                progress.advance(batch.size());
+                batch.clear();
+                if (++batchCount % CHECKPOINT_BATCHES == 0) {
+                    target.commit();
+                    checkpoint.advance(patientDoc, progress.getDone());
+                    this.logger.info("Reindexing patients: {}", progress);
                 }
+            }
+        }
+        if (!batch.isEmpty()) {
+            indexBatch(batch, target, workers);
+            progress.advance(batch.size());
+        }
+    }
 
-                String status = gene.get(GENE_STATUS_FIELD);
-                String field = null;
-                // Index genes with empty or null status as candidates
-                if (StringUtils.isBlank(status) || GENE_STATUS_CANDIDATE.equals(status)) {
-                    field = SOLR_FIELD_CANDIDATE_GENES;
-                } else if (GENE_STATUS_SOLVED.equals(status)) {
-                    field = SOLR_FIELD_SOLVED_GENES;
-                } else if (GENE_STATUS_REJECTED.equals(status)) {
-                    field = SOLR_FIELD_REJECTED_GENES;
-                } else if (GENE_STATUS_CARRIER.equals(status)) {
-                    field = SOLR_FIELD_CARRIER_GENES;
-                } else {
-                    this.logger.warn("Unexpected gene status: " + status);
-                    continue;
-                }
+    /**
+     * Reloads the patients saved since the reindex started into the new index, since they may have been indexed with
+     * their old data, possibly by a previous, interrupted run. Changes made from now on are recorded by
+     * {@link PatientIndexCores} and replayed when the new index replaces the live one.
+     *
+     * @param target the Solr core where the patients are indexed
+     * @param workers the thread pool used for loading patients
+     * @param checkpoint the reindex checkpoint
+     */
+    private void catchUp(SolrClient target, ReindexWorkers workers, ReindexCheckpoint checkpoint)
+        throws QueryException, InterruptedException, ExecutionException, SolrServerException, IOException
+    {
+        List<String> modified = this.source.getPatientDocumentsModifiedSince(checkpoint.getStarted() - DATE_PRECISION);
+        for (int start = 0; start < modified.size(); start += BATCH_SIZE) {
+            indexBatch(modified.subList(start, Math.min(start + BATCH_SIZE, modified.size())), target, workers);
+        }
+    }
 
-                input.addField(field, name);
-            }
+    /**
+     * Loads a batch of patients in parallel and sends them to Solr, without committing.
+     *
+     * @param batch the names of the patient documents to index
+     * @param target the Solr core where the patients are indexed
+     * @param workers the thread pool used for loading patients
+     */
+    private void indexBatch(List<String> batch, SolrClient target, ReindexWorkers workers)
+        throws InterruptedException, ExecutionException, SolrServerException, IOException
+    {
+        List<SolrInputDocument> documents = workers.load(batch);
+        if (!documents.isEmpty()) {
+            target.add(documents);
         }
+        if (target == this.cores.getLive()) {
+            // When reindexing in place, make the new data visible as it is indexed
+            target.commit(false, false, true);
+        }
+    }
+
+    private File getCheckpointFile()
+    {
+        File permanentDirectory = this.environment.getPermanentDirectory();
+        return permanentDirectory == null ? null : new File(permanentDirectory, CHECKPOINT_FILE);
     }
 }
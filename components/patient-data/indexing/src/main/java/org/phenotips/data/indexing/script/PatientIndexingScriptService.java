@@ -0,0 +1,65 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.script;
+
+import org.phenotips.data.indexing.PatientIndexingQueue;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.stability.Unstable;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Exposes the state of the {@link PatientIndexingQueue patient indexing queue} to scripts, so that it can be monitored.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+@Component
+@Named("patientIndexing")
+@Singleton
+public class PatientIndexingScriptService implements ScriptService
+{
+    /** The monitored queue. */
+    @Inject
+    private PatientIndexingQueue queue;
+
+    /**
+     * Returns the number of patients waiting to be indexed.
+     *
+     * @return a positive number, {@code 0} if the queue is empty
+     */
+    public int getQueueDepth()
+    {
+        return this.queue.getQueueDepth();
+    }
+
+    /**
+     * Returns how long the oldest patient in the queue has been waiting to be indexed.
+     *
+     * @return a duration in milliseconds, {@code 0} if the queue is empty
+     */
+    public long getLag()
+    {
+        return this.queue.getLag();
+    }
+}
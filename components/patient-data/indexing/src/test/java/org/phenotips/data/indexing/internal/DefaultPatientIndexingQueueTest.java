@@ -0,0 +1,275 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.indexing.PatientIndexer;
+import org.phenotips.data.indexing.PatientIndexingQueue;
+
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultPatientIndexingQueue} component.
+ *
+ * @version $Id$
+ */
+public class DefaultPatientIndexingQueueTest
+{
+    @Rule
+    public MockitoComponentMockingRule<PatientIndexingQueue> mocker =
+        new MockitoComponentMockingRule<PatientIndexingQueue>(DefaultPatientIndexingQueue.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DocumentReference reference1 = new DocumentReference("wiki", "data", "P0000001");
+
+    private DocumentReference reference2 = new DocumentReference("wiki", "data", "P0000002");
+
+    private File permanentDirectory;
+
+    private PatientIndexer indexer;
+
+    private PatientRepository repository;
+
+    private Patient patient1 = mock(Patient.class);
+
+    private Patient patient2 = mock(Patient.class);
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.permanentDirectory = this.folder.newFolder();
+        when(this.mocker.getInstance(Environment.class).getPermanentDirectory()).thenReturn(this.permanentDirectory);
+        EntityReferenceSerializer<String> serializer = this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
+        when(serializer.serialize(this.reference1)).thenReturn("wiki:data.P0000001");
+        when(serializer.serialize(this.reference2)).thenReturn("wiki:data.P0000002");
+        this.indexer = this.mocker.getInstance(PatientIndexer.class);
+        this.repository = this.mocker.getInstance(PatientRepository.class);
+        when(this.repository.get("wiki:data.P0000001")).thenReturn(this.patient1);
+        when(this.repository.get("wiki:data.P0000002")).thenReturn(this.patient2);
+        when(this.indexer.index(anyCollectionOf(Patient.class))).thenReturn(true);
+    }
+
+    @Test
+    public void repeatedChangesAreCoalesced() throws Exception
+    {
+        DefaultPatientIndexingQueue queue = getStoppedQueue();
+        queue.enqueue(this.reference1);
+        queue.enqueue(this.reference2);
+        queue.enqueue(this.reference1);
+        Assert.assertEquals(2, queue.getQueueDepth());
+
+        Assert.assertEquals(2, queue.process(Long.MAX_VALUE));
+        Assert.assertEquals(0, queue.getQueueDepth());
+        Assert.assertEquals(0, queue.getLag());
+        verify(this.indexer).index(anyCollectionOf(Patient.class));
+        verify(this.repository).get("wiki:data.P0000001");
+    }
+
+    @Test
+    public void patientsAreNotIndexedBeforeTheWindowEnds() throws Exception
+    {
+        DefaultPatientIndexingQueue queue = getStoppedQueue();
+        queue.enqueue(this.reference1);
+
+        Assert.assertEquals(0, queue.process(System.currentTimeMillis()));
+        Assert.assertEquals(1, queue.getQueueDepth());
+        verify(this.indexer, never()).index(anyCollectionOf(Patient.class));
+    }
+
+    @Test
+    public void missingPatientsAreSkipped() throws Exception
+    {
+        when(this.repository.get("wiki:data.P0000002")).thenThrow(new IllegalArgumentException());
+        DefaultPatientIndexingQueue queue = getStoppedQueue();
+        queue.enqueue(this.reference2);
+
+        Assert.assertEquals(1, queue.process(Long.MAX_VALUE));
+        verify(this.indexer).index(Collections.<Patient>emptyList());
+    }
+
+    @Test
+    public void patientsAreKeptWhenIndexingFails() throws Exception
+    {
+        when(this.indexer.index(anyCollectionOf(Patient.class))).thenReturn(false);
+        DefaultPatientIndexingQueue queue = getStoppedQueue();
+        queue.enqueue(this.reference1);
+        long lag = queue.getLag();
+
+        Assert.assertEquals(0, queue.process(Long.MAX_VALUE));
+        Assert.assertEquals(1, queue.getQueueDepth());
+        Assert.assertTrue(queue.getLag() >= lag);
+
+        when(this.indexer.index(anyCollectionOf(Patient.class))).thenReturn(true);
+        Assert.assertEquals(1, queue.process(Long.MAX_VALUE));
+        Assert.assertEquals(0, queue.getQueueDepth());
+    }
+
+    @Test
+    public void patientsAreKeptWhenLoadingFails() throws Exception
+    {
+        when(this.repository.get("wiki:data.P0000001")).thenThrow(new IllegalStateException());
+        DefaultPatientIndexingQueue queue = getStoppedQueue();
+        queue.enqueue(this.reference1);
+
+        Assert.assertEquals(0, queue.process(Long.MAX_VALUE));
+        Assert.assertEquals(1, queue.getQueueDepth());
+        verify(this.indexer, never()).index(anyCollectionOf(Patient.class));
+    }
+
+    @Test
+    public void failedBatchesAreIndexedOneByOne() throws Exception
+    {
+        when(this.indexer.index(anyCollectionOf(Patient.class))).thenAnswer(
+            invocation -> !((Collection<?>) invocation.getArguments()[0]).contains(this.patient2));
+        DefaultPatientIndexingQueue queue = getStoppedQueue();
+        queue.enqueue(this.reference1);
+        queue.enqueue(this.reference2);
+
+        Assert.assertEquals(1, queue.process(Long.MAX_VALUE));
+        Assert.assertEquals(1, queue.getQueueDepth());
+        verify(this.indexer).index(Collections.singletonList(this.patient1));
+        verify(this.indexer).index(Collections.singletonList(this.patient2));
+    }
+
+    @Test
+    public void failedPatientsAreRetriedLater() throws Exception
+    {
+        when(this.indexer.index(anyCollectionOf(Patient.class))).thenReturn(false);
+        DefaultPatientIndexingQueue queue = getStoppedQueue();
+        queue.enqueue(this.reference1);
+        long now = System.currentTimeMillis() + DefaultPatientIndexingQueue.COALESCING_WINDOW;
+
+        Assert.assertEquals(0, queue.process(now));
+        Assert.assertEquals(0, queue.process(now + 1));
+        verify(this.indexer, times(1)).index(anyCollectionOf(Patient.class));
+
+        Assert.assertEquals(0, queue.process(now + 60000));
+        verify(this.indexer, times(2)).index(anyCollectionOf(Patient.class));
+        Assert.assertEquals(1, queue.getQueueDepth());
+    }
+
+    @Test
+    public void patientsAreDroppedAfterTooManyFailures() throws Exception
+    {
+        when(this.indexer.index(anyCollectionOf(Patient.class))).thenReturn(false);
+        DefaultPatientIndexingQueue queue = getStoppedQueue();
+        queue.enqueue(this.reference1);
+
+        for (int i = 1; i < DefaultPatientIndexingQueue.MAX_ATTEMPTS; ++i) {
+            Assert.assertEquals(0, queue.process(Long.MAX_VALUE));
+            Assert.assertEquals(1, queue.getQueueDepth());
+        }
+        Assert.assertEquals(1, queue.process(Long.MAX_VALUE));
+        Assert.assertEquals(0, queue.getQueueDepth());
+        verify(this.indexer, times(DefaultPatientIndexingQueue.MAX_ATTEMPTS)).index(anyCollectionOf(Patient.class));
+    }
+
+    @Test
+    public void pendingPatientsAreStoredAndRestored() throws Exception
+    {
+        DefaultPatientIndexingQueue queue = getStoppedQueue();
+        queue.enqueue(this.reference1);
+        queue.enqueue(this.reference2);
+        ((Disposable) queue).dispose();
+
+        File stored = new File(this.permanentDirectory, "patients-index-queue.txt");
+        List<String> lines = Files.readAllLines(stored.toPath(), StandardCharsets.UTF_8);
+        Collections.sort(lines, (a, b) -> a.substring(a.indexOf('\t')).compareTo(b.substring(b.indexOf('\t'))));
+        Assert.assertEquals(2, lines.size());
+        Assert.assertTrue(lines.get(0).matches("\\d+\twiki:data.P0000001"));
+        Assert.assertTrue(lines.get(1).matches("\\d+\twiki:data.P0000002"));
+    }
+
+    @Test
+    public void emptyQueueIsNotStored() throws Exception
+    {
+        DefaultPatientIndexingQueue queue = getStoppedQueue();
+        queue.enqueue(this.reference1);
+        queue.process(Long.MAX_VALUE);
+        ((Disposable) queue).dispose();
+
+        Assert.assertFalse(new File(this.permanentDirectory, "patients-index-queue.txt").exists());
+    }
+
+    @Test
+    public void patientsStoredByAPreviousRunAreIndexed() throws Exception
+    {
+        long enqueued = System.currentTimeMillis() - 60000;
+        Files.write(new File(this.permanentDirectory, "patients-index-queue.txt").toPath(),
+            Arrays.asList(enqueued + "\twiki:data.P0000001", enqueued + "\twiki:data.P0000002"),
+            StandardCharsets.UTF_8);
+        DefaultPatientIndexingQueue queue = getStoppedQueue();
+        Assert.assertEquals(2, queue.getQueueDepth());
+        long lag = queue.getLag();
+        Assert.assertTrue(lag >= 60000 && lag < 3600000);
+
+        Assert.assertEquals(2, queue.process(System.currentTimeMillis()));
+        verify(this.indexer).index(anyCollectionOf(Patient.class));
+    }
+
+    @Test
+    public void patientsStoredWithoutTimestampUseTheRestoreTime() throws Exception
+    {
+        Files.write(new File(this.permanentDirectory, "patients-index-queue.txt").toPath(),
+            Arrays.asList("wiki:data.P0000001"), StandardCharsets.UTF_8);
+        DefaultPatientIndexingQueue queue = getStoppedQueue();
+
+        Assert.assertEquals(1, queue.getQueueDepth());
+        Assert.assertTrue(queue.getLag() < 3600000);
+        Assert.assertEquals(1, queue.process(Long.MAX_VALUE));
+        verify(this.repository).get("wiki:data.P0000001");
+    }
+
+    /**
+     * Returns the queue, with the background thread stopped, so that the tests can control when patients are indexed.
+     */
+    private DefaultPatientIndexingQueue getStoppedQueue() throws Exception
+    {
+        DefaultPatientIndexingQueue queue = (DefaultPatientIndexingQueue) this.mocker.getComponentUnderTest();
+        ((Disposable) queue).dispose();
+        return queue;
+    }
+}
@@ -21,8 +21,10 @@
 import org.phenotips.data.events.PatientDeletedEvent;
 import org.phenotips.data.events.PatientEvent;
 import org.phenotips.data.indexing.PatientIndexer;
+import org.phenotips.data.indexing.PatientIndexingQueue;
 
 import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.observation.EventListener;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
@@ -32,8 +34,10 @@
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 public class PatientEventListenerTest
@@ -49,6 +53,8 @@
     @Mock
     private Patient patient;
 
+    private PatientIndexingQueue queue;
+
     private EventListener eventListener;
 
     @Before
@@ -58,6 +64,7 @@ public void setUp() throws ComponentLookupException
 
         this.eventListener = this.mocker.getComponentUnderTest();
         this.patientIndexer = this.mocker.getInstance(PatientIndexer.class);
+        this.queue = this.mocker.getInstance(PatientIndexingQueue.class);
     }
 
     @Test
@@ -73,10 +80,13 @@ public void deletePatientTest()
     @Test
     public void indexPatientTest()
     {
+        DocumentReference reference = new DocumentReference("wiki", "data", "P0000001");
+        doReturn(reference).when(this.patient).getDocumentReference();
         PatientEvent patientEvent = mock(PatientEvent.class);
         doReturn(this.patient).when(patientEvent).getPatient();
 
         this.eventListener.onEvent(patientEvent, mock(Object.class), mock(Object.class));
-        verify(this.patientIndexer).index(this.patient);
+        verify(this.queue).enqueue(reference);
+        verify(this.patientIndexer, never()).index(any(Patient.class));
     }
 }
@@ -0,0 +1,355 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import org.phenotips.vocabulary.SolrCoreContainerHandler;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link PatientIndexCores} component, in particular the shadow core used during reindexes.
+ *
+ * @version $Id$
+ */
+public class PatientIndexCoresTest
+{
+    private static final String LIVE = "patients";
+
+    private static final String SHADOW = "patients_reindex";
+
+    private static final List<String> PATIENTS = Arrays.asList("P1", "P2");
+
+    @Rule
+    public MockitoComponentMockingRule<PatientIndexCores> mocker =
+        new MockitoComponentMockingRule<>(PatientIndexCores.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PatientIndexCores cores;
+
+    private CoreContainer container;
+
+    private SolrClient live;
+
+    private SolrClient shadow;
+
+    private Path liveDir;
+
+    private ReindexCheckpoint checkpoint;
+
+    @Before
+    public void setUp() throws ComponentLookupException, IOException
+    {
+        this.container = mock(CoreContainer.class);
+        SolrCoreContainerHandler handler = this.mocker.getInstance(SolrCoreContainerHandler.class);
+        when(handler.getContainer()).thenReturn(this.container);
+
+        this.cores = this.mocker.getComponentUnderTest();
+        this.live = mock(SolrClient.class);
+        this.shadow = mock(SolrClient.class);
+        Map<String, SolrClient> clients = ReflectionUtils.getFieldValue(this.cores, "clients");
+        clients.put(LIVE, this.live);
+        clients.put(SHADOW, this.shadow);
+
+        this.liveDir = this.folder.newFolder(LIVE).toPath();
+        Files.createDirectories(this.liveDir.resolve("conf/lang"));
+        Files.write(this.liveDir.resolve("conf/solrconfig.xml"), "<config/>".getBytes(StandardCharsets.UTF_8));
+        Files.write(this.liveDir.resolve("conf/lang/stopwords.txt"), "a".getBytes(StandardCharsets.UTF_8));
+        CoreDescriptor liveDescriptor = mock(CoreDescriptor.class);
+        when(liveDescriptor.getInstanceDir()).thenReturn(this.liveDir);
+        when(this.container.getCoreDescriptor(LIVE)).thenReturn(liveDescriptor);
+
+        this.checkpoint = new ReindexCheckpoint(new File(this.folder.getRoot(), "checkpoint"));
+        shadowContains();
+    }
+
+    @Test
+    public void getLiveReturnsTheLiveCore()
+    {
+        Assert.assertSame(this.live, this.cores.getLive());
+    }
+
+    @Test
+    public void newReindexCreatesTheShadowCoreWithTheLiveConfiguration() throws Exception
+    {
+        SolrClient target = this.cores.prepareReindexTarget(this.checkpoint, 42, PATIENTS);
+
+        Assert.assertSame(this.shadow, target);
+        Assert.assertEquals(SHADOW, this.checkpoint.getCore());
+        Assert.assertEquals(42, this.checkpoint.getStarted());
+        Path shadowDir = this.liveDir.resolveSibling(SHADOW);
+        Assert.assertEquals("<config/>",
+            new String(Files.readAllBytes(shadowDir.resolve("conf/solrconfig.xml")), StandardCharsets.UTF_8));
+        Assert.assertTrue(Files.exists(shadowDir.resolve("conf/lang/stopwords.txt")));
+        verify(this.container).create(SHADOW, shadowDir, Collections.<String, String>emptyMap(), false);
+        verify(this.shadow).deleteByQuery("*:*");
+        verify(this.live, never()).deleteByQuery("*:*");
+    }
+
+    @Test
+    public void existingShadowCoreIsReused() throws Exception
+    {
+        when(this.container.getCoreDescriptor(SHADOW)).thenReturn(mock(CoreDescriptor.class));
+
+        Assert.assertSame(this.shadow, this.cores.prepareReindexTarget(this.checkpoint, 42, PATIENTS));
+
+        verify(this.container, never()).create(anyString(), any(Path.class), anyMapOf(String.class, String.class),
+            anyBoolean());
+        verify(this.shadow).deleteByQuery("*:*");
+    }
+
+    @Test
+    public void liveCoreIsRebuiltInPlaceWhenTheShadowCoreCannotBeCreated() throws Exception
+    {
+        doThrow(new SolrException(SolrException.ErrorCode.SERVER_ERROR, "no space left")).when(this.container)
+            .create(anyString(), any(Path.class), anyMapOf(String.class, String.class), anyBoolean());
+
+        Assert.assertSame(this.live, this.cores.prepareReindexTarget(this.checkpoint, 42, PATIENTS));
+
+        Assert.assertNull(this.checkpoint.getCore());
+        verify(this.live).deleteByQuery("*:*");
+        verify(this.mocker.getMockedLogger()).warn(
+            "Failed to create the reindex core, the live index will be rebuilt in place: {}", "no space left");
+
+        // Nothing is recorded, since there's nothing to replay
+        List<SolrInputDocument> changes = Arrays.asList(document("P1"));
+        this.cores.add(changes);
+        this.cores.finishReindex(this.checkpoint);
+        verify(this.container, never()).swap(LIVE, SHADOW);
+        verify(this.live).add(changes);
+    }
+
+    @Test
+    public void liveCoreIsRebuiltInPlaceWithoutLiveCoreDescriptor() throws Exception
+    {
+        when(this.container.getCoreDescriptor(LIVE)).thenReturn(null);
+
+        Assert.assertSame(this.live, this.cores.prepareReindexTarget(this.checkpoint, 42, PATIENTS));
+
+        Assert.assertNull(this.checkpoint.getCore());
+        verify(this.live).deleteByQuery("*:*");
+    }
+
+    @Test
+    public void interruptedReindexResumesInTheSameCore() throws Exception
+    {
+        when(this.container.getCoreDescriptor(SHADOW)).thenReturn(mock(CoreDescriptor.class));
+        this.checkpoint.setCore(SHADOW);
+        this.checkpoint.setStarted(42);
+        this.checkpoint.advance("P1", 1);
+
+        Assert.assertSame(this.shadow, this.cores.prepareReindexTarget(this.checkpoint, 100, PATIENTS));
+
+        Assert.assertTrue(this.checkpoint.isResumed());
+        Assert.assertEquals(42, this.checkpoint.getStarted());
+        verify(this.shadow, never()).deleteByQuery("*:*");
+    }
+
+    @Test
+    public void patientsDeletedBeforeResumingAreRemovedFromTheShadowCore() throws Exception
+    {
+        when(this.container.getCoreDescriptor(SHADOW)).thenReturn(mock(CoreDescriptor.class));
+        this.checkpoint.setCore(SHADOW);
+        this.checkpoint.advance("P3", 3);
+        shadowContains("P1", "P2", "P3");
+
+        this.cores.prepareReindexTarget(this.checkpoint, 100, PATIENTS);
+
+        verify(this.shadow).deleteByQuery("document:P3");
+        verify(this.shadow, never()).deleteByQuery("document:P1");
+        verify(this.shadow, never()).deleteByQuery("document:P2");
+        verify(this.shadow).commit();
+    }
+
+    @Test
+    public void interruptedReindexStartsOverIfItsCoreIsGone() throws Exception
+    {
+        this.checkpoint.setCore("gone");
+        this.checkpoint.advance("P1", 1);
+
+        Assert.assertSame(this.shadow, this.cores.prepareReindexTarget(this.checkpoint, 100, PATIENTS));
+
+        Assert.assertFalse(this.checkpoint.isResumed());
+        Assert.assertEquals(SHADOW, this.checkpoint.getCore());
+        verify(this.shadow).deleteByQuery("*:*");
+    }
+
+    @Test
+    public void finishSwapsTheCoresAndEmptiesTheOldIndex() throws Exception
+    {
+        this.cores.prepareReindexTarget(this.checkpoint, 42, PATIENTS);
+
+        this.cores.finishReindex(this.checkpoint);
+
+        InOrder order = inOrder(this.shadow, this.container);
+        order.verify(this.shadow).commit();
+        order.verify(this.container).swap(LIVE, SHADOW);
+        // The shadow core name now points to the old live index
+        order.verify(this.shadow).deleteByQuery("*:*");
+        order.verify(this.shadow).commit();
+        Assert.assertNull(this.checkpoint.getCore());
+        Assert.assertFalse(new File(this.folder.getRoot(), "checkpoint").exists());
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Test
+    public void changesDuringAShadowReindexAreReplayedBeforeTheSwap() throws Exception
+    {
+        this.cores.prepareReindexTarget(this.checkpoint, 42, PATIENTS);
+        SolrInputDocument first = document("P1");
+        SolrInputDocument updated = document("P1");
+        SolrInputDocument second = document("P2");
+        this.cores.add(Arrays.asList(first, second));
+        this.cores.add(Arrays.asList(updated));
+        this.cores.delete("P2");
+        this.cores.delete("P3");
+
+        // Deletions are persisted right away, in case the reindex is interrupted
+        Assert.assertEquals(Arrays.asList("P2", "P3"),
+            new ArrayList<>(ReindexCheckpoint.load(new File(this.folder.getRoot(), "checkpoint")).getDeleted()));
+        verify(this.live).add(Arrays.asList(first, second));
+        verify(this.live).add(Arrays.asList(updated));
+        verify(this.live).deleteByQuery("document:P2");
+
+        this.cores.finishReindex(this.checkpoint);
+
+        InOrder order = inOrder(this.shadow, this.container);
+        order.verify(this.shadow).deleteByQuery("document:P2");
+        order.verify(this.shadow).deleteByQuery("document:P3");
+        ArgumentCaptor<Collection> replayed = ArgumentCaptor.forClass(Collection.class);
+        order.verify(this.shadow).add(replayed.capture());
+        order.verify(this.shadow).commit();
+        order.verify(this.container).swap(LIVE, SHADOW);
+        Assert.assertEquals(1, replayed.getValue().size());
+        Assert.assertSame(updated, replayed.getValue().iterator().next());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void deletionsRecordedByAnInterruptedRunAreReplayed() throws Exception
+    {
+        when(this.container.getCoreDescriptor(SHADOW)).thenReturn(mock(CoreDescriptor.class));
+        this.checkpoint.setCore(SHADOW);
+        this.checkpoint.addDeleted("P5");
+        this.checkpoint.advance("P1", 1);
+        ReindexCheckpoint resumed = ReindexCheckpoint.load(new File(this.folder.getRoot(), "checkpoint"));
+
+        this.cores.prepareReindexTarget(resumed, 100, PATIENTS);
+        this.cores.finishReindex(resumed);
+
+        verify(this.shadow).deleteByQuery("document:P5");
+        verify(this.shadow, never()).add(any(Collection.class));
+    }
+
+    @Test
+    public void changesAreNotRecordedOnceRecordingStops() throws Exception
+    {
+        this.cores.prepareReindexTarget(this.checkpoint, 42, PATIENTS);
+        this.cores.stopRecording();
+        this.cores.add(Arrays.asList(document("P1")));
+        this.cores.delete("P2");
+
+        Assert.assertTrue(this.checkpoint.getDeleted().isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void changesOutsideReindexesOnlyGoToTheLiveCore() throws Exception
+    {
+        this.cores.add(Arrays.asList(document("P1")));
+        this.cores.delete("P1");
+
+        verify(this.live).add(any(Collection.class));
+        verify(this.live).deleteByQuery("document:P1");
+        verify(this.live).commit();
+        verify(this.shadow, never()).add(any(Collection.class));
+    }
+
+    @Test(expected = SolrServerException.class)
+    public void liveFailuresArePropagated() throws Exception
+    {
+        doThrow(new SolrServerException("down")).when(this.live).deleteByQuery(eq("document:P1"));
+
+        this.cores.delete("P1");
+    }
+
+    private void shadowContains(String... names) throws SolrServerException, IOException
+    {
+        SolrDocumentList documents = new SolrDocumentList();
+        for (String name : names) {
+            SolrDocument document = new SolrDocument();
+            document.setField("document", name);
+            documents.add(document);
+        }
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(documents);
+        when(this.shadow.query(any(SolrParams.class))).thenReturn(response);
+    }
+
+    private static SolrInputDocument document(String name)
+    {
+        SolrInputDocument document = new SolrInputDocument();
+        document.setField("document", name);
+        return document;
+    }
+}
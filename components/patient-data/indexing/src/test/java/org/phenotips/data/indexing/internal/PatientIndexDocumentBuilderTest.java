@@ -0,0 +1,219 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import org.phenotips.data.Feature;
+import org.phenotips.data.IndexedPatientData;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientData;
+import org.phenotips.data.permissions.PatientAccess;
+import org.phenotips.data.permissions.PermissionsManager;
+import org.phenotips.data.permissions.internal.visibility.PublicVisibility;
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyHierarchy;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link PatientIndexDocumentBuilder} component.
+ *
+ * @version $Id$
+ */
+public class PatientIndexDocumentBuilderTest
+{
+    @Rule
+    public MockitoComponentMockingRule<PatientIndexDocumentBuilder> mocker =
+        new MockitoComponentMockingRule<>(PatientIndexDocumentBuilder.class);
+
+    private PatientIndexDocumentBuilder builder;
+
+    private Patient patient;
+
+    private Vocabulary hpo;
+
+    @Before
+    public void setUp() throws ComponentLookupException
+    {
+        this.builder = this.mocker.getComponentUnderTest();
+
+        this.patient = mock(Patient.class);
+        DocumentReference patientReference = new DocumentReference("wiki", "patient", "P0000001");
+        doReturn(patientReference).when(this.patient).getDocumentReference();
+        doReturn(Collections.emptySet()).when(this.patient).getFeatures();
+        EntityReferenceSerializer<String> referenceSerializer =
+            this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
+        when(referenceSerializer.serialize(patientReference)).thenReturn("wiki:patient.P0000001");
+
+        PatientAccess patientAccess = mock(PatientAccess.class);
+        doReturn(patientAccess).when(this.mocker.<PermissionsManager>getInstance(PermissionsManager.class))
+            .getPatientAccess(this.patient);
+        doReturn(new PublicVisibility()).when(patientAccess).getVisibility();
+
+        this.hpo = this.mocker.getInstance(Vocabulary.class, "hpo");
+        String[] ancestorIds = { "HP:0011842", "HP:0000924", "HP:0000118", "HP:0000001" };
+        Set<VocabularyTerm> ancestors = new HashSet<>();
+        for (String id : ancestorIds) {
+            VocabularyTerm ancestor = mock(VocabularyTerm.class);
+            when(ancestor.getId()).thenReturn(id);
+            ancestors.add(ancestor);
+        }
+        VocabularyTerm term = mock(VocabularyTerm.class);
+        when(term.getId()).thenReturn("HP:0001367");
+        ancestors.add(term);
+        when(term.getAncestorsAndSelf()).thenReturn(ancestors);
+        when(this.hpo.getTerm(term.getId())).thenReturn(term);
+    }
+
+    @Test
+    public void buildIndexesPhenotypesWithTheirAncestors()
+    {
+        Set<Feature> patientFeatures = new HashSet<>();
+        patientFeatures.add(mockFeature("HP:0001367", true));
+        patientFeatures.add(mockFeature("id2", false));
+        patientFeatures.add(mockFeature("", true));
+        doReturn(patientFeatures).when(this.patient).getFeatures();
+        DocumentReference reporter = new DocumentReference("xwiki", "XWiki", "user");
+        doReturn(reporter).when(this.patient).getReporter();
+
+        SolrInputDocument inputDoc = this.builder.build(this.patient);
+
+        Assert.assertEquals("wiki:patient.P0000001", inputDoc.getFieldValue("document"));
+        Assert.assertEquals(reporter.toString(), inputDoc.getFieldValue("reporter"));
+        Assert.assertEquals("public", inputDoc.getFieldValue("visibility"));
+        Assert.assertEquals(new PublicVisibility().getPermissiveness(), inputDoc.getFieldValue("accessLevel"));
+        Assert.assertEquals(Collections.singletonList("HP:0001367"), inputDoc.getFieldValues("phenotype"));
+        Assert.assertEquals("id2", inputDoc.getFieldValue("negative_phenotype"));
+        Assert.assertEquals(5, inputDoc.getFieldValues("extended_phenotype").size());
+        Assert.assertNull(inputDoc.getFieldValues("extended_negative_phenotype"));
+    }
+
+    @Test
+    public void buildPrefersTheInMemoryHierarchy()
+    {
+        VocabularyHierarchy hierarchy = mock(VocabularyHierarchy.class);
+        when(hierarchy.contains("HP:0001367")).thenReturn(true);
+        when(hierarchy.getAncestorsAndSelf("HP:0001367")).thenReturn(Arrays.asList("HP:0001367", "HP:0000001"));
+        when(this.hpo.getHierarchy()).thenReturn(hierarchy);
+        doReturn(Collections.singleton(mockFeature("HP:0001367", true))).when(this.patient).getFeatures();
+
+        SolrInputDocument inputDoc = this.builder.build(this.patient);
+
+        Assert.assertEquals(Arrays.<Object>asList("HP:0001367", "HP:0000001"),
+            new ArrayList<>(inputDoc.getFieldValues("extended_phenotype")));
+        verify(this.hpo, never()).getTerm("HP:0001367");
+    }
+
+    @Test
+    public void buildSkipsAncestorsOfUnknownTerms()
+    {
+        doReturn(Collections.singleton(mockFeature("HP:9999999", true))).when(this.patient).getFeatures();
+
+        SolrInputDocument inputDoc = this.builder.build(this.patient);
+
+        Assert.assertEquals("HP:9999999", inputDoc.getFieldValue("phenotype"));
+        Assert.assertNull(inputDoc.getFieldValues("extended_phenotype"));
+    }
+
+    @Test
+    public void buildWithoutReporterIndexesAnEmptyReporter()
+    {
+        doReturn(null).when(this.patient).getReporter();
+
+        SolrInputDocument inputDoc = this.builder.build(this.patient);
+
+        Assert.assertEquals("", inputDoc.getFieldValue("reporter"));
+    }
+
+    @Test
+    public void buildIndexesGenesByStatus() throws ComponentLookupException
+    {
+        List<Map<String, String>> fakeGenes = new ArrayList<>();
+        fakeGenes.add(gene("CANDIDATE1", null));
+        fakeGenes.add(gene("CANDIDATE2", "candidate"));
+        fakeGenes.add(gene("REJECTED1", "rejected"));
+        fakeGenes.add(gene("SOLVED1", "solved"));
+        fakeGenes.add(gene("CARRIER1", "carrier"));
+        fakeGenes.add(gene("", "candidate"));
+        fakeGenes.add(gene("OTHER1", "unknown"));
+        PatientData<Map<String, String>> fakeGeneData = new IndexedPatientData<>("genes", fakeGenes);
+        doReturn(fakeGeneData).when(this.patient).getData("genes");
+
+        SolrInputDocument inputDoc = this.builder.build(this.patient);
+
+        Collection<Object> indexedGenes = inputDoc.getFieldValues("candidate_genes");
+        Assert.assertEquals(2, indexedGenes.size());
+        for (Object s : indexedGenes) {
+            Assert.assertTrue(((String) s).startsWith("CANDIDATE"));
+        }
+        Assert.assertEquals(Collections.singletonList("SOLVED1"), inputDoc.getFieldValues("solved_genes"));
+        Assert.assertEquals(Collections.singletonList("REJECTED1"), inputDoc.getFieldValues("rejected_genes"));
+        Assert.assertEquals(Collections.singletonList("CARRIER1"), inputDoc.getFieldValues("carrier_genes"));
+        verify(this.mocker.getMockedLogger()).warn("Unexpected gene status: unknown");
+    }
+
+    @Test
+    public void getDocumentNameSerializesTheDocumentReference()
+    {
+        Assert.assertEquals("wiki:patient.P0000001", this.builder.getDocumentName(this.patient));
+    }
+
+    private Feature mockFeature(String id, boolean present)
+    {
+        Feature feature = mock(Feature.class);
+        doReturn(present).when(feature).isPresent();
+        doReturn("phenotype").when(feature).getType();
+        doReturn(id).when(feature).getId();
+        return feature;
+    }
+
+    private Map<String, String> gene(String name, String status)
+    {
+        Map<String, String> gene = new HashMap<>();
+        gene.put("gene", name);
+        if (status != null) {
+            gene.put("status", status);
+        }
+        return gene;
+    }
+}
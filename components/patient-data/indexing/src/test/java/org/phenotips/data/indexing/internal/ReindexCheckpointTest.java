@@ -0,0 +1,115 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the {@link ReindexCheckpoint} class.
+ *
+ * @version $Id$
+ */
+public class ReindexCheckpointTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void missingCheckpointMeansNewReindex() throws IOException
+    {
+        ReindexCheckpoint checkpoint = ReindexCheckpoint.load(new File(this.folder.getRoot(), "missing"));
+        Assert.assertFalse(checkpoint.isResumed());
+        Assert.assertNull(checkpoint.getCore());
+        Assert.assertEquals(0, checkpoint.getProcessed());
+        Assert.assertTrue(checkpoint.isPending("P0000001"));
+    }
+
+    @Test
+    public void advancedCheckpointIsPersisted() throws IOException
+    {
+        File file = new File(this.folder.getRoot(), "checkpoint");
+        ReindexCheckpoint checkpoint = new ReindexCheckpoint(file);
+        checkpoint.setCore("patients_reindex");
+        checkpoint.advance("P0000002", 2);
+
+        ReindexCheckpoint loaded = ReindexCheckpoint.load(file);
+        Assert.assertTrue(loaded.isResumed());
+        Assert.assertEquals("patients_reindex", loaded.getCore());
+        Assert.assertEquals(2, loaded.getProcessed());
+        Assert.assertFalse(loaded.isPending("P0000001"));
+        Assert.assertFalse(loaded.isPending("P0000002"));
+        Assert.assertTrue(loaded.isPending("P0000003"));
+    }
+
+    @Test
+    public void startAndDeletionsArePersisted() throws IOException
+    {
+        File file = new File(this.folder.getRoot(), "checkpoint");
+        ReindexCheckpoint checkpoint = new ReindexCheckpoint(file);
+        checkpoint.setStarted(42);
+        checkpoint.addDeleted("wiki:data.P0000003");
+        checkpoint.addDeleted("wiki:data.P0000001");
+        checkpoint.addDeleted("wiki:data.P0000003");
+
+        ReindexCheckpoint loaded = ReindexCheckpoint.load(file);
+        Assert.assertFalse(loaded.isResumed());
+        Assert.assertEquals(42, loaded.getStarted());
+        Assert.assertEquals(Arrays.asList("wiki:data.P0000003", "wiki:data.P0000001"),
+            new ArrayList<>(loaded.getDeleted()));
+
+        checkpoint.advance("P0000002", 2);
+        loaded = ReindexCheckpoint.load(file);
+        Assert.assertTrue(loaded.isResumed());
+        Assert.assertEquals(2, loaded.getDeleted().size());
+
+        checkpoint.clear();
+        Assert.assertEquals(0, checkpoint.getStarted());
+        Assert.assertTrue(checkpoint.getDeleted().isEmpty());
+    }
+
+    @Test
+    public void clearRemovesTheCheckpoint() throws IOException
+    {
+        File file = new File(this.folder.getRoot(), "checkpoint");
+        ReindexCheckpoint checkpoint = new ReindexCheckpoint(file);
+        checkpoint.advance("P0000002", 2);
+        Assert.assertTrue(file.exists());
+
+        checkpoint.clear();
+        Assert.assertFalse(file.exists());
+        Assert.assertFalse(checkpoint.isResumed());
+        Assert.assertFalse(ReindexCheckpoint.load(file).isResumed());
+    }
+
+    @Test
+    public void checkpointsWithoutFileAreNotPersisted() throws IOException
+    {
+        ReindexCheckpoint checkpoint = new ReindexCheckpoint(null);
+        checkpoint.advance("P0000002", 2);
+        Assert.assertTrue(checkpoint.isResumed());
+        Assert.assertFalse(ReindexCheckpoint.load(null).isResumed());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.context.Execution;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link ReindexSource} component.
+ *
+ * @version $Id$
+ */
+public class ReindexSourceTest
+{
+    private static final String PATIENTS_QUERY = "from doc.object(PhenoTips.PatientClass) as patient";
+
+    @Rule
+    public MockitoComponentMockingRule<ReindexSource> mocker = new MockitoComponentMockingRule<>(ReindexSource.class);
+
+    private ReindexSource source;
+
+    private QueryManager qm;
+
+    private PatientRepository repository;
+
+    private PatientIndexDocumentBuilder builder;
+
+    @Before
+    public void setUp() throws ComponentLookupException
+    {
+        this.source = this.mocker.getComponentUnderTest();
+        this.qm = this.mocker.getInstance(QueryManager.class);
+        this.repository = this.mocker.getInstance(PatientRepository.class);
+        this.builder = this.mocker.getInstance(PatientIndexDocumentBuilder.class);
+    }
+
+    @Test
+    public void patientDocumentsAreSorted() throws QueryException
+    {
+        Query query = mock(Query.class);
+        when(this.qm.createQuery(PATIENTS_QUERY, Query.XWQL)).thenReturn(query);
+        when(query.<String>execute()).thenReturn(Arrays.asList("P0000002", "P0000003", "P0000001"));
+
+        Assert.assertEquals(Arrays.asList("P0000001", "P0000002", "P0000003"), this.source.getPatientDocuments());
+    }
+
+    @Test
+    public void modifiedPatientsAreSearchedByDate() throws QueryException
+    {
+        Query query = mock(Query.class);
+        when(this.qm.createQuery(PATIENTS_QUERY + " where doc.date >= :since", Query.XWQL)).thenReturn(query);
+        when(query.<String>execute()).thenReturn(Arrays.asList("P0000002", "P0000001"));
+
+        List<String> result = this.source.getPatientDocumentsModifiedSince(42L);
+
+        Assert.assertEquals(Arrays.asList("P0000001", "P0000002"), result);
+        verify(query).bindValue("since", new Date(42L));
+    }
+
+    @Test
+    public void loadBuildsTheDocumentOfExistingPatients()
+    {
+        Patient patient = mock(Patient.class);
+        SolrInputDocument document = new SolrInputDocument();
+        when(this.repository.get("P0000001")).thenReturn(patient);
+        when(this.builder.build(patient)).thenReturn(document);
+
+        Assert.assertSame(document, this.source.load("P0000001"));
+    }
+
+    @Test
+    public void loadSkipsMissingPatients()
+    {
+        Assert.assertNull(this.source.load("P0000001"));
+    }
+
+    @Test
+    public void loadSkipsInvalidPatients()
+    {
+        when(this.repository.get("P0000001")).thenThrow(new IllegalArgumentException("not a patient"));
+
+        Assert.assertNull(this.source.load("P0000001"));
+
+        verify(this.mocker.getMockedLogger()).warn("Skipping invalid patient [{}] during reindex: {}", "P0000001",
+            "not a patient");
+    }
+
+    @Test
+    public void createdWorkersLoadPatients() throws Exception
+    {
+        Patient patient = mock(Patient.class);
+        SolrInputDocument document = new SolrInputDocument();
+        when(this.repository.get("P0000001")).thenReturn(patient);
+        when(this.builder.build(patient)).thenReturn(document);
+        Execution execution = this.mocker.getInstance(Execution.class);
+
+        try (ReindexWorkers workers = this.source.createWorkers()) {
+            Assert.assertSame(document, workers.load(Arrays.asList("P0000001")).get(0));
+        }
+        verify(execution).getContext();
+    }
+}
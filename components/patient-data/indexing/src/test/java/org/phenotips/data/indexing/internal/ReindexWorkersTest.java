@@ -0,0 +1,211 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.context.internal.DefaultExecution;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link ReindexWorkers} class.
+ *
+ * @version $Id$
+ */
+public class ReindexWorkersTest
+{
+    private Execution execution;
+
+    private ExecutionContextManager contextManager;
+
+    private ExecutionContext parentContext;
+
+    private XWikiContext parentXContext;
+
+    /** The execution contexts seen by the loader. */
+    private Set<ExecutionContext> contexts = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /** The XWiki contexts seen by the loader. */
+    private Set<XWikiContext> xcontexts = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private ReindexWorkers workers;
+
+    @Before
+    public void setUp() throws ExecutionContextException
+    {
+        this.execution = new DefaultExecution();
+        this.parentContext = new ExecutionContext();
+        this.parentXContext = new XWikiContext();
+        this.parentXContext.put("hibsession", new Object());
+        this.parentXContext.put("hibtransaction", new Object());
+        this.parentXContext.setWikiId("wiki");
+        this.parentXContext.declareInExecutionContext(this.parentContext);
+        this.execution.setContext(this.parentContext);
+
+        this.contextManager = mock(ExecutionContextManager.class);
+        when(this.contextManager.clone(this.parentContext)).thenAnswer(new Answer<ExecutionContext>()
+        {
+            @Override
+            public ExecutionContext answer(InvocationOnMock invocation)
+            {
+                // Like the real clone, the copy shares the property values of the original
+                ExecutionContext copy = new ExecutionContext();
+                ReindexWorkersTest.this.parentXContext.declareInExecutionContext(copy);
+                return copy;
+            }
+        });
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (this.workers != null) {
+            this.workers.close();
+        }
+        this.execution.removeContext();
+    }
+
+    @Test
+    public void loadReturnsTheLoadedDocumentsInOrder() throws Exception
+    {
+        this.workers = new ReindexWorkers(this.execution, this.contextManager, this::load, 3);
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            batch.add("P" + i);
+        }
+        batch.add("missing");
+
+        List<SolrInputDocument> documents = this.workers.load(batch);
+
+        Assert.assertEquals(50, documents.size());
+        for (int i = 0; i < 50; ++i) {
+            Assert.assertEquals("P" + i, documents.get(i).getFieldValue("document"));
+        }
+    }
+
+    @Test
+    public void eachWorkerThreadSetsUpItsContextOnce() throws Exception
+    {
+        this.workers = new ReindexWorkers(this.execution, this.contextManager, this::load, 2);
+        for (int i = 0; i < 10; ++i) {
+            this.workers.load(Arrays.asList("P" + (2 * i), "P" + (2 * i + 1)));
+        }
+
+        verify(this.contextManager, atMost(2)).clone(this.parentContext);
+        Assert.assertTrue(this.contexts.size() <= 2);
+        Assert.assertFalse(this.contexts.contains(this.parentContext));
+        // Each worker gets its own XWiki context, without the database session of the original thread
+        Assert.assertFalse(this.xcontexts.contains(this.parentXContext));
+        for (XWikiContext xcontext : this.xcontexts) {
+            Assert.assertEquals("wiki", xcontext.getWikiId());
+            Assert.assertNull(xcontext.get("hibsession"));
+            Assert.assertNull(xcontext.get("hibtransaction"));
+        }
+        Assert.assertNotNull(this.parentXContext.get("hibsession"));
+        // The calling thread keeps its own context
+        Assert.assertSame(this.parentContext, this.execution.getContext());
+    }
+
+    @Test
+    public void workersInitializeANewContextWithoutParentContext() throws Exception
+    {
+        this.execution.removeContext();
+        this.workers = new ReindexWorkers(this.execution, this.contextManager, this::load, 1);
+
+        Assert.assertEquals(1, this.workers.load(Arrays.asList("P1")).size());
+
+        verify(this.contextManager).initialize(any(ExecutionContext.class));
+        verify(this.contextManager, never()).clone(any(ExecutionContext.class));
+        Assert.assertEquals(1, this.contexts.size());
+    }
+
+    @Test
+    public void contextSetupFailuresAreReported() throws Exception
+    {
+        ExecutionContextException failure = new ExecutionContextException("no context");
+        when(this.contextManager.clone(this.parentContext)).thenThrow(failure);
+        this.workers = new ReindexWorkers(this.execution, this.contextManager, this::load, 1);
+
+        try {
+            this.workers.load(Arrays.asList("P1"));
+            Assert.fail("The context failure should have been reported");
+        } catch (ExecutionException ex) {
+            Assert.assertSame(failure, ex.getCause());
+        }
+        Assert.assertTrue(this.contexts.isEmpty());
+    }
+
+    @Test
+    public void loadingFailuresAreReported() throws Exception
+    {
+        final IllegalStateException failure = new IllegalStateException("broken patient");
+        this.workers = new ReindexWorkers(this.execution, this.contextManager, name -> {
+            throw failure;
+        }, 1);
+
+        try {
+            this.workers.load(Arrays.asList("P1"));
+            Assert.fail("The loading failure should have been reported");
+        } catch (ExecutionException ex) {
+            Assert.assertSame(failure, ex.getCause());
+        }
+    }
+
+    private SolrInputDocument load(String name)
+    {
+        ExecutionContext context = this.execution.getContext();
+        Assert.assertNotNull(context);
+        this.contexts.add(context);
+        Object xcontext = context.getProperty(XWikiContext.EXECUTIONCONTEXT_KEY);
+        if (xcontext != null) {
+            this.xcontexts.add((XWikiContext) xcontext);
+        }
+        if ("missing".equals(name)) {
+            return null;
+        }
+        SolrInputDocument document = new SolrInputDocument();
+        document.setField("document", name);
+        return document;
+    }
+}
@@ -17,294 +17,176 @@
  */
 package org.phenotips.data.indexing.internal;
 
-import org.phenotips.data.Feature;
-import org.phenotips.data.IndexedPatientData;
 import org.phenotips.data.Patient;
-import org.phenotips.data.PatientData;
-import org.phenotips.data.PatientRepository;
 import org.phenotips.data.indexing.PatientIndexer;
-import org.phenotips.data.permissions.PatientAccess;
-import org.phenotips.data.permissions.PermissionsManager;
-import org.phenotips.data.permissions.Visibility;
-import org.phenotips.data.permissions.internal.DefaultPatientAccess;
-import org.phenotips.data.permissions.internal.visibility.PublicVisibility;
-import org.phenotips.vocabulary.SolrCoreContainerHandler;
-import org.phenotips.vocabulary.Vocabulary;
-import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.manager.ComponentLookupException;
-import org.xwiki.component.util.ReflectionUtils;
-import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.model.reference.EntityReferenceSerializer;
-import org.xwiki.query.Query;
+import org.xwiki.environment.Environment;
 import org.xwiki.query.QueryException;
-import org.xwiki.query.QueryManager;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.response.UpdateResponse;
-import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.solr.core.CoreContainer;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
-import org.mockito.Mock;
-import org.mockito.MockitoAnnotations;
-import org.mockito.internal.matchers.CapturingMatcher;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+/**
+ * Tests for the {@link SolrPatientIndexer} component.
+ *
+ * @version $Id$
+ */
 public class SolrPatientIndexerTest
 {
-
     @Rule
     public MockitoComponentMockingRule<PatientIndexer> mocker =
         new MockitoComponentMockingRule<PatientIndexer>(SolrPatientIndexer.class);
 
-    @Mock
-    private Patient patient;
-
-    @Mock
-    private SolrClient server;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     private PatientIndexer patientIndexer;
 
     private Logger logger;
 
-    private QueryManager qm;
+    private PatientIndexDocumentBuilder documentBuilder;
 
-    private PatientRepository patientRepository;
+    private PatientIndexCores cores;
 
-    private PermissionsManager permissions;
+    private ReindexSource source;
 
-    private DocumentReference patientDocReference;
+    private ReindexWorkers workers;
 
-    @Before
-    public void setUp() throws ComponentLookupException
-    {
+    private SolrClient live;
 
-        MockitoAnnotations.initMocks(this);
+    private Patient patient;
 
-        SolrCoreContainerHandler cores = this.mocker.getInstance(SolrCoreContainerHandler.class);
-        doReturn(mock(CoreContainer.class)).when(cores).getContainer();
+    private SolrInputDocument patientDocument;
 
-        this.permissions = this.mocker.getInstance(PermissionsManager.class);
-        this.qm = this.mocker.getInstance(QueryManager.class);
-        this.patientRepository = this.mocker.getInstance(PatientRepository.class);
-        this.patientDocReference = new DocumentReference("wiki", "patient", "P0000001");
+    private Map<String, SolrInputDocument> documents = new HashMap<>();
+
+    @Before
+    public void setUp() throws ComponentLookupException, InterruptedException, ExecutionException
+    {
         this.patientIndexer = this.mocker.getComponentUnderTest();
-        EntityReferenceSerializer<String> referenceSerializer =
-            this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
-        when(referenceSerializer.serialize(this.patientDocReference)).thenReturn("wiki:patient.P0000001");
         this.logger = this.mocker.getMockedLogger();
-
-        ReflectionUtils.setFieldValue(this.patientIndexer, "server", this.server);
+        this.documentBuilder = this.mocker.getInstance(PatientIndexDocumentBuilder.class);
+        this.cores = this.mocker.getInstance(PatientIndexCores.class);
+        this.source = this.mocker.getInstance(ReindexSource.class);
+
+        this.live = mock(SolrClient.class);
+        when(this.cores.getLive()).thenReturn(this.live);
+
+        this.patient = mock(Patient.class);
+        this.patientDocument = document("wiki:patient.P0000001");
+        when(this.documentBuilder.build(this.patient)).thenReturn(this.patientDocument);
+        when(this.documentBuilder.getDocumentName(this.patient)).thenReturn("wiki:patient.P0000001");
+
+        this.workers = mock(ReindexWorkers.class);
+        when(this.source.createWorkers()).thenReturn(this.workers);
+        when(this.workers.load(anyListOf(String.class))).thenAnswer(new Answer<List<SolrInputDocument>>()
+        {
+            @Override
+            public List<SolrInputDocument> answer(InvocationOnMock invocation)
+            {
+                List<SolrInputDocument> result = new ArrayList<>();
+                for (Object name : (List<?>) invocation.getArguments()[0]) {
+                    result.add(document((String) name));
+                }
+                return result;
+            }
+        });
     }
 
-    @Before
-    public void setupVocabulary() throws ComponentLookupException
+    @Test
+    public void indexAddsThePatientDocument() throws IOException, SolrServerException
     {
-        // Setup the vocabulary
-        Vocabulary hpo = this.mocker.getInstance(Vocabulary.class, "hpo");
-
-        // Setup mock term
-        String[] ancestorIds = { "HP:0011842", "HP:0000924", "HP:0000118", "HP:0000001" };
-        Set<VocabularyTerm> ancestors = new HashSet<>();
-        for (String id : ancestorIds) {
-            VocabularyTerm ancestor = mock(VocabularyTerm.class);
-            when(ancestor.getId()).thenReturn(id);
-            ancestors.add(ancestor);
-        }
-        VocabularyTerm term = mock(VocabularyTerm.class);
-        when(term.getId()).thenReturn("HP:0001367");
-        ancestors.add(term);
+        this.patientIndexer.index(this.patient);
 
-        when(term.getAncestorsAndSelf()).thenReturn(ancestors);
-        when(hpo.getTerm(term.getId())).thenReturn(term);
+        verify(this.cores).add(Collections.singletonList(this.patientDocument));
     }
 
     @Test
-    public void indexDefaultPhenotypeBehaviourTest() throws IOException, SolrServerException
+    public void indexBatchSendsAllDocumentsAtOnce() throws IOException, SolrServerException
     {
-        Set<Feature> patientFeatures = new HashSet<>();
-        Feature testFeature = mock(Feature.class);
-        doReturn(true).when(testFeature).isPresent();
-        doReturn("phenotype").when(testFeature).getType();
-        doReturn("HP:0001367").when(testFeature).getId();
-        patientFeatures.add(testFeature);
-        Feature negativeTestFeature = mock(Feature.class);
-        doReturn(false).when(negativeTestFeature).isPresent();
-        doReturn("phenotype").when(negativeTestFeature).getType();
-        doReturn("id2").when(negativeTestFeature).getId();
-        patientFeatures.add(negativeTestFeature);
-        doReturn(patientFeatures).when(this.patient).getFeatures();
-
-        DocumentReference reporterReference = new DocumentReference("xwiki", "XWiki", "user");
-        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
-        Visibility patientVisibility = new PublicVisibility();
-
-        CapturingMatcher<SolrInputDocument> capturedArgument = new CapturingMatcher<>();
-        when(this.server.add(argThat(capturedArgument))).thenReturn(mock(UpdateResponse.class));
-
-        doReturn(this.patientDocReference).when(this.patient).getDocumentReference();
-        doReturn(reporterReference).when(this.patient).getReporter();
-        doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
-        doReturn(patientVisibility).when(patientAccess).getVisibility();
+        Patient other = mock(Patient.class);
+        SolrInputDocument otherDocument = document("wiki:patient.P0000002");
+        when(this.documentBuilder.build(other)).thenReturn(otherDocument);
 
-        this.patientIndexer.index(this.patient);
+        Assert.assertTrue(this.patientIndexer.index(Arrays.asList(this.patient, other)));
 
-        SolrInputDocument inputDoc = capturedArgument.getLastValue();
-        verify(this.server).add(inputDoc);
-        Assert.assertEquals("public", inputDoc.getFieldValue("visibility"));
-        Assert.assertEquals("HP:0001367", inputDoc.getFieldValue("phenotype"));
-        Assert.assertEquals("id2", inputDoc.getFieldValue("negative_phenotype"));
-        Assert.assertEquals(5, inputDoc.getFieldValues("extended_phenotype").size());
+        verify(this.cores).add(Arrays.asList(this.patientDocument, otherDocument));
     }
 
+    @SuppressWarnings("unchecked")
     @Test
-    public void indexDefaultGeneBehaviourTest() throws IOException, SolrServerException
+    public void indexBatchReportsFailures() throws IOException, SolrServerException
     {
-        Set<Feature> patientFeatures = new HashSet<>();
-        Feature testFeature = mock(Feature.class);
-        patientFeatures.add(testFeature);
-        DocumentReference reporterReference = new DocumentReference("xwiki", "XWiki", "user");
-        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
-        Visibility patientVisibility = new PublicVisibility();
-
-        CapturingMatcher<SolrInputDocument> capturedArgument = new CapturingMatcher<>();
-        when(this.server.add(argThat(capturedArgument))).thenReturn(mock(UpdateResponse.class));
-
-        doReturn(this.patientDocReference).when(this.patient).getDocumentReference();
-        doReturn(reporterReference).when(this.patient).getReporter();
-
-        doReturn(Collections.EMPTY_SET).when(this.patient).getFeatures();
-
-        List<Map<String, String>> fakeGenes = new ArrayList<>();
-        Map<String, String> fakeGene = new HashMap<>();
-        fakeGene.put("gene", "CANDIDATE1");
-        fakeGenes.add(fakeGene);
-        fakeGene = new HashMap<>();
-        fakeGene.put("gene", "CANDIDATE2");
-        fakeGene.put("status", "candidate");
-        fakeGenes.add(fakeGene);
-        fakeGene = new HashMap<>();
-        fakeGene.put("gene", "REJECTED1");
-        fakeGene.put("status", "rejected");
-        fakeGenes.add(fakeGene);
-        fakeGene = new HashMap<>();
-        fakeGene.put("gene", "SOLVED1");
-        fakeGene.put("status", "solved");
-        fakeGenes.add(fakeGene);
-        fakeGene = new HashMap<>();
-        fakeGene.put("gene", "CARRIER1");
-        fakeGene.put("status", "carrier");
-        fakeGenes.add(fakeGene);
-        fakeGene = new HashMap<>();
-        fakeGene.put("gene", "");
-        fakeGene.put("status", "candidate");
-        fakeGenes.add(fakeGene);
-
-        PatientData<Map<String, String>> fakeGeneData =
-            new IndexedPatientData<>("genes", fakeGenes);
-        doReturn(fakeGeneData).when(this.patient).getData("genes");
-
-        doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
-        doReturn(patientVisibility).when(patientAccess).getVisibility();
+        doThrow(new IOException("Core unavailable")).when(this.cores).add(any(Collection.class));
 
-        this.patientIndexer.index(this.patient);
-        SolrInputDocument inputDoc = capturedArgument.getLastValue();
-        verify(this.server).add(inputDoc);
-
-        Collection<Object> indexedGenes;
-        indexedGenes = inputDoc.getFieldValues("candidate_genes");
-        Assert.assertEquals(2, indexedGenes.size());
-        for (Object s : indexedGenes) {
-            Assert.assertTrue(((String) s).startsWith("CANDIDATE"));
-        }
+        Assert.assertFalse(this.patientIndexer.index(Collections.singletonList(this.patient)));
 
-        indexedGenes = inputDoc.getFieldValues("solved_genes");
-        Assert.assertEquals(1, indexedGenes.size());
-        Assert.assertEquals("SOLVED1", indexedGenes.iterator().next());
+        verify(this.logger).warn("Error occurred while performing Solr search: {}", "Core unavailable");
+    }
 
-        indexedGenes = inputDoc.getFieldValues("rejected_genes");
-        Assert.assertEquals(1, indexedGenes.size());
-        Assert.assertEquals("REJECTED1", indexedGenes.iterator().next());
+    @SuppressWarnings("unchecked")
+    @Test
+    public void indexEmptyBatchDoesNothing() throws IOException, SolrServerException
+    {
+        Assert.assertTrue(this.patientIndexer.index(Collections.<Patient>emptyList()));
 
-        indexedGenes = inputDoc.getFieldValues("carrier_genes");
-        Assert.assertEquals(1, indexedGenes.size());
-        Assert.assertEquals("CARRIER1", indexedGenes.iterator().next());
+        verify(this.cores, never()).add(any(Collection.class));
     }
 
+    @SuppressWarnings("unchecked")
     @Test
     public void indexThrowsSolrException() throws IOException, SolrServerException
     {
-        Set<Feature> patientFeatures = new HashSet<>();
-        Feature testFeature = mock(Feature.class);
-        patientFeatures.add(testFeature);
-        DocumentReference reporterReference = new DocumentReference("xwiki", "XWiki", "user");
-        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
-        Visibility patientVisibility = new PublicVisibility();
-
-        doReturn(this.patientDocReference).when(this.patient).getDocumentReference();
-        doReturn(reporterReference).when(this.patient).getReporter();
-
-        doReturn(patientFeatures).when(this.patient).getFeatures();
-        doReturn(true).when(testFeature).isPresent();
-        doReturn("phenotype").when(testFeature).getType();
-        doReturn("id").when(testFeature).getId();
-
-        doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
-        doReturn(patientVisibility).when(patientAccess).getVisibility();
-        doThrow(new SolrServerException("Error while adding SolrInputDocument")).when(this.server)
-            .add(any(SolrInputDocument.class));
+        doThrow(new SolrServerException("Error while adding SolrInputDocument")).when(this.cores)
+            .add(any(Collection.class));
 
         this.patientIndexer.index(this.patient);
 
         verify(this.logger).warn("Failed to perform Solr search: {}", "Error while adding SolrInputDocument");
     }
 
+    @SuppressWarnings("unchecked")
     @Test
     public void indexThrowsIOException() throws IOException, SolrServerException
     {
-        Set<Feature> patientFeatures = new HashSet<>();
-        Feature testFeature = mock(Feature.class);
-        patientFeatures.add(testFeature);
-        DocumentReference reporterReference = new DocumentReference("xwiki", "XWiki", "user");
-        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
-        Visibility patientVisibility = new PublicVisibility();
-
-        doReturn(this.patientDocReference).when(this.patient).getDocumentReference();
-        doReturn(reporterReference).when(this.patient).getReporter();
-
-        doReturn(patientFeatures).when(this.patient).getFeatures();
-        doReturn(true).when(testFeature).isPresent();
-        doReturn("phenotype").when(testFeature).getType();
-        doReturn("id").when(testFeature).getId();
-
-        doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
-        doReturn(patientVisibility).when(patientAccess).getVisibility();
-        doThrow(new IOException("Error while adding SolrInputDocument")).when(this.server)
-            .add(any(SolrInputDocument.class));
+        doThrow(new IOException("Error while adding SolrInputDocument")).when(this.cores).add(any(Collection.class));
 
         this.patientIndexer.index(this.patient);
 
@@ -313,126 +195,165 @@ public void indexThrowsIOException() throws IOException, SolrServerException
     }
 
     @Test
-    public void indexGetReporterIsNull() throws IOException, SolrServerException
-    {
-        Set<Feature> patientFeatures = new HashSet<>();
-        Feature testFeature = mock(Feature.class);
-        patientFeatures.add(testFeature);
-        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
-        Visibility patientVisibility = new PublicVisibility();
-
-        CapturingMatcher<SolrInputDocument> capturedArgument = new CapturingMatcher<>();
-        when(this.server.add(argThat(capturedArgument))).thenReturn(mock(UpdateResponse.class));
-
-        doReturn(this.patientDocReference).when(this.patient).getDocumentReference();
-        doReturn(null).when(this.patient).getReporter();
-
-        doReturn(patientFeatures).when(this.patient).getFeatures();
-        doReturn(true).when(testFeature).isPresent();
-        doReturn("phenotype").when(testFeature).getType();
-        doReturn("id").when(testFeature).getId();
-
-        doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
-        doReturn(patientVisibility).when(patientAccess).getVisibility();
-
-        this.patientIndexer.index(this.patient);
-        SolrInputDocument inputDoc = capturedArgument.getLastValue();
-        verify(this.server).add(inputDoc);
-        Assert.assertEquals(inputDoc.getFieldValue("reporter"), "");
-    }
-
-    @Test
-    public void deleteDefaultBehaviourTest() throws IOException, SolrServerException
+    public void deleteRemovesThePatientDocument() throws IOException, SolrServerException
     {
-        doReturn(this.patientDocReference).when(this.patient).getDocumentReference();
         this.patientIndexer.delete(this.patient);
-        verify(this.server).deleteByQuery("document:"
-            + ClientUtils.escapeQueryChars(this.patientDocReference.toString()));
-        verify(this.server).commit();
+
+        verify(this.cores).delete("wiki:patient.P0000001");
     }
 
     @Test
     public void deleteThrowsSolrException() throws IOException, SolrServerException
     {
-        doReturn(this.patientDocReference).when(this.patient).getDocumentReference();
-        doThrow(new SolrServerException("commit failed")).when(this.server).commit();
+        doThrow(new SolrServerException("commit failed")).when(this.cores).delete("wiki:patient.P0000001");
+
         this.patientIndexer.delete(this.patient);
+
         verify(this.logger).warn("Failed to delete from Solr: {}", "commit failed");
     }
 
     @Test
     public void deleteThrowsIOException() throws IOException, SolrServerException
     {
-        doReturn(this.patientDocReference).when(this.patient).getDocumentReference();
-        doThrow(new IOException("commit failed")).when(this.server).commit();
+        doThrow(new IOException("commit failed")).when(this.cores).delete("wiki:patient.P0000001");
+
         this.patientIndexer.delete(this.patient);
+
         verify(this.logger).warn("Error occurred while deleting Solr documents: {}", "commit failed");
     }
 
     @Test
-    public void reindexDefaultBehaviour() throws QueryException, IOException, SolrServerException
+    public void reindexInPlaceMakesDataVisibleAsItIsIndexed() throws Exception
     {
-        List<String> patientDocs = new ArrayList<>();
-        patientDocs.add("P0000001");
+        when(this.source.getPatientDocuments()).thenReturn(Arrays.asList("P0000001", "P0000002"));
+        when(this.cores.prepareReindexTarget(any(ReindexCheckpoint.class), anyLong(), anyCollectionOf(String.class)))
+            .thenReturn(this.live);
+
+        this.patientIndexer.reindex();
 
-        Query testQuery = mock(Query.class);
-        doReturn(testQuery).when(this.qm).createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL);
-        doReturn(patientDocs).when(testQuery).execute();
-        doReturn(this.patient).when(this.patientRepository).get("P0000001");
+        verify(this.workers).load(Arrays.asList("P0000001", "P0000002"));
+        verify(this.live).add(Arrays.asList(document("P0000001"), document("P0000002")));
+        verify(this.live).commit(false, false, true);
+        verify(this.live).commit();
+        verify(this.source, never()).getPatientDocumentsModifiedSince(anyLong());
+        verify(this.cores).finishReindex(any(ReindexCheckpoint.class));
+        verify(this.cores).stopRecording();
+        verify(this.workers).close();
+    }
 
-        Set<Feature> patientFeatures = new HashSet<>();
-        Feature testFeature = mock(Feature.class);
-        patientFeatures.add(testFeature);
-        DocumentReference reporterReference = new DocumentReference("xwiki", "XWiki", "user");
-        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
-        Visibility patientVisibility = new PublicVisibility();
+    @Test
+    public void reindexInShadowCoreCatchesUpWithModifiedPatients() throws Exception
+    {
+        final SolrClient shadow = mock(SolrClient.class);
+        final long[] started = new long[1];
+        doAnswer(new Answer<SolrClient>()
+        {
+            @Override
+            public SolrClient answer(InvocationOnMock invocation)
+            {
+                ReindexCheckpoint checkpoint = (ReindexCheckpoint) invocation.getArguments()[0];
+                started[0] = (Long) invocation.getArguments()[1];
+                checkpoint.setCore("patients_reindex");
+                checkpoint.setStarted(started[0]);
+                return shadow;
+            }
+        }).when(this.cores)
+            .prepareReindexTarget(any(ReindexCheckpoint.class), anyLong(), anyCollectionOf(String.class));
+        when(this.source.getPatientDocuments()).thenReturn(Arrays.asList("P0000001", "P0000002"));
+        when(this.source.getPatientDocumentsModifiedSince(anyLong())).thenReturn(Arrays.asList("P0000001"));
+        long before = System.currentTimeMillis();
 
-        doReturn(this.patientDocReference).when(this.patient).getDocumentReference();
-        doReturn(reporterReference).when(this.patient).getReporter();
+        this.patientIndexer.reindex();
 
-        doReturn(patientFeatures).when(this.patient).getFeatures();
-        doReturn(true).when(testFeature).isPresent();
-        doReturn("phenotype").when(testFeature).getType();
-        doReturn("id").when(testFeature).getId();
+        Assert.assertTrue(started[0] >= before);
+        verify(this.source).getPatientDocumentsModifiedSince(started[0] - 1000);
+        verify(shadow).add(Arrays.asList(document("P0000001"), document("P0000002")));
+        verify(shadow).add(Arrays.asList(document("P0000001")));
+        verify(shadow, never()).commit(false, false, true);
+        verify(shadow).commit();
+        verify(this.cores).finishReindex(any(ReindexCheckpoint.class));
+    }
 
-        doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
-        doReturn(patientVisibility).when(patientAccess).getVisibility();
+    @Test
+    public void reindexResumesFromCheckpoint() throws Exception
+    {
+        File permanentDirectory = this.folder.newFolder();
+        File checkpoint = new File(permanentDirectory, "patients-reindex.properties");
+        Files.write(checkpoint.toPath(), "lastDocument=P0000001\nprocessed=1\n".getBytes(StandardCharsets.ISO_8859_1));
+        when(this.mocker.<Environment>getInstance(Environment.class).getPermanentDirectory())
+            .thenReturn(permanentDirectory);
+        when(this.source.getPatientDocuments()).thenReturn(Arrays.asList("P0000001", "P0000002"));
+        doAnswer(new Answer<SolrClient>()
+        {
+            @Override
+            public SolrClient answer(InvocationOnMock invocation)
+            {
+                Assert.assertTrue(((ReindexCheckpoint) invocation.getArguments()[0]).isResumed());
+                return SolrPatientIndexerTest.this.live;
+            }
+        }).when(this.cores)
+            .prepareReindexTarget(any(ReindexCheckpoint.class), anyLong(), anyCollectionOf(String.class));
 
         this.patientIndexer.reindex();
 
-        verify(this.server).deleteByQuery("*:*");
-        verify(this.server).commit();
-
+        verify(this.workers).load(Arrays.asList("P0000002"));
+        verify(this.workers, never()).load(Arrays.asList("P0000001", "P0000002"));
+        verify(this.live).commit();
     }
 
     @Test
-    public void reindexSolrServerException() throws QueryException, IOException, SolrServerException
+    public void reindexCheckpointsRegularly() throws Exception
     {
+        File permanentDirectory = this.folder.newFolder();
+        when(this.mocker.<Environment>getInstance(Environment.class).getPermanentDirectory())
+            .thenReturn(permanentDirectory);
         List<String> patientDocs = new ArrayList<>();
-        patientDocs.add("P0000001");
+        for (int i = 0; i < 5001; ++i) {
+            patientDocs.add(String.format("P%07d", i));
+        }
+        when(this.source.getPatientDocuments()).thenReturn(patientDocs);
+        SolrClient shadow = mock(SolrClient.class);
+        when(this.cores.prepareReindexTarget(any(ReindexCheckpoint.class), anyLong(), anyCollectionOf(String.class)))
+            .thenReturn(shadow);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException
+            {
+                ReindexCheckpoint stored =
+                    ReindexCheckpoint.load(new File(permanentDirectory, "patients-reindex.properties"));
+                Assert.assertEquals(5000, stored.getProcessed());
+                Assert.assertFalse(stored.isPending("P0004999"));
+                Assert.assertTrue(stored.isPending("P0005000"));
+                return null;
+            }
+        }).when(this.cores).finishReindex(any(ReindexCheckpoint.class));
 
-        Query testQuery = mock(Query.class);
-        doReturn(testQuery).when(this.qm).createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL);
-        doReturn(patientDocs).when(testQuery).execute();
+        this.patientIndexer.reindex();
 
-        doThrow(new SolrServerException("deleteByQuery failed")).when(this.server).deleteByQuery("*:*");
+        verify(this.workers, times(21)).load(anyListOf(String.class));
+        verify(shadow, times(2)).commit();
+        verify(this.cores).finishReindex(any(ReindexCheckpoint.class));
+    }
+
+    @Test
+    public void reindexSolrServerException() throws Exception
+    {
+        doThrow(new SolrServerException("deleteByQuery failed")).when(this.cores)
+            .prepareReindexTarget(any(ReindexCheckpoint.class), anyLong(), anyCollectionOf(String.class));
 
         this.patientIndexer.reindex();
 
         verify(this.logger).warn("Failed to reindex patients: {}", "deleteByQuery failed");
+        verify(this.cores).stopRecording();
+        verify(this.workers).close();
     }
 
     @Test
-    public void reindexIOException() throws QueryException, IOException, SolrServerException
+    public void reindexIOException() throws Exception
     {
-        List<String> patientDocs = new ArrayList<>();
-        patientDocs.add("P0000001");
-
-        Query testQuery = mock(Query.class);
-        doReturn(testQuery).when(this.qm).createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL);
-        doReturn(patientDocs).when(testQuery).execute();
-
-        doThrow(new IOException("deleteByQuery failed")).when(this.server).deleteByQuery("*:*");
+        doThrow(new IOException("deleteByQuery failed")).when(this.cores)
+            .prepareReindexTarget(any(ReindexCheckpoint.class), anyLong(), anyCollectionOf(String.class));
 
         this.patientIndexer.reindex();
 
@@ -440,14 +361,78 @@ public void reindexIOException() throws QueryException, IOException, SolrServerE
     }
 
     @Test
-    public void reindexQueryException() throws QueryException, IOException, SolrServerException
+    public void reindexQueryException() throws Exception
     {
-        doThrow(new QueryException("createQuery failed", null, null))
-            .when(this.qm).createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL);
+        doThrow(new QueryException("createQuery failed", null, null)).when(this.source).getPatientDocuments();
 
         this.patientIndexer.reindex();
 
         verify(this.logger).warn("Failed to search patients for reindexing: {}", "createQuery failed");
+        verify(this.cores, never()).prepareReindexTarget(any(ReindexCheckpoint.class), anyLong(),
+            anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void reindexLoadingFailure() throws Exception
+    {
+        when(this.source.getPatientDocuments()).thenReturn(Arrays.asList("P0000001"));
+        when(this.cores.prepareReindexTarget(any(ReindexCheckpoint.class), anyLong(), anyCollectionOf(String.class)))
+            .thenReturn(this.live);
+        when(this.workers.load(anyListOf(String.class)))
+            .thenThrow(new ExecutionException("load failed", new IllegalStateException()));
 
+        this.patientIndexer.reindex();
+
+        verify(this.logger).warn("Failed to reindex patients: {}", "load failed");
+        verify(this.cores, never()).finishReindex(any(ReindexCheckpoint.class));
+    }
+
+    @Test
+    public void reindexInterrupted() throws Exception
+    {
+        when(this.source.getPatientDocuments()).thenReturn(Arrays.asList("P0000001"));
+        when(this.cores.prepareReindexTarget(any(ReindexCheckpoint.class), anyLong(), anyCollectionOf(String.class)))
+            .thenReturn(this.live);
+        when(this.workers.load(anyListOf(String.class))).thenThrow(new InterruptedException());
+
+        this.patientIndexer.reindex();
+
+        Assert.assertTrue(Thread.interrupted());
+        verify(this.logger).warn("Patient reindexing was interrupted, it will resume from the last checkpoint");
+        verify(this.cores, never()).finishReindex(any(ReindexCheckpoint.class));
+    }
+
+    @Test
+    public void concurrentReindexIsIgnored() throws Exception
+    {
+        when(this.source.getPatientDocuments()).thenAnswer(new Answer<List<String>>()
+        {
+            @Override
+            public List<String> answer(InvocationOnMock invocation)
+            {
+                SolrPatientIndexerTest.this.patientIndexer.reindex();
+                return Collections.emptyList();
+            }
+        });
+        when(this.cores.prepareReindexTarget(any(ReindexCheckpoint.class), anyLong(), anyCollectionOf(String.class)))
+            .thenReturn(this.live);
+
+        this.patientIndexer.reindex();
+
+        verify(this.logger).warn("A patient reindex is already running, ignoring the new request");
+        verify(this.source, times(1)).createWorkers();
+        verify(this.cores).finishReindex(any(ReindexCheckpoint.class));
+    }
+
+    /** Solr documents don't implement equals, so the same instance is returned for each name. */
+    private SolrInputDocument document(String name)
+    {
+        SolrInputDocument document = this.documents.get(name);
+        if (document == null) {
+            document = new SolrInputDocument();
+            document.setField("document", name);
+            this.documents.put(name, document);
+        }
+        return document;
     }
 }
@@ -0,0 +1,53 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.script;
+
+import org.phenotips.data.indexing.PatientIndexingQueue;
+
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link PatientIndexingScriptService} component.
+ *
+ * @version $Id$
+ */
+public class PatientIndexingScriptServiceTest
+{
+    @Rule
+    public MockitoComponentMockingRule<ScriptService> mocker =
+        new MockitoComponentMockingRule<ScriptService>(PatientIndexingScriptService.class);
+
+    @Test
+    public void queueStateIsForwarded() throws Exception
+    {
+        PatientIndexingQueue queue = this.mocker.getInstance(PatientIndexingQueue.class);
+        when(queue.getQueueDepth()).thenReturn(3);
+        when(queue.getLag()).thenReturn(2500L);
+
+        PatientIndexingScriptService service = (PatientIndexingScriptService) this.mocker.getComponentUnderTest();
+        Assert.assertEquals(3, service.getQueueDepth());
+        Assert.assertEquals(2500L, service.getLag());
+    }
+}
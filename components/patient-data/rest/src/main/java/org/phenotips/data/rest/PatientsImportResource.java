@@ -0,0 +1,67 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.rest;
+
+import org.phenotips.rest.ParentResource;
+import org.phenotips.rest.Relation;
+import org.phenotips.rest.RequiredAccess;
+
+import org.xwiki.stability.Unstable;
+
+import java.io.InputStream;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Resource for importing large numbers of patient records at once.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+@Path("/patients/import")
+@Relation("https://phenotips.org/rel/patientRecordsImport")
+@ParentResource(PatientsResource.class)
+public interface PatientsImportResource
+{
+    /** The media type for newline delimited JSON, one JSON object per line. */
+    String NDJSON = "application/x-ndjson";
+
+    /**
+     * Import new patients from their JSON representation. The request body can be either a JSON array of patient
+     * objects, or newline delimited JSON, with one patient object per line. The body is read as a stream, so it can
+     * hold any number of patients. Invalid records don't stop the import, except for malformed JSON in an array, after
+     * which the rest of the array can't be read. Empty records, and records with data that can't be stored, are
+     * reported as failed, and no patient is created for them.
+     *
+     * @param body the request body
+     * @return a report listing, for the first records in the order in which they were sent, either the identifier and
+     *         location of the new patient, or the reason why the record was not imported, along with the number of
+     *         imported, failed and unlisted records, and the import throughput
+     */
+    @POST
+    @Consumes({ MediaType.APPLICATION_JSON, NDJSON })
+    @Produces(MediaType.APPLICATION_JSON)
+    @RequiredAccess("edit")
+    Response importPatients(InputStream body);
+}
@@ -58,11 +58,18 @@
     Response add(String json);
 
     /**
-     * @param start for large result set paging, the index of the first patient to display in the returned page
+     * Lists the patient records accessible to the current user, one page at a time. For large result sets, instead of
+     * {@code start}, the {@code cursor} returned with each page should be passed as a query parameter when requesting
+     * the next page, since it doesn't require skipping over all the previous records.
+     *
+     * @param start for large result set paging, the index of the first patient to display in the returned page;
+     *            ignored if a {@code cursor} is specified
      * @param number for large result set paging, how many patients to display in the returned page
      * @param orderField field used for ordering the patients, can be one of {@code id} (default) or {@code eid}
      * @param order the sorting order, can be one of {@code asc} (default) or {@code desc}
-     * @return a list of patient records
+     * @return a list of patient records, along with, for the first page, the total number of records, and, if more
+     *         records are available, the continuation token for the next page
+     * @see #listPatients(Integer, Integer, String, String, String)
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
@@ -72,4 +79,20 @@ Patients listPatients(
         @QueryParam("number") @DefaultValue("30") Integer number,
         @QueryParam("orderField") @DefaultValue("id") String orderField,
         @QueryParam("order") @DefaultValue("asc") String order);
+
+    /**
+     * Lists the patient records accessible to the current user, one page at a time, continuing after a previous page.
+     *
+     * @param start the index of the first patient to display in the returned page; ignored if a {@code cursor} is
+     *            specified
+     * @param number how many patients to display in the returned page
+     * @param orderField field used for ordering the patients, can be one of {@code id} (default) or {@code eid}
+     * @param order the sorting order, can be one of {@code asc} (default) or {@code desc}
+     * @param cursor the continuation token returned with the previous page, if any; must be used with the same
+     *            {@code orderField} and {@code order} as the previous request
+     * @return a list of patient records, along with, if no cursor was specified, the total number of records, and, if
+     *         more records are available, the continuation token for the next page
+     * @since 1.4
+     */
+    Patients listPatients(Integer start, Integer number, String orderField, String order, String cursor);
 }
@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.rest.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.rest.PatientResource;
+import org.phenotips.data.rest.PatientsImportResource;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.rest.XWikiResource;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.users.User;
+import org.xwiki.users.UserManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.UriBuilder;
+
+import org.slf4j.Logger;
+
+/**
+ * Default implementation for {@link PatientsImportResource} using XWiki's support for REST resources. The records are
+ * imported by the {@link PatientImporter}, while the request is read. Indexing the new patients is left to the patient
+ * indexing queue, which indexes them together in the background.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("org.phenotips.data.rest.internal.DefaultPatientsImportResourceImpl")
+@Singleton
+public class DefaultPatientsImportResourceImpl extends XWikiResource implements PatientsImportResource
+{
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private PatientImporter importer;
+
+    @Inject
+    private AuthorizationManager access;
+
+    @Inject
+    private UserManager users;
+
+    /** Fills in missing reference fields with those from the current context document to create a full reference. */
+    @Inject
+    @Named("current")
+    private EntityReferenceResolver<EntityReference> currentResolver;
+
+    @Override
+    public Response importPatients(InputStream body)
+    {
+        User currentUser = this.users.getCurrentUser();
+        DocumentReference creator = currentUser == null ? null : currentUser.getProfileDocument();
+        if (!this.access.hasAccess(Right.EDIT, creator,
+            this.currentResolver.resolve(Patient.DEFAULT_DATA_SPACE, EntityType.SPACE))) {
+            throw new WebApplicationException(Status.UNAUTHORIZED);
+        }
+        if (body == null) {
+            throw new WebApplicationException(Status.BAD_REQUEST);
+        }
+
+        long start = System.currentTimeMillis();
+        ImportReport report = new ImportReport();
+        Status status = Status.OK;
+        try (PatientRecordReader reader =
+            new PatientRecordReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            this.importer.importRecords(reader, creator, report);
+        } catch (IOException ex) {
+            this.logger.error("Failed to read patients to import: {}", ex.getMessage(), ex);
+            report.fail(ex.getMessage());
+            status = Status.INTERNAL_SERVER_ERROR;
+        } catch (InterruptedException ex) {
+            this.logger.warn("Patient import was interrupted");
+            report.fail("Interrupted");
+            status = Status.INTERNAL_SERVER_ERROR;
+            Thread.currentThread().interrupt();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        this.logger.info("Imported {} patients in {} ms, {} records failed", report.getImported(), elapsed,
+            report.getFailed());
+        String entity = report.toJSON(elapsed, id -> UriBuilder.fromUri(this.uriInfo.getBaseUri())
+            .path(PatientResource.class).build(id).toString()).toString();
+        return Response.status(status).entity(entity).type(MediaType.APPLICATION_JSON_TYPE).build();
+    }
+}
@@ -19,6 +19,7 @@
 
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientRepository;
+import org.phenotips.data.permissions.internal.GroupClosureCache;
 import org.phenotips.data.rest.DomainObjectFactory;
 import org.phenotips.data.rest.PatientResource;
 import org.phenotips.data.rest.PatientsResource;
@@ -31,7 +32,9 @@
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 import org.xwiki.rest.XWikiResource;
 import org.xwiki.security.authorization.AuthorizationManager;
@@ -40,7 +43,10 @@
 import org.xwiki.users.UserManager;
 
 import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -57,6 +63,8 @@
 import org.json.JSONObject;
 import org.slf4j.Logger;
 
+import com.xpn.xwiki.XWikiException;
+
 /**
  * Default implementation for {@link PatientsResource} using XWiki's support for REST resources.
  *
@@ -68,6 +76,12 @@
 @Singleton
 public class DefaultPatientsResourceImpl extends XWikiResource implements PatientsResource
 {
+    /** The number of columns expected by {@link DomainObjectFactory#createPatientSummary}. */
+    private static final int SUMMARY_COLUMNS = 7;
+
+    /** The maximum number of records fetched at once, when skipping records for legacy offset paging. */
+    private static final int MAX_BATCH_SIZE = 1000;
+
     @Inject
     private Logger logger;
 
@@ -83,6 +97,9 @@ public class DefaultPatientsResourceImpl extends XWikiResource implements Patien
     @Inject
     private UserManager users;
 
+    @Inject
+    private GroupClosureCache groupClosures;
+
     /** Fills in missing reference fields with those from the current context document to create a full reference. */
     @Inject
     @Named("current")
@@ -94,6 +111,13 @@ public class DefaultPatientsResourceImpl extends XWikiResource implements Patien
     @Inject
     private Provider<Autolinker> autolinker;
 
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
     @Override
     public Response add(final String json)
     {
@@ -197,36 +221,74 @@ private Response buildCreatedResponse(final Patient patient)
     @Override
     public Patients listPatients(Integer start, Integer number, String orderField, String order)
     {
+        return listPatients(start, number, orderField, order, this.uriInfo.getQueryParameters().getFirst("cursor"));
+    }
+
+    @Override
+    public Patients listPatients(Integer start, Integer number, String orderField, String order, String cursor)
+    {
+        if (start == null || start < 0 || number == null || number < 0) {
+            throw new WebApplicationException(Status.BAD_REQUEST);
+        }
+        PatientsListingQuery listing;
+        try {
+            listing = getListing("eid".equals(orderField), "desc".equals(order));
+        } catch (XWikiException ex) {
+            this.logger.error("Failed to list patients: {}", ex.getMessage(), ex);
+            throw new WebApplicationException(Status.INTERNAL_SERVER_ERROR);
+        }
+        JSONObject after;
+        try {
+            after = listing.parseCursor(cursor);
+        } catch (IllegalArgumentException ex) {
+            throw new WebApplicationException(Status.BAD_REQUEST);
+        }
+
         Patients result = new Patients();
         try {
-            String safeOrderField = "doc.name";
-            if ("eid".equals(orderField)) {
-                safeOrderField = "p.external_id";
-            }
-            String safeOrder = " asc";
-            if ("desc".equals(order)) {
-                safeOrder = " desc";
-            }
-            Query query = this.queries.createQuery(
-                "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
-                    + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                    + safeOrderField + safeOrder,
-                "xwql");
-            query.bindValue("t", "PatientTemplate");
-
-            List<Object[]> records = query.execute();
+            boolean firstRequest = after == null;
+            // Legacy offset paging counts accessible records, so they can't be skipped in the query
+            int skip = firstRequest ? start : 0;
             int skipped = 0;
-            for (Object[] record : records) {
-                PatientSummary summary = this.factory.createPatientSummary(record, this.uriInfo);
-                // Since raw queries can't take into account access rights, we must do our own paging with rights checks
-                if (summary != null) {
-                    if (++skipped > start) {
-                        result.getPatientSummaries().add(summary);
-                    }
+            boolean exhausted = false;
+            boolean hasMore = false;
+            while (!exhausted && !hasMore) {
+                // One more record than needed, to know if there is a next page
+                int needed = skip - skipped + number - result.getPatientSummaries().size() + 1;
+                int batchSize = Math.min(MAX_BATCH_SIZE, needed);
+                Query query = this.queries.createQuery(listing.getStatement(after != null), Query.HQL);
+                listing.bind(query, after);
+                query.setLimit(batchSize);
+                List<Object[]> records = query.execute();
+                exhausted = records.size() < batchSize;
+                for (Object[] record : records) {
                     if (result.getPatientSummaries().size() >= number) {
+                        hasMore = true;
                         break;
                     }
+                    after = listing.getCursor(record);
+                    // The query only pre-filters by access rights, the actual access is checked for each record
+                    PatientSummary summary = this.factory.createPatientSummary(
+                        Arrays.copyOf(record, SUMMARY_COLUMNS), this.uriInfo);
+                    if (summary == null) {
+                        continue;
+                    }
+                    if (skipped < skip) {
+                        ++skipped;
+                    } else {
+                        result.getPatientSummaries().add(summary);
+                    }
                 }
+                // If some records were denied, the page may have been filled by the last record of the batch, without
+                // reaching the look-ahead record; more records may follow unless the query ran out of records
+                hasMore = hasMore || !exhausted && result.getPatientSummaries().size() >= number;
+            }
+            if (hasMore && after != null) {
+                result.withCursor(listing.encodeCursor(after));
+            }
+            if (firstRequest) {
+                // The total is only computed once, for the first page; if all the records were checked, it is exact
+                result.withTotal(hasMore ? countPatients(listing) : skipped + result.getPatientSummaries().size());
             }
             result.withLinks(this.autolinker.get().forResource(getClass(), this.uriInfo)
                 .withGrantedRight(getGrantedRight()).build());
@@ -238,6 +300,48 @@ public Patients listPatients(Integer start, Integer number, String orderField, S
         return result;
     }
 
+    private int countPatients(PatientsListingQuery listing) throws QueryException
+    {
+        Query query = this.queries.createQuery(listing.getCountStatement(), Query.HQL);
+        listing.bind(query, null);
+        List<Object> count = query.execute();
+        return count.isEmpty() ? 0 : ((Number) count.get(0)).intValue();
+    }
+
+    /**
+     * Prepares the listing query for the current user. Administrators can access all the records, so their listing
+     * isn't filtered. For other users, the query lists the records where the user or one of their groups, direct or
+     * nested, appears in the owner, collaborators or rights objects, and the public or open records. Users granted
+     * view rights on the whole data space by space, wiki or group ACLs can also see the records which don't have
+     * rights objects of their own, since these inherit the rights of the space.
+     *
+     * @param byExternalId whether to sort by the external identifier
+     * @param descending whether to sort in descending order
+     * @return the listing query
+     * @throws XWikiException if the groups of the user can't be retrieved
+     */
+    private PatientsListingQuery getListing(boolean byExternalId, boolean descending) throws XWikiException
+    {
+        User user = this.users.getCurrentUser();
+        DocumentReference profile = user == null ? null : user.getProfileDocument();
+        EntityReference dataSpace = this.currentResolver.resolve(Patient.DEFAULT_DATA_SPACE, EntityType.SPACE);
+        if (this.access.hasAccess(Right.ADMIN, profile, dataSpace)) {
+            return new PatientsListingQuery(byExternalId, descending, null, true);
+        }
+        Set<String> principals = new HashSet<>();
+        for (DocumentReference reference : this.groupClosures.resolve(profile)) {
+            addPrincipal(reference, principals);
+        }
+        return new PatientsListingQuery(byExternalId, descending, principals,
+            this.access.hasAccess(Right.VIEW, profile, dataSpace));
+    }
+
+    private void addPrincipal(DocumentReference reference, Set<String> principals)
+    {
+        principals.add(this.serializer.serialize(reference));
+        principals.add(this.localSerializer.serialize(reference));
+    }
+
     private Right getGrantedRight()
     {
         User currentUser = this.users.getCurrentUser();
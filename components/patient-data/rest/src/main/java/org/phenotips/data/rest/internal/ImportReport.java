@@ -0,0 +1,136 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.rest.internal;
+
+import java.util.function.Function;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Collects the results of a patient import. Only the first results are listed, so that the report stays small even
+ * for large imports; the others are only counted.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class ImportReport
+{
+    /** The key of the index of a record in the request. */
+    static final String INDEX = "index";
+
+    /** The key of the identifier of an imported patient. */
+    static final String ID = "id";
+
+    /** The key of the reason why a record was not imported. */
+    static final String ERROR = "error";
+
+    /** How many results are listed by default. */
+    static final int MAX_LISTED_RESULTS = 1000;
+
+    private final int maxListed;
+
+    private final JSONArray results = new JSONArray();
+
+    private int imported;
+
+    private int failed;
+
+    private String error;
+
+    /** Default constructor, listing up to {@link #MAX_LISTED_RESULTS} results. */
+    ImportReport()
+    {
+        this(MAX_LISTED_RESULTS);
+    }
+
+    /**
+     * Constructor setting a custom limit for the listed results.
+     *
+     * @param maxListed how many results are listed, at most
+     */
+    ImportReport(int maxListed)
+    {
+        this.maxListed = maxListed;
+    }
+
+    /**
+     * Records the result of importing one record.
+     *
+     * @param result the result, with either the {@link #ID identifier} of the new patient, or an {@link #ERROR error}
+     */
+    void add(JSONObject result)
+    {
+        if (result.has(ERROR)) {
+            ++this.failed;
+        } else {
+            ++this.imported;
+        }
+        if (this.results.length() < this.maxListed) {
+            this.results.put(result);
+        }
+    }
+
+    /**
+     * Records an error which stopped the import.
+     *
+     * @param message the reason why the import stopped
+     */
+    void fail(String message)
+    {
+        this.error = message;
+    }
+
+    int getImported()
+    {
+        return this.imported;
+    }
+
+    int getFailed()
+    {
+        return this.failed;
+    }
+
+    /**
+     * Serializes the report.
+     *
+     * @param elapsed how long did the import take, in milliseconds
+     * @param linker builds the location of an imported patient from its identifier
+     * @return the report, as a JSON object
+     */
+    JSONObject toJSON(long elapsed, Function<String, String> linker)
+    {
+        JSONObject result = new JSONObject();
+        int total = this.imported + this.failed;
+        result.put("total", total);
+        result.put("imported", this.imported);
+        result.put("failed", this.failed);
+        result.put("elapsed", elapsed);
+        result.put("throughput", elapsed > 0 ? this.imported * 1000.0 / elapsed : this.imported);
+        result.put(ERROR, this.error);
+        for (int i = 0; i < this.results.length(); ++i) {
+            JSONObject record = this.results.getJSONObject(i);
+            if (record.has(ID)) {
+                record.put("href", linker.apply(record.getString(ID)));
+            }
+        }
+        result.put("results", this.results);
+        result.put("unlisted", total - this.results.length());
+        return result;
+    }
+}
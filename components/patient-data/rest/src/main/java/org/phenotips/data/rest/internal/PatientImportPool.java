@@ -0,0 +1,123 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.rest.internal;
+
+import org.phenotips.components.WorkerExecutionContext;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Imports patients on a fixed pool of threads. Each thread runs in its own copy of the execution context of the thread
+ * that created the pool, set up once when the thread starts, since patients are stored through the XWiki model on
+ * behalf of the current user.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class PatientImportPool implements AutoCloseable
+{
+    private final Execution execution;
+
+    private final ExecutionContextManager contextManager;
+
+    /** The context of the thread creating the pool, copied for each worker thread; may be {@code null}. */
+    private final ExecutionContext parentContext;
+
+    /** The first failure to set up the context of a worker thread, reported by the following imports. */
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    private final ExecutorService pool;
+
+    /**
+     * Creates a pool running in copies of the current execution context.
+     *
+     * @param threads how many patients may be imported in parallel
+     * @param execution provides access to the current execution context
+     * @param contextManager copies the execution context for each thread
+     */
+    PatientImportPool(int threads, Execution execution, ExecutionContextManager contextManager)
+    {
+        this.execution = execution;
+        this.contextManager = contextManager;
+        this.parentContext = execution.getContext();
+        final AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(Math.max(1, threads), task -> {
+            Thread thread = new Thread(inWorkerContext(task), "Patient import " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs a task on one of the threads of the pool.
+     *
+     * @param task the task to run
+     * @param <T> the type of the result of the task
+     * @return the pending result of the task, failing if the execution context couldn't be set up
+     */
+    <T> Future<T> submit(Callable<T> task)
+    {
+        return this.pool.submit(() -> {
+            Exception contextFailure = this.failure.get();
+            if (contextFailure != null) {
+                throw contextFailure;
+            }
+            return task.call();
+        });
+    }
+
+    @Override
+    public void close()
+    {
+        this.pool.shutdownNow();
+    }
+
+    /**
+     * Wraps the main task of a worker thread so that it runs in its own execution context.
+     *
+     * @param task the worker task
+     * @return a task setting up the execution context before running the worker task
+     */
+    private Runnable inWorkerContext(Runnable task)
+    {
+        return () -> {
+            try {
+                this.execution.setContext(WorkerExecutionContext.create(this.parentContext, this.contextManager));
+            } catch (ExecutionContextException | RuntimeException ex) {
+                // Patients can't be stored properly without a context, fail the remaining records
+                this.failure.compareAndSet(null, ex);
+                this.execution.setContext(new ExecutionContext());
+            }
+            try {
+                task.run();
+            } finally {
+                this.execution.removeContext();
+            }
+        };
+    }
+}
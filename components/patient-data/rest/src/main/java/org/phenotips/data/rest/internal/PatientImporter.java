@@ -0,0 +1,150 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.rest.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+/**
+ * Creates patient records from the records read from an import request. Records are read in batches, and the records
+ * of a batch are imported in parallel, so that only one batch is held in memory at any time. Each new patient is
+ * stored only once, already holding all its data; records with data that can't be stored are reported as failed, and
+ * no patient is created for them.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { PatientImporter.class })
+@Singleton
+public class PatientImporter
+{
+    /** How many records are read from the request before they are imported. */
+    private static final int BATCH_SIZE = 50;
+
+    /** The maximum number of records imported at the same time, more would only increase contention on the store. */
+    private static final int MAX_WORKERS = 4;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private PatientRepository repository;
+
+    /** Provides access to the execution context, which must be set up in the worker threads. */
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    /**
+     * Imports all the records.
+     *
+     * @param reader the source of records
+     * @param creator the user importing the records, who will own the new patients
+     * @param report collects the results
+     * @throws IOException if reading the records fails
+     * @throws InterruptedException if the import is interrupted
+     */
+    public void importRecords(PatientRecordReader reader, DocumentReference creator, ImportReport report)
+        throws IOException, InterruptedException
+    {
+        try (PatientImportPool workers = new PatientImportPool(
+            Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()), this.execution, this.contextManager)) {
+            boolean more = true;
+            while (more) {
+                more = importBatch(reader, workers, creator, report);
+            }
+        }
+    }
+
+    /**
+     * Reads the next batch of records, and imports them in parallel.
+     *
+     * @param reader the source of records
+     * @param workers the thread pool where the records are imported
+     * @param creator the user importing the records
+     * @param report collects the results
+     * @return {@code true} if more records may follow, {@code false} if the end of the input was reached
+     */
+    private boolean importBatch(PatientRecordReader reader, PatientImportPool workers, DocumentReference creator,
+        ImportReport report) throws IOException, InterruptedException
+    {
+        // The pending import, or the reason why it was not started, for each record index
+        Map<Integer, Object> batch = new LinkedHashMap<>();
+        boolean more = true;
+        while (more && batch.size() < BATCH_SIZE) {
+            try {
+                final JSONObject record = reader.next();
+                if (record == null) {
+                    more = false;
+                } else if (record.length() == 0) {
+                    batch.put(reader.getIndex(), "Empty patient record");
+                } else {
+                    batch.put(reader.getIndex(), workers.submit(() -> this.repository.create(record, creator)));
+                }
+            } catch (JSONException ex) {
+                batch.put(reader.getIndex(), ex.getMessage());
+            }
+        }
+        for (Map.Entry<Integer, Object> entry : batch.entrySet()) {
+            report.add(getResult(entry.getKey(), entry.getValue()));
+        }
+        return more;
+    }
+
+    private JSONObject getResult(int index, Object pending) throws InterruptedException
+    {
+        JSONObject result = new JSONObject().put(ImportReport.INDEX, index);
+        String error;
+        if (pending instanceof Future) {
+            try {
+                Patient patient = (Patient) ((Future<?>) pending).get();
+                if (patient != null) {
+                    return result.put(ImportReport.ID, patient.getId());
+                }
+                error = "Failed to create a new patient record";
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                this.logger.warn("Failed to import patient record #{}: {}", index, cause.getMessage());
+                error = cause.getMessage() == null ? cause.getClass().getName() : cause.getMessage();
+            }
+        } else {
+            error = (String) pending;
+        }
+        return result.put(ImportReport.ERROR, error);
+    }
+}
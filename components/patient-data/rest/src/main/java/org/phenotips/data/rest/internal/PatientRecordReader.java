@@ -0,0 +1,148 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.rest.internal;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Reads patient records one by one from a stream holding either a JSON array of objects, or newline delimited JSON
+ * objects, without loading the whole input in memory.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class PatientRecordReader implements Closeable
+{
+    private final BufferedReader in;
+
+    /** Parses the array elements, {@code null} if the input is newline delimited JSON. */
+    private final JSONTokener tokener;
+
+    /** The index of the last record read, {@code -1} before the first record. */
+    private int index = -1;
+
+    /** Whether the end of the input was reached, or an error which prevents reading further records was found. */
+    private boolean finished;
+
+    /**
+     * Simple constructor, detecting the format of the input.
+     *
+     * @param in the input to read
+     * @throws IOException if reading the input fails
+     */
+    PatientRecordReader(Reader in) throws IOException
+    {
+        this.in = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        int c;
+        do {
+            this.in.mark(1);
+            c = this.in.read();
+        } while (c != -1 && Character.isWhitespace(c));
+        if (c == '[') {
+            this.tokener = new JSONTokener(this.in);
+        } else {
+            this.tokener = null;
+            if (c != -1) {
+                this.in.reset();
+            }
+        }
+    }
+
+    /**
+     * Reads the next record. If the record is invalid, the next call reads the following record, unless the input is a
+     * JSON array and the record is not well formed JSON, in which case reading stops.
+     *
+     * @return the next record, or {@code null} if there are no more records to read
+     * @throws JSONException if the record is not a valid JSON object
+     * @throws IOException if reading the input fails
+     */
+    JSONObject next() throws IOException
+    {
+        if (this.finished) {
+            return null;
+        }
+        return this.tokener == null ? nextLine() : nextElement();
+    }
+
+    /**
+     * The index of the last record returned by {@link #next()}, or for which {@link #next()} failed.
+     *
+     * @return the record index, starting at {@code 0}
+     */
+    int getIndex()
+    {
+        return this.index;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.in.close();
+    }
+
+    private JSONObject nextLine() throws IOException
+    {
+        String line;
+        do {
+            line = this.in.readLine();
+            if (line == null) {
+                this.finished = true;
+                return null;
+            }
+        } while (StringUtils.isBlank(line));
+        ++this.index;
+        return new JSONObject(line);
+    }
+
+    private JSONObject nextElement()
+    {
+        char c = this.tokener.nextClean();
+        if (c == ']') {
+            this.finished = true;
+            return null;
+        }
+        ++this.index;
+        if (this.index > 0) {
+            if (c != ',') {
+                this.finished = true;
+                throw this.tokener.syntaxError("Expected ',' or ']'");
+            }
+        } else {
+            this.tokener.back();
+        }
+        Object value;
+        try {
+            value = this.tokener.nextValue();
+        } catch (JSONException ex) {
+            this.finished = true;
+            throw ex;
+        }
+        if (!(value instanceof JSONObject)) {
+            throw new JSONException("Patient records must be JSON objects");
+        }
+        return (JSONObject) value;
+    }
+}
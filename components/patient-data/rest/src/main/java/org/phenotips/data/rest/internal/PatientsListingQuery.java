@@ -0,0 +1,253 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.rest.internal;
+
+import org.xwiki.query.Query;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Builds the HQL queries used for listing patient records one page at a time. Paging is done with a keyset: the
+ * records are sorted by the requested field, then by the document name, and each page starts right after the last
+ * record of the previous page, as identified by an opaque continuation token. If the records must be filtered for a
+ * user, a pre-filter is part of the query as well, based on the objects attached to each record: a record is listed if
+ * it has a public or open visibility, if the user or one of their groups is its owner or one of its collaborators, or
+ * if one of its rights objects mentions the user or one of their groups. For users who can view the whole data space,
+ * records without rights objects are listed as well, since they inherit the space rights. The pre-filter may admit
+ * records that the user cannot actually see, so the access rights must still be checked for each listed record.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class PatientsListingQuery
+{
+    /** Visibility levels which grant view rights to everybody, see the {@code Visibility} components. */
+    private static final List<String> VISIBLE_TO_ALL = Arrays.asList("public", "open");
+
+    private static final String SELECT =
+        "select doc.fullName, eid.value, doc.creator, doc.creationDate, doc.version, doc.author, doc.date, doc.name";
+
+    private static final String FROM = " from XWikiDocument doc, BaseObject p, StringProperty eid"
+        + " where p.name = doc.fullName and p.className = 'PhenoTips.PatientClass' and doc.name <> :t"
+        + " and eid.id.id = p.id and eid.id.name = 'external_id'";
+
+    private static final String ACCESS_FILTER = " and ("
+        + "exists (from BaseObject vo, StringProperty vp where vo.name = doc.fullName"
+        + " and vo.className = 'PhenoTips.VisibilityClass' and vp.id.id = vo.id and vp.id.name = 'visibility'"
+        + " and vp.value in (:visibleToAll))"
+        + " or exists (from BaseObject oo, StringProperty op where oo.name = doc.fullName"
+        + " and oo.className = 'PhenoTips.OwnerClass' and op.id.id = oo.id and op.id.name = 'owner'"
+        + " and op.value in (:principals))"
+        + " or exists (from BaseObject co, StringProperty cp where co.name = doc.fullName"
+        + " and co.className = 'PhenoTips.CollaboratorClass' and cp.id.id = co.id and cp.id.name = 'collaborator'"
+        + " and cp.value in (:principals))"
+        + " or exists (from BaseObject ro, LargeStringProperty rp where ro.name = doc.fullName"
+        + " and ro.className = 'XWiki.XWikiRights' and rp.id.id = ro.id and rp.id.name in ('users', 'groups')"
+        + " and (";
+
+    /** Records without rights objects of their own, which inherit the rights of the data space. */
+    private static final String INHERITED_RIGHTS = " or not exists (from BaseObject io where io.name = doc.fullName"
+        + " and io.className = 'XWiki.XWikiRights')";
+
+    private static final String RIGHTS_PARAMETER = "acl";
+
+    /** Users and groups are stored in rights objects as comma separated lists, matched with one pattern each. */
+    private static final String RIGHTS_PRINCIPAL = "rp.value like :" + RIGHTS_PARAMETER;
+
+    private static final String CURSOR_KEY = "k";
+
+    private static final String CURSOR_NAME = "n";
+
+    private static final String CURSOR_ORDER = "o";
+
+    private final boolean byExternalId;
+
+    private final String sortField;
+
+    private final boolean descending;
+
+    private final Collection<String> principals;
+
+    private final boolean spaceViewer;
+
+    /**
+     * Simple constructor.
+     *
+     * @param byExternalId whether to sort by the external identifier ({@code true}) or by the record identifier
+     * @param descending whether to sort in descending order
+     * @param principals the serialized references of the user and all their groups, as they may be stored in the owner,
+     *            collaborator and rights objects; if {@code null}, then all the records are listed
+     * @param spaceViewer whether the user can view the whole data space, and thus the records that inherit its rights
+     */
+    PatientsListingQuery(boolean byExternalId, boolean descending, Collection<String> principals,
+        boolean spaceViewer)
+    {
+        this.byExternalId = byExternalId;
+        this.sortField = byExternalId ? "coalesce(eid.value, '')" : "doc.name";
+        this.descending = descending;
+        this.principals = principals;
+        this.spaceViewer = spaceViewer;
+    }
+
+    /**
+     * The query returning the records of a page, with the same columns as expected by
+     * {@link org.phenotips.data.rest.DomainObjectFactory#createPatientSummary(Object[], javax.ws.rs.core.UriInfo)},
+     * followed by the document name.
+     *
+     * @param afterCursor whether the page follows a previous page, identified by a cursor
+     * @return a HQL statement
+     */
+    String getStatement(boolean afterCursor)
+    {
+        StringBuilder statement = new StringBuilder(SELECT).append(FROM);
+        appendAccessFilter(statement);
+        if (afterCursor) {
+            String comparison = this.descending ? " < " : " > ";
+            statement.append(" and (").append(this.sortField).append(comparison).append(":key or (")
+                .append(this.sortField).append(" = :key and doc.fullName").append(comparison).append(":name))");
+        }
+        String direction = this.descending ? " desc" : " asc";
+        statement.append(" order by ").append(this.sortField).append(direction).append(", doc.fullName")
+            .append(direction);
+        return statement.toString();
+    }
+
+    /**
+     * The query counting all the listed records.
+     *
+     * @return a HQL statement
+     */
+    String getCountStatement()
+    {
+        StringBuilder statement = new StringBuilder("select count(doc.id)").append(FROM);
+        appendAccessFilter(statement);
+        return statement.toString();
+    }
+
+    /**
+     * Bind the values needed by a query created from {@link #getStatement} or {@link #getCountStatement}.
+     *
+     * @param query the query to prepare
+     * @param cursor the cursor identifying the end of the previous page, may be {@code null}
+     */
+    void bind(Query query, JSONObject cursor)
+    {
+        query.bindValue("t", "PatientTemplate");
+        if (this.principals != null) {
+            query.bindValue("visibleToAll", VISIBLE_TO_ALL);
+            // An empty list isn't valid in an HQL query
+            query.bindValue("principals", this.principals.isEmpty() ? Arrays.asList("") : this.principals);
+            int i = 0;
+            for (String principal : this.principals) {
+                query.bindValue(RIGHTS_PARAMETER + i++, '%' + principal + '%');
+            }
+            if (i == 0) {
+                // Matches no rights object
+                query.bindValue(RIGHTS_PARAMETER + i, "");
+            }
+        }
+        if (cursor != null) {
+            query.bindValue("key", cursor.getString(CURSOR_KEY));
+            query.bindValue("name", cursor.getString(CURSOR_NAME));
+        }
+    }
+
+    /**
+     * Build the cursor pointing right after a record.
+     *
+     * @param record a record returned by the {@link #getStatement page query}
+     * @return the cursor, to be used for {@link #bind binding} the query for the following records
+     */
+    JSONObject getCursor(Object[] record)
+    {
+        Object key = this.byExternalId ? record[1] : record[7];
+        JSONObject cursor = new JSONObject();
+        cursor.put(CURSOR_KEY, key == null ? "" : String.valueOf(key));
+        cursor.put(CURSOR_NAME, String.valueOf(record[0]));
+        cursor.put(CURSOR_ORDER, getOrder());
+        return cursor;
+    }
+
+    /**
+     * Encode a cursor as a continuation token.
+     *
+     * @param cursor a cursor obtained with {@link #getCursor}
+     * @return an opaque, URL-safe token
+     */
+    String encodeCursor(JSONObject cursor)
+    {
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString(cursor.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode a continuation token.
+     *
+     * @param token a token previously returned by {@link #encodeCursor}, may be blank
+     * @return the decoded cursor, or {@code null} if the token is blank
+     * @throws IllegalArgumentException if the token is invalid or was issued for a different ordering
+     */
+    JSONObject parseCursor(String token)
+    {
+        if (StringUtils.isBlank(token)) {
+            return null;
+        }
+        try {
+            JSONObject cursor =
+                new JSONObject(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+            if (!getOrder().equals(cursor.optString(CURSOR_ORDER)) || !cursor.has(CURSOR_KEY)
+                || !cursor.has(CURSOR_NAME)) {
+                throw new IllegalArgumentException("Cursor issued for a different listing");
+            }
+            return cursor;
+        } catch (JSONException ex) {
+            throw new IllegalArgumentException("Invalid cursor", ex);
+        }
+    }
+
+    private String getOrder()
+    {
+        return this.sortField + (this.descending ? " desc" : " asc");
+    }
+
+    private void appendAccessFilter(StringBuilder statement)
+    {
+        if (this.principals != null) {
+            statement.append(ACCESS_FILTER);
+            for (int i = 0; i < Math.max(1, this.principals.size()); ++i) {
+                if (i > 0) {
+                    statement.append(" or ");
+                }
+                statement.append(RIGHTS_PRINCIPAL).append(i);
+            }
+            statement.append("))");
+            if (this.spaceViewer) {
+                statement.append(INHERITED_RIGHTS);
+            }
+            statement.append(')');
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.rest.internal;
+
+import org.phenotips.data.rest.PatientsImportResource;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+import org.xwiki.users.UserManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+
+import javax.inject.Provider;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DefaultPatientsImportResourceImplTest
+{
+    private static final DocumentReference CREATOR = new DocumentReference("wiki", "XWiki", "padams");
+
+    @Rule
+    public MockitoComponentMockingRule<PatientsImportResource> mocker =
+        new MockitoComponentMockingRule<PatientsImportResource>(DefaultPatientsImportResourceImpl.class);
+
+    @Mock
+    private User currentUser;
+
+    @Mock
+    private UriInfo uriInfo;
+
+    private PatientImporter importer;
+
+    private AuthorizationManager access;
+
+    private PatientsImportResource resource;
+
+    @Before
+    public void setUp() throws ComponentLookupException, URISyntaxException
+    {
+        MockitoAnnotations.initMocks(this);
+        Execution execution = mock(Execution.class);
+        ExecutionContext executionContext = mock(ExecutionContext.class);
+        ComponentManager compManager = this.mocker.getInstance(ComponentManager.class, "context");
+        Provider<XWikiContext> provider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        XWikiContext context = provider.get();
+        when(compManager.getInstance(Execution.class)).thenReturn(execution);
+        doReturn(executionContext).when(execution).getContext();
+        doReturn(context).when(executionContext).getProperty("xwikicontext");
+
+        this.importer = this.mocker.getInstance(PatientImporter.class);
+        this.access = this.mocker.getInstance(AuthorizationManager.class);
+        this.resource = this.mocker.getComponentUnderTest();
+
+        UserManager users = this.mocker.getInstance(UserManager.class);
+        doReturn(this.currentUser).when(users).getCurrentUser();
+        doReturn(CREATOR).when(this.currentUser).getProfileDocument();
+        doReturn(true).when(this.access).hasAccess(eq(Right.EDIT), any(DocumentReference.class),
+            any(EntityReference.class));
+
+        doReturn(new URI("http://uri")).when(this.uriInfo).getBaseUri();
+        ReflectionUtils.setFieldValue(this.resource, "uriInfo", this.uriInfo);
+    }
+
+    @Test
+    public void importRequiresEditRights() throws Exception
+    {
+        doReturn(false).when(this.access).hasAccess(eq(Right.EDIT), any(DocumentReference.class),
+            any(EntityReference.class));
+        try {
+            this.resource.importPatients(stream("[]"));
+            Assert.fail("Unauthorized imports must be rejected");
+        } catch (WebApplicationException ex) {
+            Assert.assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), ex.getResponse().getStatus());
+        }
+        verify(this.importer, never()).importRecords(any(PatientRecordReader.class), any(DocumentReference.class),
+            any(ImportReport.class));
+    }
+
+    @Test
+    public void missingBodyIsRejected()
+    {
+        try {
+            this.resource.importPatients(null);
+            Assert.fail("Requests without a body must be rejected");
+        } catch (WebApplicationException ex) {
+            Assert.assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), ex.getResponse().getStatus());
+        }
+    }
+
+    @Test
+    public void importReportsEachRecordWithItsLocation() throws Exception
+    {
+        doAnswer(invocation -> {
+            ImportReport report = (ImportReport) invocation.getArguments()[2];
+            report.add(new JSONObject().put("index", 0).put("id", "P0000001"));
+            report.add(new JSONObject().put("index", 1).put("error", "Empty patient record"));
+            return null;
+        }).when(this.importer).importRecords(any(PatientRecordReader.class), eq(CREATOR), any(ImportReport.class));
+
+        JSONObject report = importPatients("[{\"external_id\":\"a\"}, {}]");
+
+        Assert.assertEquals(2, report.getInt("total"));
+        Assert.assertEquals(1, report.getInt("imported"));
+        Assert.assertEquals(1, report.getInt("failed"));
+        JSONArray results = report.getJSONArray("results");
+        Assert.assertEquals("P0000001", results.getJSONObject(0).getString("id"));
+        Assert.assertTrue(results.getJSONObject(0).getString("href").startsWith("http://uri/"));
+        Assert.assertFalse(results.getJSONObject(1).has("href"));
+    }
+
+    @Test
+    public void readFailuresAreReported() throws Exception
+    {
+        doThrow(new IOException("Connection reset")).when(this.importer).importRecords(
+            any(PatientRecordReader.class), eq(CREATOR), any(ImportReport.class));
+
+        Response response = this.resource.importPatients(stream("[{}]"));
+
+        Assert.assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), response.getStatus());
+        Assert.assertEquals("Connection reset", new JSONObject((String) response.getEntity()).getString("error"));
+    }
+
+    private JSONObject importPatients(String body)
+    {
+        Response response = this.resource.importPatients(stream(body));
+        Assert.assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        return new JSONObject((String) response.getEntity());
+    }
+
+    private InputStream stream(String body)
+    {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
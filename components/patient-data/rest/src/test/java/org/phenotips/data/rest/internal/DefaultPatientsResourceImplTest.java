@@ -19,6 +19,7 @@
 
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientRepository;
+import org.phenotips.data.permissions.internal.GroupClosureCache;
 import org.phenotips.data.rest.DomainObjectFactory;
 import org.phenotips.data.rest.PatientsResource;
 import org.phenotips.data.rest.model.PatientSummary;
@@ -32,6 +33,7 @@
 import org.xwiki.context.ExecutionContext;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
@@ -45,11 +47,15 @@
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 import javax.inject.Provider;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
@@ -61,16 +67,28 @@
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 
+import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
 
+import static org.mockito.AdditionalMatchers.and;
+import static org.mockito.AdditionalMatchers.not;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -108,20 +126,22 @@
 
     private PatientsResource patientsResource;
 
-    private XWikiContext context;
+    private GroupClosureCache groupClosures;
 
     @Before
-    public void setUp() throws ComponentLookupException, URISyntaxException
+    public void setUp() throws ComponentLookupException, URISyntaxException, XWikiException
     {
         MockitoAnnotations.initMocks(this);
         Execution execution = mock(Execution.class);
         ExecutionContext executionContext = mock(ExecutionContext.class);
         ComponentManager compManager = this.mocker.getInstance(ComponentManager.class, "context");
         Provider<XWikiContext> provider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
-        this.context = provider.get();
+        XWikiContext context = provider.get();
         when(compManager.getInstance(Execution.class)).thenReturn(execution);
         doReturn(executionContext).when(execution).getContext();
-        doReturn(this.context).when(executionContext).getProperty("xwikicontext");
+        doReturn(context).when(executionContext).getProperty("xwikicontext");
+        XWiki wiki = mock(XWiki.class);
+        doReturn(wiki).when(context).getWiki();
 
         this.repository = this.mocker.getInstance(PatientRepository.class);
         this.users = this.mocker.getInstance(UserManager.class);
@@ -140,6 +160,10 @@ public void setUp() throws ComponentLookupException, URISyntaxException
         doReturn("P00000001").when(this.patient).getId();
         doReturn(this.currentUser).when(this.users).getCurrentUser();
         doReturn(this.userProfileDocument).when(this.currentUser).getProfileDocument();
+        this.groupClosures = this.mocker.getInstance(GroupClosureCache.class);
+        doReturn(Collections.singleton(this.userProfileDocument)).when(this.groupClosures)
+            .resolve(this.userProfileDocument);
+        doReturn(mock(MultivaluedMap.class)).when(this.uriInfo).getQueryParameters();
 
         Autolinker autolinker = this.mocker.getInstance(Autolinker.class);
         when(autolinker.forResource(any(Class.class), any(UriInfo.class))).thenReturn(autolinker);
@@ -242,90 +266,161 @@ public void addPatientsAsJSON()
     @Test
     public void listPatientsNullOrderField() throws QueryException
     {
-        Query query = mock(DefaultQuery.class);
-        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
-        doReturn(query).when(query).bindValue(anyString(), anyString());
-        doReturn(new ArrayList<Object[]>()).when(query).execute();
-        this.patientsResource.listPatients(0, 30, null, "asc");
-        verify(this.queries).createQuery(
-            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
-                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                + "doc.name" + " asc",
-            "xwql");
+        mockQueries(new ArrayList<Object[]>(), 0);
+        this.patientsResource.listPatients(0, 30, null, "asc", null);
+        verify(this.queries).createQuery(contains(" order by doc.name asc, doc.fullName asc"), eq(Query.HQL));
     }
 
     @Test
     public void listPatientsNullOrder() throws QueryException
     {
-        Query query = mock(DefaultQuery.class);
-        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
-        doReturn(query).when(query).bindValue(anyString(), anyString());
-        doReturn(new ArrayList<Object[]>()).when(query).execute();
-        this.patientsResource.listPatients(0, 30, "id", null);
-        verify(this.queries).createQuery(
-            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
-                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                + "doc.name" + " asc",
-            "xwql");
+        mockQueries(new ArrayList<Object[]>(), 0);
+        this.patientsResource.listPatients(0, 30, "id", null, null);
+        verify(this.queries).createQuery(contains(" order by doc.name asc, doc.fullName asc"), eq(Query.HQL));
     }
 
     @Test
     public void listPatientsNonDefaultBehaviour() throws QueryException
     {
-        Query query = mock(DefaultQuery.class);
-        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
-        doReturn(query).when(query).bindValue(anyString(), anyString());
-        doReturn(new ArrayList<Object[]>()).when(query).execute();
-        this.patientsResource.listPatients(0, 30, "eid", "desc");
-        verify(this.queries).createQuery(
-            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
-                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                + "p.external_id" + " desc",
-            "xwql");
+        mockQueries(new ArrayList<Object[]>(), 0);
+        this.patientsResource.listPatients(0, 30, "eid", "desc", null);
+        verify(this.queries).createQuery(contains(" order by coalesce(eid.value, '') desc, doc.fullName desc"),
+            eq(Query.HQL));
+    }
+
+    @Test
+    public void listPatientsFiltersByAccessRightsInTheQuery() throws QueryException
+    {
+        Query query = mockQueries(new ArrayList<Object[]>(), 0);
+        this.patientsResource.listPatients(0, 30, "id", "asc", null);
+        verify(this.queries).createQuery(and(startsWith("select doc.fullName"), contains("PhenoTips.OwnerClass")),
+            eq(Query.HQL));
+        verify(query).bindValue(eq("principals"), any(Collection.class));
+    }
+
+    @Test
+    public void listPatientsDoesNotFilterForAdministrators() throws QueryException
+    {
+        doReturn(true).when(this.access).hasAccess(eq(Right.ADMIN), any(DocumentReference.class),
+            any(EntityReference.class));
+        Query query = mockQueries(new ArrayList<Object[]>(), 0);
+        this.patientsResource.listPatients(0, 30, "id", "asc", null);
+        verify(this.queries).createQuery(and(startsWith("select doc.fullName"), not(contains("PhenoTips.OwnerClass"))),
+            eq(Query.HQL));
+        verify(query, never()).bindValue(eq("principals"), any(Collection.class));
+    }
+
+    @Test
+    public void listPatientsIncludesRecordsInheritingSpaceRightsForSpaceViewers() throws QueryException
+    {
+        // The user is neither owner nor collaborator, but space or global ACLs grant view rights on the data space
+        doReturn(true).when(this.access).hasAccess(eq(Right.VIEW), eq(this.userProfileDocument),
+            any(EntityReference.class));
+        List<Object[]> patientList = new ArrayList<>();
+        patientList.add(getRecord(1));
+        Query query = mockQueries(patientList, 1);
+        doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
+
+        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc", null);
+
+        Assert.assertEquals(1, result.getPatientSummaries().size());
+        verify(this.queries).createQuery(and(contains("PhenoTips.OwnerClass"),
+            contains(" or not exists (from BaseObject io where io.name = doc.fullName")), eq(Query.HQL));
+        verify(query).bindValue(eq("principals"), any(Collection.class));
+    }
+
+    @Test
+    public void listPatientsDoesNotIncludeRecordsInheritingSpaceRightsForOtherUsers() throws QueryException
+    {
+        mockQueries(new ArrayList<Object[]>(), 0);
+        this.patientsResource.listPatients(0, 30, "id", "asc", null);
+        verify(this.queries).createQuery(and(contains("PhenoTips.OwnerClass"), not(contains("not exists"))),
+            eq(Query.HQL));
+    }
+
+    @Test
+    public void listPatientsPreFilterIncludesRightsObjectsAndNestedGroups() throws Exception
+    {
+        DocumentReference group = new DocumentReference("wiki", "Groups", "Group");
+        DocumentReference parentGroup = new DocumentReference("wiki", "Groups", "Parent");
+        doReturn(new HashSet<>(Arrays.asList(this.userProfileDocument, group, parentGroup))).when(this.groupClosures)
+            .resolve(this.userProfileDocument);
+        EntityReferenceSerializer<String> localSerializer =
+            this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING, "local");
+        doAnswer(new Answer<String>()
+        {
+            @Override
+            public String answer(InvocationOnMock invocation)
+            {
+                EntityReference reference = (EntityReference) invocation.getArguments()[0];
+                return reference.getParent().getName() + '.' + reference.getName();
+            }
+        }).when(localSerializer).serialize(any(EntityReference.class));
+        Query query = mockQueries(new ArrayList<Object[]>(), 0);
+
+        this.patientsResource.listPatients(0, 30, "id", "asc", null);
+
+        verify(this.queries).createQuery(and(startsWith("select doc.fullName"), contains("XWiki.XWikiRights")),
+            eq(Query.HQL));
+        verify(query, atLeastOnce()).bindValue(startsWith("acl"), eq("%user.00000001%"));
+        verify(query, atLeastOnce()).bindValue(startsWith("acl"), eq("%Groups.Group%"));
+        verify(query, atLeastOnce()).bindValue(startsWith("acl"), eq("%Groups.Parent%"));
+    }
+
+    @Test
+    public void listPatientsReturnsCursorWhenDeniedRecordsLetTheBatchFillThePage() throws QueryException
+    {
+        List<Object[]> patientList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            patientList.add(getRecord(i + 1));
+        }
+        Query query = mockQueries(patientList, 3);
+        // The second record is denied, so the third one fills the page and there is no look-ahead record left
+        doAnswer(new Answer<PatientSummary>()
+        {
+            @Override
+            public PatientSummary answer(InvocationOnMock invocation)
+            {
+                Object[] record = (Object[]) invocation.getArguments()[0];
+                return "data.P0000002".equals(record[0]) ? null : new PatientSummary();
+            }
+        }).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
+
+        Patients result = this.patientsResource.listPatients(0, 2, "id", "asc", null);
+
+        Assert.assertEquals(2, result.getPatientSummaries().size());
+        Assert.assertNotNull(result.getCursor());
+        this.patientsResource.listPatients(0, 2, "id", "asc", result.getCursor());
+        verify(query).bindValue("key", "P0000003");
     }
 
     @Test
     public void listPatientsNoUserAccess() throws QueryException
     {
-        Object[] patientSummaryData = new Object[7];
+        Object[] patientSummaryData = getRecord(1);
         List<Object[]> patientList = new ArrayList<>();
         patientList.add(patientSummaryData);
-        Query query = mock(DefaultQuery.class);
-        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
-        doReturn(query).when(query).bindValue(anyString(), anyString());
-        doReturn(patientList).when(query).execute();
+        mockQueries(patientList, 1);
         doReturn(false).when(this.access).hasAccess(eq(Right.VIEW), any(DocumentReference.class),
             any(EntityReference.class));
-        doReturn(null).when(this.factory).createPatientSummary(patientSummaryData, this.uriInfo);
-        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc");
-        verify(this.queries).createQuery(
-            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
-                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                + "doc.name" + " asc",
-            "xwql");
+        doReturn(null).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
+        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc", null);
         Assert.assertTrue(result.getPatientSummaries().isEmpty());
+        Assert.assertNull(result.getCursor());
     }
 
     @Test
     public void listPatientsUserHasAccess() throws QueryException
     {
-        Object[] patientSummaryData = new Object[7];
         List<Object[]> patientList = new ArrayList<>();
-        patientList.add(patientSummaryData);
-        Query query = mock(DefaultQuery.class);
-        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
-        doReturn(query).when(query).bindValue(anyString(), anyString());
-        doReturn(patientList).when(query).execute();
+        patientList.add(getRecord(1));
+        mockQueries(patientList, 1);
         doReturn(true).when(this.access).hasAccess(eq(Right.VIEW), any(DocumentReference.class),
             any(EntityReference.class));
         doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
-        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc");
-        verify(this.queries).createQuery(
-            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
-                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                + "doc.name" + " asc",
-            "xwql");
+        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc", null);
         Assert.assertFalse(result.getPatientSummaries().isEmpty());
+        Assert.assertEquals(Integer.valueOf(1), result.getTotal());
     }
 
     @Test
@@ -333,28 +428,110 @@ public void listPatientsSpecificNumberOfRecords() throws QueryException
     {
         List<Object[]> patientList = new ArrayList<>();
         for (int i = 0; i < 30; i++) {
-            Object[] patientSummaryData = new Object[7];
-            patientList.add(patientSummaryData);
+            patientList.add(getRecord(i + 1));
         }
-        Query query = mock(DefaultQuery.class);
-        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
-        doReturn(query).when(query).bindValue(anyString(), anyString());
-        doReturn(patientList).when(query).execute();
+        Query query = mockQueries(patientList, 30);
         doReturn(true).when(this.access).hasAccess(eq(Right.VIEW), any(DocumentReference.class),
             any(EntityReference.class));
         doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
 
-        Patients allPatients = this.patientsResource.listPatients(0, 30, "id", "asc");
+        Patients allPatients = this.patientsResource.listPatients(0, 30, "id", "asc", null);
         Assert.assertEquals(30, allPatients.getPatientSummaries().size());
+        Assert.assertNull(allPatients.getCursor());
 
-        Patients selectedNumberOfPatients = this.patientsResource.listPatients(15, 15, "id", "asc");
+        Assert.assertEquals(Integer.valueOf(30), allPatients.getTotal());
+
+        // The legacy start offset skips accessible records, so it can't be applied in the query
+        Patients selectedNumberOfPatients = this.patientsResource.listPatients(15, 15, "id", "asc", null);
         Assert.assertEquals(15, selectedNumberOfPatients.getPatientSummaries().size());
+        Assert.assertNull(selectedNumberOfPatients.getCursor());
+        Assert.assertEquals(Integer.valueOf(30), selectedNumberOfPatients.getTotal());
+        verify(query, atLeastOnce()).setLimit(31);
 
-        Patients onePatient = this.patientsResource.listPatients(15, 1, "id", "asc");
+        Patients onePatient = this.patientsResource.listPatients(15, 1, "id", "asc", null);
         Assert.assertEquals(1, onePatient.getPatientSummaries().size());
+        Assert.assertNotNull(onePatient.getCursor());
+        verify(query).setLimit(17);
+        verify(query, never()).setOffset(anyInt());
+    }
+
+    @Test
+    public void listPatientsLegacyStartSkipsOnlyAccessibleRecords() throws QueryException
+    {
+        List<Object[]> patientList = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            patientList.add(getRecord(i + 1));
+        }
+        mockQueries(patientList, 4);
+        final List<Object> listed = new ArrayList<>();
+        // The first record is denied, so it doesn't count towards the start offset
+        doAnswer(invocation -> {
+            Object[] record = (Object[]) invocation.getArguments()[0];
+            if ("data.P0000001".equals(record[0])) {
+                return null;
+            }
+            listed.add(record[0]);
+            return new PatientSummary();
+        }).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
+
+        Patients result = this.patientsResource.listPatients(1, 30, "id", "asc", null);
+
+        Assert.assertEquals(2, result.getPatientSummaries().size());
+        Assert.assertEquals(Arrays.asList("data.P0000002", "data.P0000003", "data.P0000004"), listed);
+        // All the records were checked, so the total only counts the accessible ones
+        Assert.assertEquals(Integer.valueOf(3), result.getTotal());
+    }
+
+    @Test
+    public void listPatientsRejectsNegativeParameters() throws QueryException
+    {
+        mockQueries(new ArrayList<Object[]>(), 0);
+        for (int[] parameters : new int[][] { { -1, 30 }, { 0, -1 } }) {
+            try {
+                this.patientsResource.listPatients(parameters[0], parameters[1], "id", "asc", null);
+                Assert.fail("Negative paging parameters accepted");
+            } catch (WebApplicationException ex) {
+                Assert.assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), ex.getResponse().getStatus());
+            }
+        }
+        verify(this.queries, never()).createQuery(anyString(), anyString());
+    }
+
+    @Test
+    public void listPatientsCountsOnlyForTheFirstPage() throws QueryException
+    {
+        List<Object[]> patientList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            patientList.add(getRecord(i + 1));
+        }
+        mockQueries(patientList, 42);
+        doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
 
-        Patients incorrectLookup = this.patientsResource.listPatients(31, 5, "id", "asc");
-        Assert.assertEquals(0, incorrectLookup.getPatientSummaries().size());
+        Patients firstPage = this.patientsResource.listPatients(0, 2, "id", "asc", null);
+        Assert.assertEquals(Integer.valueOf(42), firstPage.getTotal());
+        Patients nextPage = this.patientsResource.listPatients(0, 2, "id", "asc", firstPage.getCursor());
+        Assert.assertNull(nextPage.getTotal());
+        verify(this.queries).createQuery(startsWith("select count"), eq(Query.HQL));
+    }
+
+    @Test
+    public void listPatientsReadsTheCursorFromTheRequest() throws QueryException
+    {
+        List<Object[]> patientList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            patientList.add(getRecord(i + 1));
+        }
+        Query query = mockQueries(patientList, 3);
+        doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
+        String cursor = this.patientsResource.listPatients(0, 2, "id", "asc").getCursor();
+        @SuppressWarnings("unchecked")
+        MultivaluedMap<String, String> parameters = mock(MultivaluedMap.class);
+        doReturn(cursor).when(parameters).getFirst("cursor");
+        doReturn(parameters).when(this.uriInfo).getQueryParameters();
+
+        this.patientsResource.listPatients(0, 2, "id", "asc");
+
+        verify(query).bindValue("key", "P0000002");
     }
 
     @Test
@@ -362,18 +539,69 @@ public void listPatientsGetMoreRecordsThanAdded() throws QueryException
     {
         List<Object[]> patientList = new ArrayList<>();
         for (int i = 0; i < 15; i++) {
-            Object[] patientSummaryData = new Object[7];
-            patientList.add(patientSummaryData);
+            patientList.add(getRecord(i + 1));
         }
-        Query query = mock(DefaultQuery.class);
-        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
-        doReturn(query).when(query).bindValue(anyString(), anyString());
-        doReturn(patientList).when(query).execute();
+        mockQueries(patientList, 15);
         doReturn(true).when(this.access).hasAccess(eq(Right.VIEW), any(DocumentReference.class),
             any(EntityReference.class));
         doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
-        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc");
+        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc", null);
         Assert.assertEquals(15, result.getPatientSummaries().size());
+        Assert.assertNull(result.getCursor());
+        Assert.assertEquals(Integer.valueOf(15), result.getTotal());
+    }
+
+    @Test
+    public void listPatientsContinuesAfterCursor() throws QueryException
+    {
+        List<Object[]> patientList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            patientList.add(getRecord(i + 1));
+        }
+        Query query = mockQueries(patientList, 3);
+        doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
+        String cursor = this.patientsResource.listPatients(0, 2, "id", "asc", null).getCursor();
+        Assert.assertNotNull(cursor);
+
+        this.patientsResource.listPatients(10, 2, "id", "asc", cursor);
+        verify(this.queries).createQuery(
+            contains(" and (doc.name > :key or (doc.name = :key and doc.fullName > :name))"), eq(Query.HQL));
+        verify(query).bindValue("key", "P0000002");
+        verify(query).bindValue("name", "data.P0000002");
+        // The start offset is ignored when a cursor is used
+        verify(query, never()).setOffset(anyInt());
+    }
+
+    @Test
+    public void listPatientsRejectsInvalidCursors() throws QueryException
+    {
+        mockQueries(new ArrayList<Object[]>(), 0);
+        for (String invalid : Arrays.asList("not a cursor", "e30")) {
+            try {
+                this.patientsResource.listPatients(0, 30, "id", "asc", invalid);
+                Assert.fail("Invalid cursor accepted: " + invalid);
+            } catch (WebApplicationException ex) {
+                Assert.assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), ex.getResponse().getStatus());
+            }
+        }
+    }
+
+    @Test
+    public void listPatientsRejectsCursorsForADifferentOrder() throws QueryException
+    {
+        List<Object[]> patientList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            patientList.add(getRecord(i + 1));
+        }
+        mockQueries(patientList, 3);
+        doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
+        String cursor = this.patientsResource.listPatients(0, 2, "id", "asc", null).getCursor();
+        try {
+            this.patientsResource.listPatients(0, 2, "eid", "asc", cursor);
+            Assert.fail("Cursor accepted for a different order");
+        } catch (WebApplicationException ex) {
+            Assert.assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), ex.getResponse().getStatus());
+        }
     }
 
     @Test
@@ -386,7 +614,7 @@ public void listPatientFailureHandling() throws QueryException
         doReturn(query).when(query).bindValue(anyString(), anyString());
         doThrow(queryException).when(query).execute();
         try {
-            this.patientsResource.listPatients(0, 30, "id", "asc");
+            this.patientsResource.listPatients(0, 30, "id", "asc", null);
         } catch (WebApplicationException ex) {
             exception = ex;
         }
@@ -394,4 +622,21 @@ public void listPatientFailureHandling() throws QueryException
         Assert.assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), exception.getResponse().getStatus());
         verify(this.logger).error("Failed to list patients: {}", queryException.getMessage(), queryException);
     }
+
+    private Query mockQueries(List<Object[]> records, long count) throws QueryException
+    {
+        Query query = mock(DefaultQuery.class);
+        doReturn(query).when(this.queries).createQuery(startsWith("select doc.fullName"), eq(Query.HQL));
+        doReturn(records).when(query).execute();
+        Query countQuery = mock(DefaultQuery.class);
+        doReturn(countQuery).when(this.queries).createQuery(startsWith("select count"), eq(Query.HQL));
+        doReturn(Collections.singletonList(count)).when(countQuery).execute();
+        return query;
+    }
+
+    private Object[] getRecord(int number)
+    {
+        String name = String.format("P%07d", number);
+        return new Object[] { "data." + name, null, null, null, "1.1", null, null, name };
+    }
 }
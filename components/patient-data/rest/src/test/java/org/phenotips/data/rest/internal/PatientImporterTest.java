@@ -0,0 +1,196 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.rest.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class PatientImporterTest
+{
+    private static final DocumentReference CREATOR = new DocumentReference("wiki", "XWiki", "padams");
+
+    @Rule
+    public MockitoComponentMockingRule<PatientImporter> mocker =
+        new MockitoComponentMockingRule<PatientImporter>(PatientImporter.class);
+
+    private PatientRepository repository;
+
+    private PatientImporter importer;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.importer = this.mocker.getComponentUnderTest();
+        this.repository = this.mocker.getInstance(PatientRepository.class);
+        final AtomicInteger count = new AtomicInteger();
+        doAnswer(invocation -> {
+            Patient patient = mock(Patient.class);
+            doReturn(String.format("P%07d", count.incrementAndGet())).when(patient).getId();
+            return patient;
+        }).when(this.repository).create(any(JSONObject.class), eq(CREATOR));
+    }
+
+    @Test
+    public void importArrayCreatesEachPatient() throws Exception
+    {
+        JSONObject report = importRecords("[{\"external_id\":\"a\"}, {\"external_id\":\"b\"}]");
+
+        Assert.assertEquals(2, report.getInt("imported"));
+        Assert.assertEquals(0, report.getInt("failed"));
+        JSONArray results = report.getJSONArray("results");
+        Assert.assertEquals(0, results.getJSONObject(0).getInt("index"));
+        Assert.assertEquals(1, results.getJSONObject(1).getInt("index"));
+        verify(this.repository, times(2)).create(any(JSONObject.class), eq(CREATOR));
+    }
+
+    @Test
+    public void importNewlineDelimitedRecordsSkipsInvalidLines() throws Exception
+    {
+        JSONObject report = importRecords("{\"external_id\":\"a\"}\nnot json\n{\"external_id\":\"c\"}\n");
+
+        Assert.assertEquals(3, report.getInt("total"));
+        Assert.assertEquals(2, report.getInt("imported"));
+        Assert.assertEquals(1, report.getInt("failed"));
+        JSONObject failure = report.getJSONArray("results").getJSONObject(1);
+        Assert.assertEquals(1, failure.getInt("index"));
+        Assert.assertTrue(failure.has("error"));
+    }
+
+    @Test
+    public void malformedArrayStopsTheImport() throws Exception
+    {
+        JSONObject report = importRecords("[{\"external_id\":\"a\"} {\"external_id\":\"b\"}, {}]");
+
+        Assert.assertEquals(2, report.getInt("total"));
+
+        Assert.assertEquals(1, report.getInt("imported"));
+        Assert.assertEquals(1, report.getInt("failed"));
+    }
+
+    @Test
+    public void emptyInputImportsNothing() throws Exception
+    {
+        JSONObject report = importRecords("  ");
+
+        Assert.assertEquals(0, report.getInt("total"));
+        verify(this.repository, never()).create(any(JSONObject.class), any(DocumentReference.class));
+    }
+
+    @Test
+    public void emptyRecordsAreRejected() throws Exception
+    {
+        JSONObject report = importRecords("[{}, {\"external_id\":\"b\"}]");
+
+        Assert.assertEquals(1, report.getInt("imported"));
+        Assert.assertEquals("Empty patient record",
+            report.getJSONArray("results").getJSONObject(0).getString("error"));
+        verify(this.repository, times(1)).create(any(JSONObject.class), eq(CREATOR));
+    }
+
+    @Test
+    public void failedCreationIsReported() throws Exception
+    {
+        doReturn(null).when(this.repository).create(any(JSONObject.class), eq(CREATOR));
+
+        JSONObject report = importRecords("[{\"external_id\":\"a\"}]");
+
+        Assert.assertEquals(0, report.getInt("imported"));
+        Assert.assertEquals(1, report.getInt("failed"));
+    }
+
+    @Test
+    public void droppedDataIsReported() throws Exception
+    {
+        doAnswer(invocation -> {
+            throw new IllegalArgumentException("Failed to store the patient data handled by [genes]");
+        }).when(this.repository).create(any(JSONObject.class), eq(CREATOR));
+
+        JSONObject report = importRecords("[{\"genes\":\"not a list\"}]");
+
+        Assert.assertEquals(0, report.getInt("imported"));
+        Assert.assertEquals("Failed to store the patient data handled by [genes]",
+            report.getJSONArray("results").getJSONObject(0).getString("error"));
+    }
+
+    @Test
+    public void workerContextIsSetUpOncePerThread() throws Exception
+    {
+        StringBuilder records = new StringBuilder();
+        for (int i = 0; i < 20; ++i) {
+            records.append("{\"external_id\":\"").append(i).append("\"}\n");
+        }
+
+        JSONObject report = importRecords(records.toString());
+
+        Assert.assertEquals(20, report.getInt("imported"));
+        int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        verify(this.mocker.<ExecutionContextManager>getInstance(ExecutionContextManager.class), times(threads))
+            .initialize(any(ExecutionContext.class));
+    }
+
+    @Test
+    public void reportListsOnlyTheFirstResults()
+    {
+        ImportReport report = new ImportReport(2);
+        report.add(new JSONObject().put("index", 0).put("id", "P0000001"));
+        report.add(new JSONObject().put("index", 1).put("error", "Empty patient record"));
+        report.add(new JSONObject().put("index", 2).put("id", "P0000002"));
+
+        JSONObject result = report.toJSON(10, id -> "/" + id);
+
+        Assert.assertEquals(3, result.getInt("total"));
+        Assert.assertEquals(2, result.getInt("imported"));
+        Assert.assertEquals(2, result.getJSONArray("results").length());
+        Assert.assertEquals(1, result.getInt("unlisted"));
+        Assert.assertEquals("/P0000001", result.getJSONArray("results").getJSONObject(0).getString("href"));
+    }
+
+    private JSONObject importRecords(String input) throws IOException, InterruptedException
+    {
+        ImportReport report = new ImportReport();
+        try (PatientRecordReader reader = new PatientRecordReader(new StringReader(input))) {
+            this.importer.importRecords(reader, CREATOR, report);
+        }
+        return report.toJSON(0, id -> id);
+    }
+}
@@ -66,7 +66,8 @@ public int getPriority()
     @Override
     public Boolean hasAccess(User user, Right access, EntityReference entity)
     {
-        if (!(entity instanceof DocumentReference)) {
+        // Locks only restrict write access, so there's no need to load the document for read-only rights
+        if (!(entity instanceof DocumentReference) || access == null || access.isReadOnly()) {
             return null;
         }
         XWikiContext context = this.contextProvider.get();
@@ -74,7 +75,7 @@ public Boolean hasAccess(User user, Right access, EntityReference entity)
         try {
             XWikiDocument doc = context.getWiki().getDocument((DocumentReference) entity, context);
             BaseObject lock = doc.getXObject(this.lockClassReference);
-            if (lock != null && !access.isReadOnly()) {
+            if (lock != null) {
                 return Boolean.FALSE;
             }
         } catch (XWikiException | NullPointerException e) {
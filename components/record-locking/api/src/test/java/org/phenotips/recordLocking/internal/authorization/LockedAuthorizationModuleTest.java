@@ -116,6 +116,8 @@ public void ignoresWhenActionIsReadOnly() throws ComponentLookupException, XWiki
         Mockito.doReturn(Boolean.TRUE).when(this.right).isReadOnly();
         when(this.document.getXObject(Matchers.<EntityReference>any())).thenReturn(lock);
         Assert.assertNull(this.mocker.getComponentUnderTest().hasAccess(this.user, this.right, this.documentReference));
+        // The document doesn't even need to be loaded
+        Mockito.verify(this.xwiki, Mockito.never()).getDocument(this.documentReference, this.context);
     }
 
     @Test
@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.authorization;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.stability.Unstable;
+import org.xwiki.users.User;
+
+/**
+ * Remembers the decisions taken by the {@link AuthorizationService}, so that repeated checks of the same right on the
+ * same entity don't have to go through all the {@link AuthorizationModule}s again. Decisions are grouped by the target
+ * entity, and are dropped whenever something that may influence them changes.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+@Role
+public interface AuthorizationDecisionCache
+{
+    /**
+     * Looks up a previously stored decision.
+     *
+     * @param user the user whose rights are checked, may be {@code null} for the guest user
+     * @param access the requested access level
+     * @param entity the target entity
+     * @return the stored decision, or {@code null} if no decision is known
+     */
+    Boolean get(User user, Right access, EntityReference entity);
+
+    /**
+     * Returns the current generation of the cache, which changes every time entries are invalidated. Callers must
+     * read it before computing a decision, and pass it back to {@link #put}, so that decisions computed from data
+     * which changed in the meantime aren't stored.
+     *
+     * @return the current generation
+     */
+    long getGeneration();
+
+    /**
+     * Stores a decision, unless the cache was invalidated since {@code generation} was obtained.
+     *
+     * @param user the user whose rights were checked, may be {@code null} for the guest user
+     * @param access the requested access level
+     * @param entity the target entity
+     * @param decision the decision taken
+     * @param generation the {@link #getGeneration() generation} read before the decision was computed
+     */
+    void put(User user, Right access, EntityReference entity, boolean decision, long generation);
+
+    /**
+     * Drops all the decisions stored for an entity.
+     *
+     * @param entity the entity that changed
+     */
+    void invalidate(EntityReference entity);
+
+    /** Drops all the stored decisions. */
+    void invalidateAll();
+
+    /**
+     * The number of lookups which found a stored decision.
+     *
+     * @return a positive number, {@code 0} if the cache wasn't used yet
+     */
+    long getHits();
+
+    /**
+     * The number of lookups which didn't find a stored decision.
+     *
+     * @return a positive number, {@code 0} if the cache wasn't used yet
+     */
+    long getMisses();
+
+    /**
+     * The ratio of lookups which found a stored decision.
+     *
+     * @return a number between {@code 0} and {@code 1}
+     */
+    double getHitRatio();
+}
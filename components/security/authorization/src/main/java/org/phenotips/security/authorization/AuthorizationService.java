@@ -23,6 +23,9 @@
 import org.xwiki.stability.Unstable;
 import org.xwiki.users.User;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * Service which checks if a specific operation on an entity should be granted or not. The default implementation
  * forwards the decision to implementations of the {@link AuthorizationModule} role, in descending order of their
@@ -44,4 +47,18 @@
      * @return {@code true} if access is granted, {@code false} if access is denied
      */
     boolean hasAccess(User user, Right access, EntityReference entity);
+
+    /**
+     * Checks which of the target entities the specified user has the requested access level on. This gives the same
+     * result as calling {@link #hasAccess} on each entity, but is faster on large batches, since the work that doesn't
+     * depend on a specific entity is only done once.
+     *
+     * @param user the user whose rights should be checked
+     * @param access the requested access level
+     * @param entities the target entities (documents, spaces, wikis...); {@code null} items are ignored
+     * @param <T> the type of the target entity references
+     * @return the entities on which access is granted, in the same order as they were given; may be empty
+     * @since 1.4
+     */
+    <T extends EntityReference> List<T> filterAccessible(User user, Right access, Collection<T> entities);
 }
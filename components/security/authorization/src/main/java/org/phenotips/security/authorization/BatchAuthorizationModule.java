@@ -0,0 +1,61 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.authorization;
+
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.stability.Unstable;
+import org.xwiki.users.User;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * An {@link AuthorizationModule} which can decide on many entities at once, and which only knows about some kinds of
+ * entities. {@link AuthorizationService#filterAccessible} asks such modules about all the undecided entities in one
+ * call, and skips them entirely for the entities they don't apply to. Implementations must still be registered under
+ * the {@link AuthorizationModule} role, and their single-entity {@link #hasAccess(User, Right, EntityReference)} must
+ * give the same decisions as the batch method.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+public interface BatchAuthorizationModule extends AuthorizationModule
+{
+    /**
+     * Checks if this module can ever decide on the target entity. This must be cheap, since it is called for each
+     * entity before the module is queried, typically looking only at the type and location of the entity.
+     *
+     * @param entity the target entity (document, space, wiki...), never {@code null}
+     * @return {@code false} if {@link #hasAccess} would always return {@code null} for this entity, {@code true} if it
+     *         may return a decision
+     */
+    boolean appliesTo(EntityReference entity);
+
+    /**
+     * Checks if the specified user has the requested access level on each of the target entities.
+     *
+     * @param user the user whose rights should be checked
+     * @param access the requested access level
+     * @param entities the target entities, all of them accepted by {@link #appliesTo}
+     * @return the decision for each entity; entities that are missing or mapped to {@code null} are left undecided,
+     *         and will be checked by the lower priority modules
+     */
+    Map<EntityReference, Boolean> hasAccess(User user, Right access, Collection<? extends EntityReference> entities);
+}
@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.authorization.internal;
+
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
+import org.phenotips.security.authorization.AuthorizationModule;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Keeps the {@link AuthorizationDecisionCache} up to date. Changes to a document only drop the decisions taken on that
+ * document, unless the document defines users, group members or access rights, which may affect decisions on any other
+ * entity, in which case all the decisions are dropped. Registering or unregistering an {@link AuthorizationModule} also
+ * drops all the decisions.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("authorization-decision-cache-invalidator")
+@Singleton
+public class AuthorizationDecisionCacheInvalidator implements EventListener
+{
+    private static final EntityReference XWIKI_SPACE = new EntityReference("XWiki", EntityType.SPACE);
+
+    /** XClasses whose objects may influence decisions taken on other documents. */
+    private static final List<EntityReference> GLOBAL_CLASSES = Arrays.asList(
+        new EntityReference("XWikiUsers", EntityType.DOCUMENT, XWIKI_SPACE),
+        new EntityReference("XWikiGroups", EntityType.DOCUMENT, XWIKI_SPACE),
+        new EntityReference("XWikiGlobalRights", EntityType.DOCUMENT, XWIKI_SPACE));
+
+    @Inject
+    private AuthorizationDecisionCache cache;
+
+    @Override
+    public String getName()
+    {
+        return "authorization-decision-cache-invalidator";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent(),
+            new ComponentDescriptorAddedEvent(AuthorizationModule.class),
+            new ComponentDescriptorRemovedEvent(AuthorizationModule.class));
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (source instanceof XWikiDocument) {
+            XWikiDocument doc = (XWikiDocument) source;
+            if (hasGlobalEffect(doc) || hasGlobalEffect(doc.getOriginalDocument())) {
+                this.cache.invalidateAll();
+            } else {
+                this.cache.invalidate(doc.getDocumentReference());
+            }
+        } else {
+            // The chain of authorization modules changed
+            this.cache.invalidateAll();
+        }
+    }
+
+    private boolean hasGlobalEffect(XWikiDocument doc)
+    {
+        if (doc == null) {
+            return false;
+        }
+        for (EntityReference xclass : GLOBAL_CLASSES) {
+            if (doc.getXObject(xclass) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -20,12 +20,20 @@
 import org.phenotips.security.authorization.AuthorizationModule;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -34,32 +42,89 @@
 import javax.inject.Singleton;
 
 /**
- * Provides an ordered list of authorization modules.
+ * Provides an ordered list of authorization modules. The list is sorted once, and rebuilt only when authorization
+ * modules are registered or unregistered.
  *
  * @version $Id$
  * @since 1.2RC1
  */
 @Component
 @Singleton
-public class AuthorizationModuleListProvider implements Provider<List<AuthorizationModule>>
+public class AuthorizationModuleListProvider implements Provider<List<AuthorizationModule>>, Initializable
 {
     @Inject
     @Named("wiki")
     private ComponentManager componentManager;
 
+    @Inject
+    private ObservationManager observationManager;
+
+    /** The sorted modules, {@code null} if they must be looked up again. */
+    private volatile List<AuthorizationModule> modules;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.observationManager.addListener(new ModulesChangeListener());
+    }
+
     @Override
     public List<AuthorizationModule> get()
+    {
+        List<AuthorizationModule> result = this.modules;
+        if (result == null) {
+            synchronized (this) {
+                result = this.modules;
+                if (result == null) {
+                    result = lookupModules();
+                    this.modules = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private List<AuthorizationModule> lookupModules()
     {
         try {
-            List<AuthorizationModule> services = new LinkedList<>();
-            services.addAll(this.componentManager.<AuthorizationModule>getInstanceList(AuthorizationModule.class));
+            List<AuthorizationModule> services = new ArrayList<>(
+                this.componentManager.<AuthorizationModule>getInstanceList(AuthorizationModule.class));
             Collections.sort(services, AuthorizationModuleComparator.INSTANCE);
-            return services;
+            return Collections.unmodifiableList(services);
         } catch (ComponentLookupException ex) {
             throw new RuntimeException("Failed to look up authorization modules", ex);
         }
     }
 
+    /**
+     * Forgets the sorted modules whenever an authorization module is registered or unregistered, so that they are
+     * looked up again on the next request.
+     */
+    private final class ModulesChangeListener implements EventListener
+    {
+        @Override
+        public String getName()
+        {
+            return "authorization-modules-change";
+        }
+
+        @Override
+        public List<Event> getEvents()
+        {
+            return Arrays.<Event>asList(new ComponentDescriptorAddedEvent(AuthorizationModule.class),
+                new ComponentDescriptorRemovedEvent(AuthorizationModule.class));
+        }
+
+        @Override
+        public void onEvent(Event event, Object source, Object data)
+        {
+            // Synchronized, so that a lookup already in progress doesn't store the outdated list after this
+            synchronized (AuthorizationModuleListProvider.this) {
+                AuthorizationModuleListProvider.this.modules = null;
+            }
+        }
+    }
+
     /**
      * Sorts the available authorization modules in descending order of their priority, then alphabetically if two or
      * more modules have the same priority.
@@ -0,0 +1,201 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.authorization.internal;
+
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.users.User;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Default implementation of the {@link AuthorizationDecisionCache}, storing the decisions for each entity in a bounded
+ * LRU cache. The number of cached entities can be configured with {@code phenotips.security.authorization.cache.size}
+ * in {@code xwiki.properties}, and the number of seconds an unused entity is kept with
+ * {@code phenotips.security.authorization.cache.ttl}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Singleton
+public class DefaultAuthorizationDecisionCache implements AuthorizationDecisionCache, Initializable
+{
+    private static final String CONFIGURATION_PREFIX = "phenotips.security.authorization.cache.";
+
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private static final int DEFAULT_CACHE_TTL = 600;
+
+    private static final String SEPARATOR = "|";
+
+    @Inject
+    private CacheManager cacheFactory;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Serializes entities and users as absolute references, so that each has exactly one key. */
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    /** Completes partial entity references with the current wiki and space, before they are serialized. */
+    @Inject
+    @Named("current")
+    private EntityReferenceResolver<EntityReference> resolver;
+
+    /** The stored decisions, grouped by the serialized target entity, and then by the user and right checked. */
+    private Cache<ConcurrentMap<String, Boolean>> cache;
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int size = getCacheSetting("size", DEFAULT_CACHE_SIZE);
+        int ttl = getCacheSetting("ttl", DEFAULT_CACHE_TTL);
+        try {
+            this.cache = this.cacheFactory.<ConcurrentMap<String, Boolean>>createNewLocalCache(
+                new LRUCacheConfiguration("phenotips.security.authorization", size, ttl));
+        } catch (CacheException ex) {
+            throw new InitializationException("Failed to create the authorization decision cache", ex);
+        }
+    }
+
+    @Override
+    public Boolean get(User user, Right access, EntityReference entity)
+    {
+        ConcurrentMap<String, Boolean> decisions = this.cache.get(getEntityKey(entity));
+        Boolean result = decisions == null ? null : decisions.get(getDecisionKey(user, access));
+        if (result == null) {
+            this.misses.increment();
+        } else {
+            this.hits.increment();
+        }
+        return result;
+    }
+
+    @Override
+    public long getGeneration()
+    {
+        return this.generation.get();
+    }
+
+    @Override
+    public void put(User user, Right access, EntityReference entity, boolean decision, long generation)
+    {
+        if (generation != this.generation.get()) {
+            return;
+        }
+        String entityKey = getEntityKey(entity);
+        ConcurrentMap<String, Boolean> decisions = this.cache.get(entityKey);
+        if (decisions == null) {
+            decisions = new ConcurrentHashMap<>();
+            this.cache.set(entityKey, decisions);
+        }
+        decisions.put(getDecisionKey(user, access), decision);
+        // An invalidation may have happened while the decision was being stored
+        if (generation != this.generation.get()) {
+            this.cache.remove(entityKey);
+        }
+    }
+
+    @Override
+    public void invalidate(EntityReference entity)
+    {
+        this.generation.incrementAndGet();
+        this.cache.remove(getEntityKey(entity));
+    }
+
+    @Override
+    public void invalidateAll()
+    {
+        this.generation.incrementAndGet();
+        this.cache.removeAll();
+    }
+
+    @Override
+    public long getHits()
+    {
+        return this.hits.sum();
+    }
+
+    @Override
+    public long getMisses()
+    {
+        return this.misses.sum();
+    }
+
+    @Override
+    public double getHitRatio()
+    {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("hits=%d, misses=%d, hit ratio=%.2f", getHits(), getMisses(), getHitRatio());
+    }
+
+    private int getCacheSetting(String setting, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(CONFIGURATION_PREFIX + setting, defaultValue);
+        return value == null ? defaultValue : value;
+    }
+
+    private String getEntityKey(EntityReference entity)
+    {
+        // The same entity may be checked through a partial reference and invalidated through a full one
+        EntityReference absolute = this.resolver.resolve(entity, entity.getType());
+        return entity.getType() + SEPARATOR + this.serializer.serialize(absolute);
+    }
+
+    private String getDecisionKey(User user, Right access)
+    {
+        String userKey = user == null || user.getProfileDocument() == null ? ""
+            : this.serializer.serialize(user.getProfileDocument());
+        return userKey + SEPARATOR + access.getName();
+    }
+}
@@ -17,15 +17,25 @@
  */
 package org.phenotips.security.authorization.internal;
 
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
 import org.phenotips.security.authorization.AuthorizationModule;
 import org.phenotips.security.authorization.AuthorizationService;
+import org.phenotips.security.authorization.BatchAuthorizationModule;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.User;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -35,7 +45,10 @@
 
 /**
  * The default authorization service implementation, which queries all the individual {@link AuthorizationModule}s, in
- * descending order of priority, until one responds with a non-null decision.
+ * descending order of priority, until one responds with a non-null decision. Decisions are remembered in the
+ * {@link AuthorizationDecisionCache}, which is invalidated whenever something they depend on changes. Modules that are
+ * also {@link BatchAuthorizationModule}s are skipped for the entities they don't apply to, and when filtering a batch
+ * of entities they are asked about all the undecided ones in a single call.
  *
  * @version $Id$
  * @since 1.0M13
@@ -52,22 +65,146 @@ public class DefaultAuthorizationService implements AuthorizationService
     @Inject
     private Provider<List<AuthorizationModule>> modules;
 
+    /** Remembers previous decisions. */
+    @Inject
+    private AuthorizationDecisionCache cache;
+
     @Override
     public boolean hasAccess(User user, Right access, EntityReference entity)
     {
-        for (AuthorizationModule service : this.modules.get()) {
-            try {
-                Boolean decision = service.hasAccess(user, access, entity);
+        if (entity == null || access == null) {
+            return askModules(this.modules.get(), user, access, entity);
+        }
+        Boolean cached = this.cache.get(user, access, entity);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = this.cache.getGeneration();
+        boolean decision = askModules(this.modules.get(), user, access, entity);
+        this.cache.put(user, access, entity, decision, generation);
+        return decision;
+    }
+
+    @Override
+    public <T extends EntityReference> List<T> filterAccessible(User user, Right access, Collection<T> entities)
+    {
+        if (entities == null || entities.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // The module chain and the cache generation are read once for the whole batch
+        List<AuthorizationModule> chain = this.modules.get();
+        long generation = this.cache.getGeneration();
+        Map<EntityReference, Boolean> decisions = new HashMap<>();
+        Set<EntityReference> undecided = new LinkedHashSet<>();
+        for (T entity : entities) {
+            if (entity == null || decisions.containsKey(entity) || undecided.contains(entity)) {
+                continue;
+            }
+            Boolean cached = access == null ? null : this.cache.get(user, access, entity);
+            if (cached != null) {
+                decisions.put(entity, cached);
+            } else {
+                undecided.add(entity);
+            }
+        }
+        List<EntityReference> computed = new ArrayList<>(undecided);
+        // Each module is asked about all the entities still undecided, so that batch modules can decide on all of them
+        // at once; the first non-null decision for an entity is the same as when asking module by module
+        Iterator<AuthorizationModule> modulesToAsk = chain.iterator();
+        while (!undecided.isEmpty() && modulesToAsk.hasNext()) {
+            AuthorizationModule module = modulesToAsk.next();
+            if (module instanceof BatchAuthorizationModule) {
+                askBatchModule((BatchAuthorizationModule) module, user, access, undecided, decisions);
+            } else {
+                askModule(module, user, access, undecided, decisions);
+            }
+        }
+        for (EntityReference entity : computed) {
+            Boolean decision = decisions.get(entity);
+            if (decision == null) {
+                decision = false;
+                decisions.put(entity, decision);
+            }
+            if (access != null) {
+                this.cache.put(user, access, entity, decision, generation);
+            }
+        }
+        List<T> result = new ArrayList<>(entities.size());
+        for (T entity : entities) {
+            if (entity != null && decisions.get(entity)) {
+                result.add(entity);
+            }
+        }
+        return result;
+    }
+
+    private void askModule(AuthorizationModule module, User user, Right access, Set<EntityReference> undecided,
+        Map<EntityReference, Boolean> decisions)
+    {
+        Iterator<EntityReference> it = undecided.iterator();
+        while (it.hasNext()) {
+            EntityReference entity = it.next();
+            Boolean decision = askModule(module, user, access, entity);
+            if (decision != null) {
+                decisions.put(entity, decision);
+                it.remove();
+            }
+        }
+    }
+
+    private void askBatchModule(BatchAuthorizationModule module, User user, Right access,
+        Set<EntityReference> undecided, Map<EntityReference, Boolean> decisions)
+    {
+        List<EntityReference> applicable = new ArrayList<>(undecided.size());
+        for (EntityReference entity : undecided) {
+            if (module.appliesTo(entity)) {
+                applicable.add(entity);
+            }
+        }
+        if (applicable.isEmpty()) {
+            return;
+        }
+        try {
+            Map<EntityReference, Boolean> answers = module.hasAccess(user, access, applicable);
+            for (EntityReference entity : applicable) {
+                Boolean decision = answers == null ? null : answers.get(entity);
                 if (decision != null) {
-                    return decision;
+                    decisions.put(entity, decision);
+                    undecided.remove(entity);
                 }
-            } catch (Exception ex) {
-                // Don't fail because of bad authorization modules
-                this.logger.warn("Failed to invoke authorization service [{}]: {}",
-                    service.getClass().getCanonicalName(), ex.getMessage());
+            }
+        } catch (Exception ex) {
+            // Don't fail because of bad authorization modules
+            this.logger.warn("Failed to invoke authorization service [{}]: {}",
+                module.getClass().getCanonicalName(), ex.getMessage());
+        }
+    }
+
+    private boolean askModules(List<AuthorizationModule> chain, User user, Right access, EntityReference entity)
+    {
+        for (AuthorizationModule service : chain) {
+            if (entity != null && service instanceof BatchAuthorizationModule
+                && !((BatchAuthorizationModule) service).appliesTo(entity)) {
+                continue;
+            }
+            Boolean decision = askModule(service, user, access, entity);
+            if (decision != null) {
+                return decision;
             }
         }
 
         return false;
     }
+
+    private Boolean askModule(AuthorizationModule service, User user, Right access, EntityReference entity)
+    {
+        try {
+            return service.hasAccess(user, access, entity);
+        } catch (Exception ex) {
+            // Don't fail because of bad authorization modules
+            this.logger.warn("Failed to invoke authorization service [{}]: {}",
+                service.getClass().getCanonicalName(), ex.getMessage());
+        }
+        return null;
+    }
 }
@@ -0,0 +1,76 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.authorization.script;
+
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.stability.Unstable;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Exposes the statistics of the {@link AuthorizationDecisionCache authorization decision cache} to scripts, so that
+ * its effectiveness can be monitored.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+@Component
+@Named("authorizationCache")
+@Singleton
+public class AuthorizationCacheScriptService implements ScriptService
+{
+    /** The monitored cache. */
+    @Inject
+    private AuthorizationDecisionCache cache;
+
+    /**
+     * The number of access checks answered from the cache.
+     *
+     * @return a positive number, {@code 0} if the cache wasn't used yet
+     */
+    public long getHits()
+    {
+        return this.cache.getHits();
+    }
+
+    /**
+     * The number of access checks which had to go through the authorization modules.
+     *
+     * @return a positive number, {@code 0} if the cache wasn't used yet
+     */
+    public long getMisses()
+    {
+        return this.cache.getMisses();
+    }
+
+    /**
+     * The ratio of access checks answered from the cache.
+     *
+     * @return a number between {@code 0} and {@code 1}
+     */
+    public double getHitRatio()
+    {
+        return this.cache.getHitRatio();
+    }
+}
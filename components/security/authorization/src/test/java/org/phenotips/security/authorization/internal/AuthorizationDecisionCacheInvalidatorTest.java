@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.authorization.internal;
+
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
+import org.phenotips.security.authorization.AuthorizationModule;
+
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link AuthorizationDecisionCacheInvalidator} event listener.
+ *
+ * @version $Id$
+ */
+public class AuthorizationDecisionCacheInvalidatorTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<EventListener> mocker =
+        new MockitoComponentMockingRule<EventListener>(AuthorizationDecisionCacheInvalidator.class);
+
+    private static final EntityReference GROUPS_CLASS = new EntityReference("XWikiGroups", EntityType.DOCUMENT,
+        new EntityReference("XWiki", EntityType.SPACE));
+
+    private final DocumentReference docReference = new DocumentReference("xwiki", "data", "P0000001");
+
+    private final XWikiDocument doc = mock(XWikiDocument.class);
+
+    private final XWikiDocument originalDoc = mock(XWikiDocument.class);
+
+    private AuthorizationDecisionCache cache;
+
+    @Before
+    public void setup() throws Exception
+    {
+        this.cache = this.mocker.getInstance(AuthorizationDecisionCache.class);
+        when(this.doc.getDocumentReference()).thenReturn(this.docReference);
+        when(this.doc.getOriginalDocument()).thenReturn(this.originalDoc);
+    }
+
+    @Test
+    public void changedDocumentsOnlyInvalidateTheirOwnDecisions() throws Exception
+    {
+        this.mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(this.docReference), this.doc, null);
+
+        verify(this.cache).invalidate(this.docReference);
+        verify(this.cache, never()).invalidateAll();
+    }
+
+    @Test
+    public void changedGroupsInvalidateAllDecisions() throws Exception
+    {
+        when(this.doc.getXObject(GROUPS_CLASS)).thenReturn(mock(BaseObject.class));
+
+        this.mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(this.docReference), this.doc, null);
+
+        verify(this.cache).invalidateAll();
+        verify(this.cache, never()).invalidate(any(EntityReference.class));
+    }
+
+    @Test
+    public void removedGroupMembershipsInvalidateAllDecisions() throws Exception
+    {
+        when(this.originalDoc.getXObject(GROUPS_CLASS)).thenReturn(mock(BaseObject.class));
+
+        this.mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(this.docReference), this.doc, null);
+
+        verify(this.cache).invalidateAll();
+    }
+
+    @Test
+    public void moduleRegistrationInvalidatesAllDecisions() throws Exception
+    {
+        this.mocker.getComponentUnderTest().onEvent(new ComponentDescriptorAddedEvent(AuthorizationModule.class),
+            null, null);
+
+        verify(this.cache).invalidateAll();
+    }
+}
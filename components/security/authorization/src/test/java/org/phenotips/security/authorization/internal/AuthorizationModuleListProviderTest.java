@@ -19,9 +19,12 @@
 
 import org.phenotips.security.authorization.AuthorizationModule;
 
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.users.User;
@@ -36,12 +39,15 @@
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import static org.hamcrest.Matchers.is;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -113,6 +119,36 @@ public void modulesWithSamePriorityGetSortedByName() throws Exception
         Assert.assertThat(actualList, is(expectedList));
     }
 
+    @Test
+    public void modulesAreLookedUpOnlyOnce() throws Exception
+    {
+        this.moduleList.add(this.lowPriorityModule);
+        this.moduleList.add(this.highPriorityModule);
+
+        List<AuthorizationModule> first = this.mocker.getComponentUnderTest().get();
+        List<AuthorizationModule> second = this.mocker.getComponentUnderTest().get();
+
+        Assert.assertSame(first, second);
+        verify(this.componentManager, times(1)).getInstanceList(AuthorizationModule.class);
+    }
+
+    @Test
+    public void modulesAreLookedUpAgainAfterRegistrationChanges() throws Exception
+    {
+        this.moduleList.add(this.lowPriorityModule);
+        Assert.assertThat(this.mocker.getComponentUnderTest().get(),
+            is(Arrays.asList(this.lowPriorityModule)));
+
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(this.mocker.<ObservationManager>getInstance(ObservationManager.class)).addListener(listener.capture());
+        this.moduleList.add(this.highPriorityModule);
+        listener.getValue().onEvent(new ComponentDescriptorAddedEvent(AuthorizationModule.class), null, null);
+
+        Assert.assertThat(this.mocker.getComponentUnderTest().get(),
+            is(Arrays.asList(this.highPriorityModule, this.lowPriorityModule)));
+        verify(this.componentManager, times(2)).getInstanceList(AuthorizationModule.class);
+    }
+
     @Test(expected = RuntimeException.class)
     public void componentLookupExceptionIsCaughtAndRuntimeExceptionIsThrown() throws ComponentLookupException
     {
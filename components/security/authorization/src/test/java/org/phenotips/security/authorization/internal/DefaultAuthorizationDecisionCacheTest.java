@@ -0,0 +1,217 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.authorization.internal;
+
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the default {@link AuthorizationDecisionCache} component, {@link DefaultAuthorizationDecisionCache}.
+ *
+ * @version $Id$
+ */
+public class DefaultAuthorizationDecisionCacheTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<AuthorizationDecisionCache> mocker =
+        new MockitoComponentMockingRule<AuthorizationDecisionCache>(DefaultAuthorizationDecisionCache.class);
+
+    private final DocumentReference patientOne = new DocumentReference("xwiki", "data", "P0000001");
+
+    private final DocumentReference patientTwo = new DocumentReference("xwiki", "data", "P0000002");
+
+    private final EntityReference partialPatientOne =
+        new EntityReference("P0000001", EntityType.DOCUMENT, new EntityReference("data", EntityType.SPACE));
+
+    private final User user = mock(User.class);
+
+    private final Map<String, Object> storage = new HashMap<>();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception
+    {
+        Cache<Object> cache = mock(Cache.class);
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return DefaultAuthorizationDecisionCacheTest.this.storage.get(invocation.getArguments()[0]);
+            }
+        }).when(cache).get(anyString());
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return DefaultAuthorizationDecisionCacheTest.this.storage.put((String) invocation.getArguments()[0],
+                    invocation.getArguments()[1]);
+            }
+        }).when(cache).set(anyString(), any());
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return DefaultAuthorizationDecisionCacheTest.this.storage.remove(invocation.getArguments()[0]);
+            }
+        }).when(cache).remove(anyString());
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                DefaultAuthorizationDecisionCacheTest.this.storage.clear();
+                return null;
+            }
+        }).when(cache).removeAll();
+        CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        when(cacheManager.createNewLocalCache(any(CacheConfiguration.class))).thenReturn(cache);
+
+        EntityReferenceResolver<EntityReference> resolver =
+            this.mocker.getInstance(EntityReferenceResolver.TYPE_REFERENCE, "current");
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return invocation.getArguments()[0];
+            }
+        }).when(resolver).resolve(any(EntityReference.class), any(EntityType.class));
+        when(resolver.resolve(eq(this.partialPatientOne), eq(EntityType.DOCUMENT))).thenReturn(this.patientOne);
+
+        EntityReferenceSerializer<String> serializer = this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
+        when(serializer.serialize(this.patientOne)).thenReturn("xwiki:data.P0000001");
+        when(serializer.serialize(this.patientTwo)).thenReturn("xwiki:data.P0000002");
+        DocumentReference profile = new DocumentReference("xwiki", "XWiki", "padams");
+        when(serializer.serialize(profile)).thenReturn("xwiki:XWiki.padams");
+        when(this.user.getProfileDocument()).thenReturn(profile);
+    }
+
+    @Test
+    public void storedDecisionsAreReturned() throws Exception
+    {
+        AuthorizationDecisionCache cache = this.mocker.getComponentUnderTest();
+        Assert.assertNull(cache.get(this.user, Right.VIEW, this.patientOne));
+
+        cache.put(this.user, Right.VIEW, this.patientOne, true, cache.getGeneration());
+        cache.put(this.user, Right.EDIT, this.patientOne, false, cache.getGeneration());
+        cache.put(null, Right.VIEW, this.patientOne, false, cache.getGeneration());
+
+        Assert.assertTrue(cache.get(this.user, Right.VIEW, this.patientOne));
+        Assert.assertFalse(cache.get(this.user, Right.EDIT, this.patientOne));
+        Assert.assertFalse(cache.get(null, Right.VIEW, this.patientOne));
+        Assert.assertNull(cache.get(this.user, Right.DELETE, this.patientOne));
+        Assert.assertNull(cache.get(this.user, Right.VIEW, this.patientTwo));
+    }
+
+    @Test
+    public void decisionsComputedBeforeAnInvalidationAreNotStored() throws Exception
+    {
+        AuthorizationDecisionCache cache = this.mocker.getComponentUnderTest();
+        long generation = cache.getGeneration();
+        cache.invalidate(this.patientTwo);
+        cache.put(this.user, Right.VIEW, this.patientOne, true, generation);
+
+        Assert.assertNull(cache.get(this.user, Right.VIEW, this.patientOne));
+    }
+
+    @Test
+    public void invalidateOnlyDropsTheDecisionsOnTheTargetEntity() throws Exception
+    {
+        AuthorizationDecisionCache cache = this.mocker.getComponentUnderTest();
+        cache.put(this.user, Right.VIEW, this.patientOne, true, cache.getGeneration());
+        cache.put(this.user, Right.VIEW, this.patientTwo, true, cache.getGeneration());
+
+        cache.invalidate(this.patientOne);
+
+        Assert.assertNull(cache.get(this.user, Right.VIEW, this.patientOne));
+        Assert.assertTrue(cache.get(this.user, Right.VIEW, this.patientTwo));
+    }
+
+    @Test
+    public void invalidateAllDropsAllDecisions() throws Exception
+    {
+        AuthorizationDecisionCache cache = this.mocker.getComponentUnderTest();
+        cache.put(this.user, Right.VIEW, this.patientOne, true, cache.getGeneration());
+        cache.put(this.user, Right.VIEW, this.patientTwo, true, cache.getGeneration());
+
+        cache.invalidateAll();
+
+        Assert.assertNull(cache.get(this.user, Right.VIEW, this.patientOne));
+        Assert.assertNull(cache.get(this.user, Right.VIEW, this.patientTwo));
+    }
+
+    @Test
+    public void partialAndFullReferencesShareTheirDecisions() throws Exception
+    {
+        AuthorizationDecisionCache cache = this.mocker.getComponentUnderTest();
+        cache.put(this.user, Right.VIEW, this.partialPatientOne, true, cache.getGeneration());
+        Assert.assertTrue(cache.get(this.user, Right.VIEW, this.patientOne));
+
+        cache.invalidate(this.patientOne);
+
+        Assert.assertNull(cache.get(this.user, Right.VIEW, this.partialPatientOne));
+    }
+
+    @Test
+    public void hitsAndMissesAreCounted() throws Exception
+    {
+        AuthorizationDecisionCache cache = this.mocker.getComponentUnderTest();
+        Assert.assertEquals(0, cache.getHitRatio(), 0);
+
+        cache.get(this.user, Right.VIEW, this.patientOne);
+        cache.put(this.user, Right.VIEW, this.patientOne, true, cache.getGeneration());
+        cache.get(this.user, Right.VIEW, this.patientOne);
+        cache.get(this.user, Right.VIEW, this.patientOne);
+        cache.get(this.user, Right.VIEW, this.patientTwo);
+
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+        Assert.assertEquals(0.5, cache.getHitRatio(), 0.001);
+    }
+}
@@ -18,25 +18,31 @@
 package org.phenotips.security.authorization.internal;
 
 import org.mockito.InOrder;
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
 import org.phenotips.security.authorization.AuthorizationModule;
 import org.phenotips.security.authorization.AuthorizationService;
+import org.phenotips.security.authorization.BatchAuthorizationModule;
 
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.util.ReflectionUtils;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.users.User;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -45,6 +51,8 @@
 
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 
@@ -181,6 +189,147 @@ public void exceptionsInModulesAreIgnored() throws Exception
         Assert.assertTrue(this.mocker.getComponentUnderTest().hasAccess(this.user, this.access, this.document));
     }
 
+    @Test
+    public void cachedDecisionIsReused() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        AuthorizationDecisionCache cache = this.mocker.getInstance(AuthorizationDecisionCache.class);
+        when(cache.get(this.user, this.access, this.document)).thenReturn(true);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().hasAccess(this.user, this.access, this.document));
+        verifyZeroInteractions(this.moduleOne);
+    }
+
+    @Test
+    public void computedDecisionIsCachedWithTheGenerationReadBeforeComputing() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        AuthorizationDecisionCache cache = this.mocker.getInstance(AuthorizationDecisionCache.class);
+        when(cache.getGeneration()).thenReturn(42L, 43L);
+        when(this.moduleOne.hasAccess(this.user, this.access, this.document)).thenReturn(true);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().hasAccess(this.user, this.access, this.document));
+        verify(cache).put(this.user, this.access, this.document, true, 42L);
+    }
+
+    @Test
+    public void checksOnNullEntitiesAreNotCached() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        AuthorizationDecisionCache cache = this.mocker.getInstance(AuthorizationDecisionCache.class);
+        when(this.moduleOne.hasAccess(this.user, this.access, null)).thenReturn(true);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().hasAccess(this.user, this.access, null));
+        verifyZeroInteractions(cache);
+    }
+
+    @Test
+    public void filterAccessibleKeepsOnlyAccessibleEntitiesInOrder() throws Exception
+    {
+        this.moduleList = Arrays.asList(this.moduleOne, this.moduleTwo);
+        doReturn(this.moduleList).when(this.modules).get();
+        DocumentReference other = Mockito.mock(DocumentReference.class);
+        DocumentReference third = Mockito.mock(DocumentReference.class);
+        when(this.moduleOne.hasAccess(this.user, this.access, other)).thenReturn(false);
+        when(this.moduleTwo.hasAccess(this.user, this.access, this.document)).thenReturn(true);
+        when(this.moduleTwo.hasAccess(this.user, this.access, third)).thenReturn(true);
+
+        List<DocumentReference> result = this.mocker.getComponentUnderTest().filterAccessible(this.user, this.access,
+            Arrays.asList(third, other, null, this.document));
+
+        Assert.assertEquals(Arrays.asList(third, this.document), result);
+        // The module chain is only looked up once for the whole batch
+        verify(this.modules).get();
+    }
+
+    @Test
+    public void filterAccessibleUsesAndFillsTheCache() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        DocumentReference other = Mockito.mock(DocumentReference.class);
+        AuthorizationDecisionCache cache = this.mocker.getInstance(AuthorizationDecisionCache.class);
+        when(cache.getGeneration()).thenReturn(7L);
+        when(cache.get(this.user, this.access, this.document)).thenReturn(true);
+        when(this.moduleOne.hasAccess(this.user, this.access, other)).thenReturn(true);
+
+        List<DocumentReference> result = this.mocker.getComponentUnderTest().filterAccessible(this.user, this.access,
+            Arrays.asList(this.document, other));
+
+        Assert.assertEquals(Arrays.asList(this.document, other), result);
+        verify(this.moduleOne, never()).hasAccess(this.user, this.access, this.document);
+        verify(cache).put(this.user, this.access, other, true, 7L);
+    }
+
+    @Test
+    public void filterAccessibleAcceptsEmptyInput() throws Exception
+    {
+        Assert.assertTrue(this.mocker.getComponentUnderTest().filterAccessible(this.user, this.access,
+            Collections.<DocumentReference>emptyList()).isEmpty());
+        Assert.assertTrue(this.mocker.getComponentUnderTest().filterAccessible(this.user, this.access,
+            (List<DocumentReference>) null).isEmpty());
+    }
+
+    @Test
+    public void filterAccessibleAsksBatchModulesOnceAboutTheApplicableEntities() throws Exception
+    {
+        BatchAuthorizationModule batch = Mockito.mock(BatchAuthorizationModule.class);
+        this.moduleList = Arrays.asList(batch, this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        DocumentReference other = Mockito.mock(DocumentReference.class);
+        DocumentReference third = Mockito.mock(DocumentReference.class);
+        when(batch.appliesTo(this.document)).thenReturn(true);
+        when(batch.appliesTo(other)).thenReturn(true);
+        when(batch.appliesTo(third)).thenReturn(false);
+        Map<EntityReference, Boolean> answers = new HashMap<>();
+        answers.put(this.document, true);
+        answers.put(other, null);
+        when(batch.hasAccess(this.user, this.access, Arrays.asList(other, this.document))).thenReturn(answers);
+        when(this.moduleOne.hasAccess(this.user, this.access, other)).thenReturn(true);
+        when(this.moduleOne.hasAccess(this.user, this.access, third)).thenReturn(false);
+
+        List<DocumentReference> result = this.mocker.getComponentUnderTest().filterAccessible(this.user, this.access,
+            Arrays.asList(third, other, this.document));
+
+        Assert.assertEquals(Arrays.asList(other, this.document), result);
+        verify(batch).hasAccess(this.user, this.access, Arrays.asList(other, this.document));
+        verify(batch, never()).hasAccess(Matchers.any(User.class), Matchers.any(Right.class),
+            Matchers.any(EntityReference.class));
+        // Entities decided by the batch module are not passed down the chain
+        verify(this.moduleOne, never()).hasAccess(this.user, this.access, this.document);
+    }
+
+    @Test
+    public void filterAccessibleIgnoresFailingBatchModules() throws Exception
+    {
+        BatchAuthorizationModule batch = Mockito.mock(BatchAuthorizationModule.class);
+        this.moduleList = Arrays.asList(batch, this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(batch.appliesTo(this.document)).thenReturn(true);
+        when(batch.hasAccess(Matchers.any(User.class), Matchers.any(Right.class),
+            Matchers.anyCollectionOf(EntityReference.class))).thenThrow(new IllegalStateException());
+        when(this.moduleOne.hasAccess(this.user, this.access, this.document)).thenReturn(true);
+
+        Assert.assertEquals(Collections.singletonList(this.document), this.mocker.getComponentUnderTest()
+            .filterAccessible(this.user, this.access, Collections.singletonList(this.document)));
+    }
+
+    @Test
+    public void singleChecksSkipBatchModulesThatDontApply() throws Exception
+    {
+        BatchAuthorizationModule batch = Mockito.mock(BatchAuthorizationModule.class);
+        this.moduleList = Arrays.asList(batch, this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(batch.appliesTo(this.document)).thenReturn(false);
+        when(this.moduleOne.hasAccess(this.user, this.access, this.document)).thenReturn(true);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().hasAccess(this.user, this.access, this.document));
+        verify(batch, never()).hasAccess(this.user, this.access, this.document);
+    }
+
     private void resetMocks()
     {
         Mockito.reset(this.moduleOne, this.moduleTwo, this.moduleThree);
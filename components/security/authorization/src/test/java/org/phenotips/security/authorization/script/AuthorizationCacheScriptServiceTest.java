@@ -0,0 +1,56 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.authorization.script;
+
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
+
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link AuthorizationCacheScriptService} component.
+ *
+ * @version $Id$
+ */
+public class AuthorizationCacheScriptServiceTest
+{
+    @Rule
+    public MockitoComponentMockingRule<ScriptService> mocker =
+        new MockitoComponentMockingRule<ScriptService>(AuthorizationCacheScriptService.class);
+
+    @Test
+    public void cacheStatisticsAreForwarded() throws Exception
+    {
+        AuthorizationDecisionCache cache = this.mocker.getInstance(AuthorizationDecisionCache.class);
+        when(cache.getHits()).thenReturn(30L);
+        when(cache.getMisses()).thenReturn(10L);
+        when(cache.getHitRatio()).thenReturn(0.75);
+
+        AuthorizationCacheScriptService service =
+            (AuthorizationCacheScriptService) this.mocker.getComponentUnderTest();
+        Assert.assertEquals(30L, service.getHits());
+        Assert.assertEquals(10L, service.getMisses());
+        Assert.assertEquals(0.75, service.getHitRatio(), 0);
+    }
+}
@@ -46,6 +46,16 @@
      */
     String decryptWithSystemKey(String encryptedMessage);
 
+    /**
+     * Check if a message was encrypted with an older encryption scheme, in which case it should be decrypted and
+     * encrypted again with {@link #encryptWithSystemKey(String)}.
+     *
+     * @param encryptedMessage an encrypted message; may be {@code null}
+     * @return {@code true} if the message is not null and uses an outdated encryption scheme, {@code false} otherwise
+     * @since 1.4
+     */
+    boolean needsReencryption(String encryptedMessage);
+
     /**
      * Compute a strong digest (one-way hash) of a message.
      *
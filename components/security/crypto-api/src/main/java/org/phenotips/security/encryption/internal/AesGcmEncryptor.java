@@ -0,0 +1,144 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.encryption.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts text with AES-GCM. The key is derived from the system password only once, when the encryptor is created, and
+ * each message is encrypted with a new random nonce. The encrypted messages are the Base64 encoding of the nonce
+ * followed by the ciphertext and authentication tag, prefixed with {@link #VERSION_PREFIX}, which distinguishes them
+ * from messages encrypted with older schemes.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class AesGcmEncryptor
+{
+    /** Prefix identifying the messages encrypted by this encryptor. */
+    static final String VERSION_PREFIX = "v2:";
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+
+    private static final int KEY_BITS = 256;
+
+    private static final int NONCE_BYTES = 12;
+
+    private static final int TAG_BITS = 128;
+
+    /** Key derivation is slow on purpose, but it is only done once. */
+    private static final int KEY_ITERATIONS = 100000;
+
+    /** The password is the secret, the salt only makes the key specific to this application. */
+    private static final byte[] KEY_SALT = "org.phenotips.security.encryption".getBytes(StandardCharsets.UTF_8);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey key;
+
+    /**
+     * Derives the encryption key from a password.
+     *
+     * @param password the system password
+     * @throws GeneralSecurityException if the JVM doesn't support the needed algorithms
+     */
+    AesGcmEncryptor(String password) throws GeneralSecurityException
+    {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), KEY_SALT, KEY_ITERATIONS, KEY_BITS);
+        try {
+            byte[] encoded = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            this.key = new SecretKeySpec(encoded, "AES");
+        } finally {
+            spec.clearPassword();
+        }
+        // Fail early if AES-GCM is not available
+        Cipher.getInstance(CIPHER);
+    }
+
+    /**
+     * Checks if a message was encrypted by this encryptor.
+     *
+     * @param encryptedMessage the encrypted message
+     * @return {@code true} if the message has the {@link #VERSION_PREFIX}, {@code false} otherwise
+     */
+    static boolean isSupported(String encryptedMessage)
+    {
+        return encryptedMessage.startsWith(VERSION_PREFIX);
+    }
+
+    /**
+     * Encrypts a message.
+     *
+     * @param message the message to encrypt, must not be {@code null}
+     * @return the encrypted message
+     */
+    String encrypt(String message)
+    {
+        try {
+            byte[] nonce = new byte[NONCE_BYTES];
+            RANDOM.nextBytes(nonce);
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(TAG_BITS, nonce));
+            byte[] plaintext = message.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer result = ByteBuffer.allocate(NONCE_BYTES + cipher.getOutputSize(plaintext.length));
+            result.put(nonce);
+            cipher.doFinal(ByteBuffer.wrap(plaintext), result);
+            return VERSION_PREFIX + Base64.getEncoder().encodeToString(result.array());
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Failed to encrypt message: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Decrypts a message encrypted by this encryptor.
+     *
+     * @param encryptedMessage the message to decrypt, must be {@link #isSupported(String) supported}
+     * @return the decrypted message
+     * @throws IllegalArgumentException if the message is not well formed, or it was not encrypted with the same key
+     */
+    String decrypt(String encryptedMessage)
+    {
+        byte[] data;
+        try {
+            data = Base64.getDecoder().decode(encryptedMessage.substring(VERSION_PREFIX.length()));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid encrypted message", ex);
+        }
+        if (data.length < NONCE_BYTES + TAG_BITS / Byte.SIZE) {
+            throw new IllegalArgumentException("Invalid encrypted message");
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(TAG_BITS, data, 0, NONCE_BYTES));
+            return new String(cipher.doFinal(data, NONCE_BYTES, data.length - NONCE_BYTES), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalArgumentException("Failed to decrypt message: " + ex.getMessage(), ex);
+        }
+    }
+}
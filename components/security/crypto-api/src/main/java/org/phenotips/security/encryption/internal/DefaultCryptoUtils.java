@@ -23,15 +23,28 @@
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.jasypt.digest.StandardStringDigester;
 import org.jasypt.util.text.StrongTextEncryptor;
 
 /**
- * The straight-forward implementation of the {@link CryptoUtils} role.
+ * The straight-forward implementation of the {@link CryptoUtils} role. Messages are encrypted with AES-GCM, using a key
+ * derived from the system password at startup. Messages encrypted with the older, password based scheme can still be
+ * decrypted. Decrypted messages can optionally be cached for the duration of a request, by setting
+ * {@code crypto.encryption.decryptionCacheSize} in {@code WEB-INF/xwiki.properties} to the maximum number of messages
+ * to remember.
  *
  * @version $Id$
  * @since 1.3M2
@@ -40,18 +53,42 @@
 @Singleton
 public class DefaultCryptoUtils implements CryptoUtils, Initializable
 {
+    /** The name of the execution context property holding the decrypted messages. */
+    private static final String CACHE_KEY = "crypto.decryptionCache";
+
     @Inject
     private SystemPasswordConfiguration passwordConfig;
 
-    private StrongTextEncryptor encryptor;
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource config;
+
+    @Inject
+    private Execution execution;
+
+    private AesGcmEncryptor encryptor;
+
+    /** Only used for decrypting messages encrypted before AES-GCM was introduced. */
+    private StrongTextEncryptor legacyEncryptor;
 
     private StandardStringDigester digester;
 
+    private int cacheSize;
+
     @Override
     public void initialize() throws InitializationException
     {
-        this.encryptor = new StrongTextEncryptor();
-        this.encryptor.setPassword(this.passwordConfig.getSystemPassword());
+        String password = this.passwordConfig.getSystemPassword();
+        try {
+            this.encryptor = new AesGcmEncryptor(password);
+        } catch (GeneralSecurityException ex) {
+            throw new InitializationException("Failed to initialize the system encryption key: " + ex.getMessage(), ex);
+        }
+        this.legacyEncryptor = new StrongTextEncryptor();
+        this.legacyEncryptor.setPassword(password);
+
+        Integer configuredCacheSize = this.config.getProperty("crypto.encryption.decryptionCacheSize", Integer.class);
+        this.cacheSize = configuredCacheSize == null ? 0 : configuredCacheSize;
 
         this.digester = new StandardStringDigester();
         this.digester.setAlgorithm("SHA-512");
@@ -63,13 +100,34 @@ public void initialize() throws InitializationException
     @Override
     public String encryptWithSystemKey(String message)
     {
-        return this.encryptor.encrypt(message);
+        return message == null ? null : this.encryptor.encrypt(message);
     }
 
     @Override
     public String decryptWithSystemKey(String encryptedMessage)
     {
-        return this.encryptor.decrypt(encryptedMessage);
+        if (encryptedMessage == null) {
+            return null;
+        }
+        Map<String, String> cache = getDecryptionCache();
+        String result = cache == null ? null : cache.get(encryptedMessage);
+        if (result == null) {
+            if (AesGcmEncryptor.isSupported(encryptedMessage)) {
+                result = this.encryptor.decrypt(encryptedMessage);
+            } else {
+                result = this.legacyEncryptor.decrypt(encryptedMessage);
+            }
+            if (cache != null) {
+                cache.put(encryptedMessage, result);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean needsReencryption(String encryptedMessage)
+    {
+        return encryptedMessage != null && !AesGcmEncryptor.isSupported(encryptedMessage);
     }
 
     @Override
@@ -83,4 +141,53 @@ public boolean validateDigest(String message, String digest)
     {
         return digest == null ? false : this.digester.matches(message, digest);
     }
+
+    /**
+     * The decrypted messages of the current request. Since each encryption uses a new nonce, the encrypted messages
+     * identify the values unambiguously, and are used as keys.
+     *
+     * @return a bounded map from encrypted to decrypted messages, or {@code null} if caching is disabled or there is no
+     *         current request
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, String> getDecryptionCache()
+    {
+        if (this.cacheSize <= 0) {
+            return null;
+        }
+        ExecutionContext context = this.execution.getContext();
+        if (context == null) {
+            return null;
+        }
+        Map<String, String> cache = (Map<String, String>) context.getProperty(CACHE_KEY);
+        if (cache == null) {
+            cache = Collections.synchronizedMap(new BoundedCache(this.cacheSize));
+            context.setProperty(CACHE_KEY, cache);
+        }
+        return cache;
+    }
+
+    /** A map which forgets the least recently used entry once it holds too many entries. */
+    private static final class BoundedCache extends LinkedHashMap<String, String>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private static final int INITIAL_CAPACITY = 16;
+
+        private static final float LOAD_FACTOR = 0.75f;
+
+        private final int maxSize;
+
+        BoundedCache(int maxSize)
+        {
+            super(INITIAL_CAPACITY, LOAD_FACTOR, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+        {
+            return size() > this.maxSize;
+        }
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.encryption.internal;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AesGcmEncryptorTest
+{
+    private static AesGcmEncryptor encryptor;
+
+    @BeforeClass
+    public static void setUp() throws GeneralSecurityException
+    {
+        encryptor = new AesGcmEncryptor("secret");
+    }
+
+    @Test
+    public void encryptedMessagesAreDecrypted()
+    {
+        String encrypted = encryptor.encrypt("John Doe, +1 555 0100 \u00e9");
+        Assert.assertTrue(AesGcmEncryptor.isSupported(encrypted));
+        Assert.assertFalse(encrypted.contains("John"));
+        Assert.assertEquals("John Doe, +1 555 0100 \u00e9", encryptor.decrypt(encrypted));
+        Assert.assertEquals("", encryptor.decrypt(encryptor.encrypt("")));
+    }
+
+    @Test
+    public void eachEncryptionUsesANewNonce()
+    {
+        Assert.assertNotEquals(encryptor.encrypt("value"), encryptor.encrypt("value"));
+    }
+
+    @Test
+    public void keyIsDerivedFromThePassword() throws GeneralSecurityException
+    {
+        String encrypted = encryptor.encrypt("value");
+        Assert.assertEquals("value", new AesGcmEncryptor("secret").decrypt(encrypted));
+        try {
+            new AesGcmEncryptor("other").decrypt(encrypted);
+            Assert.fail("Messages must not be decrypted with a different key");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tamperedMessagesAreRejected()
+    {
+        String encrypted = encryptor.encrypt("value");
+        char last = encrypted.charAt(encrypted.length() - 3);
+        encryptor.decrypt(encrypted.substring(0, encrypted.length() - 3) + (last == 'A' ? 'B' : 'A')
+            + encrypted.substring(encrypted.length() - 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedMessagesAreRejected()
+    {
+        encryptor.decrypt(AesGcmEncryptor.VERSION_PREFIX + "AAAA");
+    }
+
+    @Test
+    public void olderSchemesAreNotSupported()
+    {
+        Assert.assertFalse(AesGcmEncryptor.isSupported("3fVpXwJbH0zg6Bn1Qm0iZw=="));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.encryption.internal;
+
+import java.security.GeneralSecurityException;
+import java.util.function.UnaryOperator;
+
+import org.jasypt.util.text.StrongTextEncryptor;
+
+/**
+ * Compares the throughput of the legacy password based encryption with the AES-GCM encryption. Not run during the
+ * build, run it manually with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.phenotips.security.encryption.internal.EncryptionBenchmark}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class EncryptionBenchmark
+{
+    private static final String PASSWORD = "benchmark";
+
+    private static final String MESSAGE = "Jane Doe, 123 Example Street, Toronto, +1 555 0100";
+
+    private static final int WARMUP = 200;
+
+    private static final int ITERATIONS = 2000;
+
+    private EncryptionBenchmark()
+    {
+        // Not instantiable
+    }
+
+    /**
+     * Runs the benchmark and prints the results.
+     *
+     * @param args ignored
+     * @throws GeneralSecurityException if AES-GCM is not supported
+     */
+    public static void main(String[] args) throws GeneralSecurityException
+    {
+        StrongTextEncryptor legacy = new StrongTextEncryptor();
+        legacy.setPassword(PASSWORD);
+        long start = System.nanoTime();
+        AesGcmEncryptor aes = new AesGcmEncryptor(PASSWORD);
+        System.out.printf("AES-GCM key derivation (once per startup): %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+        String legacyEncrypted = legacy.encrypt(MESSAGE);
+        String aesEncrypted = aes.encrypt(MESSAGE);
+        run("Legacy encrypt", legacy::encrypt, MESSAGE);
+        run("Legacy decrypt", legacy::decrypt, legacyEncrypted);
+        run("AES-GCM encrypt", aes::encrypt, MESSAGE);
+        run("AES-GCM decrypt", aes::decrypt, aesEncrypted);
+    }
+
+    private static void run(String name, UnaryOperator<String> operation, String input)
+    {
+        for (int i = 0; i < WARMUP; ++i) {
+            operation.apply(input);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            operation.apply(input);
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / ITERATIONS;
+        System.out.printf("%-16s %10.1f us/op %12.0f ops/s%n", name, micros, 1e6 / micros);
+    }
+}
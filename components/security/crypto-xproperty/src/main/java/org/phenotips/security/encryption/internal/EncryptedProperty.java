@@ -40,6 +40,9 @@ public class EncryptedProperty extends BaseStringProperty
     /** Will be pre-pended to the values of the encrypted properties to identify that they are indeed encrypted. */
     private static final String ENCRYPTED_IDENTIFIER = "e:";
 
+    /** Looked up once per property instead of once per access, since values are read very often. */
+    private transient CryptoUtils cryptoUtils;
+
     @Override
     public String getValue()
     {
@@ -65,6 +68,22 @@ public void setValue(Object value)
         }
     }
 
+    /**
+     * Encrypt the stored value again if it was encrypted with an outdated encryption scheme.
+     *
+     * @return {@code true} if the value was re-encrypted, {@code false} if the value didn't need to be re-encrypted
+     * @since 1.4
+     */
+    boolean reencrypt()
+    {
+        String value = super.getValue();
+        if (value == null || !isEncrypted(value) || !getCryptoUtils().needsReencryption(getRawValue(value))) {
+            return false;
+        }
+        super.setValue(encrypt(decrypt(value)));
+        return true;
+    }
+
     /**
      * Check if a value is already encrypted or not. This is determined by the presence of the
      * {@link #ENCRYPTED_IDENTIFIER} prefix.
@@ -114,6 +133,9 @@ private String getRawValue(String value)
 
     private CryptoUtils getCryptoUtils()
     {
-        return Utils.getComponent(CryptoUtils.class);
+        if (this.cryptoUtils == null) {
+            this.cryptoUtils = Utils.getComponent(CryptoUtils.class);
+        }
+        return this.cryptoUtils;
     }
 }
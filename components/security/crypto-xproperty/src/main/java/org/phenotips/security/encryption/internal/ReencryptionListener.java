@@ -0,0 +1,242 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.encryption.internal;
+
+import org.phenotips.components.WorkerExecutionContext;
+
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+import java.util.List;
+import java.util.Objects;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Encrypts again, in the background, all the stored {@link EncryptedProperty encrypted values} which still use an
+ * outdated encryption scheme, in all the wikis. The affected documents are processed in batches, and are saved through
+ * the document store, so that cached documents don't keep the old values. Documents modified by someone else while
+ * being re-encrypted are read again, so that concurrent changes aren't overwritten. Since the actual data doesn't
+ * change, no new document version is created, and no update event is sent. Values which fail to be decrypted are left
+ * unchanged.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named(ReencryptionListener.NAME)
+@Singleton
+public class ReencryptionListener extends AbstractEventListener
+{
+    /** The name of this listener. */
+    public static final String NAME = "phenotips-encrypted-xproperty-reencryption";
+
+    /** How many documents are looked up at once. */
+    private static final int BATCH_SIZE = 100;
+
+    /** How many times a document is read again when it was modified while it was being re-encrypted. */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /** Selects the documents with encrypted values not using the current scheme, marked by the "v2:" prefix. */
+    private static final String QUERY = "select distinct obj.name from BaseObject as obj, "
+        + EncryptedProperty.class.getName() + " as prop where prop.id = obj.id and prop.value like 'e:%'"
+        + " and prop.value not like 'e:v2:%' order by obj.name";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private WikiDescriptorManager wikiDescriptorManager;
+
+    @Inject
+    private QueryManager qm;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> resolver;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public ReencryptionListener()
+    {
+        super(NAME, new ApplicationReadyEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        final ExecutionContext parentContext = this.execution.getContext();
+        Thread thread = new Thread(() -> reencryptInContext(parentContext), "Encrypted values re-encryption");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void reencryptInContext(ExecutionContext parentContext)
+    {
+        try {
+            this.execution.setContext(WorkerExecutionContext.create(parentContext, this.contextManager));
+            reencryptAll();
+        } catch (ExecutionContextException ex) {
+            this.logger.warn("Failed to start re-encrypting stored values: {}", ex.getMessage());
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+
+    private void reencryptAll()
+    {
+        XWikiContext context = this.contextProvider.get();
+        String originalDatabase = context.getWikiId();
+        try {
+            for (String wiki : this.wikiDescriptorManager.getAllIds()) {
+                context.setWikiId(wiki);
+                reencryptWiki(wiki, context);
+            }
+        } catch (WikiManagerException ex) {
+            this.logger.error("Failed to get the list of virtual wikis: {}", ex.getMessage(), ex);
+        } finally {
+            context.setWikiId(originalDatabase);
+        }
+    }
+
+    private void reencryptWiki(String wiki, XWikiContext context)
+    {
+        int reencrypted = 0;
+        // Documents which can't be re-encrypted remain in the query results, and must be skipped
+        int skipped = 0;
+        try {
+            List<String> batch;
+            do {
+                batch = this.qm.createQuery(QUERY, Query.HQL).setWiki(wiki).setOffset(skipped)
+                    .setLimit(BATCH_SIZE).execute();
+                for (String documentName : batch) {
+                    if (reencrypt(this.resolver.resolve(documentName), context)) {
+                        ++reencrypted;
+                    } else {
+                        ++skipped;
+                    }
+                }
+            } while (batch.size() == BATCH_SIZE);
+        } catch (QueryException ex) {
+            this.logger.warn("Failed to search values to re-encrypt in wiki [{}]: {}", wiki, ex.getMessage());
+        }
+        if (reencrypted > 0 || skipped > 0) {
+            this.logger.info("Re-encrypted stored values in {} documents of wiki [{}], {} documents could not be"
+                + " re-encrypted", reencrypted, wiki, skipped);
+        }
+    }
+
+    private boolean reencrypt(DocumentReference reference, XWikiContext context)
+    {
+        try {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+                // The cached document is shared with the other threads, only a copy of it can be changed
+                XWikiDocument doc = context.getWiki().getDocument(reference, context).clone();
+                if (!reencrypt(doc)) {
+                    return false;
+                }
+                // The document may have been saved by a user since it was read, and those changes must not be lost
+                if (isCurrentVersion(doc, context)) {
+                    // The store also removes the document from the document cache
+                    context.getWiki().getStore().saveXWikiDoc(doc, context);
+                    return true;
+                }
+            }
+            this.logger.debug("Document [{}] keeps changing, its values will be re-encrypted later", reference);
+            return false;
+        } catch (XWikiException | RuntimeException ex) {
+            this.logger.warn("Failed to re-encrypt the values stored in [{}]: {}", reference, ex.getMessage());
+            return false;
+        }
+    }
+
+    private boolean reencrypt(XWikiDocument doc)
+    {
+        boolean changed = false;
+        for (List<BaseObject> objects : doc.getXObjects().values()) {
+            for (BaseObject object : objects) {
+                if (object != null) {
+                    changed = reencrypt(object) || changed;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private boolean isCurrentVersion(XWikiDocument doc, XWikiContext context) throws XWikiException
+    {
+        // Read directly from the database, bypassing the document cache
+        XWikiDocument stored = context.getWiki().getHibernateStore()
+            .loadXWikiDoc(new XWikiDocument(doc.getDocumentReference()), context);
+        return !stored.isNew() && Objects.equals(stored.getVersion(), doc.getVersion())
+            && Objects.equals(stored.getDate(), doc.getDate());
+    }
+
+    private boolean reencrypt(BaseObject object)
+    {
+        boolean changed = false;
+        for (Object property : object.getFieldList()) {
+            if (property instanceof EncryptedProperty) {
+                changed = reencrypt((EncryptedProperty) property) || changed;
+            }
+        }
+        return changed;
+    }
+
+    private boolean reencrypt(EncryptedProperty property)
+    {
+        try {
+            return property.reencrypt();
+        } catch (RuntimeException ex) {
+            this.logger.debug("Failed to re-encrypt property [{}]: {}", property.getName(), ex.getMessage());
+            return false;
+        }
+    }
+}
@@ -20,6 +20,9 @@
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * A service that computes the patient specificity, a score estimating how "good" a patient record is.
  *
@@ -45,4 +48,15 @@
      * @return a score between {@code 0} and {@code 1}, or {@code -1} if the score cannot be computed by this scorer
      */
     double getScore(Patient patient);
+
+    /**
+     * Compute the raw specificity scores for several patients at once, allowing a scorer to share work between
+     * patients with common features.
+     *
+     * @param patients the patients to score
+     * @return the score of each of the requested patients, in the same order and with the same meaning as the values
+     *         returned by {@link #getScore(Patient)}
+     * @since 1.4
+     */
+    Map<Patient, Double> getScores(Collection<Patient> patients);
 }
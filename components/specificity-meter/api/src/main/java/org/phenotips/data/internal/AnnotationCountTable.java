@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.solr.client.solrj.response.FacetField;
+
+/**
+ * Immutable, compact table holding, for each phenotype, the number of disorders annotated with it or with one of its
+ * descendants. Term identifiers are kept sorted in a plain array, with the counts in a parallel {@code int} array, so
+ * that lookups are a binary search without any boxing.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class AnnotationCountTable
+{
+    private final String[] terms;
+
+    private final int[] counts;
+
+    private AnnotationCountTable(String[] terms, int[] counts)
+    {
+        this.terms = terms;
+        this.counts = counts;
+    }
+
+    /**
+     * Build a table from the values of a facet computed over the annotation field.
+     *
+     * @param facet the facet listing each annotated term along with the number of matching disorders
+     * @return a new table, possibly empty
+     */
+    static AnnotationCountTable fromFacet(FacetField facet)
+    {
+        List<FacetField.Count> values = facet == null || facet.getValues() == null
+            ? new ArrayList<FacetField.Count>() : new ArrayList<>(facet.getValues());
+        values.sort(Comparator.comparing(FacetField.Count::getName));
+        String[] terms = new String[values.size()];
+        int[] counts = new int[values.size()];
+        for (int i = 0; i < terms.length; ++i) {
+            terms[i] = values.get(i).getName();
+            counts[i] = (int) values.get(i).getCount();
+        }
+        return new AnnotationCountTable(terms, counts);
+    }
+
+    /**
+     * Get the number of disorders annotated with a term.
+     *
+     * @param termId the identifier of the term to look up
+     * @return the number of annotated disorders, {@code 0} if the term isn't used for any disorder
+     */
+    int getCount(String termId)
+    {
+        int position = Arrays.binarySearch(this.terms, termId);
+        return position < 0 ? 0 : this.counts[position];
+    }
+
+    /**
+     * The number of distinct terms present in this table.
+     *
+     * @return a positive number, or {@code 0} if the table is empty
+     */
+    int size()
+    {
+        return this.terms.length;
+    }
+}
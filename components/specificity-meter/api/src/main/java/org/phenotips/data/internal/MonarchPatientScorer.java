@@ -28,23 +28,37 @@
 import org.xwiki.cache.config.CacheConfiguration;
 import org.xwiki.cache.config.LRUCacheConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
 
 import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -72,6 +86,15 @@
 
 /**
  * Patient scorer that uses the remote service offered by the MONARCH initiative.
+ * <p>
+ * Remote requests never block the caller for longer than the configured
+ * {@code phenotips.patientScoring.monarch.maxWait} milliseconds, {@code 0} by default. Known scores are returned
+ * immediately, and if they're older than {@code phenotips.patientScoring.monarch.refreshInterval} seconds, they are
+ * recomputed in the background. Unknown profiles are scored in the background, and until the score is available, this
+ * scorer reports failure so that a fallback scorer can be used instead. Concurrent requests for the same profile share
+ * the same remote request. The computed scores are identified by a hash of the sorted feature set, and are persisted
+ * in the permanent directory.
+ * </p>
  *
  * @version $Id$
  * @since 1.0M12
@@ -79,10 +102,15 @@
 @Component
 @Named("monarch")
 @Singleton
-public class MonarchPatientScorer implements PatientScorer, Initializable
+public class MonarchPatientScorer implements PatientScorer, Initializable, Disposable
 {
     private static final String SCORER_NAME = "monarchinitiative.org";
 
+    private static final String CONFIGURATION_PREFIX = "phenotips.patientScoring.monarch.";
+
+    /** By default, scores are recomputed after one day. */
+    private static final int DEFAULT_REFRESH_INTERVAL = 24 * 3600;
+
     @Inject
     private Logger logger;
 
@@ -90,6 +118,9 @@ public class MonarchPatientScorer implements PatientScorer, Initializable
     @Named("xwikiproperties")
     private ConfigurationSource configuration;
 
+    @Inject
+    private Environment environment;
+
     private String scorerURL;
 
     /** The HTTP client used for contacting the MONARCH server. */
@@ -98,15 +129,31 @@ public class MonarchPatientScorer implements PatientScorer, Initializable
     @Inject
     private CacheManager cacheManager;
 
+    /** Fast access to the recently used scores. */
     private Cache<PatientSpecificity> cache;
 
+    /** All the known scores, persisted across restarts. */
+    private MonarchScoreStore store;
+
+    /** The remote requests currently being processed, shared by all the callers asking for the same profile. */
+    private final ConcurrentMap<String, CompletableFuture<PatientSpecificity>> pending = new ConcurrentHashMap<>();
+
+    /** Runs the remote requests. */
+    private ExecutorService executor;
+
+    /** How long to wait for an unknown score, in milliseconds. */
+    private long maxWait;
+
+    /** The age after which a score is recomputed, in milliseconds. */
+    private long refreshInterval;
+
     @Override
     public void initialize() throws InitializationException
     {
         try {
             this.scorerURL = this.configuration
                 .getProperty("phenotips.patientScoring.monarch.serviceURL", "https://monarchinitiative.org/score");
-            CacheConfiguration config = new LRUCacheConfiguration("monarchSpecificityScore", 2048, 3600);
+            CacheConfiguration config = new LRUCacheConfiguration("monarchSpecificityScore", 2048);
             this.cache = this.cacheManager.createNewCache(config);
         } catch (CacheException ex) {
             throw new InitializationException("Failed to create cache", ex);
@@ -120,19 +167,33 @@ public void initialize() throws InitializationException
             this.logger.warn("Failed to set custom certificate trust, using the default", ex);
             this.client = HttpClients.createSystem();
         }
+        this.maxWait = getSetting("maxWait", 0);
+        this.refreshInterval = getSetting("refreshInterval", DEFAULT_REFRESH_INTERVAL) * 1000L;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, getSetting("threads", 2)), runnable -> {
+            Thread thread = new Thread(runnable, "monarch-scorer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.store = new MonarchScoreStore(this.environment.getPermanentDirectory(), SCORER_NAME, this.logger);
+        this.store.load();
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+        IOUtils.closeQuietly(this.client);
     }
 
     @Override
     public PatientSpecificity getSpecificity(Patient patient)
     {
-        String key = getCacheKey(patient);
-        PatientSpecificity result = this.cache.get(key);
+        Profile profile = new Profile(patient);
+        PatientSpecificity result = getKnownScore(profile);
         if (result == null) {
-            double score = getScore(patient);
-            if (score != -1.0) {
-                // getScore populates the cache
-                result = this.cache.get(key);
-            }
+            result = waitFor(request(profile), this.maxWait);
         }
         return result;
     }
@@ -140,32 +201,131 @@ public PatientSpecificity getSpecificity(Patient patient)
     @Override
     public double getScore(Patient patient)
     {
-        String key = getCacheKey(patient);
-        PatientSpecificity specificity = this.cache.get(key);
-        if (specificity != null) {
-            return specificity.getScore();
+        PatientSpecificity specificity = getSpecificity(patient);
+        return specificity == null ? -1 : specificity.getScore();
+    }
+
+    @Override
+    public Map<Patient, Double> getScores(Collection<Patient> patients)
+    {
+        // Send all the needed requests first, then wait for all of them at once
+        Map<Patient, CompletableFuture<PatientSpecificity>> partial = new LinkedHashMap<>();
+        for (Patient patient : patients) {
+            Profile profile = new Profile(patient);
+            PatientSpecificity known = getKnownScore(profile);
+            partial.put(patient, known != null ? CompletableFuture.completedFuture(known) : request(profile));
         }
-        if (patient.getFeatures().isEmpty()) {
-            this.cache.set(key, new PatientSpecificity(0, now(), SCORER_NAME));
-            return 0;
+        long deadline = System.currentTimeMillis() + this.maxWait;
+        Map<Patient, Double> result = new LinkedHashMap<>();
+        for (Map.Entry<Patient, CompletableFuture<PatientSpecificity>> entry : partial.entrySet()) {
+            PatientSpecificity specificity = waitFor(entry.getValue(), deadline - System.currentTimeMillis());
+            result.put(entry.getKey(), specificity == null ? -1 : specificity.getScore());
         }
-        CloseableHttpResponse response = null;
+        return result;
+    }
+
+    /**
+     * Compute the key identifying a phenotypic profile: a hash of the sorted identifiers of the features, with negative
+     * features marked with a {@code -} prefix.
+     *
+     * @param features the features of the profile, free text features are ignored
+     * @return a hexadecimal SHA-256 hash
+     */
+    static String getProfileKey(Collection<? extends Feature> features)
+    {
+        List<String> ids = new ArrayList<>(features.size());
+        for (Feature f : features) {
+            if (StringUtils.isNotEmpty(f.getId())) {
+                ids.add(f.isPresent() ? f.getId() : "-" + f.getId());
+            }
+        }
+        Collections.sort(ids);
         try {
-            JSONObject data = new JSONObject();
-            JSONArray features = new JSONArray();
-            for (Feature f : patient.getFeatures()) {
-                if (StringUtils.isNotEmpty(f.getId())) {
-                    JSONObject featureObj = new JSONObject(Collections.singletonMap("id", f.getId()));
-                    if (!f.isPresent()) {
-                        featureObj.put("isPresent", false);
-                    }
-                    features.put(featureObj);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(StringUtils.join(ids, ',').getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is always available
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Look for an already computed score, and schedule a refresh if it is too old.
+     *
+     * @param profile the profile to score
+     * @return the last computed score, or {@code null} if this profile wasn't scored yet
+     */
+    private PatientSpecificity getKnownScore(Profile profile)
+    {
+        if (profile.isEmpty()) {
+            PatientSpecificity result = new PatientSpecificity(0, now(), SCORER_NAME);
+            this.cache.set(profile.key, result);
+            return result;
+        }
+        PatientSpecificity result = this.cache.get(profile.key);
+        if (result == null) {
+            result = this.store.get(profile.key);
+            if (result != null) {
+                this.cache.set(profile.key, result);
+            }
+        }
+        if (result != null && isStale(result)) {
+            request(profile);
+        }
+        return result;
+    }
+
+    private boolean isStale(PatientSpecificity score)
+    {
+        Date computed = score.getComputationDate();
+        return computed == null || System.currentTimeMillis() - computed.getTime() > this.refreshInterval;
+    }
+
+    /**
+     * Schedule a remote request for a profile, unless one is already in progress.
+     *
+     * @param profile the profile to score
+     * @return the pending remote request
+     */
+    private CompletableFuture<PatientSpecificity> request(Profile profile)
+    {
+        return this.pending.computeIfAbsent(profile.key, key -> CompletableFuture.supplyAsync(() -> {
+            try {
+                PatientSpecificity result = requestScore(profile);
+                if (result != null) {
+                    this.cache.set(key, result);
+                    this.store.put(key, result);
                 }
+                return result;
+            } finally {
+                this.pending.remove(key);
             }
-            data.put("features", features);
+        }, this.executor));
+    }
 
+    private PatientSpecificity waitFor(CompletableFuture<PatientSpecificity> future, long timeout)
+    {
+        try {
+            return timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.getNow(null);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            // Not available yet, or failed; failures are already logged
+        }
+        return null;
+    }
+
+    private PatientSpecificity requestScore(Profile profile)
+    {
+        CloseableHttpResponse response = null;
+        try {
             HttpPost method = new HttpPost(this.scorerURL);
-            method.setEntity(new StringEntity("annotation_profile=" + URLEncoder.encode(data.toString(), "UTF-8"),
+            method.setEntity(new StringEntity("annotation_profile=" + URLEncoder.encode(profile.data, "UTF-8"),
                 ContentType.create("application/x-www-form-urlencoded", Consts.UTF_8)));
 
             RequestConfig config = RequestConfig.custom().setSocketTimeout(2000).build();
@@ -173,13 +333,11 @@ public double getScore(Patient patient)
             response = this.client.execute(method);
             JSONObject score =
                 new JSONObject(IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
-            specificity = new PatientSpecificity(score.getDouble("scaled_score"), now(), SCORER_NAME);
-            this.cache.set(key, specificity);
-            return specificity.getScore();
+            return new PatientSpecificity(score.getDouble("scaled_score"), now(), SCORER_NAME);
         } catch (Exception ex) {
             // Just return failure below
             this.logger.error("Failed to compute specificity score for patient [{}] using the monarch server [{}]: {}",
-                patient.getDocumentReference(), this.scorerURL, ex.getMessage());
+                profile.patientReference, this.scorerURL, ex.getMessage());
         } finally {
             if (response != null) {
                 try {
@@ -190,21 +348,13 @@ public double getScore(Patient patient)
                 }
             }
         }
-        return -1;
+        return null;
     }
 
-    private String getCacheKey(Patient patient)
+    private int getSetting(String name, int defaultValue)
     {
-        StringBuilder result = new StringBuilder();
-        for (Feature f : patient.getFeatures()) {
-            if (StringUtils.isNotEmpty(f.getId())) {
-                if (!f.isPresent()) {
-                    result.append('-');
-                }
-                result.append(f.getId());
-            }
-        }
-        return result.toString();
+        Integer value = this.configuration.getProperty(CONFIGURATION_PREFIX + name, Integer.class);
+        return value == null ? defaultValue : value;
     }
 
     private Date now()
@@ -212,6 +362,47 @@ private Date now()
         return Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ROOT).getTime();
     }
 
+    /**
+     * A snapshot of the data needed for scoring a patient, detached from the patient object so that it can be safely
+     * used from a background thread.
+     */
+    private static final class Profile
+    {
+        private final String key;
+
+        private final String data;
+
+        private final Object patientReference;
+
+        private final boolean empty;
+
+        Profile(Patient patient)
+        {
+            Collection<? extends Feature> features = patient.getFeatures();
+            this.key = getProfileKey(features);
+            this.patientReference = patient.getDocumentReference();
+            JSONArray featuresJson = new JSONArray();
+            for (Feature f : features) {
+                if (StringUtils.isNotEmpty(f.getId())) {
+                    JSONObject featureObj = new JSONObject(Collections.singletonMap("id", f.getId()));
+                    if (!f.isPresent()) {
+                        featureObj.put("isPresent", false);
+                    }
+                    featuresJson.put(featureObj);
+                }
+            }
+            this.empty = features.isEmpty();
+            JSONObject json = new JSONObject();
+            json.put("features", featuresJson);
+            this.data = json.toString();
+        }
+
+        boolean isEmpty()
+        {
+            return this.empty;
+        }
+    }
+
     private static final class TrustAllStrategy implements TrustStrategy
     {
         @Override
@@ -0,0 +1,176 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientSpecificity;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+
+/**
+ * Keeps the specificity scores computed by a remote service in a local file, so that they survive restarts. Scores
+ * are identified by a key computed from the scored phenotypic profile. The file is append-only while running, with one
+ * {@code key<TAB>score<TAB>timestamp} line per computed score; later lines replace earlier lines with the same key,
+ * and the file is compacted when loaded.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class MonarchScoreStore
+{
+    private static final String FILE_NAME = "monarch-scores.tsv";
+
+    private static final String SEPARATOR = "\t";
+
+    private final File file;
+
+    private final String computingMethod;
+
+    private final Logger logger;
+
+    private final Map<String, PatientSpecificity> scores = new ConcurrentHashMap<>();
+
+    /**
+     * Simple constructor.
+     *
+     * @param directory the directory where scores are stored, may be {@code null} to only keep scores in memory
+     * @param computingMethod the name of the scorer, set as the computing method of the loaded scores
+     * @param logger the logger used for reporting problems
+     */
+    public MonarchScoreStore(File directory, String computingMethod, Logger logger)
+    {
+        this.file = directory == null ? null : new File(new File(directory, "specificity"), FILE_NAME);
+        this.computingMethod = computingMethod;
+        this.logger = logger;
+    }
+
+    /**
+     * Read the stored scores, and rewrite the file without the replaced entries.
+     */
+    public synchronized void load()
+    {
+        if (this.file == null || !this.file.isFile()) {
+            return;
+        }
+        int lines = 0;
+        try (BufferedReader in = Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                ++lines;
+                parse(line);
+            }
+        } catch (IOException ex) {
+            this.logger.warn("Failed to read stored specificity scores: {}", ex.getMessage());
+            return;
+        }
+        if (lines > this.scores.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Get a stored score.
+     *
+     * @param key the key identifying the scored profile
+     * @return the stored score, or {@code null} if this profile wasn't scored yet
+     */
+    public PatientSpecificity get(String key)
+    {
+        return this.scores.get(key);
+    }
+
+    /**
+     * Store a new score, replacing any previous score for the same profile.
+     *
+     * @param key the key identifying the scored profile
+     * @param score the computed score
+     */
+    public synchronized void put(String key, PatientSpecificity score)
+    {
+        this.scores.put(key, score);
+        if (this.file == null) {
+            return;
+        }
+        try {
+            this.file.getParentFile().mkdirs();
+            try (Writer out = Files.newBufferedWriter(this.file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                write(out, key, score);
+            }
+        } catch (IOException ex) {
+            this.logger.warn("Failed to store specificity score: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * The number of known scores.
+     *
+     * @return a positive number, or {@code 0} if no scores are known
+     */
+    public int size()
+    {
+        return this.scores.size();
+    }
+
+    private void parse(String line)
+    {
+        String[] parts = line.split(SEPARATOR);
+        if (parts.length != 3) {
+            return;
+        }
+        try {
+            this.scores.put(parts[0], new PatientSpecificity(Double.parseDouble(parts[1]),
+                new Date(Long.parseLong(parts[2])), this.computingMethod));
+        } catch (NumberFormatException ex) {
+            // Partially written line, ignore it
+        }
+    }
+
+    private void compact()
+    {
+        File temp = new File(this.file.getParentFile(), FILE_NAME + ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, PatientSpecificity> entry : this.scores.entrySet()) {
+                    write(out, entry.getKey(), entry.getValue());
+                }
+            }
+            Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            this.logger.warn("Failed to compact stored specificity scores: {}", ex.getMessage());
+        }
+    }
+
+    private void write(Writer out, String key, PatientSpecificity score) throws IOException
+    {
+        out.write(key + SEPARATOR + score.getScore() + SEPARATOR + score.getComputationDate().getTime() + "\n");
+    }
+}
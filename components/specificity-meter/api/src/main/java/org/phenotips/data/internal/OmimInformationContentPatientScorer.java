@@ -21,7 +21,9 @@
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientScorer;
 import org.phenotips.data.PatientSpecificity;
+import org.phenotips.vocabulary.SolrVocabularyResourceManager;
 import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyHierarchy;
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.annotation.Component;
@@ -29,9 +31,14 @@
 import org.xwiki.component.phase.InitializationException;
 
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 
@@ -42,10 +49,18 @@
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.FacetParams;
+import org.slf4j.Logger;
 
 /**
  * Patient scorer that computes a local score based on the information content provided by the selected positive and
- * negative features with regards to identifying OMIM disorders.
+ * negative features with regards to identifying OMIM disorders. The number of disorders annotated with each phenotype
+ * is precomputed in a compact in-memory table, built with a single facet query over the OMIM index and rebuilt every
+ * time OMIM is reindexed, so that scoring a patient doesn't require any queries. If the table cannot be built, the
+ * counts are queried from the OMIM vocabulary for each feature.
  *
  * @version $Id$
  * @since 1.0M12
@@ -57,6 +72,11 @@ public class OmimInformationContentPatientScorer implements PatientScorer, Initi
 {
     private static final String SEARCH_FOR = "symptom";
 
+    private static final String ROOT_PHENOTYPE = "HP:0000001";
+
+    @Inject
+    private Logger logger;
+
     /** Provides access to the OMIM ontology, where the information content is checked. */
     @Inject
     @Named("omim")
@@ -67,13 +87,36 @@ public class OmimInformationContentPatientScorer implements PatientScorer, Initi
     @Named("hpo")
     private Vocabulary hpo;
 
+    /** Provides direct access to the OMIM index, used for building the table of annotation counts. */
+    @Inject
+    private SolrVocabularyResourceManager solrResources;
+
     /** The total information present in OMIM that is reachable through phenotypes. */
-    private double totalTerms;
+    private volatile double totalTerms;
+
+    /** The number of disorders annotated with each phenotype, {@code null} if it could not be computed. */
+    private volatile AnnotationCountTable annotationCounts;
 
     @Override
     public void initialize() throws InitializationException
     {
-        this.totalTerms = this.omim.count(Collections.singletonMap(SEARCH_FOR, "HP:0000001"));
+        refresh();
+    }
+
+    /**
+     * Rebuild the table of annotation counts from the current OMIM index. Called when the OMIM vocabulary is
+     * reindexed.
+     */
+    public synchronized void refresh()
+    {
+        AnnotationCountTable counts = buildAnnotationCounts();
+        if (counts != null && counts.getCount(ROOT_PHENOTYPE) > 0) {
+            this.totalTerms = counts.getCount(ROOT_PHENOTYPE);
+        } else {
+            counts = null;
+            this.totalTerms = this.omim.count(Collections.singletonMap(SEARCH_FOR, ROOT_PHENOTYPE));
+        }
+        this.annotationCounts = counts;
     }
 
     @Override
@@ -86,8 +129,34 @@ public PatientSpecificity getSpecificity(Patient patient)
     @Override
     public double getScore(Patient patient)
     {
-        Pair<Double, Integer> symptomsScore = process(patient, true);
-        Pair<Double, Integer> negativeSymptomsScore = process(patient, false);
+        return getScore(patient, this.annotationCounts, new HashMap<String, Double>());
+    }
+
+    @Override
+    public Map<Patient, Double> getScores(Collection<Patient> patients)
+    {
+        // The same table and the same information content values are used for the whole batch
+        AnnotationCountTable counts = this.annotationCounts;
+        Map<String, Double> computed = new HashMap<>();
+        Map<Patient, Double> result = new LinkedHashMap<>();
+        for (Patient patient : patients) {
+            result.put(patient, getScore(patient, counts, computed));
+        }
+        return result;
+    }
+
+    /**
+     * Compute the score of a patient.
+     *
+     * @param patient the patient profile to score
+     * @param counts the table of annotation counts to use, may be {@code null}
+     * @param computed information content values already computed, reused and updated
+     * @return the computed score
+     */
+    private double getScore(Patient patient, AnnotationCountTable counts, Map<String, Double> computed)
+    {
+        Pair<Double, Integer> symptomsScore = process(patient, true, counts, computed);
+        Pair<Double, Integer> negativeSymptomsScore = process(patient, false, counts, computed);
         double score = 0;
 
         if (symptomsScore.getRight() + negativeSymptomsScore.getRight() > 0) {
@@ -102,15 +171,23 @@ public double getScore(Patient patient)
      * @param p the patient profile to score
      * @param presentFeatures whether the score for positive ({@code true}) or negative ({@code false}) features is
      *            computed
+     * @param counts the table of annotation counts to use, may be {@code null}
+     * @param computed information content values already computed, reused and updated
      * @return the score (information content) and the number of features
      */
-    private Pair<Double, Integer> process(Patient p, boolean presentFeatures)
+    private Pair<Double, Integer> process(Patient p, boolean presentFeatures, AnnotationCountTable counts,
+        Map<String, Double> computed)
     {
         double score = 0;
         int count = 0;
         for (Feature f : p.getFeatures()) {
             if (StringUtils.isNotEmpty(f.getId()) && f.isPresent() == presentFeatures) {
-                score += informationContent(f);
+                Double ic = computed.get(f.getId());
+                if (ic == null) {
+                    ic = informationContent(f.getId(), counts);
+                    computed.put(f.getId(), ic);
+                }
+                score += ic;
                 count++;
             }
         }
@@ -122,30 +199,92 @@ private Pair<Double, Integer> process(Patient p, boolean presentFeatures)
      * the total selectable diseases. If a feature doesn't select any diseases at all, the information content of its
      * nearest represented ancestor is considered, with a slight boost for even more specificity.
      *
-     * @param f the target feature to measure
+     * @param featureId the identifier of the target feature to measure
+     * @param counts the table of annotation counts to use, may be {@code null}
      * @return the information content captured by this term
      */
-    private double informationContent(Feature f)
+    private double informationContent(String featureId, AnnotationCountTable counts)
     {
-        String toSearch = f.getId();
-        double ic = informationContent(this.omim.count(Collections.singletonMap(SEARCH_FOR, toSearch)));
+        String toSearch = featureId;
+        double ic = informationContent(count(toSearch, counts));
         int i = 0;
 
         while (ic == 0 && ++i < 5) {
-            VocabularyTerm term = this.hpo.getTerm(toSearch);
-            if (term == null) {
-                break;
-            }
-            Set<VocabularyTerm> parents = term.getParents();
-            if (parents.isEmpty()) {
+            toSearch = getFirstParent(toSearch);
+            if (toSearch == null) {
                 break;
             }
-            toSearch = parents.iterator().next().getId();
-            ic = informationContent(this.omim.count(Collections.singletonMap(SEARCH_FOR, toSearch)));
+            ic = informationContent(count(toSearch, counts));
         }
         return ic * (1 + i / 5);
     }
 
+    /**
+     * Count how many OMIM disorders are annotated with a phenotype.
+     *
+     * @param termId the identifier of the phenotype to count
+     * @param counts the table of annotation counts to use, if {@code null} then the OMIM vocabulary is queried instead
+     * @return the number of annotated disorders
+     */
+    private long count(String termId, AnnotationCountTable counts)
+    {
+        if (counts != null) {
+            return counts.getCount(termId);
+        }
+        return this.omim.count(Collections.singletonMap(SEARCH_FOR, termId));
+    }
+
+    /**
+     * Compute the number of disorders annotated with each phenotype, using a single facet query over the OMIM index.
+     *
+     * @return the table of counts, or {@code null} if the OMIM index isn't accessible
+     */
+    private AnnotationCountTable buildAnnotationCounts()
+    {
+        try {
+            SolrClient client = this.solrResources.getSolrConnection(this.omim.getIdentifier());
+            if (client == null) {
+                return null;
+            }
+            SolrQuery query = new SolrQuery("*:*");
+            query.setRows(0);
+            query.setFacet(true);
+            query.addFacetField(SEARCH_FOR);
+            query.setFacetLimit(-1);
+            query.setFacetMinCount(1);
+            query.setFacetSort(FacetParams.FACET_SORT_INDEX);
+            QueryResponse response = client.query(query);
+            AnnotationCountTable result = AnnotationCountTable.fromFacet(response.getFacetField(SEARCH_FOR));
+            this.logger.debug("Loaded OMIM annotation counts for {} phenotypes", result.size());
+            return result;
+        } catch (Exception ex) {
+            this.logger.warn("Failed to compute the OMIM annotation counts, falling back to individual queries: {}",
+                ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Find one of the parents of a term, using the in-memory hierarchy when available.
+     *
+     * @param termId the identifier of the term whose parent is needed
+     * @return the identifier of a parent term, or {@code null} if the term is unknown or is a root
+     */
+    private String getFirstParent(String termId)
+    {
+        VocabularyHierarchy hierarchy = this.hpo.getHierarchy();
+        if (hierarchy != null && hierarchy.contains(termId)) {
+            List<String> parents = hierarchy.getParents(termId);
+            return parents.isEmpty() ? null : parents.get(0);
+        }
+        VocabularyTerm term = this.hpo.getTerm(termId);
+        if (term == null) {
+            return null;
+        }
+        Set<VocabularyTerm> parents = term.getParents();
+        return parents.isEmpty() ? null : parents.iterator().next().getId();
+    }
+
     /**
      * How much information is contained in {@code n} terms out of the whole ontology?
      *
@@ -0,0 +1,84 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientScorer;
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyExtension;
+import org.phenotips.vocabulary.VocabularyInputTerm;
+
+import org.xwiki.component.annotation.Component;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.solr.client.solrj.SolrQuery;
+
+/**
+ * Rebuilds the annotation counts used by the {@link OmimInformationContentPatientScorer local OMIM scorer} every time
+ * the OMIM vocabulary is reindexed.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("omimInformationContentRefresher")
+@Singleton
+public class OmimInformationContentRefresher implements VocabularyExtension
+{
+    private static final String OMIM = "omim";
+
+    @Inject
+    @Named("omimInformationContent")
+    private Provider<PatientScorer> scorer;
+
+    @Override
+    public boolean isVocabularySupported(Vocabulary vocabulary)
+    {
+        return OMIM.equals(vocabulary.getIdentifier());
+    }
+
+    @Override
+    public void indexingStarted(Vocabulary vocabulary)
+    {
+        // Nothing to prepare
+    }
+
+    @Override
+    public void extendTerm(VocabularyInputTerm term, Vocabulary vocabulary)
+    {
+        // Terms are not modified
+    }
+
+    @Override
+    public void indexingEnded(Vocabulary vocabulary)
+    {
+        PatientScorer instance = this.scorer.get();
+        if (instance instanceof OmimInformationContentPatientScorer) {
+            ((OmimInformationContentPatientScorer) instance).refresh();
+        }
+    }
+
+    @Override
+    public void extendQuery(SolrQuery query, Vocabulary vocabulary)
+    {
+        // Queries are not modified
+    }
+}
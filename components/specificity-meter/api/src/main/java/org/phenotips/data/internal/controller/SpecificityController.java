@@ -18,6 +18,7 @@
 package org.phenotips.data.internal.controller;
 
 import org.phenotips.data.DictionaryPatientData;
+import org.phenotips.data.FieldAwarePatientDataController;
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientDataController;
@@ -32,6 +33,7 @@
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Locale;
@@ -55,7 +57,8 @@
 @Named("specificity")
 @Singleton
 @Unstable
-public class SpecificityController implements PatientDataController<Object>, Initializable
+public class SpecificityController
+    implements PatientDataController<Object>, FieldAwarePatientDataController, Initializable
 {
     /** The name of the data module exposed by this class. */
     private static final String NAME = "specificity";
@@ -132,4 +135,10 @@ public String getName()
     {
         return NAME;
     }
+
+    @Override
+    public Collection<String> getControlledFields()
+    {
+        return Collections.singleton(NAME);
+    }
 }
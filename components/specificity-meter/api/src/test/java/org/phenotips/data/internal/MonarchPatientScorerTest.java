@@ -34,6 +34,8 @@
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
@@ -42,6 +44,9 @@
 import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
@@ -61,12 +66,20 @@
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.matchers.CapturingMatcher;
 
+import com.sun.net.httpserver.HttpServer;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class MonarchPatientScorerTest
 {
+    private static final String SERVICE_URL = "phenotips.patientScoring.monarch.serviceURL";
+
+    private static final String MAX_WAIT = "phenotips.patientScoring.monarch.maxWait";
+
     private ConfigurationSource configuration;
 
     @Mock
@@ -101,6 +114,7 @@ public void setup() throws CacheException, ComponentLookupException
         when(this.configuration.getProperty("phenotips.patientScoring.monarch.serviceURL",
             "https://monarchinitiative.org/score"))
                 .thenReturn("https://monarchinitiative.org/score");
+        when(this.configuration.getProperty(MAX_WAIT, Integer.class)).thenReturn(5000);
 
         Feature feature = mock(Feature.class);
         when(feature.getId()).thenReturn("HP:1");
@@ -156,8 +170,9 @@ public void getScoreUsesCache() throws ComponentLookupException, URISyntaxExcept
     {
         Mockito.doReturn(this.features).when(this.patient).getFeatures();
         PatientSpecificity spec = mock(PatientSpecificity.class);
-        when(this.cache.get("HP:1-HP:2")).thenReturn(spec);
+        when(this.cache.get(MonarchPatientScorer.getProfileKey(this.features))).thenReturn(spec);
         when(spec.getScore()).thenReturn(2.0);
+        when(spec.getComputationDate()).thenReturn(new Date());
         double score = this.mocker.getComponentUnderTest().getScore(this.patient);
         Assert.assertEquals(2.0, score, 0.0);
         Mockito.verifyZeroInteractions(this.client);
@@ -193,7 +208,9 @@ public void getSpecificityWithNoFeaturesReturns0() throws ComponentLookupExcepti
     {
         Mockito.doReturn(Collections.emptySet()).when(this.patient).getFeatures();
         CapturingMatcher<PatientSpecificity> specCapture = new CapturingMatcher<>();
-        Mockito.doNothing().when(this.cache).set(Matchers.eq(""), Matchers.argThat(specCapture));
+        Mockito.doNothing().when(this.cache).set(
+            Matchers.eq(MonarchPatientScorer.getProfileKey(Collections.<Feature>emptySet())),
+            Matchers.argThat(specCapture));
         Date d1 = new Date();
         this.mocker.getComponentUnderTest().getSpecificity(this.patient);
         Date d2 = new Date();
@@ -215,7 +232,8 @@ public void getSpecificitySearchesRemotely() throws Exception
         when(this.responseEntity.getContent())
             .thenReturn(IOUtils.toInputStream("{\"scaled_score\":2}", StandardCharsets.UTF_8));
         CapturingMatcher<PatientSpecificity> specCapture = new CapturingMatcher<>();
-        Mockito.doNothing().when(this.cache).set(Matchers.eq("HP:1-HP:2"), Matchers.argThat(specCapture));
+        Mockito.doNothing().when(this.cache).set(Matchers.eq(MonarchPatientScorer.getProfileKey(this.features)),
+            Matchers.argThat(specCapture));
         Date d1 = new Date();
         this.mocker.getComponentUnderTest().getSpecificity(this.patient);
         Date d2 = new Date();
@@ -241,7 +259,8 @@ public void getSpecificityUsesCache() throws Exception
     {
         Mockito.doReturn(this.features).when(this.patient).getFeatures();
         PatientSpecificity spec = mock(PatientSpecificity.class);
-        when(this.cache.get("HP:1-HP:2")).thenReturn(spec);
+        when(this.cache.get(MonarchPatientScorer.getProfileKey(this.features))).thenReturn(spec);
+        when(spec.getComputationDate()).thenReturn(new Date());
         Assert.assertSame(spec, this.mocker.getComponentUnderTest().getSpecificity(this.patient));
         Mockito.verifyZeroInteractions(this.client);
     }
@@ -297,4 +316,73 @@ public void checkURLConfigurable() throws ComponentLookupException, URISyntaxExc
             reqCapture.getLastValue().getEntity().getContentType().getValue());
         Assert.assertEquals(2.0, score, 0.0);
     }
+
+    @Test
+    public void profileKeyDoesntDependOnFeatureOrder()
+    {
+        Set<Feature> reversed = new LinkedHashSet<>();
+        Feature[] ordered = this.features.toArray(new Feature[0]);
+        for (int i = ordered.length - 1; i >= 0; --i) {
+            reversed.add(ordered[i]);
+        }
+        Assert.assertEquals(MonarchPatientScorer.getProfileKey(this.features),
+            MonarchPatientScorer.getProfileKey(reversed));
+        Assert.assertEquals(64, MonarchPatientScorer.getProfileKey(this.features).length());
+        Assert.assertNotEquals(MonarchPatientScorer.getProfileKey(this.features),
+            MonarchPatientScorer.getProfileKey(Collections.singleton(ordered[0])));
+    }
+
+    @Test
+    public void staleScoresAreReturnedAndRefreshedInBackground() throws Exception
+    {
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        PatientSpecificity spec = mock(PatientSpecificity.class);
+        when(this.cache.get(MonarchPatientScorer.getProfileKey(this.features))).thenReturn(spec);
+        when(spec.getScore()).thenReturn(2.0);
+        when(spec.getComputationDate()).thenReturn(new Date(System.currentTimeMillis() - 2 * 24 * 3600 * 1000L));
+        Assert.assertEquals(2.0, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
+        verify(this.client, timeout(5000)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void concurrentRequestsForTheSameProfileAreCoalesced() throws Exception
+    {
+        final AtomicInteger requests = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/score", exchange -> {
+            requests.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{\"scaled_score\":0.5}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            when(this.configuration.getProperty(SERVICE_URL, "https://monarchinitiative.org/score"))
+                .thenReturn("http://localhost:" + server.getAddress().getPort() + "/score");
+            when(this.configuration.getProperty(MAX_WAIT, Integer.class)).thenReturn(0);
+            ((Initializable) this.mocker.getComponentUnderTest()).initialize();
+            Mockito.doReturn(this.features).when(this.patient).getFeatures();
+
+            // Not available yet, the caller isn't blocked
+            Assert.assertEquals(-1.0, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
+            Assert.assertEquals(-1.0, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
+            release.countDown();
+
+            CapturingMatcher<PatientSpecificity> specCapture = new CapturingMatcher<>();
+            verify(this.cache, timeout(5000)).set(Matchers.eq(MonarchPatientScorer.getProfileKey(this.features)),
+                Matchers.argThat(specCapture));
+            Assert.assertEquals(0.5, specCapture.getLastValue().getScore(), 0.0);
+            Assert.assertEquals(1, requests.get());
+        } finally {
+            server.stop(0);
+        }
+    }
 }
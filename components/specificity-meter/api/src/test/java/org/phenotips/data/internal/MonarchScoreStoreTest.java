@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientSpecificity;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+
+import static org.mockito.Mockito.mock;
+
+public class MonarchScoreStoreTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Logger logger = mock(Logger.class);
+
+    @Test
+    public void scoresSurviveRestarts() throws Exception
+    {
+        File directory = this.folder.newFolder();
+        MonarchScoreStore store = new MonarchScoreStore(directory, "monarch", this.logger);
+        store.load();
+        Date date = new Date(1234567890L);
+        store.put("abc", new PatientSpecificity(0.25, date, "monarch"));
+        store.put("def", new PatientSpecificity(0.5, date, "monarch"));
+
+        MonarchScoreStore reloaded = new MonarchScoreStore(directory, "monarch", this.logger);
+        reloaded.load();
+        Assert.assertEquals(2, reloaded.size());
+        PatientSpecificity score = reloaded.get("abc");
+        Assert.assertEquals(0.25, score.getScore(), 0.0);
+        Assert.assertEquals(date, score.getComputationDate());
+        Assert.assertEquals("monarch", score.getComputingMethod());
+        Assert.assertNull(reloaded.get("xyz"));
+    }
+
+    @Test
+    public void replacedScoresAreCompactedOnLoad() throws Exception
+    {
+        File directory = this.folder.newFolder();
+        MonarchScoreStore store = new MonarchScoreStore(directory, "monarch", this.logger);
+        store.put("abc", new PatientSpecificity(0.25, new Date(), "monarch"));
+        store.put("abc", new PatientSpecificity(0.75, new Date(), "monarch"));
+
+        MonarchScoreStore reloaded = new MonarchScoreStore(directory, "monarch", this.logger);
+        reloaded.load();
+        Assert.assertEquals(0.75, reloaded.get("abc").getScore(), 0.0);
+        File file = new File(new File(directory, "specificity"), "monarch-scores.tsv");
+        Assert.assertEquals(1, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void malformedLinesAreIgnored() throws Exception
+    {
+        File directory = this.folder.newFolder();
+        File file = new File(new File(directory, "specificity"), "monarch-scores.tsv");
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), "abc\t0.5\t1000\ndef\t0.\nghi\tx\t1000\n".getBytes(StandardCharsets.UTF_8));
+
+        MonarchScoreStore store = new MonarchScoreStore(directory, "monarch", this.logger);
+        store.load();
+        Assert.assertEquals(1, store.size());
+        Assert.assertEquals(0.5, store.get("abc").getScore(), 0.0);
+    }
+
+    @Test
+    public void storeWithoutDirectoryKeepsScoresInMemory()
+    {
+        MonarchScoreStore store = new MonarchScoreStore(null, "monarch", this.logger);
+        store.load();
+        store.put("abc", new PatientSpecificity(0.25, new Date(), "monarch"));
+        Assert.assertEquals(0.25, store.get("abc").getScore(), 0.0);
+    }
+}
@@ -21,6 +21,7 @@
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientScorer;
 import org.phenotips.data.PatientSpecificity;
+import org.phenotips.vocabulary.SolrVocabularyResourceManager;
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
 
@@ -28,10 +29,17 @@
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -40,7 +48,12 @@
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class OmimInformationContentPatientScorerTest
@@ -185,4 +198,40 @@ public void getScoreWithParentlessTermDoesntThrowException() throws ComponentLoo
 
         Assert.assertEquals(0.0, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
     }
+
+    @Test
+    public void getScoreUsesPrecomputedAnnotationCounts() throws Exception
+    {
+        SolrClient client = mock(SolrClient.class);
+        QueryResponse response = mock(QueryResponse.class);
+        FacetField facet = new FacetField("symptom");
+        facet.add("HP:0000001", 60);
+        facet.add("HP:1", 3);
+        facet.add("HP:2", 1);
+        facet.add("HP:4", 2);
+        when(this.omim.getIdentifier()).thenReturn("omim");
+        SolrVocabularyResourceManager solr = this.mocker.getInstance(SolrVocabularyResourceManager.class);
+        when(solr.getSolrConnection("omim")).thenReturn(client);
+        when(client.query(any(SolrQuery.class))).thenReturn(response);
+        when(response.getFacetField("symptom")).thenReturn(facet);
+
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        Assert.assertEquals(0.56, this.mocker.getComponentUnderTest().getScore(this.patient), 0.01);
+        verify(this.omim, never()).count(anyMapOf(String.class, String.class));
+    }
+
+    @Test
+    public void getScoresComputesEachFeatureOnce() throws Exception
+    {
+        Patient other = mock(Patient.class);
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        Mockito.doReturn(this.features).when(other).getFeatures();
+
+        Map<Patient, Double> scores =
+            this.mocker.getComponentUnderTest().getScores(Arrays.asList(this.patient, other));
+        Assert.assertEquals(2, scores.size());
+        Assert.assertEquals(0.56, scores.get(this.patient), 0.01);
+        Assert.assertEquals(0.56, scores.get(other), 0.01);
+        verify(this.omim, times(1)).count(Collections.singletonMap("symptom", "HP:1"));
+    }
 }
@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientScorer;
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyExtension;
+import org.phenotips.vocabulary.VocabularyInputTerm;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.lang.reflect.Type;
+
+import javax.inject.Provider;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class OmimInformationContentRefresherTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<VocabularyExtension> mocker =
+        new MockitoComponentMockingRule<VocabularyExtension>(OmimInformationContentRefresher.class);
+
+    @Test
+    public void onlyOmimIsSupported() throws ComponentLookupException
+    {
+        Vocabulary vocabulary = mock(Vocabulary.class);
+        when(vocabulary.getIdentifier()).thenReturn("omim");
+        Assert.assertTrue(this.mocker.getComponentUnderTest().isVocabularySupported(vocabulary));
+        when(vocabulary.getIdentifier()).thenReturn("hpo");
+        Assert.assertFalse(this.mocker.getComponentUnderTest().isVocabularySupported(vocabulary));
+    }
+
+    @Test
+    public void indexingEndedRefreshesScorer() throws Exception
+    {
+        Type providerType = new DefaultParameterizedType(null, Provider.class,
+            PatientScorer.class);
+        Provider<PatientScorer> provider = this.mocker.getInstance(providerType, "omimInformationContent");
+        OmimInformationContentPatientScorer scorer = mock(OmimInformationContentPatientScorer.class);
+        when(provider.get()).thenReturn(scorer);
+
+        Vocabulary vocabulary = mock(Vocabulary.class);
+        VocabularyInputTerm term = mock(VocabularyInputTerm.class);
+        SolrQuery query = mock(SolrQuery.class);
+        VocabularyExtension extension = this.mocker.getComponentUnderTest();
+        extension.indexingStarted(vocabulary);
+        extension.extendTerm(term, vocabulary);
+        extension.extendQuery(query, vocabulary);
+        verifyZeroInteractions(scorer, term, query);
+
+        extension.indexingEnded(vocabulary);
+        verify(scorer).refresh();
+    }
+}
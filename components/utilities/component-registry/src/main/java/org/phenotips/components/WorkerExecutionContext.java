@@ -0,0 +1,73 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.components;
+
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Sets up execution contexts for background threads. Code running in a background thread, for example loading
+ * documents, may need the current wiki, user or locale of the thread which started it, so the background thread gets
+ * its own copy of the execution context of that thread. The XWiki context of the copy is a separate clone, without the
+ * database session and transaction of the original, since a Hibernate session can't be shared between threads.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class WorkerExecutionContext
+{
+    /** The keys under which the XWiki context holds the database session and transaction of its thread. */
+    private static final String[] STORE_SESSION_KEYS = { "hibsession", "hibtransaction" };
+
+    private WorkerExecutionContext()
+    {
+        // Utility class, not instantiable
+    }
+
+    /**
+     * Creates an execution context for a background thread.
+     *
+     * @param parentContext the execution context of the thread starting the background work, may be {@code null}
+     * @param contextManager used for copying the parent context, or for initializing a new context
+     * @return a copy of the parent context, with its own XWiki context without a database session, or a newly
+     *         initialized context if there's no parent context
+     * @throws ExecutionContextException if copying or initializing the context fails
+     */
+    public static ExecutionContext create(ExecutionContext parentContext, ExecutionContextManager contextManager)
+        throws ExecutionContextException
+    {
+        if (parentContext == null) {
+            ExecutionContext context = new ExecutionContext();
+            contextManager.initialize(context);
+            return context;
+        }
+        ExecutionContext context = contextManager.clone(parentContext);
+        Object xcontext = context.getProperty(XWikiContext.EXECUTIONCONTEXT_KEY);
+        if (xcontext instanceof XWikiContext) {
+            XWikiContext copy = ((XWikiContext) xcontext).clone();
+            for (String key : STORE_SESSION_KEYS) {
+                copy.remove(key);
+            }
+            copy.declareInExecutionContext(context);
+        }
+        return context;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.components;
+
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link WorkerExecutionContext}.
+ *
+ * @version $Id$
+ */
+public class WorkerExecutionContextTest
+{
+    @Test
+    public void newContextIsInitializedWithoutAParentContext() throws ExecutionContextException
+    {
+        ExecutionContextManager contextManager = mock(ExecutionContextManager.class);
+
+        ExecutionContext context = WorkerExecutionContext.create(null, contextManager);
+
+        Assert.assertNotNull(context);
+        verify(contextManager).initialize(context);
+    }
+
+    @Test
+    public void xwikiContextIsClonedWithoutTheStoreSession() throws ExecutionContextException
+    {
+        ExecutionContextManager contextManager = mock(ExecutionContextManager.class);
+        XWikiContext parentXContext = mock(XWikiContext.class);
+        XWikiContext copy = mock(XWikiContext.class);
+        when(parentXContext.clone()).thenReturn(copy);
+        ExecutionContext parent = new ExecutionContext();
+        ExecutionContext clone = new ExecutionContext();
+        clone.setProperty(XWikiContext.EXECUTIONCONTEXT_KEY, parentXContext);
+        when(contextManager.clone(parent)).thenReturn(clone);
+
+        Assert.assertSame(clone, WorkerExecutionContext.create(parent, contextManager));
+
+        verify(copy).remove("hibsession");
+        verify(copy).remove("hibtransaction");
+        verify(copy).declareInExecutionContext(clone);
+        verify(parentXContext, never()).remove("hibsession");
+        verify(contextManager, never()).initialize(clone);
+    }
+
+    @Test
+    public void contextsWithoutAnXWikiContextAreJustCloned() throws ExecutionContextException
+    {
+        ExecutionContextManager contextManager = mock(ExecutionContextManager.class);
+        ExecutionContext parent = new ExecutionContext();
+        ExecutionContext clone = new ExecutionContext();
+        when(contextManager.clone(parent)).thenReturn(clone);
+
+        Assert.assertSame(clone, WorkerExecutionContext.create(parent, contextManager));
+    }
+}
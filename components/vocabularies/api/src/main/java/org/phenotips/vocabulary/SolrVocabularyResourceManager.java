@@ -48,4 +48,23 @@
      * @return a Solr client for communication with the target core
      */
     SolrClient getSolrConnection(String vocabularyId);
+
+    /**
+     * Get the usage statistics of the term cache of a vocabulary.
+     *
+     * @param vocabularyId the identifier of the target vocabulary
+     * @return the statistics of the cache, or {@code null} if the resources of the vocabulary haven't been initialized
+     * @since 1.4
+     */
+    VocabularyCacheStatistics getCacheStatistics(String vocabularyId);
+
+    /**
+     * Get the maximum number of terms kept in the term cache of a vocabulary, as configured for that vocabulary, or
+     * for all the vocabularies.
+     *
+     * @param vocabularyId the identifier of the target vocabulary
+     * @return the configured cache size
+     * @since 1.4
+     */
+    int getCacheSize(String vocabularyId);
 }
@@ -137,6 +137,17 @@
      */
     long getDistance(VocabularyTerm fromTerm, VocabularyTerm toTerm);
 
+    /**
+     * Access the in-memory structure of this vocabulary, if this is a structured ontology which keeps its hierarchy in
+     * memory. Working with the hierarchy is much faster than navigating the {@link VocabularyTerm#getParents() parents}
+     * or {@link VocabularyTerm#getAncestors() ancestors} of terms, since no terms have to be retrieved from the
+     * vocabulary storage.
+     *
+     * @return the hierarchy of the vocabulary, or {@code null} if this vocabulary doesn't keep its hierarchy in memory
+     * @since 1.4
+     */
+    VocabularyHierarchy getHierarchy();
+
     /**
      * The identifier of the vocabulary, used internally to differentiate between different vocabularies and different
      * implementations of the same vocabulary.
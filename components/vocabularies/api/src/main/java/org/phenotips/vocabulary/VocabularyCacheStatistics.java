@@ -0,0 +1,60 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary;
+
+import org.xwiki.stability.Unstable;
+
+/**
+ * Usage statistics of the term cache of a vocabulary, useful for tuning the cache size and expiration time. All the
+ * counters start at zero when the cache is created.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+public interface VocabularyCacheStatistics
+{
+    /**
+     * The number of lookups that found the requested term in the cache.
+     *
+     * @return a positive number
+     */
+    long getHits();
+
+    /**
+     * The number of lookups that didn't find the requested term in the cache, and thus had to query the vocabulary.
+     *
+     * @return a positive number
+     */
+    long getMisses();
+
+    /**
+     * The number of terms that were removed from the cache because it was full or because they expired, not counting
+     * explicit removals, like when the vocabulary is reindexed.
+     *
+     * @return a positive number
+     */
+    long getEvictions();
+
+    /**
+     * The fraction of lookups that were served from the cache.
+     *
+     * @return a number between {@code 0} and {@code 1}, {@code 0} if there weren't any lookups yet
+     */
+    double getHitRatio();
+}
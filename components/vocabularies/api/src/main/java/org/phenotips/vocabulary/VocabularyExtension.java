@@ -58,7 +58,8 @@
     /**
      * Called for each term during vocabulary reindexing, this method modifies the parsed terms by changing, adding or
      * removing fields. This method is called only for {@link #isVocabularySupported(Vocabulary) supported
-     * vocabularies}.
+     * vocabularies}. Since 1.4, several terms may be extended at the same time, from different threads, so any state
+     * prepared in {@link #indexingStarted(Vocabulary)} must only be read here, or be safe for concurrent access.
      *
      * @param term the parsed term which can be altered
      * @param vocabulary the the vocabulary being indexed
@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary;
+
+import org.xwiki.stability.Unstable;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An in-memory view of the structure of an ontology, i.e. the {@code is_a} relationships between its terms. Unlike the
+ * methods of {@link VocabularyTerm}, which return full terms and may need to query the vocabulary storage, this only
+ * works with term identifiers and never leaves the memory, so it is suited for processing large numbers of terms, for
+ * example when indexing patients or computing scores. All methods accept both the current identifier of a term and any
+ * of its alternative identifiers, but only return current identifiers.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+public interface VocabularyHierarchy
+{
+    /**
+     * Checks if a term is known in this hierarchy.
+     *
+     * @param termId the identifier of the term to check, for example {@code HP:0002066}
+     * @return {@code true} if the term exists, {@code false} otherwise
+     */
+    boolean contains(String termId);
+
+    /**
+     * Returns the current identifier of a term.
+     *
+     * @param termId the identifier of a term, either its current identifier or an alternative identifier
+     * @return the current identifier of the term, or {@code null} if the term is not known
+     */
+    String resolve(String termId);
+
+    /**
+     * Returns the parents (direct ancestors) of a term, in the order in which they are declared in the ontology.
+     *
+     * @param termId the identifier of the term whose parents are requested
+     * @return a list of term identifiers, empty if the term is unknown or is a root term
+     */
+    List<String> getParents(String termId);
+
+    /**
+     * Returns the children (direct descendants) of a term.
+     *
+     * @param termId the identifier of the term whose children are requested
+     * @return a list of term identifiers, empty if the term is unknown or is a leaf term
+     */
+    List<String> getChildren(String termId);
+
+    /**
+     * Returns the ancestors (both direct and indirect ancestors) of a term <em>and</em> the term itself.
+     *
+     * @param termId the identifier of the term whose ancestors are requested
+     * @return a set of term identifiers, empty if the term is unknown
+     */
+    Set<String> getAncestorsAndSelf(String termId);
+
+    /**
+     * Checks if a term is the same as, or a descendant of, another term.
+     *
+     * @param termId the identifier of the term to check
+     * @param ancestorId the identifier of the potential ancestor
+     * @return {@code true} if both terms are known and {@code ancestorId} is among the ancestors of {@code termId}, or
+     *         they are the same term
+     */
+    boolean isA(String termId, String ancestorId);
+
+    /**
+     * Find the distance between two terms, as the minimum number of edges that connect the two terms through a common
+     * ancestor. The parameters are interchangeable.
+     *
+     * @param fromTermId the identifier of the term that is considered the start point
+     * @param toTermId the identifier of the term that is considered the end point
+     * @return the minimum number of edges that connect the two terms, or {@code -1} if the terms are not connected, or
+     *         if at least one of the identifiers is unknown
+     * @see Vocabulary#getDistance(String, String)
+     */
+    long getDistance(String fromTermId, String toTermId);
+
+    /**
+     * Returns the number of terms in this hierarchy.
+     *
+     * @return a positive number
+     */
+    int size();
+}
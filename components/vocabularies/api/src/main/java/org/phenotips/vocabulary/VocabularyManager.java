@@ -20,7 +20,9 @@
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Provides access to the available vocabularies and their terms.
@@ -43,6 +45,20 @@
      */
     VocabularyTerm resolveTerm(String termId);
 
+    /**
+     * Retrieve several terms at once, possibly from different vocabularies. This is much faster than calling
+     * {@link #resolveTerm(String)} for each term, since terms are grouped by vocabulary and fetched with one query for
+     * each vocabulary, except the ones that are already cached.
+     *
+     * @param termIds the term identifiers, in the format {@code <vocabulary prefix>:<term id>}, for example
+     *            {@code HP:0002066}; alternative identifiers are also accepted
+     * @return the found terms, keyed by the requested identifier, in the same order as the requested identifiers;
+     *         identifiers which don't exist in their vocabulary or don't have a known vocabulary prefix are not
+     *         included in the result
+     * @since 1.4
+     */
+    Map<String, VocabularyTerm> resolveTerms(Collection<String> termIds);
+
     /**
      * Retrieve a vocabulary given its identifier.
      *
@@ -0,0 +1,408 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal;
+
+import org.phenotips.vocabulary.VocabularyHierarchy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Compact, immutable implementation of {@link VocabularyHierarchy}. Terms are identified internally by consecutive
+ * integers, and all the relationships are stored in primitive arrays using a compressed sparse row layout: for the
+ * term number {@code i}, its parents are {@code parents[parentOffsets[i]..parentOffsets[i + 1])}, and similarly for
+ * children and for the transitive closure of ancestors. The ancestor closure of each term is stored sorted, and is
+ * computed once, in topological order, by merging the already computed closures of its parents.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class CompactVocabularyHierarchy implements VocabularyHierarchy
+{
+    /** Term identifiers, indexed by their internal number. */
+    private final String[] ids;
+
+    /** Maps both current and alternative term identifiers to internal term numbers. */
+    private final Map<String, Integer> index;
+
+    private final int[] parentOffsets;
+
+    private final int[] parents;
+
+    private final int[] childOffsets;
+
+    private final int[] children;
+
+    /** Offsets in {@link #closure}; the closure of each term includes the term itself and is sorted. */
+    private final int[] closureOffsets;
+
+    private final int[] closure;
+
+    private CompactVocabularyHierarchy(String[] ids, Map<String, Integer> index, int[][] parentLists)
+    {
+        this.ids = ids;
+        this.index = index;
+        int count = ids.length;
+
+        this.parentOffsets = new int[count + 1];
+        for (int i = 0; i < count; ++i) {
+            this.parentOffsets[i + 1] = this.parentOffsets[i] + parentLists[i].length;
+        }
+        this.parents = new int[this.parentOffsets[count]];
+        int[] childCounts = new int[count];
+        for (int i = 0; i < count; ++i) {
+            System.arraycopy(parentLists[i], 0, this.parents, this.parentOffsets[i], parentLists[i].length);
+            for (int parent : parentLists[i]) {
+                ++childCounts[parent];
+            }
+        }
+
+        this.childOffsets = new int[count + 1];
+        for (int i = 0; i < count; ++i) {
+            this.childOffsets[i + 1] = this.childOffsets[i] + childCounts[i];
+        }
+        this.children = new int[this.childOffsets[count]];
+        int[] childPositions = Arrays.copyOf(this.childOffsets, count);
+        for (int i = 0; i < count; ++i) {
+            for (int parent : parentLists[i]) {
+                this.children[childPositions[parent]++] = i;
+            }
+        }
+
+        int[][] closures = computeClosures();
+        this.closureOffsets = new int[count + 1];
+        for (int i = 0; i < count; ++i) {
+            this.closureOffsets[i + 1] = this.closureOffsets[i] + closures[i].length;
+        }
+        this.closure = new int[this.closureOffsets[count]];
+        for (int i = 0; i < count; ++i) {
+            System.arraycopy(closures[i], 0, this.closure, this.closureOffsets[i], closures[i].length);
+        }
+    }
+
+    @Override
+    public boolean contains(String termId)
+    {
+        return termId != null && this.index.containsKey(termId);
+    }
+
+    @Override
+    public String resolve(String termId)
+    {
+        int term = find(termId);
+        return term < 0 ? null : this.ids[term];
+    }
+
+    @Override
+    public List<String> getParents(String termId)
+    {
+        int term = find(termId);
+        return term < 0 ? Collections.<String>emptyList()
+            : toIds(this.parents, this.parentOffsets[term], this.parentOffsets[term + 1]);
+    }
+
+    @Override
+    public List<String> getChildren(String termId)
+    {
+        int term = find(termId);
+        return term < 0 ? Collections.<String>emptyList()
+            : toIds(this.children, this.childOffsets[term], this.childOffsets[term + 1]);
+    }
+
+    @Override
+    public Set<String> getAncestorsAndSelf(String termId)
+    {
+        int term = find(termId);
+        if (term < 0) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(
+            new LinkedHashSet<>(toIds(this.closure, this.closureOffsets[term], this.closureOffsets[term + 1])));
+    }
+
+    @Override
+    public boolean isA(String termId, String ancestorId)
+    {
+        int term = find(termId);
+        int ancestor = find(ancestorId);
+        return term >= 0 && ancestor >= 0 && Arrays.binarySearch(this.closure, this.closureOffsets[term],
+            this.closureOffsets[term + 1], ancestor) >= 0;
+    }
+
+    @Override
+    public long getDistance(String fromTermId, String toTermId)
+    {
+        int from = find(fromTermId);
+        int to = find(toTermId);
+        if (from < 0 || to < 0) {
+            return -1;
+        }
+        if (from == to) {
+            return 0;
+        }
+        int[] fromDepths = getAncestorDepths(from);
+        int[] toDepths = getAncestorDepths(to);
+        // Both closures are sorted, walk them in parallel looking for common ancestors
+        long distance = Long.MAX_VALUE;
+        int i = this.closureOffsets[from];
+        int j = this.closureOffsets[to];
+        while (i < this.closureOffsets[from + 1] && j < this.closureOffsets[to + 1]) {
+            if (this.closure[i] < this.closure[j]) {
+                ++i;
+            } else if (this.closure[i] > this.closure[j]) {
+                ++j;
+            } else {
+                distance = Math.min(distance,
+                    fromDepths[i - this.closureOffsets[from]] + (long) toDepths[j - this.closureOffsets[to]]);
+                ++i;
+                ++j;
+            }
+        }
+        return distance == Long.MAX_VALUE ? -1 : distance;
+    }
+
+    @Override
+    public int size()
+    {
+        return this.ids.length;
+    }
+
+    /**
+     * Computes the minimum number of {@code is_a} edges between a term and each of its ancestors.
+     *
+     * @param term the internal number of the term
+     * @return the distances, in the same order as the term's closure
+     */
+    private int[] getAncestorDepths(int term)
+    {
+        int start = this.closureOffsets[term];
+        int length = this.closureOffsets[term + 1] - start;
+        int[] depths = new int[length];
+        Arrays.fill(depths, -1);
+        int[] queue = new int[length];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = term;
+        depths[Arrays.binarySearch(this.closure, start, start + length, term) - start] = 0;
+        while (head < tail) {
+            int current = queue[head++];
+            int currentDepth = depths[Arrays.binarySearch(this.closure, start, start + length, current) - start];
+            for (int p = this.parentOffsets[current]; p < this.parentOffsets[current + 1]; ++p) {
+                int position = Arrays.binarySearch(this.closure, start, start + length, this.parents[p]) - start;
+                if (depths[position] < 0) {
+                    depths[position] = currentDepth + 1;
+                    queue[tail++] = this.parents[p];
+                }
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * Computes the ancestor closure of all the terms. Terms are processed in topological order, starting from the
+     * roots, so that the closures of all the parents of a term are already known when the term is processed.
+     *
+     * @return the sorted closure of each term, including the term itself
+     */
+    private int[][] computeClosures()
+    {
+        int count = this.ids.length;
+        int[][] result = new int[count][];
+        int[] pendingParents = new int[count];
+        int[] queue = new int[count];
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < count; ++i) {
+            pendingParents[i] = this.parentOffsets[i + 1] - this.parentOffsets[i];
+            if (pendingParents[i] == 0) {
+                queue[tail++] = i;
+            }
+        }
+
+        BitSet seen = new BitSet(count);
+        int[] buffer = new int[count];
+        while (head < tail) {
+            int term = queue[head++];
+            result[term] = mergeParentClosures(term, result, seen, buffer);
+            for (int c = this.childOffsets[term]; c < this.childOffsets[term + 1]; ++c) {
+                if (--pendingParents[this.children[c]] == 0) {
+                    queue[tail++] = this.children[c];
+                }
+            }
+        }
+
+        // Terms involved in cycles are never reached in topological order; this shouldn't happen in a valid ontology,
+        // but if it does, fall back to exploring their ancestors one by one
+        for (int i = 0; i < count; ++i) {
+            if (result[i] == null) {
+                result[i] = exploreAncestors(i, seen, buffer);
+            }
+        }
+        return result;
+    }
+
+    private int[] mergeParentClosures(int term, int[][] closures, BitSet seen, int[] buffer)
+    {
+        int size = 0;
+        seen.set(term);
+        buffer[size++] = term;
+        for (int p = this.parentOffsets[term]; p < this.parentOffsets[term + 1]; ++p) {
+            for (int ancestor : closures[this.parents[p]]) {
+                if (!seen.get(ancestor)) {
+                    seen.set(ancestor);
+                    buffer[size++] = ancestor;
+                }
+            }
+        }
+        return sortAndReset(buffer, size, seen);
+    }
+
+    private int[] exploreAncestors(int term, BitSet seen, int[] buffer)
+    {
+        int size = 0;
+        seen.set(term);
+        buffer[size++] = term;
+        for (int head = 0; head < size; ++head) {
+            int current = buffer[head];
+            for (int p = this.parentOffsets[current]; p < this.parentOffsets[current + 1]; ++p) {
+                if (!seen.get(this.parents[p])) {
+                    seen.set(this.parents[p]);
+                    buffer[size++] = this.parents[p];
+                }
+            }
+        }
+        return sortAndReset(buffer, size, seen);
+    }
+
+    private int[] sortAndReset(int[] buffer, int size, BitSet seen)
+    {
+        int[] result = Arrays.copyOf(buffer, size);
+        for (int term : result) {
+            seen.clear(term);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private int find(String termId)
+    {
+        if (termId == null) {
+            return -1;
+        }
+        Integer result = this.index.get(termId);
+        return result == null ? -1 : result;
+    }
+
+    private List<String> toIds(int[] terms, int start, int end)
+    {
+        List<String> result = new ArrayList<>(end - start);
+        for (int i = start; i < end; ++i) {
+            result.add(this.ids[terms[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * Collects the terms of an ontology and builds a {@link CompactVocabularyHierarchy}. Terms may be added in any
+     * order, and parents may be referenced before they are added. References to unknown parents are ignored.
+     */
+    public static final class Builder
+    {
+        private final Map<String, List<String>> terms = new LinkedHashMap<>();
+
+        private final Map<String, String> alternativeIds = new HashMap<>();
+
+        /**
+         * Adds a term to the hierarchy.
+         *
+         * @param id the identifier of the term
+         * @param parentIds the identifiers of the direct parents of the term, may be {@code null}; values may contain a
+         *            suffix separated by a space, like {@code HP:0000118 ! Phenotypic abnormality}, which is ignored
+         * @param alternativeIds alternative identifiers of the term, may be {@code null}
+         * @return this builder, for chaining calls
+         */
+        public Builder addTerm(String id, Collection<?> parentIds, Collection<?> alternativeIds)
+        {
+            if (StringUtils.isBlank(id)) {
+                return this;
+            }
+            List<String> parentList = new ArrayList<>();
+            if (parentIds != null) {
+                for (Object parent : parentIds) {
+                    parentList.add(StringUtils.substringBefore(String.valueOf(parent), " "));
+                }
+            }
+            this.terms.put(id, parentList);
+            if (alternativeIds != null) {
+                for (Object alternativeId : alternativeIds) {
+                    this.alternativeIds.put(String.valueOf(alternativeId), id);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Builds the hierarchy from all the terms added so far.
+         *
+         * @return an immutable hierarchy
+         */
+        public CompactVocabularyHierarchy build()
+        {
+            String[] ids = this.terms.keySet().toArray(new String[this.terms.size()]);
+            Map<String, Integer> index = new HashMap<>((ids.length + this.alternativeIds.size()) * 4 / 3 + 1);
+            for (int i = 0; i < ids.length; ++i) {
+                index.put(ids[i], i);
+            }
+            for (Map.Entry<String, String> alternativeId : this.alternativeIds.entrySet()) {
+                if (!index.containsKey(alternativeId.getKey())) {
+                    index.put(alternativeId.getKey(), index.get(alternativeId.getValue()));
+                }
+            }
+            int[][] parentLists = new int[ids.length][];
+            BitSet added = new BitSet(ids.length);
+            for (int i = 0; i < ids.length; ++i) {
+                List<String> declared = this.terms.get(ids[i]);
+                int[] resolved = new int[declared.size()];
+                int size = 0;
+                for (String parent : declared) {
+                    Integer p = index.get(parent);
+                    if (p != null && p != i && !added.get(p)) {
+                        added.set(p);
+                        resolved[size++] = p;
+                    }
+                }
+                for (int j = 0; j < size; ++j) {
+                    added.clear(resolved[j]);
+                }
+                parentLists[i] = Arrays.copyOf(resolved, size);
+            }
+            return new CompactVocabularyHierarchy(ids, index, parentLists);
+        }
+    }
+}
@@ -26,9 +26,13 @@
 import org.xwiki.component.phase.InitializationException;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -46,6 +50,9 @@
 @Singleton
 public class DefaultVocabularyManager implements VocabularyManager, Initializable
 {
+    /** The name of the term property holding its alternative identifiers. */
+    private static final String ALTERNATIVE_ID_FIELD_NAME = "alt_id";
+
     /** The currently available vocabularies. */
     @Inject
     private Map<String, Vocabulary> vocabularies;
@@ -74,6 +81,30 @@ public VocabularyTerm resolveTerm(String termId)
         return null;
     }
 
+    @Override
+    public Map<String, VocabularyTerm> resolveTerms(Collection<String> termIds)
+    {
+        Map<String, VocabularyTerm> result = new LinkedHashMap<>();
+        if (termIds == null || termIds.isEmpty()) {
+            return result;
+        }
+
+        Map<String, VocabularyTerm> found = new HashMap<>();
+        for (Map.Entry<Vocabulary, Set<String>> group : groupByVocabulary(termIds).entrySet()) {
+            for (VocabularyTerm term : group.getKey().getTerms(group.getValue())) {
+                addTerm(term, found);
+            }
+        }
+
+        for (String termId : termIds) {
+            VocabularyTerm term = found.get(termId);
+            if (term != null) {
+                result.put(termId, term);
+            }
+        }
+        return result;
+    }
+
     @Override
     public Vocabulary getVocabulary(String vocabularyId)
     {
@@ -86,6 +117,47 @@ public List<String> getAvailableVocabularies()
         return new ArrayList<>(this.vocabularies.keySet());
     }
 
+    /**
+     * Groups term identifiers by their owner vocabulary, ignoring identifiers without a known vocabulary prefix.
+     *
+     * @param termIds the term identifiers to process
+     * @return the identifiers belonging to each vocabulary
+     */
+    private Map<Vocabulary, Set<String>> groupByVocabulary(Collection<String> termIds)
+    {
+        Map<Vocabulary, Set<String>> groups = new LinkedHashMap<>();
+        for (String termId : termIds) {
+            Vocabulary vocabulary = getVocabularyForTerm(termId);
+            if (vocabulary != null) {
+                Set<String> group = groups.get(vocabulary);
+                if (group == null) {
+                    group = new LinkedHashSet<>();
+                    groups.put(vocabulary, group);
+                }
+                group.add(termId);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Indexes a term by its identifier and by its alternative identifiers, since terms requested through an
+     * alternative identifier are returned with their current identifier.
+     *
+     * @param term the term to index
+     * @param index the index to update
+     */
+    private void addTerm(VocabularyTerm term, Map<String, VocabularyTerm> index)
+    {
+        index.put(term.getId(), term);
+        Object alternativeIds = term.get(ALTERNATIVE_ID_FIELD_NAME);
+        if (alternativeIds instanceof Collection) {
+            for (Object alternativeId : (Collection<?>) alternativeIds) {
+                index.putIfAbsent(String.valueOf(alternativeId), term);
+            }
+        }
+    }
+
     /**
      * Finds the owner vocabulary given a term identifier. The vocabulary is identified by the term ID prefix, for
      * example {@code HP} in {@code HP:0002066}.
@@ -26,8 +26,6 @@
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Iterator;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -54,9 +52,9 @@ public abstract class AbstractCSVSolrVocabulary extends AbstractSolrVocabulary
     protected static final String SYMBOL_EXACT = "symbolExact^100";
 
     /**
-     * The number of documents to be added and committed to Solr at a time.
+     * The maximum number of documents to be sent to Solr at a time. Smaller batches are used while memory is scarce.
      *
-     * @return a positive integer, or a negative number to disable batching and pushing all terms in one go
+     * @return a positive integer, or a negative number to disable the limit
      */
     protected abstract int getSolrDocsPerBatch();
 
@@ -103,41 +101,45 @@ protected int index(String sourceUrl)
         if (data == null) {
             return 2;
         }
-        try {
-            Collection<SolrInputDocument> termBatch = new HashSet<>();
-            Iterator<SolrInputDocument> dataIterator = data.iterator();
-            int batchCounter = 0;
-            while (dataIterator.hasNext()) {
-                /* Resetting when the batch fills */
-                if (batchCounter == getSolrDocsPerBatch()) {
-                    commitTerms(termBatch);
-                    termBatch = new HashSet<>();
-                    batchCounter = 0;
-                }
-                SolrInputDocument item = dataIterator.next();
-                extendTerm(new SolrVocabularyInputTerm(item, this));
-                termBatch.add(item);
-                batchCounter++;
+        try (SolrIndexingPipeline pipeline = createIndexingPipeline(getSolrDocsPerBatch())) {
+            for (SolrInputDocument item : data) {
+                pipeline.add(item);
             }
-            commitTerms(termBatch);
+            pipeline.finish();
             return 0;
         } catch (SolrServerException ex) {
             this.logger.warn("Failed to index vocabulary: {}", ex.getMessage());
         } catch (IOException ex) {
             this.logger.warn("Failed to communicate with the Solr server while indexing vocabulary: {}",
                 ex.getMessage());
+        } catch (InterruptedException ex) {
+            this.logger.warn("Indexing vocabulary [{}] was interrupted", getCoreName());
+            Thread.currentThread().interrupt();
         } catch (OutOfMemoryError ex) {
             this.logger.warn("Failed to add terms to the Solr. Ran out of memory. {}", ex.getMessage());
+        } finally {
+            // Cached terms, or cached misses, may be stale whether the indexing succeeded or not
+            this.externalServicesAccess.getTermCache(getCoreName()).removeAll();
         }
         return 1;
     }
 
+    /**
+     * Sends a batch of terms to Solr and commits them.
+     *
+     * @param batch the terms to index, already extended
+     * @throws SolrServerException if Solr rejected the terms
+     * @throws IOException if communicating with Solr failed
+     * @throws OutOfMemoryError if there isn't enough memory for sending the terms
+     * @deprecated {@link #index(String)} now sends the terms through a pipeline, and commits only once all the terms
+     *             are written, so this isn't called while reindexing anymore; it only writes and commits the given
+     *             terms, through the same pipeline
+     */
+    @Deprecated
     protected void commitTerms(Collection<SolrInputDocument> batch)
         throws SolrServerException, IOException, OutOfMemoryError
     {
-        this.externalServicesAccess.getSolrConnection(getCoreName()).add(batch);
-        this.externalServicesAccess.getSolrConnection(getCoreName()).commit();
-        this.externalServicesAccess.getTermCache(getCoreName()).removeAll();
+        writeTerms(batch);
     }
 
     /**
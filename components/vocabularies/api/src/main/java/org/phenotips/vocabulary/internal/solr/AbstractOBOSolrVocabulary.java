@@ -21,20 +21,25 @@
 import org.phenotips.obo2solr.SolrUpdateGenerator;
 import org.phenotips.obo2solr.TermData;
 import org.phenotips.vocabulary.VocabularyExtension;
+import org.phenotips.vocabulary.VocabularyHierarchy;
 import org.phenotips.vocabulary.VocabularyTerm;
+import org.phenotips.vocabulary.internal.CompactVocabularyHierarchy;
 
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrQuery.ORDER;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
@@ -55,44 +60,119 @@ public abstract class AbstractOBOSolrVocabulary extends AbstractSolrVocabulary
 
     protected static final String VERSION_FIELD_NAME = "version";
 
+    /** The name of the field holding the direct parents of a term. */
+    protected static final String PARENTS_FIELD_NAME = "is_a";
+
+    /** How many terms are fetched at once when loading the hierarchy. */
+    private static final int HIERARCHY_PAGE_SIZE = 10000;
+
+    /** The in-memory hierarchy, loaded when first needed, and replaced once a reindex is committed. */
+    private volatile VocabularyHierarchy hierarchy;
+
     /**
-     * The number of documents to be added and committed to Solr at a time.
+     * The maximum number of documents to be sent to Solr at a time. Smaller batches are used while memory is scarce.
      *
-     * @return a positive integer, or a negative number to disable batching and pushing all terms in one go
+     * @return a positive integer, or a negative number to disable the limit
      */
     protected abstract int getSolrDocsPerBatch();
 
+    /**
+     * Looks for the missing terms among the alternative identifiers, all at once.
+     *
+     * @param ids the identifiers not found in the index
+     * @return the found terms, keyed by the requested alternative identifier
+     */
+    @Override
+    protected Map<String, VocabularyTerm> searchMissingTerms(Set<String> ids)
+    {
+        StringBuilder query = new StringBuilder(ALTERNATIVE_ID_FIELD_NAME).append(":(");
+        for (String id : ids) {
+            query.append(ClientUtils.escapeQueryChars(id)).append(' ');
+        }
+        query.append(')');
+        SolrQuery solrQuery = new SolrQuery(query.toString());
+        solrQuery.setRows(ids.size());
+        SolrDocumentList results = search(solrQuery);
+        if (results == null || results.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, VocabularyTerm> result = new HashMap<>();
+        for (SolrDocument doc : results) {
+            VocabularyTerm term = new SolrVocabularyTerm(doc, this);
+            Object alternativeIds = term.get(ALTERNATIVE_ID_FIELD_NAME);
+            if (alternativeIds instanceof Collection) {
+                for (Object alternativeId : (Collection<?>) alternativeIds) {
+                    if (ids.contains(String.valueOf(alternativeId))) {
+                        result.putIfAbsent(String.valueOf(alternativeId), term);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether this vocabulary keeps its hierarchy in memory, see {@link #getHierarchy()}. This is disabled by default,
+     * and should be enabled by vocabularies whose structure is often navigated.
+     *
+     * @return {@code true} if the hierarchy should be kept in memory, {@code false} otherwise
+     * @since 1.4
+     */
+    protected boolean isHierarchyInMemory()
+    {
+        return false;
+    }
+
     @Override
-    public VocabularyTerm getTerm(String id)
+    public VocabularyHierarchy getHierarchy()
     {
-        if (StringUtils.isBlank(id)) {
+        if (!isHierarchyInMemory()) {
             return null;
         }
-        VocabularyTerm result = super.getTerm(id);
+        VocabularyHierarchy result = this.hierarchy;
         if (result == null) {
-            Map<String, String> queryParameters = new HashMap<>();
-            queryParameters.put(ALTERNATIVE_ID_FIELD_NAME, id);
-            List<VocabularyTerm> results = search(queryParameters);
-            if (results != null && !results.isEmpty()) {
-                result = search(queryParameters).iterator().next();
+            synchronized (this) {
+                result = this.hierarchy;
+                if (result == null) {
+                    result = loadHierarchy();
+                    this.hierarchy = result;
+                }
             }
         }
         return result;
     }
 
     /**
-     * Load vocabulary data from a provided source url.
+     * Builds the in-memory hierarchy from the identifiers and parents of all the terms indexed in Solr.
      *
-     * @param sourceUrl the address from where to get the vocabulary source file
-     * @return vocabulary data, if exists
+     * @return the loaded hierarchy, or {@code null} if the index cannot be read
      */
-    protected Map<String, TermData> load(final String sourceUrl)
+    private VocabularyHierarchy loadHierarchy()
     {
-        String realOntologyUrl = StringUtils.defaultIfBlank(sourceUrl, getDefaultSourceLocation());
-
-        SolrUpdateGenerator generator = new SolrUpdateGenerator();
-        Map<String, Double> fieldSelection = new HashMap<>();
-        return generator.transform(realOntologyUrl, fieldSelection);
+        CompactVocabularyHierarchy.Builder builder = new CompactVocabularyHierarchy.Builder();
+        SolrQuery query = new SolrQuery("*:*");
+        query.setFields(ID_FIELD_NAME, PARENTS_FIELD_NAME, ALTERNATIVE_ID_FIELD_NAME);
+        query.setSort(ID_FIELD_NAME, ORDER.asc);
+        query.setRows(HIERARCHY_PAGE_SIZE);
+        try {
+            long start = 0;
+            SolrDocumentList page;
+            do {
+                query.setStart((int) start);
+                page = this.externalServicesAccess.getSolrConnection(getCoreName()).query(query).getResults();
+                for (SolrDocument doc : page) {
+                    builder.addTerm((String) doc.getFieldValue(ID_FIELD_NAME), doc.getFieldValues(PARENTS_FIELD_NAME),
+                        doc.getFieldValues(ALTERNATIVE_ID_FIELD_NAME));
+                }
+                start += page.size();
+            } while (!page.isEmpty() && start < page.getNumFound());
+            VocabularyHierarchy result = builder.build();
+            this.logger.debug("Loaded the hierarchy of [{}] with {} terms", getCoreName(), result.size());
+            return result;
+        } catch (SolrServerException | SolrException | IOException ex) {
+            this.logger.warn("Failed to load the hierarchy of [{}]: {}", getCoreName(), ex.getMessage());
+        }
+        return null;
     }
 
     @Override
@@ -105,6 +185,7 @@ public int reindex(String sourceUrl)
                     ext.indexingStarted(this);
                 }
             }
+            // The current hierarchy is kept until the new index is committed, see #index(String)
             this.clear();
             retval = this.index(sourceUrl);
         } finally {
@@ -126,53 +207,102 @@ public int reindex(String sourceUrl)
      */
     protected int index(String sourceUrl)
     {
-        Map<String, TermData> data = load(sourceUrl);
-
-        if (data == null || data.isEmpty()) {
+        URL url;
+        try {
+            url = new URL(StringUtils.defaultIfBlank(sourceUrl, getDefaultSourceLocation()));
+        } catch (MalformedURLException ex) {
             return 2;
         }
-        try {
-            Collection<SolrInputDocument> termBatch = new HashSet<>();
-            Iterator<Map.Entry<String, TermData>> dataIterator = data.entrySet().iterator();
-            int batchCounter = 0;
-            while (dataIterator.hasNext()) {
-                /* Resetting when the batch fills */
-                if (batchCounter == getSolrDocsPerBatch()) {
-                    commitTerms(termBatch);
-                    termBatch = new HashSet<>();
-                    batchCounter = 0;
-                }
-                Map.Entry<String, TermData> item = dataIterator.next();
+        final CompactVocabularyHierarchy.Builder hierarchyBuilder =
+            isHierarchyInMemory() ? new CompactVocabularyHierarchy.Builder() : null;
+        try (SolrIndexingPipeline pipeline = createIndexingPipeline(getSolrDocsPerBatch())) {
+            boolean parsed = new SolrUpdateGenerator().transform(url, new HashMap<String, Double>(), term -> {
                 SolrInputDocument doc = new SolrInputDocument();
-                for (Map.Entry<String, Collection<String>> property : item.getValue().entrySet()) {
+                for (Map.Entry<String, Collection<String>> property : term.entrySet()) {
                     String name = property.getKey();
                     for (String value : property.getValue()) {
                         doc.addField(name, value, ParameterPreparer.DEFAULT_BOOST.floatValue());
                     }
                 }
-                extendTerm(new SolrVocabularyInputTerm(doc, this));
-                termBatch.add(doc);
-                batchCounter++;
+                if (hierarchyBuilder != null) {
+                    hierarchyBuilder.addTerm((String) doc.getFieldValue(ID_FIELD_NAME), term.get(PARENTS_FIELD_NAME),
+                        term.get(ALTERNATIVE_ID_FIELD_NAME));
+                }
+                pipeline.add(doc);
+            });
+            if (!parsed) {
+                // Don't replace the index with a partial vocabulary
+                pipeline.abort();
+                return 2;
             }
-            commitTerms(termBatch);
+            int count = pipeline.finish();
+            if (count == 0) {
+                return 2;
+            }
+            if (hierarchyBuilder != null) {
+                publishHierarchy(hierarchyBuilder.build());
+            }
+            this.logger.debug("Indexed {} terms in [{}]", count, getCoreName());
             return 0;
         } catch (SolrServerException ex) {
             this.logger.warn("Failed to index vocabulary: {}", ex.getMessage());
         } catch (IOException ex) {
             this.logger.warn("Failed to communicate with the Solr server while indexing vocabulary: {}",
                 ex.getMessage());
+        } catch (InterruptedException ex) {
+            this.logger.warn("Indexing vocabulary [{}] was interrupted", getCoreName());
+            Thread.currentThread().interrupt();
         } catch (OutOfMemoryError ex) {
             this.logger.warn("Failed to add terms to the Solr. Ran out of memory. {}", ex.getMessage());
+        } finally {
+            // Cached terms, or cached misses, may be stale whether the indexing succeeded or not
+            this.externalServicesAccess.getTermCache(getCoreName()).removeAll();
         }
         return 1;
     }
 
+    /**
+     * Sends a batch of terms to Solr and commits them.
+     *
+     * @param batch the terms to index, already extended
+     * @throws SolrServerException if Solr rejected the terms
+     * @throws IOException if communicating with Solr failed
+     * @throws OutOfMemoryError if there isn't enough memory for sending the terms
+     * @deprecated {@link #index(String)} now sends the terms through a pipeline, and commits only once all the terms
+     *             are written, so this isn't called while reindexing anymore; it only writes and commits the given
+     *             terms, through the same pipeline
+     */
+    @Deprecated
     protected void commitTerms(Collection<SolrInputDocument> batch)
         throws SolrServerException, IOException, OutOfMemoryError
     {
-        this.externalServicesAccess.getSolrConnection(getCoreName()).add(batch);
-        this.externalServicesAccess.getSolrConnection(getCoreName()).commit();
-        this.externalServicesAccess.getTermCache(getCoreName()).removeAll();
+        writeTerms(batch);
+    }
+
+    /**
+     * Load vocabulary data from a provided source url.
+     *
+     * @param sourceUrl the address from where to get the vocabulary source file
+     * @return vocabulary data, if exists
+     * @deprecated {@link #index(String)} now streams the terms into the index while they are read, without holding
+     *             the whole vocabulary in memory, so this isn't called while reindexing anymore
+     */
+    @Deprecated
+    protected Map<String, TermData> load(final String sourceUrl)
+    {
+        String realOntologyUrl = StringUtils.defaultIfBlank(sourceUrl, getDefaultSourceLocation());
+        return new SolrUpdateGenerator().transform(realOntologyUrl, new HashMap<String, Double>());
+    }
+
+    /**
+     * Replaces the in-memory hierarchy with one matching the newly committed index. This waits for any hierarchy being
+     * loaded by {@link #getHierarchy()} from the previous index, so that it cannot overwrite the new one.
+     *
+     * @param newHierarchy the hierarchy built while indexing
+     */
+    private synchronized void publishHierarchy(VocabularyHierarchy newHierarchy)
+    {
+        this.hierarchy = newHierarchy;
     }
 
     /**
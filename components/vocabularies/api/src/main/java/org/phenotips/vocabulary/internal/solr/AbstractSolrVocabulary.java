@@ -20,11 +20,19 @@
 import org.phenotips.vocabulary.SolrVocabularyResourceManager;
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyExtension;
+import org.phenotips.vocabulary.VocabularyHierarchy;
 import org.phenotips.vocabulary.VocabularyInputTerm;
 import org.phenotips.vocabulary.VocabularyTerm;
 
+import org.xwiki.cache.Cache;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -37,10 +45,12 @@
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
 import org.slf4j.Logger;
 
 /**
@@ -74,6 +84,14 @@ public abstract class AbstractSolrVocabulary implements Vocabulary
     @Inject
     protected Provider<List<VocabularyExtension>> extensions;
 
+    /** Used for setting up the execution context of the threads running the extensions while indexing. */
+    @Inject
+    private Execution execution;
+
+    /** Used for copying the current execution context into the threads running the extensions while indexing. */
+    @Inject
+    private ExecutionContextManager contextManager;
+
     // Dilemma:
     // In an ideal world there should be a getter methods for server and cache instances.
     // However the point of splitting up the server was to lessen the number of imports
@@ -97,10 +115,10 @@ public VocabularyTerm getTerm(String id)
             SolrDocumentList allResults = this.search(query);
             if (allResults != null && !allResults.isEmpty()) {
                 result = new SolrVocabularyTerm(allResults.get(0), this);
-                this.externalServicesAccess.getTermCache(getCoreName()).set(id, result);
             } else {
-                this.externalServicesAccess.getTermCache(getCoreName()).set(id, EMPTY_MARKER);
+                result = searchMissingTerms(Collections.singleton(id)).get(id);
             }
+            this.externalServicesAccess.getTermCache(getCoreName()).set(id, result == null ? EMPTY_MARKER : result);
         }
         return (result == EMPTY_MARKER) ? null : result;
     }
@@ -109,14 +127,19 @@ public VocabularyTerm getTerm(String id)
     public Set<VocabularyTerm> getTerms(Collection<String> ids)
     {
         Map<String, VocabularyTerm> rawResult = new HashMap<>();
+        Cache<VocabularyTerm> cache = this.externalServicesAccess.getTermCache(getCoreName());
+        Set<String> missing = new LinkedHashSet<>();
         StringBuilder query = new StringBuilder("id:(");
         for (String id : ids) {
-            VocabularyTerm cachedTerm = this.externalServicesAccess.getTermCache(getCoreName()).get(id);
+            if (StringUtils.isBlank(id)) {
+                continue;
+            }
+            VocabularyTerm cachedTerm = cache.get(id);
             if (cachedTerm != null) {
                 if (cachedTerm != EMPTY_MARKER) {
                     rawResult.put(id, cachedTerm);
                 }
-            } else {
+            } else if (missing.add(id)) {
                 query.append(ClientUtils.escapeQueryChars(id));
                 query.append(' ');
             }
@@ -124,10 +147,25 @@ public Set<VocabularyTerm> getTerms(Collection<String> ids)
         query.append(')');
 
         // There's at least one more term not found in the cache
-        if (query.length() > 5) {
-            for (SolrDocument doc : this.search(new SolrQuery(query.toString()))) {
-                VocabularyTerm term = new SolrVocabularyTerm(doc, this);
-                rawResult.put(term.getId(), term);
+        if (!missing.isEmpty()) {
+            SolrQuery solrQuery = new SolrQuery(query.toString());
+            solrQuery.setRows(missing.size());
+            SolrDocumentList results = this.search(solrQuery);
+            if (results != null) {
+                for (SolrDocument doc : results) {
+                    VocabularyTerm term = new SolrVocabularyTerm(doc, this);
+                    rawResult.put(term.getId(), term);
+                    cache.set(term.getId(), term);
+                    missing.remove(term.getId());
+                }
+                if (!missing.isEmpty()) {
+                    Map<String, VocabularyTerm> found = searchMissingTerms(missing);
+                    for (String id : missing) {
+                        VocabularyTerm term = found.get(id);
+                        rawResult.put(id, term);
+                        cache.set(id, term == null ? EMPTY_MARKER : term);
+                    }
+                }
             }
         }
 
@@ -140,6 +178,20 @@ public Set<VocabularyTerm> getTerms(Collection<String> ids)
         return result;
     }
 
+    /**
+     * Looks for terms which weren't found by their identifier, for example among older identifiers. Terms found here
+     * are cached under the requested identifier, and identifiers still not found are cached as missing, so that they
+     * aren't searched again. By default nothing else is searched.
+     *
+     * @param ids the identifiers not found in the index, not empty
+     * @return the found terms, keyed by the requested identifier
+     * @since 1.4
+     */
+    protected Map<String, VocabularyTerm> searchMissingTerms(Set<String> ids)
+    {
+        return Collections.emptyMap();
+    }
+
     @Override
     public List<VocabularyTerm> search(Map<String, ?> fieldValues)
     {
@@ -196,6 +248,12 @@ public long getDistance(VocabularyTerm fromTerm, VocabularyTerm toTerm)
         return fromTerm.getDistanceTo(toTerm);
     }
 
+    @Override
+    public VocabularyHierarchy getHierarchy()
+    {
+        return null;
+    }
+
     @Override
     public List<VocabularyTerm> search(String input)
     {
@@ -317,4 +375,55 @@ protected void extendTerm(VocabularyInputTerm term)
             }
         }
     }
+
+    /**
+     * Prepares a pipeline for indexing terms into this vocabulary's core, which runs all the supported vocabulary
+     * extensions on each term, in parallel, in copies of the current execution context.
+     *
+     * @param maxBatchSize the maximum number of terms sent to Solr at once, or a negative number for no limit
+     * @return a new pipeline, which must be {@link SolrIndexingPipeline#finish() finished} and closed
+     * @since 1.4
+     */
+    SolrIndexingPipeline createIndexingPipeline(int maxBatchSize)
+    {
+        final List<VocabularyExtension> supportedExtensions = new ArrayList<>();
+        for (VocabularyExtension extension : this.extensions.get()) {
+            if (extension.isVocabularySupported(this)) {
+                supportedExtensions.add(extension);
+            }
+        }
+        return new SolrIndexingPipeline(this.externalServicesAccess.getSolrConnection(getCoreName()),
+            (SolrInputDocument doc) -> {
+                VocabularyInputTerm term = new SolrVocabularyInputTerm(doc, this);
+                for (VocabularyExtension extension : supportedExtensions) {
+                    extension.extendTerm(term, this);
+                }
+            }, maxBatchSize, this.execution, this.contextManager);
+    }
+
+    /**
+     * Sends terms which were already extended to this vocabulary's core, and commits them. This goes through a
+     * pipeline which doesn't run the extensions again. The term cache is cleared afterwards.
+     *
+     * @param terms the terms to write
+     * @throws SolrServerException if Solr rejected the terms, in which case nothing is committed
+     * @throws IOException if communicating with Solr failed, or if the thread was interrupted while waiting
+     * @since 1.4
+     */
+    void writeTerms(Collection<SolrInputDocument> terms) throws SolrServerException, IOException
+    {
+        try (SolrIndexingPipeline pipeline = new SolrIndexingPipeline(
+            this.externalServicesAccess.getSolrConnection(getCoreName()), doc -> { }, -1, this.execution,
+            this.contextManager)) {
+            for (SolrInputDocument doc : terms) {
+                pipeline.add(doc);
+            }
+            pipeline.finish();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing terms to [" + getCoreName() + "]");
+        } finally {
+            this.externalServicesAccess.getTermCache(getCoreName()).removeAll();
+        }
+    }
 }
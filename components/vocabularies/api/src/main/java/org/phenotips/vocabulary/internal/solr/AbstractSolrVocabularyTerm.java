@@ -19,6 +19,7 @@
 
 import org.phenotips.components.ComponentManagerRegistry;
 import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyHierarchy;
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.localization.LocalizationContext;
@@ -265,6 +266,12 @@ public long getDistanceTo(final VocabularyTerm other)
             return 0;
         }
 
+        VocabularyHierarchy hierarchy = this.vocabulary == null ? null : this.vocabulary.getHierarchy();
+        if (hierarchy != null && hierarchy.contains(getId()) && hierarchy.contains(other.getId())
+            && other.getVocabulary() == this.vocabulary) {
+            return hierarchy.getDistance(getId(), other.getId());
+        }
+
         long distance = Long.MAX_VALUE;
 
         Map<String, Integer> myLevelMap = new HashMap<>();
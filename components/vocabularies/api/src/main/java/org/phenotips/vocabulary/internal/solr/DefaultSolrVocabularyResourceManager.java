@@ -19,14 +19,16 @@
 
 import org.phenotips.vocabulary.SolrCoreContainerHandler;
 import org.phenotips.vocabulary.SolrVocabularyResourceManager;
+import org.phenotips.vocabulary.VocabularyCacheStatistics;
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.cache.Cache;
 import org.xwiki.cache.CacheException;
 import org.xwiki.cache.CacheManager;
-import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.config.LRUCacheConfiguration;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.environment.Environment;
 import org.xwiki.extension.distribution.internal.DistributionManager;
 
@@ -37,17 +39,19 @@
 import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
 import org.apache.solr.core.CoreContainer;
 import org.apache.solr.core.SolrCore;
+import org.slf4j.Logger;
 
 /**
  * Default implementation for the {@link SolrVocabularyResourceManager} component.
@@ -64,11 +68,19 @@ public class DefaultSolrVocabularyResourceManager implements SolrVocabularyResou
         "/conf/solrcore.properties", "/conf/protwords.txt", "/conf/stopwords.txt", "/conf/synonyms.txt",
         "/conf/managed-schema.xml", "/core.properties");
 
+    /** Default maximum number of terms cached for each vocabulary. */
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /** Default number of seconds after which unused terms are removed from the cache, {@code 0} means never. */
+    private static final int DEFAULT_CACHE_TTL = 0;
+
+    private static final String CONFIGURATION_PREFIX = "phenotips.ontologies.";
+
     /** @see #getSolrConnection() */
-    private Map<String, SolrClient> cores = new HashMap<>();
+    private final Map<String, SolrClient> cores = new ConcurrentHashMap<>();
 
     /** @see #getTermCache() */
-    private Map<String, Cache<VocabularyTerm>> caches = new HashMap<>();
+    private final Map<String, MeteredVocabularyCache<VocabularyTerm>> caches = new ConcurrentHashMap<>();
 
     /** Provides access to the Solr cores. */
     @Inject
@@ -84,8 +96,26 @@ public class DefaultSolrVocabularyResourceManager implements SolrVocabularyResou
     @Inject
     private DistributionManager distribution;
 
-    private void initialize(String vocabularyName) throws InitializationException
+    /** Holds the cache size and expiration settings. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Sets up the Solr core and the term cache of a vocabulary. Several threads may request the same vocabulary at the
+     * same time, so this is synchronized and does nothing if another thread already initialized the vocabulary.
+     *
+     * @param vocabularyName the name of the vocabulary to initialize
+     * @throws InitializationException if the vocabulary resources cannot be set up
+     */
+    private synchronized void initialize(String vocabularyName) throws InitializationException
     {
+        if (this.cores.containsKey(vocabularyName) && this.caches.containsKey(vocabularyName)) {
+            return;
+        }
         CoreContainer container = this.coreContainer.getContainer();
         SolrCore solrCore = container.getCore(vocabularyName);
 
@@ -120,10 +150,9 @@ private void initialize(String vocabularyName) throws InitializationException
                 }
             }
 
-            SolrClient core = new EmbeddedSolrServer(container, vocabularyName);
-            this.cores.put(vocabularyName, core);
-            Cache<VocabularyTerm> cache = this.cacheFactory.createNewLocalCache(new CacheConfiguration());
-            this.caches.put(vocabularyName, cache);
+            // The cache is registered last, since its presence marks the vocabulary as initialized
+            this.cores.put(vocabularyName, new EmbeddedSolrServer(container, vocabularyName));
+            this.caches.put(vocabularyName, createCache(vocabularyName));
         } catch (final CacheException ex) {
             throw new InitializationException("Cannot create cache: " + ex.getMessage(), ex);
         } catch (IOException ex) {
@@ -135,6 +164,32 @@ private void initialize(String vocabularyName) throws InitializationException
         }
     }
 
+    /**
+     * Creates a bounded LRU cache for the terms of a vocabulary. The size and the expiration time can be configured in
+     * {@code xwiki.properties}, either for all vocabularies ({@code phenotips.ontologies.cache.size} and
+     * {@code phenotips.ontologies.cache.ttl}) or for a specific one (for example
+     * {@code phenotips.ontologies.hgnc.cache.size}).
+     *
+     * @param vocabularyName the name of the target vocabulary
+     * @return a new cache
+     * @throws CacheException if the cache cannot be created
+     */
+    private MeteredVocabularyCache<VocabularyTerm> createCache(String vocabularyName) throws CacheException
+    {
+        int size = getCacheSize(vocabularyName);
+        int ttl = getCacheSetting(vocabularyName, "ttl", DEFAULT_CACHE_TTL);
+        this.logger.debug("Creating the [{}] term cache with {} entries and a TTL of {}s", vocabularyName, size, ttl);
+        return new MeteredVocabularyCache<>(this.cacheFactory.<VocabularyTerm>createNewLocalCache(
+            new LRUCacheConfiguration("phenotips.vocabulary." + vocabularyName, size, ttl)));
+    }
+
+    private int getCacheSetting(String vocabularyName, String setting, int defaultValue)
+    {
+        Integer globalValue = this.configuration.getProperty(CONFIGURATION_PREFIX + "cache." + setting, defaultValue);
+        return this.configuration.getProperty(CONFIGURATION_PREFIX + vocabularyName + ".cache." + setting,
+            globalValue);
+    }
+
     @Override
     public Cache<VocabularyTerm> getTermCache(String vocabularyId)
     {
@@ -160,4 +215,16 @@ public SolrClient getSolrConnection(String vocabularyId)
         }
         return this.cores.get(vocabularyId);
     }
+
+    @Override
+    public VocabularyCacheStatistics getCacheStatistics(String vocabularyId)
+    {
+        return this.caches.get(vocabularyId);
+    }
+
+    @Override
+    public int getCacheSize(String vocabularyId)
+    {
+        return getCacheSetting(vocabularyId, "size", DEFAULT_CACHE_SIZE);
+    }
 }
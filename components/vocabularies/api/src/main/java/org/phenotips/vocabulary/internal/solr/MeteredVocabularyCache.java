@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.VocabularyCacheStatistics;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.event.CacheEntryEvent;
+import org.xwiki.cache.event.CacheEntryListener;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link Cache} wrapper which counts hits, misses and evictions, without changing the behavior of the wrapped cache.
+ * Evictions are detected by listening for removal events which aren't triggered by an explicit {@link #remove} or
+ * {@link #removeAll}; cache implementations notify listeners synchronously, on the thread performing the change.
+ *
+ * @param <T> the type of data stored in the cache
+ * @version $Id$
+ * @since 1.4
+ */
+public class MeteredVocabularyCache<T> implements Cache<T>, VocabularyCacheStatistics
+{
+    private final Cache<T> cache;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /** Set while this thread explicitly removes entries, so that the resulting events aren't counted as evictions. */
+    private final ThreadLocal<Boolean> removing = new ThreadLocal<>();
+
+    /**
+     * Simple constructor.
+     *
+     * @param cache the actual cache to wrap
+     */
+    public MeteredVocabularyCache(Cache<T> cache)
+    {
+        this.cache = cache;
+        this.cache.addCacheEntryListener(new EvictionListener());
+    }
+
+    @Override
+    public void set(String key, T value)
+    {
+        this.cache.set(key, value);
+    }
+
+    @Override
+    public T get(String key)
+    {
+        T result = this.cache.get(key);
+        if (result == null) {
+            this.misses.increment();
+        } else {
+            this.hits.increment();
+        }
+        return result;
+    }
+
+    @Override
+    public void remove(String key)
+    {
+        this.removing.set(Boolean.TRUE);
+        try {
+            this.cache.remove(key);
+        } finally {
+            this.removing.remove();
+        }
+    }
+
+    @Override
+    public void removeAll()
+    {
+        this.removing.set(Boolean.TRUE);
+        try {
+            this.cache.removeAll();
+        } finally {
+            this.removing.remove();
+        }
+    }
+
+    @Override
+    public void addCacheEntryListener(CacheEntryListener<T> listener)
+    {
+        this.cache.addCacheEntryListener(listener);
+    }
+
+    @Override
+    public void removeCacheEntryListener(CacheEntryListener<T> listener)
+    {
+        this.cache.removeCacheEntryListener(listener);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.cache.dispose();
+    }
+
+    @Override
+    public long getHits()
+    {
+        return this.hits.sum();
+    }
+
+    @Override
+    public long getMisses()
+    {
+        return this.misses.sum();
+    }
+
+    @Override
+    public long getEvictions()
+    {
+        return this.evictions.sum();
+    }
+
+    @Override
+    public double getHitRatio()
+    {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("hits=%d, misses=%d, evictions=%d, hit ratio=%.2f", getHits(), getMisses(),
+            getEvictions(), getHitRatio());
+    }
+
+    private final class EvictionListener implements CacheEntryListener<T>
+    {
+        @Override
+        public void cacheEntryAdded(CacheEntryEvent<T> event)
+        {
+            // Nothing to count
+        }
+
+        @Override
+        public void cacheEntryRemoved(CacheEntryEvent<T> event)
+        {
+            if (MeteredVocabularyCache.this.removing.get() == null) {
+                MeteredVocabularyCache.this.evictions.increment();
+            }
+        }
+
+        @Override
+        public void cacheEntryModified(CacheEntryEvent<T> event)
+        {
+            // Nothing to count
+        }
+    }
+}
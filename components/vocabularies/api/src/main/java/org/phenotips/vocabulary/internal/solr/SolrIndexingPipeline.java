@@ -0,0 +1,320 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.components.WorkerExecutionContext;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Indexes vocabulary terms in three stages running at the same time: the caller parses terms and {@link #add adds}
+ * them, in batches; the terms of each batch are extended by the vocabulary extensions on a pool of worker threads; a
+ * single writer thread sends the extended batches to Solr, in order. Nothing is committed until all the terms are
+ * written: a single commit is done once all the terms are written, and the uncommitted changes are rolled back if
+ * anything fails. The size of the batches adapts to the available memory, starting small so that the stages overlap
+ * early, and never exceeding the configured maximum. At most a few batches are held in memory at once, so the caller
+ * is slowed down if the later stages can't keep up.
+ * <p>
+ * Extensions may need the current wiki, user or locale, so each worker thread runs in its own copy of the execution
+ * context of the thread which created the pipeline. The XWiki context of each copy is a separate clone, without the
+ * database session of the original, since sessions can't be shared between threads.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class SolrIndexingPipeline implements AutoCloseable
+{
+    private static final int MIN_BATCH_SIZE = 100;
+
+    private static final int INITIAL_BATCH_SIZE = 1000;
+
+    /** How many terms are extended by a worker at once. */
+    private static final int CHUNK_SIZE = 250;
+
+    /** Above this fraction of the maximum heap in use, batches get smaller. */
+    private static final double HIGH_MEMORY_USAGE = 0.75;
+
+    /** Below this fraction of the maximum heap in use, batches may grow back. */
+    private static final double LOW_MEMORY_USAGE = 0.5;
+
+    private final SolrClient client;
+
+    private final Consumer<SolrInputDocument> extender;
+
+    private final Execution execution;
+
+    private final ExecutionContextManager contextManager;
+
+    /** The execution context of the thread which created the pipeline, copied for each worker; may be {@code null}. */
+    private final ExecutionContext parentContext;
+
+    private final int maxBatchSize;
+
+    private final ExecutorService workers;
+
+    private final ExecutorService writer;
+
+    /** Limits the number of batches submitted but not yet written. */
+    private final Semaphore pendingBatches;
+
+    /** The first error encountered by the workers or the writer. */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private int batchSize;
+
+    private List<SolrInputDocument> batch;
+
+    private int count;
+
+    /**
+     * Simple constructor, starts the pipeline threads.
+     *
+     * @param client the Solr core where the terms are indexed
+     * @param extender runs the vocabulary extensions on a term; will be called concurrently from several threads
+     * @param maxBatchSize the maximum number of terms in a batch, or a negative number for no limit
+     * @param execution used for setting up an execution context in each worker thread
+     * @param contextManager used for copying the current execution context
+     */
+    SolrIndexingPipeline(SolrClient client, Consumer<SolrInputDocument> extender, int maxBatchSize,
+        Execution execution, ExecutionContextManager contextManager)
+    {
+        this.client = client;
+        this.extender = extender;
+        this.execution = execution;
+        this.contextManager = contextManager;
+        this.parentContext = execution.getContext();
+        this.maxBatchSize = maxBatchSize > 0 ? maxBatchSize : Integer.MAX_VALUE;
+        this.batchSize = Math.min(INITIAL_BATCH_SIZE, this.maxBatchSize);
+        this.batch = new ArrayList<>(this.batchSize);
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        this.workers = Executors.newFixedThreadPool(threads,
+            task -> newThread(inWorkerContext(task), "Vocabulary term extension"));
+        this.writer = Executors.newSingleThreadExecutor(task -> newThread(task, "Vocabulary index writer"));
+        this.pendingBatches = new Semaphore(2);
+    }
+
+    /**
+     * Adds a term to be indexed. If a previous batch failed, the term is ignored, and the failure is reported by
+     * {@link #finish()}.
+     *
+     * @param doc the parsed term
+     */
+    void add(SolrInputDocument doc)
+    {
+        if (this.failure.get() != null) {
+            return;
+        }
+        this.batch.add(doc);
+        ++this.count;
+        if (this.batch.size() >= this.batchSize) {
+            submitBatch();
+        }
+    }
+
+    /**
+     * Waits for all the added terms to be extended and written, and commits them. If anything failed, the uncommitted
+     * changes are rolled back instead.
+     *
+     * @return the number of indexed terms
+     * @throws SolrServerException if Solr rejected the terms
+     * @throws IOException if communicating with Solr failed
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    int finish() throws SolrServerException, IOException, InterruptedException
+    {
+        try {
+            submitBatch();
+            this.writer.shutdown();
+            while (!this.writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting, large batches can take a while
+            }
+            checkFailure();
+            this.client.commit();
+        } catch (SolrServerException | IOException | InterruptedException | RuntimeException | Error ex) {
+            rollback();
+            throw ex;
+        }
+        return this.count;
+    }
+
+    /**
+     * Discards all the added terms: waits for the batches being written to Solr, and rolls back the uncommitted
+     * changes.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    void abort() throws InterruptedException
+    {
+        this.failure.compareAndSet(null, new CancellationException());
+        this.writer.shutdown();
+        while (!this.writer.awaitTermination(1, TimeUnit.MINUTES)) {
+            // Keep waiting, large batches can take a while
+        }
+        rollback();
+    }
+
+    @Override
+    public void close()
+    {
+        this.workers.shutdownNow();
+        this.writer.shutdownNow();
+    }
+
+    private void submitBatch()
+    {
+        if (this.batch.isEmpty() || this.failure.get() != null) {
+            return;
+        }
+        final List<SolrInputDocument> docs = this.batch;
+        adaptBatchSize();
+        this.batch = new ArrayList<>(Math.min(this.batchSize, INITIAL_BATCH_SIZE));
+        try {
+            this.pendingBatches.acquire();
+        } catch (InterruptedException ex) {
+            this.failure.compareAndSet(null, ex);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        final List<Future<?>> chunks = new ArrayList<>(docs.size() / CHUNK_SIZE + 1);
+        for (int start = 0; start < docs.size(); start += CHUNK_SIZE) {
+            final List<SolrInputDocument> chunk = docs.subList(start, Math.min(start + CHUNK_SIZE, docs.size()));
+            chunks.add(this.workers.submit(() -> chunk.forEach(this.extender)));
+        }
+        this.writer.submit(() -> write(docs, chunks));
+    }
+
+    /**
+     * Writer stage: waits for the batch to be extended, and sends it to Solr.
+     *
+     * @param docs the batch of terms
+     * @param chunks the extension tasks for the batch
+     */
+    private void write(List<SolrInputDocument> docs, List<Future<?>> chunks)
+    {
+        try {
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+            if (this.failure.get() == null) {
+                this.client.add(docs);
+            }
+        } catch (ExecutionException ex) {
+            this.failure.compareAndSet(null, ex.getCause());
+        } catch (InterruptedException ex) {
+            this.failure.compareAndSet(null, ex);
+            Thread.currentThread().interrupt();
+        } catch (SolrServerException | IOException | RuntimeException | Error ex) {
+            this.failure.compareAndSet(null, ex);
+        } finally {
+            this.pendingBatches.release();
+        }
+    }
+
+    /** Makes the next batches smaller if memory is getting scarce, or bigger if there's plenty of free memory. */
+    private void adaptBatchSize()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        double usage = (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+        if (usage > HIGH_MEMORY_USAGE) {
+            this.batchSize = Math.max(MIN_BATCH_SIZE, this.batchSize / 2);
+        } else if (usage < LOW_MEMORY_USAGE && this.batchSize < this.maxBatchSize) {
+            this.batchSize = (int) Math.min(this.maxBatchSize, 2L * this.batchSize);
+        }
+    }
+
+    private void checkFailure() throws SolrServerException, IOException, InterruptedException
+    {
+        Throwable ex = this.failure.get();
+        if (ex == null) {
+            return;
+        }
+        if (ex instanceof SolrServerException) {
+            throw (SolrServerException) ex;
+        } else if (ex instanceof IOException) {
+            throw (IOException) ex;
+        } else if (ex instanceof InterruptedException) {
+            throw (InterruptedException) ex;
+        } else if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        } else if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        throw new IOException(ex);
+    }
+
+    /**
+     * Wraps the main task of a worker thread so that it runs in its own execution context.
+     *
+     * @param task the worker task
+     * @return a task setting up the execution context before running the worker task
+     */
+    private Runnable inWorkerContext(Runnable task)
+    {
+        return () -> {
+            try {
+                this.execution.setContext(WorkerExecutionContext.create(this.parentContext, this.contextManager));
+            } catch (ExecutionContextException | RuntimeException ex) {
+                // Extensions can't work properly without a context, abort the indexing
+                this.failure.compareAndSet(null, ex);
+                this.execution.setContext(new ExecutionContext());
+            }
+            try {
+                task.run();
+            } finally {
+                this.execution.removeContext();
+            }
+        };
+    }
+
+    private void rollback()
+    {
+        try {
+            this.client.rollback();
+        } catch (SolrServerException | IOException | RuntimeException ex) {
+            // The original failure is more relevant, and is already being reported
+        }
+    }
+
+    private static Thread newThread(Runnable task, String name)
+    {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
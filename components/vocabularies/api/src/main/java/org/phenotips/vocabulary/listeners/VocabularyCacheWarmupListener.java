@@ -0,0 +1,140 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.listeners;
+
+import org.phenotips.vocabulary.SolrVocabularyResourceManager;
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyManager;
+
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Preloads the HPO terms used in patient records into the term cache when PhenoTips starts, so that the first requests
+ * after a restart don't have to fetch them one by one. The terms are loaded in a background thread, in batches, and
+ * the warm-up can be disabled by setting {@code phenotips.ontologies.cache.warmup} to {@code false} in
+ * {@code xwiki.properties}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("vocabulary-cache-warmup")
+@Singleton
+public class VocabularyCacheWarmupListener extends AbstractEventListener
+{
+    /** The number of terms requested at once, kept well below Solr's limit of clauses in a query. */
+    private static final int BATCH_SIZE = 500;
+
+    /** Selects all the terms used as phenotypes in patient records, excluding the patient template. */
+    private static final String USED_TERMS_QUERY = "select distinct term from BaseObject obj, "
+        + "DBStringListProperty prop join prop.list term where obj.className = 'PhenoTips.PatientClass' "
+        + "and obj.name <> 'PhenoTips.PatientTemplate' and prop.id.id = obj.id "
+        + "and prop.id.name in ('phenotype', 'negative_phenotype', 'prenatal_phenotype')";
+
+    @Inject
+    private VocabularyManager vocabularies;
+
+    @Inject
+    private QueryManager queryManager;
+
+    /** Knows the size of the term cache, there's no point in loading more terms than it can hold. */
+    @Inject
+    private SolrVocabularyResourceManager resources;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Inject
+    private Logger logger;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public VocabularyCacheWarmupListener()
+    {
+        super("vocabulary-cache-warmup", new ApplicationReadyEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (!this.configuration.getProperty("phenotips.ontologies.cache.warmup", Boolean.TRUE)) {
+            return;
+        }
+        final Vocabulary hpo = this.vocabularies.getVocabulary("HP");
+        if (hpo == null) {
+            return;
+        }
+        // The query needs the XWiki context of the current thread, only the vocabulary access is done in background
+        final List<String> termIds = getUsedTerms(hpo);
+        Thread warmup = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                preload(hpo, termIds);
+            }
+        }, "vocabulary-cache-warmup");
+        warmup.setDaemon(true);
+        warmup.setPriority(Thread.MIN_PRIORITY);
+        warmup.start();
+    }
+
+    private List<String> getUsedTerms(Vocabulary vocabulary)
+    {
+        try {
+            Query query = this.queryManager.createQuery(USED_TERMS_QUERY, Query.HQL);
+            query.setLimit(this.resources.getCacheSize(vocabulary.getIdentifier()));
+            return query.execute();
+        } catch (QueryException ex) {
+            this.logger.warn("Failed to list the terms used in patient records: {}", ex.getMessage());
+        }
+        return Collections.emptyList();
+    }
+
+    private void preload(Vocabulary vocabulary, List<String> termIds)
+    {
+        long start = System.currentTimeMillis();
+        try {
+            // Also load the in-memory hierarchy, if the vocabulary keeps one
+            vocabulary.getHierarchy();
+            for (int i = 0; i < termIds.size(); i += BATCH_SIZE) {
+                vocabulary.getTerms(termIds.subList(i, Math.min(i + BATCH_SIZE, termIds.size())));
+            }
+            this.logger.info("Preloaded {} [{}] terms in {}ms", termIds.size(), vocabulary.getIdentifier(),
+                System.currentTimeMillis() - start);
+        } catch (Exception ex) {
+            this.logger.warn("Failed to preload the [{}] terms: {}", vocabulary.getIdentifier(), ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal;
+
+import org.phenotips.vocabulary.VocabularyHierarchy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CompactVocabularyHierarchy}.
+ *
+ * @version $Id$
+ */
+public class CompactVocabularyHierarchyTest
+{
+    private VocabularyHierarchy hierarchy;
+
+    /**
+     * Builds a small DAG:
+     *
+     * <pre>
+     *        HP:1
+     *       /    \
+     *    HP:2    HP:3
+     *     |  \    |
+     *     |   HP:4
+     *    HP:5     |
+     *      \     HP:6
+     *       \   /
+     *        HP:7
+     * </pre>
+     *
+     * plus the disconnected root HP:9.
+     */
+    @Before
+    public void setUp()
+    {
+        this.hierarchy = new CompactVocabularyHierarchy.Builder()
+            // Children declared before their parents
+            .addTerm("HP:7", Arrays.asList("HP:5 ! Five", "HP:6 ! Six"), null)
+            .addTerm("HP:1", null, Collections.singleton("HP:100"))
+            .addTerm("HP:2", Collections.singleton("HP:1"), null)
+            .addTerm("HP:3", Collections.singleton("HP:1"), null)
+            .addTerm("HP:4", Arrays.asList("HP:2", "HP:3", "HP:2"), null)
+            .addTerm("HP:5", Collections.singleton("HP:2"), null)
+            .addTerm("HP:6", Arrays.asList("HP:4", "HP:404"), null)
+            .addTerm("HP:9", null, null)
+            .build();
+    }
+
+    @Test
+    public void containsAndResolveHandleAlternativeIds()
+    {
+        Assert.assertEquals(8, this.hierarchy.size());
+        Assert.assertTrue(this.hierarchy.contains("HP:1"));
+        Assert.assertTrue(this.hierarchy.contains("HP:100"));
+        Assert.assertFalse(this.hierarchy.contains("HP:404"));
+        Assert.assertFalse(this.hierarchy.contains(null));
+        Assert.assertEquals("HP:1", this.hierarchy.resolve("HP:100"));
+        Assert.assertEquals("HP:4", this.hierarchy.resolve("HP:4"));
+        Assert.assertNull(this.hierarchy.resolve("HP:404"));
+    }
+
+    @Test
+    public void parentsAndChildrenAreDeduplicatedAndIgnoreUnknownTerms()
+    {
+        Assert.assertEquals(new HashSet<>(Arrays.asList("HP:2", "HP:3")),
+            new HashSet<>(this.hierarchy.getParents("HP:4")));
+        Assert.assertEquals(2, this.hierarchy.getParents("HP:4").size());
+        Assert.assertEquals(Collections.singletonList("HP:4"), this.hierarchy.getParents("HP:6"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("HP:2", "HP:3")),
+            new HashSet<>(this.hierarchy.getChildren("HP:100")));
+        Assert.assertTrue(this.hierarchy.getParents("HP:1").isEmpty());
+        Assert.assertTrue(this.hierarchy.getParents("HP:404").isEmpty());
+        Assert.assertTrue(this.hierarchy.getChildren("HP:404").isEmpty());
+    }
+
+    @Test
+    public void ancestorsIncludeSelfAndAllTransitiveParents()
+    {
+        Set<String> expected = new HashSet<>(Arrays.asList("HP:7", "HP:6", "HP:5", "HP:4", "HP:3", "HP:2", "HP:1"));
+        Assert.assertEquals(expected, this.hierarchy.getAncestorsAndSelf("HP:7"));
+        Assert.assertEquals(Collections.singleton("HP:1"), this.hierarchy.getAncestorsAndSelf("HP:1"));
+        Assert.assertEquals(Collections.singleton("HP:9"), this.hierarchy.getAncestorsAndSelf("HP:9"));
+        Assert.assertTrue(this.hierarchy.getAncestorsAndSelf("HP:404").isEmpty());
+    }
+
+    @Test
+    public void isAChecksTheClosure()
+    {
+        Assert.assertTrue(this.hierarchy.isA("HP:7", "HP:3"));
+        Assert.assertTrue(this.hierarchy.isA("HP:7", "HP:7"));
+        Assert.assertTrue(this.hierarchy.isA("HP:6", "HP:100"));
+        Assert.assertFalse(this.hierarchy.isA("HP:3", "HP:7"));
+        Assert.assertFalse(this.hierarchy.isA("HP:5", "HP:3"));
+        Assert.assertFalse(this.hierarchy.isA("HP:404", "HP:1"));
+    }
+
+    @Test
+    public void distanceUsesTheClosestCommonAncestor()
+    {
+        Assert.assertEquals(0, this.hierarchy.getDistance("HP:4", "HP:4"));
+        Assert.assertEquals(1, this.hierarchy.getDistance("HP:7", "HP:5"));
+        Assert.assertEquals(3, this.hierarchy.getDistance("HP:5", "HP:3"));
+        // HP:7 -> HP:6 -> HP:4 is shorter than going through HP:2
+        Assert.assertEquals(2, this.hierarchy.getDistance("HP:7", "HP:4"));
+        Assert.assertEquals(2, this.hierarchy.getDistance("HP:2", "HP:3"));
+        Assert.assertEquals(-1, this.hierarchy.getDistance("HP:7", "HP:9"));
+        Assert.assertEquals(-1, this.hierarchy.getDistance("HP:7", "HP:404"));
+    }
+
+    @Test
+    public void cyclesDoNotPreventBuilding()
+    {
+        VocabularyHierarchy cyclic = new CompactVocabularyHierarchy.Builder()
+            .addTerm("A", Collections.singleton("B"), null)
+            .addTerm("B", Collections.singleton("A"), null)
+            .addTerm("C", Collections.singleton("A"), null)
+            .build();
+        Assert.assertTrue(cyclic.isA("C", "B"));
+        Assert.assertTrue(cyclic.isA("A", "B"));
+        Assert.assertTrue(cyclic.isA("B", "A"));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyManager;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.component.util.ReflectionUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link DefaultVocabularyManager#resolveTerms(java.util.Collection)}.
+ *
+ * @version $Id$
+ */
+public class DefaultVocabularyManagerTest
+{
+    private VocabularyManager manager;
+
+    private Vocabulary hpo = mock(Vocabulary.class);
+
+    private Vocabulary omim = mock(Vocabulary.class);
+
+    private VocabularyTerm hp1 = mock(VocabularyTerm.class);
+
+    private VocabularyTerm hp2 = mock(VocabularyTerm.class);
+
+    private VocabularyTerm mim1 = mock(VocabularyTerm.class);
+
+    @Before
+    public void setUp() throws Exception
+    {
+        when(this.hpo.getAliases()).thenReturn(Collections.singleton("HP"));
+        when(this.omim.getAliases()).thenReturn(new LinkedHashSet<>(Arrays.asList("MIM", "OMIM")));
+        when(this.hp1.getId()).thenReturn("HP:0000001");
+        when(this.hp2.getId()).thenReturn("HP:0000002");
+        when(this.hp2.get("alt_id")).thenReturn(Arrays.asList("HP:0000003"));
+        when(this.mim1.getId()).thenReturn("MIM:100100");
+
+        Map<String, Vocabulary> vocabularies = new HashMap<>();
+        vocabularies.put("hpo", this.hpo);
+        vocabularies.put("omim", this.omim);
+        DefaultVocabularyManager component = new DefaultVocabularyManager();
+        ReflectionUtils.setFieldValue(component, "vocabularies", vocabularies);
+        component.initialize();
+        this.manager = component;
+    }
+
+    @Test
+    public void termsAreFetchedOncePerVocabulary()
+    {
+        when(this.hpo.getTerms(new LinkedHashSet<>(Arrays.asList("HP:0000001", "HP:0000003", "HP:9999999"))))
+            .thenReturn(new LinkedHashSet<>(Arrays.asList(this.hp1, this.hp2)));
+        when(this.omim.getTerms(Collections.singleton("MIM:100100")))
+            .thenReturn(Collections.singleton(this.mim1));
+
+        Map<String, VocabularyTerm> result = this.manager.resolveTerms(
+            Arrays.asList("HP:0000001", "MIM:100100", "HP:0000003", "HP:9999999", "UNKNOWN:1", "HP:0000001"));
+
+        Assert.assertEquals(Arrays.asList("HP:0000001", "MIM:100100", "HP:0000003"),
+            Arrays.asList(result.keySet().toArray()));
+        Assert.assertSame(this.hp1, result.get("HP:0000001"));
+        Assert.assertSame(this.mim1, result.get("MIM:100100"));
+        // Terms requested by an alternative identifier are returned under the requested identifier
+        Assert.assertSame(this.hp2, result.get("HP:0000003"));
+    }
+
+    @Test
+    public void aliasesSelectTheVocabulary()
+    {
+        when(this.omim.getTerms(new LinkedHashSet<>(Arrays.asList("OMIM:100100", "MIM:100100"))))
+            .thenReturn(Collections.singleton(this.mim1));
+
+        Map<String, VocabularyTerm> result = this.manager.resolveTerms(Arrays.asList("OMIM:100100", "MIM:100100"));
+
+        Assert.assertEquals(Collections.singleton("MIM:100100"), result.keySet());
+        verify(this.hpo, never()).getTerms(anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void emptyRequestsDontSearch()
+    {
+        Assert.assertTrue(this.manager.resolveTerms(null).isEmpty());
+        Assert.assertTrue(this.manager.resolveTerms(Collections.<String>emptyList()).isEmpty());
+        Assert.assertTrue(this.manager.resolveTerms(Arrays.asList("UNKNOWN:1", "", null)).isEmpty());
+        verify(this.hpo, never()).getTerms(anyCollectionOf(String.class));
+        verify(this.omim, never()).getTerms(anyCollectionOf(String.class));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.event.CacheEntryEvent;
+import org.xwiki.cache.event.CacheEntryListener;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link MeteredVocabularyCache}.
+ *
+ * @version $Id$
+ */
+public class MeteredVocabularyCacheTest
+{
+    @Mock
+    private Cache<String> cache;
+
+    private CacheEntryListener<String> listener;
+
+    private MeteredVocabularyCache<String> metered;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp()
+    {
+        MockitoAnnotations.initMocks(this);
+        this.metered = new MeteredVocabularyCache<>(this.cache);
+        ArgumentCaptor<CacheEntryListener<String>> captor =
+            ArgumentCaptor.forClass((Class<CacheEntryListener<String>>) (Class<?>) CacheEntryListener.class);
+        verify(this.cache).addCacheEntryListener(captor.capture());
+        this.listener = captor.getValue();
+    }
+
+    @Test
+    public void hitsAndMissesAreCounted()
+    {
+        when(this.cache.get("HP:1")).thenReturn("term");
+        Assert.assertEquals(0, this.metered.getHitRatio(), 0);
+
+        Assert.assertEquals("term", this.metered.get("HP:1"));
+        Assert.assertEquals("term", this.metered.get("HP:1"));
+        Assert.assertNull(this.metered.get("HP:2"));
+
+        Assert.assertEquals(2, this.metered.getHits());
+        Assert.assertEquals(1, this.metered.getMisses());
+        Assert.assertEquals(2.0 / 3, this.metered.getHitRatio(), 0.0001);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void onlyImplicitRemovalsAreCountedAsEvictions()
+    {
+        final CacheEntryEvent<String> event = mock(CacheEntryEvent.class);
+        Answer<Void> notify = new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                MeteredVocabularyCacheTest.this.listener.cacheEntryRemoved(event);
+                return null;
+            }
+        };
+        doAnswer(notify).when(this.cache).remove(any(String.class));
+        doAnswer(notify).when(this.cache).removeAll();
+
+        this.metered.remove("HP:1");
+        this.metered.removeAll();
+        Assert.assertEquals(0, this.metered.getEvictions());
+
+        // Removal notified while setting a new entry, i.e. the cache evicted an old entry
+        this.listener.cacheEntryRemoved(event);
+        Assert.assertEquals(1, this.metered.getEvictions());
+    }
+
+    @Test
+    public void operationsAreDelegated()
+    {
+        this.metered.set("HP:1", "term");
+        verify(this.cache).set("HP:1", "term");
+        this.metered.dispose();
+        verify(this.cache).dispose();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.obo2solr.ParameterPreparer;
+import org.phenotips.obo2solr.SolrUpdateGenerator;
+import org.phenotips.obo2solr.TermData;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.common.SolrInputDocument;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Compares the old sequential reindexing, where terms are extended one after the other and each batch is hard
+ * committed, with the {@link SolrIndexingPipeline}. Solr is simulated by a client which only waits a fixed time for
+ * each added term and for each commit, and the vocabulary extensions by some CPU work on each term, so the results
+ * show how well the stages overlap rather than the real Solr throughput. Not run during the build, run it manually
+ * with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.phenotips.vocabulary.internal.solr.SolrIndexingPipelineBenchmark -Dexec.args=/path/to/hp.obo}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class SolrIndexingPipelineBenchmark
+{
+    /** Same as the HPO batch size. */
+    private static final int BATCH_SIZE = 15000;
+
+    private static final long ADD_NANOS_PER_TERM = 20000;
+
+    private static final long COMMIT_MILLIS = 1500;
+
+    private static final int EXTENSION_ROUNDS = 200;
+
+    private SolrIndexingPipelineBenchmark()
+    {
+        // Not instantiable
+    }
+
+    /**
+     * Runs the benchmark and prints the results.
+     *
+     * @param args the path to an OBO file, for example the HPO
+     * @throws Exception if reading the file or indexing fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 1) {
+            System.err.println("Usage: SolrIndexingPipelineBenchmark <file.obo>");
+            return;
+        }
+        URL url = new File(args[0]).toURI().toURL();
+
+        long start = System.nanoTime();
+        int count = sequential(url, simulatedSolr());
+        report("Sequential", count, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        count = pipelined(url, simulatedSolr());
+        report("Pipelined", count, System.nanoTime() - start);
+    }
+
+    private static int sequential(URL url, SolrClient client) throws Exception
+    {
+        Map<String, TermData> data = new SolrUpdateGenerator().transform(url, new HashMap<String, Double>());
+        List<SolrInputDocument> batch = new ArrayList<>();
+        for (TermData term : data.values()) {
+            if (batch.size() == BATCH_SIZE) {
+                client.add(batch);
+                client.commit();
+                batch = new ArrayList<>();
+            }
+            SolrInputDocument doc = toDocument(term);
+            extend(doc);
+            batch.add(doc);
+        }
+        client.add(batch);
+        client.commit();
+        return data.size();
+    }
+
+    private static int pipelined(URL url, SolrClient client) throws Exception
+    {
+        try (SolrIndexingPipeline pipeline = new SolrIndexingPipeline(client, SolrIndexingPipelineBenchmark::extend,
+            BATCH_SIZE, mock(Execution.class), mock(ExecutionContextManager.class))) {
+            new SolrUpdateGenerator().transform(url, new HashMap<String, Double>(),
+                term -> pipeline.add(toDocument(term)));
+            return pipeline.finish();
+        }
+    }
+
+    private static SolrInputDocument toDocument(TermData term)
+    {
+        SolrInputDocument doc = new SolrInputDocument();
+        for (Map.Entry<String, Collection<String>> property : term.entrySet()) {
+            for (String value : property.getValue()) {
+                doc.addField(property.getKey(), value, ParameterPreparer.DEFAULT_BOOST.floatValue());
+            }
+        }
+        return doc;
+    }
+
+    /** Stands in for the vocabulary extensions, which mostly read data and add a few fields. */
+    private static void extend(SolrInputDocument doc)
+    {
+        int hash = 0;
+        for (int i = 0; i < EXTENSION_ROUNDS; ++i) {
+            for (String name : doc.getFieldNames()) {
+                hash = 31 * hash + String.valueOf(doc.getFieldValues(name)).hashCode();
+            }
+        }
+        doc.addField("extension_hash", hash);
+    }
+
+    private static SolrClient simulatedSolr() throws Exception
+    {
+        SolrClient client = mock(SolrClient.class);
+        Answer<Object> add = new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                long nanos = ADD_NANOS_PER_TERM * ((Collection<?>) invocation.getArguments()[0]).size();
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+                return null;
+            }
+        };
+        doAnswer(add).when(client).add(anyCollectionOf(SolrInputDocument.class));
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                Thread.sleep(COMMIT_MILLIS);
+                return null;
+            }
+        }).when(client).commit();
+        return client;
+    }
+
+    private static void report(String name, int count, long nanos)
+    {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-10s %8d terms %8.2f s %10.0f terms/s%n", name, count, seconds, count / seconds);
+    }
+}
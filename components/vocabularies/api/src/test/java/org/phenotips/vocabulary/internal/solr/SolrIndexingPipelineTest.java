@@ -0,0 +1,407 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link SolrIndexingPipeline}.
+ *
+ * @version $Id$
+ */
+public class SolrIndexingPipelineTest
+{
+    private static final String ID = "id";
+
+    private static final String EXTENDED = "extended";
+
+    private static final String LOCALE = "locale";
+
+    private static final String SPANISH = "es";
+
+    @Mock
+    private SolrClient client;
+
+    @Mock
+    private Execution execution;
+
+    @Mock
+    private ExecutionContextManager contextManager;
+
+    @Mock
+    private Consumer<SolrInputDocument> extender;
+
+    /** The execution context of each thread, as managed by the mocked {@link Execution}. */
+    private final ThreadLocal<ExecutionContext> contexts = new ThreadLocal<>();
+
+    private final List<SolrInputDocument> written = Collections.synchronizedList(new ArrayList<SolrInputDocument>());
+
+    @Before
+    public void setUp() throws SolrServerException, IOException
+    {
+        MockitoAnnotations.initMocks(this);
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object answer(InvocationOnMock invocation)
+            {
+                SolrIndexingPipelineTest.this.written
+                    .addAll((Collection<SolrInputDocument>) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(this.client).add(anyCollectionOf(SolrInputDocument.class));
+
+        doAnswer(new Answer<ExecutionContext>()
+        {
+            @Override
+            public ExecutionContext answer(InvocationOnMock invocation)
+            {
+                return SolrIndexingPipelineTest.this.contexts.get();
+            }
+        }).when(this.execution).getContext();
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                SolrIndexingPipelineTest.this.contexts.set((ExecutionContext) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(this.execution).setContext(any(ExecutionContext.class));
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                SolrIndexingPipelineTest.this.contexts.remove();
+                return null;
+            }
+        }).when(this.execution).removeContext();
+    }
+
+    @Test
+    public void allTermsAreExtendedWrittenAndCommittedOnce() throws Exception
+    {
+        int count = 5432;
+        try (SolrIndexingPipeline pipeline = pipeline(doc -> doc.setField(EXTENDED, true), 500)) {
+            for (int i = 0; i < count; ++i) {
+                pipeline.add(term(i));
+            }
+            Assert.assertEquals(count, pipeline.finish());
+        }
+
+        Assert.assertEquals(count, this.written.size());
+        Set<Object> ids = new HashSet<>();
+        for (SolrInputDocument doc : this.written) {
+            Assert.assertEquals(Boolean.TRUE, doc.getFieldValue(EXTENDED));
+            ids.add(doc.getFieldValue(ID));
+        }
+        Assert.assertEquals(count, ids.size());
+        verify(this.client, times(1)).commit();
+        verify(this.client, never()).rollback();
+    }
+
+    @Test
+    public void batchesDoNotExceedTheMaximumSize() throws Exception
+    {
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                sizes.add(((Collection<?>) invocation.getArguments()[0]).size());
+                return null;
+            }
+        }).when(this.client).add(anyCollectionOf(SolrInputDocument.class));
+
+        try (SolrIndexingPipeline pipeline = pipeline(doc -> { }, 300)) {
+            for (int i = 0; i < 1000; ++i) {
+                pipeline.add(term(i));
+            }
+            pipeline.finish();
+        }
+
+        int total = 0;
+        for (int size : sizes) {
+            Assert.assertTrue(size <= 300);
+            total += size;
+        }
+        Assert.assertEquals(1000, total);
+    }
+
+    @Test
+    public void noTermsStillCommits() throws Exception
+    {
+        try (SolrIndexingPipeline pipeline = pipeline(doc -> { }, -1)) {
+            Assert.assertEquals(0, pipeline.finish());
+        }
+        verify(this.client, never()).add(anyCollectionOf(SolrInputDocument.class));
+        verify(this.client).commit();
+    }
+
+    @Test(expected = SolrServerException.class)
+    public void writeFailuresAreReportedAndRolledBack() throws Exception
+    {
+        doThrow(new SolrServerException("down")).when(this.client).add(anyCollectionOf(SolrInputDocument.class));
+        try (SolrIndexingPipeline pipeline = pipeline(doc -> { }, 100)) {
+            for (int i = 0; i < 1000; ++i) {
+                pipeline.add(term(i));
+            }
+            pipeline.finish();
+        } finally {
+            verify(this.client, never()).commit();
+            verify(this.client).rollback();
+        }
+    }
+
+    @Test
+    public void abortRollsBackWrittenTerms() throws Exception
+    {
+        try (SolrIndexingPipeline pipeline = pipeline(doc -> { }, 100)) {
+            for (int i = 0; i < 1000; ++i) {
+                pipeline.add(term(i));
+            }
+            pipeline.abort();
+        }
+        verify(this.client, never()).commit();
+        verify(this.client).rollback();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void extensionFailuresAreReported() throws Exception
+    {
+        try (SolrIndexingPipeline pipeline = pipeline(doc -> {
+            if ("42".equals(doc.getFieldValue(ID))) {
+                throw new IllegalStateException();
+            }
+        }, 100)) {
+            for (int i = 0; i < 100; ++i) {
+                pipeline.add(term(i));
+            }
+            pipeline.finish();
+        } finally {
+            verify(this.client, never()).commit();
+            verify(this.client).rollback();
+        }
+    }
+
+    @Test
+    public void extensionsRunInACopyOfTheCallerExecutionContext() throws Exception
+    {
+        ExecutionContext parent = new ExecutionContext();
+        parent.setProperty(LOCALE, SPANISH);
+        this.contexts.set(parent);
+        when(this.contextManager.clone(parent)).thenAnswer(new Answer<ExecutionContext>()
+        {
+            @Override
+            public ExecutionContext answer(InvocationOnMock invocation)
+            {
+                ExecutionContext copy = new ExecutionContext();
+                copy.setProperty(LOCALE, parent.getProperty(LOCALE));
+                return copy;
+            }
+        });
+
+        final Set<ExecutionContext> seen = Collections.synchronizedSet(new HashSet<ExecutionContext>());
+        try (SolrIndexingPipeline pipeline = pipeline(doc -> {
+            ExecutionContext context = this.execution.getContext();
+            doc.setField(EXTENDED, context == null ? null : context.getProperty(LOCALE));
+            seen.add(context);
+        }, 100)) {
+            for (int i = 0; i < 1000; ++i) {
+                pipeline.add(term(i));
+            }
+            pipeline.finish();
+        } finally {
+            this.contexts.remove();
+        }
+
+        Assert.assertEquals(1000, this.written.size());
+        for (SolrInputDocument doc : this.written) {
+            Assert.assertEquals(SPANISH, doc.getFieldValue(EXTENDED));
+        }
+        Assert.assertFalse(seen.contains(parent));
+    }
+
+    @Test
+    public void extensionsRunInANewExecutionContextWithoutACallerContext() throws Exception
+    {
+        final List<ExecutionContext> seen = Collections.synchronizedList(new ArrayList<ExecutionContext>());
+        try (SolrIndexingPipeline pipeline = pipeline(doc -> seen.add(this.execution.getContext()), 100)) {
+            for (int i = 0; i < 500; ++i) {
+                pipeline.add(term(i));
+            }
+            pipeline.finish();
+        }
+
+        Assert.assertEquals(500, seen.size());
+        Assert.assertFalse(seen.contains(null));
+        verify(this.contextManager, never()).clone(any(ExecutionContext.class));
+        verify(this.contextManager, atLeastOnce()).initialize(any(ExecutionContext.class));
+    }
+
+    @Test
+    public void batchesAreWrittenInOrder() throws Exception
+    {
+        // The first terms take longer to extend, so later batches are ready first
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                SolrInputDocument doc = (SolrInputDocument) invocation.getArguments()[0];
+                if (Integer.parseInt((String) doc.getFieldValue(ID)) < 100) {
+                    Thread.sleep(1);
+                }
+                return null;
+            }
+        }).when(this.extender).accept(any(SolrInputDocument.class));
+
+        try (SolrIndexingPipeline pipeline = pipeline(this.extender, 100)) {
+            for (int i = 0; i < 1000; ++i) {
+                pipeline.add(term(i));
+            }
+            pipeline.finish();
+        }
+
+        verify(this.extender, times(1000)).accept(any(SolrInputDocument.class));
+        Assert.assertEquals(1000, this.written.size());
+        for (int i = 0; i < 1000; ++i) {
+            Assert.assertEquals(String.valueOf(i), this.written.get(i).getFieldValue(ID));
+        }
+    }
+
+    @Test(expected = SolrServerException.class)
+    public void commitFailuresAreRolledBack() throws Exception
+    {
+        doThrow(new SolrServerException("down")).when(this.client).commit();
+        try (SolrIndexingPipeline pipeline = pipeline(this.extender, 100)) {
+            for (int i = 0; i < 1000; ++i) {
+                pipeline.add(term(i));
+            }
+            pipeline.finish();
+        } finally {
+            verify(this.client).rollback();
+        }
+    }
+
+    @Test
+    public void workerContextFailuresStopTheIndexing() throws Exception
+    {
+        doThrow(new ExecutionContextException("broken")).when(this.contextManager)
+            .initialize(any(ExecutionContext.class));
+        try (SolrIndexingPipeline pipeline = pipeline(this.extender, 100)) {
+            for (int i = 0; i < 1000; ++i) {
+                pipeline.add(term(i));
+            }
+            pipeline.finish();
+            Assert.fail("The indexing must fail when the extensions can't get an execution context");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getCause() instanceof ExecutionContextException);
+        }
+        verify(this.client, never()).add(anyCollectionOf(SolrInputDocument.class));
+        verify(this.client, never()).commit();
+        verify(this.client).rollback();
+    }
+
+    @Test
+    public void workerContextsDoNotShareTheStoreSession() throws Exception
+    {
+        XWikiContext parentXContext = mock(XWikiContext.class);
+        final XWikiContext copy = mock(XWikiContext.class);
+        when(parentXContext.clone()).thenReturn(copy);
+        final ExecutionContext parent = new ExecutionContext();
+        parent.setProperty(XWikiContext.EXECUTIONCONTEXT_KEY, parentXContext);
+        this.contexts.set(parent);
+        when(this.contextManager.clone(parent)).thenAnswer(new Answer<ExecutionContext>()
+        {
+            @Override
+            public ExecutionContext answer(InvocationOnMock invocation)
+            {
+                ExecutionContext result = new ExecutionContext();
+                result.setProperty(XWikiContext.EXECUTIONCONTEXT_KEY, parentXContext);
+                return result;
+            }
+        });
+
+        try (SolrIndexingPipeline pipeline = pipeline(this.extender, 100)) {
+            for (int i = 0; i < 500; ++i) {
+                pipeline.add(term(i));
+            }
+            pipeline.finish();
+        } finally {
+            this.contexts.remove();
+        }
+
+        verify(copy, atLeastOnce()).remove("hibsession");
+        verify(copy, atLeastOnce()).remove("hibtransaction");
+        verify(copy, atLeastOnce()).declareInExecutionContext(any(ExecutionContext.class));
+        verify(parentXContext, never()).remove(any());
+        verify(copy, never()).declareInExecutionContext(parent);
+    }
+
+    private SolrIndexingPipeline pipeline(Consumer<SolrInputDocument> extender, int maxBatchSize)
+    {
+        return new SolrIndexingPipeline(this.client, extender, maxBatchSize, this.execution, this.contextManager);
+    }
+
+    private static SolrInputDocument term(int id)
+    {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.setField(ID, String.valueOf(id));
+        return doc;
+    }
+}
@@ -18,6 +18,7 @@
 package org.phenotips.vocabulary.internal;
 
 import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyHierarchy;
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.cache.Cache;
@@ -296,6 +297,13 @@ public long getDistance(VocabularyTerm fromTerm, VocabularyTerm toTerm)
         return -1;
     }
 
+    @Override
+    public VocabularyHierarchy getHierarchy()
+    {
+        // Flat nomenclature
+        return null;
+    }
+
     @Override
     public String getIdentifier()
     {
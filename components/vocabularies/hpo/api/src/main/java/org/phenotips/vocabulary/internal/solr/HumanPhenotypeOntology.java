@@ -73,6 +73,13 @@ protected int getSolrDocsPerBatch()
         return 15000;
     }
 
+    @Override
+    protected boolean isHierarchyInMemory()
+    {
+        /* The HPO structure is navigated when indexing patients and when computing scores */
+        return true;
+    }
+
     @Override
     public String getIdentifier()
     {
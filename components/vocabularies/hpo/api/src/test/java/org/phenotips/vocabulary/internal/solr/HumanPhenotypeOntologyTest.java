@@ -19,6 +19,7 @@
 
 import org.phenotips.vocabulary.SolrVocabularyResourceManager;
 import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyHierarchy;
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.cache.Cache;
@@ -27,6 +28,11 @@
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -47,8 +53,12 @@
 import org.mockito.Mockito;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -98,6 +108,70 @@ public void testHumanPhenotypeOntologyReindex()
         Assert.assertTrue(this.ontologyServiceResult == 0);
     }
 
+    @Test
+    public void testHumanPhenotypeOntologyHierarchyIsBuiltWhileIndexing() throws SolrServerException, IOException
+    {
+        VocabularyHierarchy hierarchy = this.ontologyService.getHierarchy();
+        Assert.assertNotNull(hierarchy);
+        Assert.assertTrue(hierarchy.size() > 0);
+        Assert.assertSame(hierarchy, this.ontologyService.getHierarchy());
+        verify(this.server, never()).query(any(SolrParams.class));
+    }
+
+    @Test
+    public void testHumanPhenotypeOntologyHierarchyIsKeptWhenReindexingFails() throws SolrServerException, IOException
+    {
+        VocabularyHierarchy hierarchy = this.ontologyService.getHierarchy();
+
+        Assert.assertEquals(2, this.ontologyService.reindex("not a valid URL"));
+
+        Assert.assertSame(hierarchy, this.ontologyService.getHierarchy());
+        verify(this.server, never()).query(any(SolrParams.class));
+    }
+
+    @Test
+    public void testHumanPhenotypeOntologyGetTermsSearchesAlternativeIdsInOneQuery()
+        throws SolrServerException, IOException
+    {
+        final Map<String, VocabularyTerm> cached = mockCacheContent();
+        SolrDocument current = new SolrDocument();
+        current.setField("id", "HP:0000001");
+        SolrDocument renamed = new SolrDocument();
+        renamed.setField("id", "HP:0000002");
+        renamed.setField("alt_id", Arrays.asList("HP:0000003", "HP:0000004"));
+        mockQueryResults("id:(", current);
+        mockQueryResults("alt_id:(", renamed);
+
+        Set<VocabularyTerm> terms =
+            this.ontologyService.getTerms(Arrays.asList("HP:0000001", "HP:0000003", "HP:0000004", "HP:9999999"));
+
+        Assert.assertEquals(2, terms.size());
+        Iterator<VocabularyTerm> iterator = terms.iterator();
+        Assert.assertEquals("HP:0000001", iterator.next().getId());
+        Assert.assertEquals("HP:0000002", iterator.next().getId());
+        verify(this.server).query(argThat(new QueryStartsWith("id:(")));
+        verify(this.server).query(argThat(new QueryStartsWith("alt_id:(")));
+        Assert.assertEquals("HP:0000002", cached.get("HP:0000003").getId());
+        Assert.assertEquals("HP:0000002", cached.get("HP:0000004").getId());
+        Assert.assertTrue(cached.containsKey("HP:9999999"));
+    }
+
+    @Test
+    public void testHumanPhenotypeOntologyMissingTermsAreNotSearchedAgain() throws SolrServerException, IOException
+    {
+        mockCacheContent();
+        mockQueryResults("id:", new SolrDocument[0]);
+        mockQueryResults("alt_id:", new SolrDocument[0]);
+
+        Assert.assertNull(this.ontologyService.getTerm("HP:9999999"));
+        Assert.assertTrue(this.ontologyService.getTerms(Arrays.asList("HP:9999998", "HP:9999999")).isEmpty());
+        Assert.assertNull(this.ontologyService.getTerm("HP:9999998"));
+        Assert.assertTrue(this.ontologyService.getTerms(Arrays.asList("HP:9999998", "HP:9999999")).isEmpty());
+
+        // One search by id and one by alternative id for the first getTerm, and the same for the first getTerms
+        verify(this.server, times(4)).query(any(SolrParams.class));
+    }
+
     @Test
     public void testHumanPhenotypeOntologyVersion() throws SolrServerException, IOException
     {
@@ -169,6 +243,47 @@ public void testHumanPhenotypeOntologySuggestTermsMultipleWords() throws Compone
         verify(this.server).query(argThat(new IsDisMaxQuery()));
     }
 
+    /**
+     * Backs the mocked term cache with a map, so that cached terms and cached misses are served again.
+     *
+     * @return the map holding the cache content
+     */
+    private Map<String, VocabularyTerm> mockCacheContent()
+    {
+        final Map<String, VocabularyTerm> content = new HashMap<>();
+        when(this.cache.get(anyString())).thenAnswer(invocation -> content.get(invocation.getArguments()[0]));
+        doAnswer(invocation -> content.put((String) invocation.getArguments()[0],
+            (VocabularyTerm) invocation.getArguments()[1])).when(this.cache).set(anyString(), any(VocabularyTerm.class));
+        return content;
+    }
+
+    private void mockQueryResults(String queryPrefix, SolrDocument... documents) throws SolrServerException, IOException
+    {
+        SolrDocumentList results = new SolrDocumentList();
+        results.addAll(Arrays.asList(documents));
+        results.setNumFound(documents.length);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(results);
+        when(this.server.query(argThat(new QueryStartsWith(queryPrefix)))).thenReturn(response);
+    }
+
+    class QueryStartsWith extends ArgumentMatcher<SolrParams>
+    {
+        private final String prefix;
+
+        QueryStartsWith(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean matches(Object argument)
+        {
+            String query = argument == null ? null : ((SolrParams) argument).get(CommonParams.Q);
+            return query != null && query.startsWith(this.prefix);
+        }
+    }
+
     class IsDisMaxQuery extends ArgumentMatcher<SolrParams>
     {
         @Override
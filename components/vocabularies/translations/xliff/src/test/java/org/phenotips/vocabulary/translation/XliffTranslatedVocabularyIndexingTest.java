@@ -0,0 +1,284 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.translation;
+
+import org.phenotips.vocabulary.SolrVocabularyResourceManager;
+import org.phenotips.vocabulary.VocabularyExtension;
+import org.phenotips.vocabulary.VocabularyTerm;
+import org.phenotips.vocabulary.internal.solr.AbstractCSVSolrVocabulary;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.localization.LocalizationContext;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Provider;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that vocabulary terms are translated by the {@link AbstractXliffTranslatedVocabularyExtension} when the whole
+ * vocabulary is reindexed, where the extension runs on the indexing worker threads and needs their execution context
+ * for finding out the current locale.
+ *
+ * @version $Id$
+ */
+public class XliffTranslatedVocabularyIndexingTest
+{
+    private static final String ID_FIELD = "id";
+
+    private static final String NAME_FIELD = "name_es";
+
+    private static final String VOCABULARY = "hpo";
+
+    private static final String TRANSLATED_ID = "HP:0000003";
+
+    private static final String UNTRANSLATED_ID = "HP:0000001";
+
+    private static final String TRANSLATED_NAME = "Displasia renal multiqu\u00edstica";
+
+    @Rule
+    public final MockitoComponentMockingRule<VocabularyExtension> mocker =
+        new MockitoComponentMockingRule<VocabularyExtension>(
+            AbstractXliffTranslatedVocabularyExtensionTest.MockXLIFFTranslatedVocabularyExtension.class);
+
+    /** The execution context of each thread, as managed by the mocked {@link Execution}. */
+    private final ThreadLocal<ExecutionContext> contexts = new ThreadLocal<>();
+
+    /** Collects the documents sent to Solr. */
+    private final Map<String, SolrInputDocument> written = Collections.synchronizedMap(new HashMap<>());
+
+    private final Execution execution = mock(Execution.class);
+
+    private final ExecutionContextManager contextManager = mock(ExecutionContextManager.class);
+
+    private final SolrClient client = mock(SolrClient.class);
+
+    private TestVocabulary vocabulary;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        doAnswer(new Answer<ExecutionContext>()
+        {
+            @Override
+            public ExecutionContext answer(InvocationOnMock invocation)
+            {
+                return XliffTranslatedVocabularyIndexingTest.this.contexts.get();
+            }
+        }).when(this.execution).getContext();
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                XliffTranslatedVocabularyIndexingTest.this.contexts
+                    .set((ExecutionContext) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(this.execution).setContext(any(ExecutionContext.class));
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                XliffTranslatedVocabularyIndexingTest.this.contexts.remove();
+                return null;
+            }
+        }).when(this.execution).removeContext();
+        when(this.contextManager.clone(any(ExecutionContext.class))).thenAnswer(new Answer<ExecutionContext>()
+        {
+            @Override
+            public ExecutionContext answer(InvocationOnMock invocation)
+            {
+                return new ExecutionContext();
+            }
+        });
+
+        // Like the real localization context, the current locale can only be found in an execution context
+        LocalizationContext localization = this.mocker.getInstance(LocalizationContext.class);
+        when(localization.getCurrentLocale()).thenAnswer(new Answer<Locale>()
+        {
+            @Override
+            public Locale answer(InvocationOnMock invocation)
+            {
+                if (XliffTranslatedVocabularyIndexingTest.this.execution.getContext() == null) {
+                    throw new IllegalStateException("No execution context");
+                }
+                return Locale.forLanguageTag("es");
+            }
+        });
+
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object answer(InvocationOnMock invocation)
+            {
+                for (SolrInputDocument doc : (Collection<SolrInputDocument>) invocation.getArguments()[0]) {
+                    XliffTranslatedVocabularyIndexingTest.this.written
+                        .put((String) doc.getFieldValue(ID_FIELD), doc);
+                }
+                return null;
+            }
+        }).when(this.client).add(anyCollectionOf(SolrInputDocument.class));
+
+        this.vocabulary = createVocabulary();
+    }
+
+    @Test
+    public void termsAreTranslatedDuringReindexing() throws Exception
+    {
+        this.contexts.set(new ExecutionContext());
+        try {
+            Assert.assertEquals(0, this.vocabulary.reindex(null));
+        } finally {
+            this.contexts.remove();
+        }
+
+        Assert.assertEquals(2, this.written.size());
+        Assert.assertEquals(TRANSLATED_NAME, this.written.get(TRANSLATED_ID).getFieldValue(NAME_FIELD));
+        Assert.assertNull(this.written.get(UNTRANSLATED_ID).getFieldValue(NAME_FIELD));
+        verify(this.client).commit();
+        verify(this.client, never()).rollback();
+    }
+
+    @Test
+    public void termsAreTranslatedDuringReindexingWithoutACallerContext() throws Exception
+    {
+        Assert.assertEquals(0, this.vocabulary.reindex(null));
+
+        Assert.assertEquals(TRANSLATED_NAME, this.written.get(TRANSLATED_ID).getFieldValue(NAME_FIELD));
+        verify(this.contextManager, never()).clone(any(ExecutionContext.class));
+        verify(this.client).commit();
+    }
+
+    @SuppressWarnings("unchecked")
+    private TestVocabulary createVocabulary() throws Exception
+    {
+        TestVocabulary result = new TestVocabulary();
+        SolrVocabularyResourceManager resources = mock(SolrVocabularyResourceManager.class);
+        when(resources.getSolrConnection(VOCABULARY)).thenReturn(this.client);
+        Cache<VocabularyTerm> cache = mock(Cache.class);
+        when(resources.getTermCache(VOCABULARY)).thenReturn(cache);
+        final List<VocabularyExtension> extensions = new ArrayList<>();
+        extensions.add(this.mocker.getComponentUnderTest());
+        Provider<List<VocabularyExtension>> extensionsProvider = mock(Provider.class);
+        when(extensionsProvider.get()).thenReturn(extensions);
+
+        ReflectionUtils.setFieldValue(result, "logger", mock(Logger.class));
+        ReflectionUtils.setFieldValue(result, "externalServicesAccess", resources);
+        ReflectionUtils.setFieldValue(result, "extensions", extensionsProvider);
+        ReflectionUtils.setFieldValue(result, "execution", this.execution);
+        ReflectionUtils.setFieldValue(result, "contextManager", this.contextManager);
+        return result;
+    }
+
+    /** A minimal vocabulary, with the identifier targeted by the mock translation, holding two terms. */
+    private static final class TestVocabulary extends AbstractCSVSolrVocabulary
+    {
+        @Override
+        public String getIdentifier()
+        {
+            return VOCABULARY;
+        }
+
+        @Override
+        public String getName()
+        {
+            return "Test vocabulary";
+        }
+
+        @Override
+        public Set<String> getAliases()
+        {
+            return Collections.singleton(getIdentifier());
+        }
+
+        @Override
+        public String getDefaultSourceLocation()
+        {
+            return "http://localhost/hpo.csv";
+        }
+
+        @Override
+        public String getWebsite()
+        {
+            return getDefaultSourceLocation();
+        }
+
+        @Override
+        public String getCitation()
+        {
+            return getName();
+        }
+
+        @Override
+        protected String getCoreName()
+        {
+            return getIdentifier();
+        }
+
+        @Override
+        protected int getSolrDocsPerBatch()
+        {
+            return 1;
+        }
+
+        @Override
+        protected Collection<SolrInputDocument> load(URL url)
+        {
+            List<SolrInputDocument> result = new ArrayList<>();
+            for (String id : new String[] { UNTRANSLATED_ID, TRANSLATED_ID }) {
+                SolrInputDocument doc = new SolrInputDocument();
+                doc.setField(ID_FIELD, id);
+                result.add(doc);
+            }
+            return result;
+        }
+    }
+}